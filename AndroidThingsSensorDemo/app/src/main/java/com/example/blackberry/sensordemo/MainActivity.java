@@ -33,7 +33,6 @@ import android.util.Log;
 import com.example.blackberry.sensordemo.controllers.ServiceController;
 import com.example.blackberry.sensordemo.helpers.CredentialsHelper;
 import com.example.blackberry.sensordemo.models.AppPolicy;
-import com.example.blackberry.sensordemo.models.DataModel;
 import com.example.blackberry.sensordemo.services.SensorMonitorService;
 import com.good.gd.GDAndroid;
 import com.good.gd.GDStateListener;
@@ -59,9 +58,6 @@ public class MainActivity extends Activity implements GDStateListener, Connectiv
         wakeLock.acquire();
 
 
-        //initialise DataModel and pass the context
-        DataModel.sharedInstance().setContext(this);
-
         //Initialize the ServiceController and pass the context
         serviceController = ServiceController.sharedInstance();
         serviceController.setContext(this);
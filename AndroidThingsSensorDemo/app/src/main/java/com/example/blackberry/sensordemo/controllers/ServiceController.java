@@ -23,23 +23,25 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.example.blackberry.sensordemo.broadcastreceivers.DataModelBroadcastReceiver;
+import com.example.blackberry.sensordemo.encoding.TelemetryEncoder;
+import com.example.blackberry.sensordemo.encoding.TelemetryEncoding;
+import com.example.blackberry.sensordemo.encoding.TelemetryFrame;
+import com.example.blackberry.sensordemo.logging.SecureLogWriter;
 import com.example.blackberry.sensordemo.models.AppPolicy;
-import com.example.blackberry.sensordemo.models.DataModel;
+import com.example.blackberry.sensordemo.models.TelemetryBus.Channel;
+import com.example.blackberry.sensordemo.models.TimeSeriesStore;
+import com.example.blackberry.sensordemo.networking.mqtt.MqttOutbox;
 import com.example.blackberry.sensordemo.services.BEMSUploaderService;
+import com.example.blackberry.sensordemo.services.DisplayService;
 import com.example.blackberry.sensordemo.services.DynamicsMqttService;
 import com.example.blackberry.sensordemo.services.LogFileService;
+import com.example.blackberry.sensordemo.services.RainbowLEDService;
 import com.example.blackberry.sensordemo.services.SensorMonitorService;
 import com.good.gd.GDAndroid;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Map;
 
 
@@ -48,7 +50,6 @@ public class ServiceController implements AutoCloseable {
     private static final String TAG = ServiceController.class.getSimpleName();
 
     private MqttBroadcastReceiver mqttBroadCastReceiver;
-    private DataModelBroadcastReceiver dataModelBroadcastReceiver;
 
 
     private Handler logFileServiceHandler;
@@ -56,6 +57,14 @@ public class ServiceController implements AutoCloseable {
     private Handler mqttPublishServiceHandler;
 
 
+    //Frames are refilled for every window, and only used on the main thread.
+    //Points in the downsampled series in each MQTT message
+    private static final int BATCH_POINTS = 10;
+    private final TelemetryFrame mqttFrame = new TelemetryFrame(BATCH_POINTS);
+    //Log records only have the aggregates
+    private final TelemetryFrame logFrame = new TelemetryFrame(0);
+
+
     private Context context;
     public void setContext(Context value) {
         context = value;
@@ -80,10 +89,13 @@ public class ServiceController implements AutoCloseable {
     @Override
     public void close() throws Exception {
         stopMonitoringSensors();
+        stopTelemetryServices();
+        TimeSeriesStore.sharedInstance().stop();
         context.unregisterReceiver(mqttBroadCastReceiver);
 
         unscheduleLogFileService();
         unscheduleBEMSUploaderService();
+        SecureLogWriter.sharedInstance().close();
     }
 
 
@@ -93,7 +105,8 @@ public class ServiceController implements AutoCloseable {
         intent.setAction(SensorMonitorService.ACTION_START_MONITORING);
         context.startForegroundService(intent);
 
-        registerDataModelBroadcastReceiver();
+        TimeSeriesStore.sharedInstance().start(new Handler());
+        startTelemetryServices();
         scheduleLogFileService();
         scheduleBEMSUploaderService();
     }
@@ -131,21 +144,16 @@ public class ServiceController implements AutoCloseable {
         }
     }
 
-    private void registerDataModelBroadcastReceiver() {
-        dataModelBroadcastReceiver = new DataModelBroadcastReceiver();
-        try
-        {
-            IntentFilter intentFilter = new IntentFilter();
-            //intentFilter.addAction(DataModel.BROADCAST_ACTION_BMX250_TEMPERATURE_UPDATED);
-            intentFilter.addAction(DataModel.BROADCAST_ACTION_BMX250_PRESSURE_UPDATED);
-            //intentFilter.addAction(DataModel.BROADCAST_ACTION_BCM2385_TEMPERATURE_UPDATED);
-            intentFilter.addAction(DataModel.BROADCAST_ACTION_AIR_TEMPERATURE_UPDATED);
-            context.registerReceiver(dataModelBroadcastReceiver, intentFilter);
-        }
-        catch (Exception ex)
-        {
-            ex.printStackTrace();
-        }
+    //The display and LED services subscribe to the TelemetryBus when they're created, and get every
+    //reading from then on without any further Intents.
+    private void startTelemetryServices() {
+        context.startService(new Intent(context, DisplayService.class));
+        context.startService(new Intent(context, RainbowLEDService.class));
+    }
+
+    private void stopTelemetryServices() {
+        context.stopService(new Intent(context, DisplayService.class));
+        context.stopService(new Intent(context, RainbowLEDService.class));
     }
 
     private void scheduleMqttPublish() {
@@ -164,6 +172,7 @@ public class ServiceController implements AutoCloseable {
         @Override
         public void run() {
             try {
+                int interval = AppPolicy.sharedInstance().getMqttPublishingInterval();
 
                 Map<String, Object> applicationConfig = GDAndroid.getInstance().getApplicationConfig();
                 String roomName = (applicationConfig.containsKey(GDAndroid.GDAppConfigKeyUserPrincipalName) ? applicationConfig.get(GDAndroid.GDAppConfigKeyUserPrincipalName).toString() : "");
@@ -174,32 +183,23 @@ public class ServiceController implements AutoCloseable {
                     roomName = roomName.substring(0, atPos);
                 }
 
-                String airTemperatureTopic = AppPolicy.sharedInstance().getMqttTopic() + "/airTemperature/" + roomName;
-
-                //Tidy up topic in case of any double //
-                airTemperatureTopic = airTemperatureTopic.replaceAll("//", "/");
-
-                //Publish the Air Temperature over MQTT + Dynamics
-                Intent airTempIntent = new Intent(context, DynamicsMqttService.class);
-                airTempIntent.setAction(DynamicsMqttService.ACTION_MESSAGE);
-                airTempIntent.putExtra(DynamicsMqttService.EXTRA_TOPIC, airTemperatureTopic);
-                airTempIntent.putExtra(DynamicsMqttService.EXTRA_VALUE, String.valueOf(DataModel.sharedInstance().getAirTemperature()));
-                context.startForegroundService(airTempIntent);
-
-                String airPressureTopic = AppPolicy.sharedInstance().getMqttTopic() + "/airPressure/" + roomName;
+                String telemetryTopic = AppPolicy.sharedInstance().getMqttTopic() + "/telemetry/" + roomName;
 
                 //Tidy up topic in case of any double //
-                airPressureTopic = airPressureTopic.replaceAll("//","/");
-
-                //Publish the Air Pressure over MQTT + Dynamics
-                Intent airPressureIntent = new Intent(context, DynamicsMqttService.class);
-                airPressureIntent.setAction(DynamicsMqttService.ACTION_MESSAGE);
-                airPressureIntent.putExtra(DynamicsMqttService.EXTRA_TOPIC, airPressureTopic);
-                airPressureIntent.putExtra(DynamicsMqttService.EXTRA_VALUE, String.valueOf(DataModel.sharedInstance().getBmx250Pressure()));
-                context.startForegroundService(airPressureIntent);
-
+                telemetryTopic = telemetryTopic.replaceAll("//", "/");
 
+                //One message for the whole interval, with the Air Temperature and Air Pressure,
+                //in the encoding set by policy. It goes into the outbox, and DynamicsMqttService
+                //publishes it over MQTT + Dynamics when there's a connection.
+                long now = SystemClock.elapsedRealtimeNanos();
+                long since = now - interval * 1000000L;
+                mqttFrame.reset(System.currentTimeMillis(), interval, roomName);
+                mqttFrame.addChannel(Channel.AIR_TEMPERATURE, since, now + 1);
+                mqttFrame.addChannel(Channel.BMX280_PRESSURE, since, now + 1);
 
+                TelemetryEncoder encoder = TelemetryEncoding.forName(AppPolicy.sharedInstance().getTelemetryEncoding());
+                MqttOutbox.sharedInstance().enqueue(telemetryTopic, encoder.encodeMessage(mqttFrame),
+                        AppPolicy.sharedInstance().getMqttOutboxSize());
 
             } finally {
                 mqttPublishServiceHandler.postDelayed( mqttPublishService, AppPolicy.sharedInstance().getMqttPublishingInterval());
@@ -220,27 +220,29 @@ public class ServiceController implements AutoCloseable {
         @Override
         public void run() {
             try {
-                Date timeStamp = new Date();
-                DateFormat timeStampFormat = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
+                int interval = AppPolicy.sharedInstance().getLocalLoggingInterval();
 
-                JSONObject jsonObject = new JSONObject();
-                jsonObject.put("timeStamp", timeStampFormat.format(timeStamp));
-                jsonObject.put("cpuTemperature", DataModel.sharedInstance().getBcm2385Temperature());
-                jsonObject.put("rainbowHatTemperature", DataModel.sharedInstance().getBmx250Temperature());
-                jsonObject.put("airTemperature", DataModel.sharedInstance().getAirTemperature());
-                jsonObject.put("rainbowHatPressure", DataModel.sharedInstance().getBmx250Pressure());
+                //Every channel over the interval, in the encoding set by policy
+                long now = SystemClock.elapsedRealtimeNanos();
+                long since = now - interval * 1000000L;
+                logFrame.reset(System.currentTimeMillis(), interval, null);
+                logFrame.addChannel(Channel.BCM2835_TEMPERATURE, since, now + 1);
+                logFrame.addChannel(Channel.BMX280_TEMPERATURE, since, now + 1);
+                logFrame.addChannel(Channel.BMX280_PRESSURE, since, now + 1);
+                logFrame.addChannel(Channel.AIR_TEMPERATURE, since, now + 1);
 
-                String logText = jsonObject.toString() + "\r\n";
+                TelemetryEncoder encoder = TelemetryEncoding.forName(AppPolicy.sharedInstance().getTelemetryEncoding());
 
                 Intent intent = new Intent(context, LogFileService.class);
                 intent.setAction(LogFileService.ACTION_LOG);
                 intent.putExtra(LogFileService.EXTRA_LOCAL_FILE, AppPolicy.sharedInstance().getLocalFilePath());
-                intent.putExtra(LogFileService.EXTRA_TEXT, logText);
+                intent.putExtra(LogFileService.EXTRA_BYTES, encoder.encodeRecord(logFrame));
                 intent.putExtra(LogFileService.EXTRA_LOCAL_MAX_FILE_SIZE, AppPolicy.sharedInstance().getLocalMaxFileSize());
+                intent.putExtra(LogFileService.EXTRA_LOCAL_RETENTION_SIZE, AppPolicy.sharedInstance().getLocalRetentionSize());
+                intent.putExtra(LogFileService.EXTRA_LOCAL_ROTATION_INTERVAL, AppPolicy.sharedInstance().getLocalRotationInterval());
+                intent.putExtra(LogFileService.EXTRA_LOCAL_FLUSH_INTERVAL, AppPolicy.sharedInstance().getLocalFlushInterval());
 
                 context.startService(intent);
-            } catch( JSONException e) {
-
             } finally {
                 logFileServiceHandler.postDelayed( logFileService, AppPolicy.sharedInstance().getLocalLoggingInterval());
             }
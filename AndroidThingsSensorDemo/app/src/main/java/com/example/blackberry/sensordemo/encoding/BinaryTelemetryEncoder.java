@@ -0,0 +1,140 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.example.blackberry.sensordemo.encoding;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of a TelemetryFrame, see TelemetryDecoder for the format.
+ *
+ * Readings are written as integers in hundredths, and the series as differences from the point
+ * before, so a typical channel takes a few bytes per point instead of tens of characters.
+ * Encoding is into a buffer that's kept between calls, so the only allocation is the returned
+ * copy.
+ */
+class BinaryTelemetryEncoder implements TelemetryEncoder {
+
+    //Guarded by the encoder object itself
+    private byte[] buffer = new byte[256];
+    private int length = 0;
+
+    BinaryTelemetryEncoder() {
+        super();
+    }
+
+    @Override
+    public String getName() {
+        return TelemetryEncoding.BINARY;
+    }
+
+    @Override
+    public synchronized byte[] encodeMessage(TelemetryFrame frame) {
+        length = 0;
+        writeFrame(frame);
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public synchronized byte[] encodeRecord(TelemetryFrame frame) {
+        length = 0;
+        writeFrame(frame);
+        final int messageLength = length;
+        //Work out the size of the prefix, then move the message up to make room for it
+        int prefixLength = 1;
+        for(long value = messageLength; value >= 0x80; value >>>= 7) {
+            prefixLength++;
+        }
+        ensure(1 + prefixLength);
+        System.arraycopy(buffer, 0, buffer, 1 + prefixLength, messageLength);
+        length = 0;
+        writeByte(TelemetryDecoder.MAGIC);
+        writeVarint(messageLength);
+        length += messageLength;
+        return Arrays.copyOf(buffer, length);
+    }
+
+    //Must be called with the lock held.
+    private void writeFrame(TelemetryFrame frame) {
+        writeByte(TelemetryDecoder.MAGIC);
+        writeByte(TelemetryDecoder.VERSION);
+        writeVarint(frame.getTimeStamp());
+        writeVarint(frame.getIntervalMillis());
+        byte[] room = frame.getRoom().getBytes(StandardCharsets.UTF_8);
+        writeVarint(room.length);
+        ensure(room.length);
+        System.arraycopy(room, 0, buffer, length, room.length);
+        length += room.length;
+
+        writeVarint(frame.getChannelCount());
+        for(int slot = 0; slot < frame.getChannelCount(); slot++) {
+            writeVarint(frame.getChannel(slot).ordinal());
+            int count = frame.getCount(slot);
+            writeVarint(count);
+            long mean = scale(frame.getMean(slot));
+            writeZigzag(mean);
+            if(count > 0) {
+                writeVarint(Math.max(0, mean - scale(frame.getMin(slot))));
+                writeVarint(Math.max(0, scale(frame.getMax(slot)) - mean));
+            }
+            int points = frame.getPointCount(slot);
+            writeVarint(points);
+            long time = 0;
+            long value = mean;
+            for(int point = 0; point < points; point++) {
+                long pointTime = frame.getPointOffset(slot, point);
+                long pointValue = scale(frame.getPointValue(slot, point));
+                writeVarint(Math.max(0, pointTime - time));
+                writeZigzag(pointValue - value);
+                time = Math.max(time, pointTime);
+                value = pointValue;
+            }
+        }
+    }
+
+    private static long scale(float value) {
+        return Math.round((double) value * TelemetryDecoder.SCALE);
+    }
+
+    //Must be called with the lock held.
+    private void ensure(int extra) {
+        if(length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    //Must be called with the lock held.
+    private void writeByte(int value) {
+        ensure(1);
+        buffer[length++] = (byte) value;
+    }
+
+    //Must be called with the lock held.
+    private void writeVarint(long value) {
+        ensure(10);
+        while((value & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    //Must be called with the lock held.
+    private void writeZigzag(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+}
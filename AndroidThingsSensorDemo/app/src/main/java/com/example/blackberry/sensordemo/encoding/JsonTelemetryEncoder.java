@@ -0,0 +1,88 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.example.blackberry.sensordemo.encoding;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON encoding of a TelemetryFrame. A log record is one line.
+ *
+ * The shape is the same as TelemetryDecoder.toJSON(), so consumers see the same JSON whichever
+ * encoding a device uses.
+ */
+class JsonTelemetryEncoder implements TelemetryEncoder {
+
+    private static final String TAG = JsonTelemetryEncoder.class.getSimpleName();
+
+    JsonTelemetryEncoder() {
+        super();
+    }
+
+    @Override
+    public String getName() {
+        return TelemetryEncoding.JSON;
+    }
+
+    @Override
+    public byte[] encodeMessage(TelemetryFrame frame) {
+        return toJSON(frame).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] encodeRecord(TelemetryFrame frame) {
+        return (toJSON(frame) + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String toJSON(TelemetryFrame frame) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("room", frame.getRoom());
+            json.put("timeStamp", frame.getTimeStamp());
+            json.put("interval", frame.getIntervalMillis());
+            for(int slot = 0; slot < frame.getChannelCount(); slot++) {
+                JSONObject channel = new JSONObject();
+                channel.put("count", frame.getCount(slot));
+                channel.put("mean", frame.getMean(slot));
+                if(frame.getCount(slot) > 0) {
+                    channel.put("min", frame.getMin(slot));
+                    channel.put("max", frame.getMax(slot));
+                }
+                if(frame.getPointCount(slot) > 0) {
+                    JSONArray series = new JSONArray();
+                    for(int point = 0; point < frame.getPointCount(slot); point++) {
+                        JSONObject entry = new JSONObject();
+                        entry.put("offset", frame.getPointOffset(slot, point));
+                        entry.put("value", frame.getPointValue(slot, point));
+                        series.put(entry);
+                    }
+                    channel.put("series", series);
+                }
+                json.put(TelemetryDecoder.CHANNEL_NAMES[frame.getChannel(slot).ordinal()], channel);
+            }
+        } catch (JSONException e) {
+            //Only thrown for a value that isn't finite, and the frame doesn't have any
+            Log.e(TAG, "Couldn't encode frame", e);
+        }
+        return json.toString();
+    }
+
+}
@@ -0,0 +1,364 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.example.blackberry.sensordemo.encoding;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decoder for the binary telemetry encoding, for use on the broker side.
+ *
+ * This class only uses the Java runtime, so it can be copied out and run anywhere, for example:
+ *
+ *     java TelemetryDecoder -m message.bin
+ *     java TelemetryDecoder localLog.txt
+ *
+ * which print each frame as a line of JSON in the same shape as the JSON encoding. With -m each
+ * file is one MQTT message, otherwise each file is a log of records. Log files can have JSON lines
+ * and binary records mixed, if the encoding was changed by policy, and JSON lines are printed as
+ * they are.
+ *
+ * A message is:
+ *
+ *     byte    MAGIC
+ *     byte    VERSION
+ *     varint  time stamp, wall clock milliseconds at the end of the window
+ *     varint  window length in milliseconds
+ *     varint  length of room name, then the name in UTF-8
+ *     varint  number of channels, then for each channel:
+ *         varint  channel number, see CHANNEL_NAMES
+ *         varint  number of readings in the window
+ *         zigzag  mean
+ *         if there were readings:
+ *             varint  mean - min
+ *             varint  max - mean
+ *         varint  number of points, then for each point:
+ *             varint  milliseconds since the previous point, or since the start of the window
+ *             zigzag  value - previous value, or value - mean for the first point
+ *
+ * Readings are scaled integers, in hundredths. Varints are unsigned LEB128, and zigzag values are
+ * signed values zigzag mapped and then written as varints, as in Protocol Buffers.
+ *
+ * A log record is MAGIC, then the length of the message as a varint, then the message. The first
+ * byte tells it apart from a JSON line, which starts with a brace.
+ */
+public final class TelemetryDecoder {
+
+    public static final int MAGIC = 0xB7;
+    public static final int VERSION = 1;
+    public static final int SCALE = 100;
+
+    //By channel number, which is the ordinal of TelemetryBus.Channel
+    public static final String[] CHANNEL_NAMES = {
+            "rainbowHatTemperature",
+            "rainbowHatPressure",
+            "cpuTemperature",
+            "airTemperature"
+    };
+
+    public static final class Frame {
+        public long timeStamp;
+        public int intervalMillis;
+        public String room;
+        public final List<ChannelData> channels = new ArrayList<>();
+    }
+
+    public static final class ChannelData {
+        public int channel;
+        public int count;
+        public float mean;
+        public float min;
+        public float max;
+        public int[] offsets;
+        public float[] values;
+
+        public String getName() {
+            return channel < CHANNEL_NAMES.length ? CHANNEL_NAMES[channel] : "channel" + channel;
+        }
+    }
+
+    private TelemetryDecoder() {
+        super();
+    }
+
+    //Reads from an array, and throws if it runs off the end
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+        private final int end;
+
+        Reader(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        int readByte() throws IOException {
+            if(position >= end) {
+                throw new EOFException("Truncated telemetry");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Varint too long");
+        }
+
+        long readZigzag() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        int readCount() throws IOException {
+            long value = readVarint();
+            if(value > Integer.MAX_VALUE) {
+                throw new IOException("Bad count " + value);
+            }
+            return (int) value;
+        }
+
+        //A number of things that each take at least a byte, so it can't be more than are left
+        int readLength() throws IOException {
+            long value = readVarint();
+            if(value > end - position) {
+                throw new EOFException("Truncated telemetry");
+            }
+            return (int) value;
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+
+    /**
+     * Decode one message.
+     */
+    public static Frame decode(byte[] bytes, int offset, int length) throws IOException {
+        Reader reader = new Reader(bytes, offset, length);
+        if(reader.readByte() != MAGIC) {
+            throw new IOException("Not binary telemetry");
+        }
+        int version = reader.readByte();
+        if(version != VERSION) {
+            throw new IOException("Unknown telemetry version " + version);
+        }
+
+        Frame frame = new Frame();
+        frame.timeStamp = reader.readVarint();
+        frame.intervalMillis = (int) reader.readVarint();
+        frame.room = reader.readString();
+        int channelCount = reader.readLength();
+        for(int index = 0; index < channelCount; index++) {
+            ChannelData data = new ChannelData();
+            data.channel = reader.readCount();
+            data.count = reader.readCount();
+            long mean = reader.readZigzag();
+            data.mean = (float) mean / SCALE;
+            if(data.count > 0) {
+                data.min = (float) (mean - reader.readVarint()) / SCALE;
+                data.max = (float) (mean + reader.readVarint()) / SCALE;
+            } else {
+                data.min = data.mean;
+                data.max = data.mean;
+            }
+            int points = reader.readLength();
+            data.offsets = new int[points];
+            data.values = new float[points];
+            long time = 0;
+            long value = mean;
+            for(int point = 0; point < points; point++) {
+                time += reader.readVarint();
+                value += reader.readZigzag();
+                data.offsets[point] = (int) time;
+                data.values[point] = (float) value / SCALE;
+            }
+            frame.channels.add(data);
+        }
+        return frame;
+    }
+
+    /**
+     * Decode the records in a log, calling back for each binary frame and each JSON line.
+     */
+    public interface RecordHandler {
+        void onFrame(Frame frame);
+        void onJSONLine(String line);
+    }
+
+    public static void decodeRecords(InputStream inputStream, RecordHandler handler) throws IOException {
+        InputStream in = new BufferedInputStream(inputStream);
+        while(true) {
+            int first = in.read();
+            if(first < 0) {
+                return;
+            }
+            if(first == '\r' || first == '\n') {
+                continue;
+            }
+            if(first == '{') {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                line.write(first);
+                for(int b = in.read(); b >= 0 && b != '\n'; b = in.read()) {
+                    if(b != '\r') {
+                        line.write(b);
+                    }
+                }
+                handler.onJSONLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                continue;
+            }
+
+            if(first != MAGIC) {
+                throw new IOException("Not a telemetry record");
+            }
+            long length = 0;
+            for(int shift = 0; ; shift += 7) {
+                int b = in.read();
+                if(b < 0) {
+                    throw new EOFException("Truncated record length");
+                }
+                length |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    break;
+                }
+                if(shift > 28) {
+                    throw new IOException("Bad record length");
+                }
+            }
+            byte[] record = new byte[(int) length];
+            int read = 0;
+            while(read < record.length) {
+                int count = in.read(record, read, record.length - read);
+                if(count < 0) {
+                    throw new EOFException("Truncated record");
+                }
+                read += count;
+            }
+            handler.onFrame(decode(record, 0, record.length));
+        }
+    }
+
+    /**
+     * The frame as JSON, in the same shape as the JSON encoding.
+     */
+    public static String toJSON(Frame frame) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"room\":");
+        appendString(json, frame.room);
+        json.append(",\"timeStamp\":").append(frame.timeStamp);
+        json.append(",\"interval\":").append(frame.intervalMillis);
+        for(ChannelData data : frame.channels) {
+            json.append(',');
+            appendString(json, data.getName());
+            json.append(":{\"count\":").append(data.count);
+            json.append(",\"mean\":").append(format(data.mean));
+            if(data.count > 0) {
+                json.append(",\"min\":").append(format(data.min));
+                json.append(",\"max\":").append(format(data.max));
+            }
+            if(data.offsets.length > 0) {
+                json.append(",\"series\":[");
+                for(int point = 0; point < data.offsets.length; point++) {
+                    if(point > 0) {
+                        json.append(',');
+                    }
+                    json.append("{\"offset\":").append(data.offsets[point])
+                            .append(",\"value\":").append(format(data.values[point])).append('}');
+                }
+                json.append(']');
+            }
+            json.append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    private static String format(float value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for(int index = 0; index < value.length(); index++) {
+            char c = value.charAt(index);
+            if(c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if(c < 0x20) {
+                json.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean messages = false;
+        for(String arg : args) {
+            if(arg.equals("-m")) {
+                messages = true;
+                continue;
+            }
+            InputStream inputStream = new FileInputStream(arg);
+            try {
+                if(messages) {
+                    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    for(int read = inputStream.read(buffer); read >= 0; read = inputStream.read(buffer)) {
+                        contents.write(buffer, 0, read);
+                    }
+                    byte[] bytes = contents.toByteArray();
+                    System.out.println(toJSON(decode(bytes, 0, bytes.length)));
+                } else {
+                    decodeRecords(inputStream, new RecordHandler() {
+                        @Override
+                        public void onFrame(Frame frame) {
+                            System.out.println(toJSON(frame));
+                        }
+
+                        @Override
+                        public void onJSONLine(String line) {
+                            System.out.println(line);
+                        }
+                    });
+                }
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.example.blackberry.sensordemo.encoding;
+
+/**
+ * Serialisation of a TelemetryFrame, for MQTT messages and log records.
+ *
+ * Encoders are chosen by the telemetryEncoding policy setting, see TelemetryEncoding.
+ */
+public interface TelemetryEncoder {
+
+    /**
+     * The name of the encoding in the policy.
+     */
+    String getName();
+
+    /**
+     * Encode a frame as a complete message, for example an MQTT payload.
+     */
+    byte[] encodeMessage(TelemetryFrame frame);
+
+    /**
+     * Encode a frame as a record that can be appended to a log, and told apart from the records
+     * before and after it.
+     */
+    byte[] encodeRecord(TelemetryFrame frame);
+
+}
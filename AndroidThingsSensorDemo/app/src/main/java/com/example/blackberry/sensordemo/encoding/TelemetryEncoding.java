@@ -0,0 +1,50 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.example.blackberry.sensordemo.encoding;
+
+import android.util.Log;
+
+/**
+ * The available telemetry encodings, by their names in the telemetryEncoding policy setting.
+ */
+public final class TelemetryEncoding {
+
+    private static final String TAG = TelemetryEncoding.class.getSimpleName();
+
+    public static final String JSON = "json";
+    public static final String BINARY = "binary";
+
+    private static final TelemetryEncoder jsonEncoder = new JsonTelemetryEncoder();
+    private static final TelemetryEncoder binaryEncoder = new BinaryTelemetryEncoder();
+
+    private TelemetryEncoding() {
+        super();
+    }
+
+    /**
+     * The encoder for a name, or the JSON encoder if the name isn't known.
+     */
+    public static TelemetryEncoder forName(String name) {
+        if(BINARY.equalsIgnoreCase(name)) {
+            return binaryEncoder;
+        }
+        if(name != null && name.length() > 0 && !JSON.equalsIgnoreCase(name)) {
+            Log.w(TAG, "Unknown telemetry encoding " + name + ", using " + JSON);
+        }
+        return jsonEncoder;
+    }
+
+}
@@ -0,0 +1,171 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.example.blackberry.sensordemo.encoding;
+
+import com.example.blackberry.sensordemo.models.TelemetryBus.Channel;
+import com.example.blackberry.sensordemo.models.TimeSeriesStore;
+
+/**
+ * Readings over one window, ready to be encoded for an MQTT message or a log record.
+ *
+ * For each channel there's the aggregate of the window, and a series of points, each the mean of
+ * an equal part of the window. Points are timed in milliseconds from the start of the window, and
+ * a part with no readings has no point. A frame is filled from the TimeSeriesStore, and is meant
+ * to be kept and refilled for every window, so that filling it allocates nothing.
+ */
+public class TelemetryFrame {
+
+    private static final int MAX_CHANNELS = Channel.values().length;
+
+    private long timeStamp;
+    private int intervalMillis;
+    private String room = "";
+
+    private int channelCount = 0;
+    private final Channel[] channels = new Channel[MAX_CHANNELS];
+    private final int[] counts = new int[MAX_CHANNELS];
+    private final float[] means = new float[MAX_CHANNELS];
+    private final float[] mins = new float[MAX_CHANNELS];
+    private final float[] maxs = new float[MAX_CHANNELS];
+
+    private final int maxPoints;
+    private final int[] pointCounts = new int[MAX_CHANNELS];
+    private final int[][] pointOffsets;
+    private final float[][] pointValues;
+
+    //For the queries
+    private final TimeSeriesStore.Window window = new TimeSeriesStore.Window();
+    private final float[] bucketMeans;
+    private final int[] bucketCounts;
+
+    /**
+     * @param maxPoints the most points in the series of one channel, zero for aggregates only
+     */
+    public TelemetryFrame(int maxPoints) {
+        super();
+        this.maxPoints = maxPoints;
+        pointOffsets = new int[MAX_CHANNELS][maxPoints];
+        pointValues = new float[MAX_CHANNELS][maxPoints];
+        bucketMeans = new float[maxPoints];
+        bucketCounts = new int[maxPoints];
+    }
+
+    /**
+     * Start a new frame.
+     *
+     * @param timeStamp wall clock time of the end of the window, in milliseconds
+     */
+    public void reset(long timeStamp, int intervalMillis, String room) {
+        this.timeStamp = timeStamp;
+        this.intervalMillis = intervalMillis;
+        this.room = room == null ? "" : room;
+        channelCount = 0;
+    }
+
+    /**
+     * Add a channel from the store, over the window from since to until, in nanoseconds since
+     * boot. If there were no readings in the window, the mean is the latest reading, or zero if
+     * there haven't been any.
+     */
+    public void addChannel(Channel channel, long since, long until) {
+        if(channelCount >= MAX_CHANNELS) {
+            throw new IllegalStateException("Too many channels in frame");
+        }
+        final int slot = channelCount++;
+        final TimeSeriesStore store = TimeSeriesStore.sharedInstance();
+        channels[slot] = channel;
+        pointCounts[slot] = 0;
+
+        store.aggregate(channel, since, until, window);
+        counts[slot] = window.getCount();
+        if(window.isEmpty()) {
+            float latest = store.latest(channel);
+            means[slot] = Float.isNaN(latest) ? 0f : latest;
+            mins[slot] = means[slot];
+            maxs[slot] = means[slot];
+            return;
+        }
+        means[slot] = window.getMean();
+        mins[slot] = window.getMin();
+        maxs[slot] = window.getMax();
+
+        if(maxPoints == 0 || until <= since) {
+            return;
+        }
+        store.downsample(channel, since, until, bucketMeans, bucketCounts);
+        final long bucketNanos = (until - since) / maxPoints;
+        for(int bucket = 0; bucket < maxPoints; bucket++) {
+            if(bucketCounts[bucket] == 0) {
+                continue;
+            }
+            int point = pointCounts[slot]++;
+            //The middle of the part, in milliseconds from the start of the window
+            pointOffsets[slot][point] = (int) ((bucket * bucketNanos + bucketNanos / 2) / 1000000L);
+            pointValues[slot][point] = bucketMeans[bucket];
+        }
+    }
+
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+
+    public int getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public Channel getChannel(int slot) {
+        return channels[slot];
+    }
+
+    public int getCount(int slot) {
+        return counts[slot];
+    }
+
+    public float getMean(int slot) {
+        return means[slot];
+    }
+
+    public float getMin(int slot) {
+        return mins[slot];
+    }
+
+    public float getMax(int slot) {
+        return maxs[slot];
+    }
+
+    public int getPointCount(int slot) {
+        return pointCounts[slot];
+    }
+
+    public int getPointOffset(int slot, int point) {
+        return pointOffsets[slot][point];
+    }
+
+    public float getPointValue(int slot, int point) {
+        return pointValues[slot][point];
+    }
+
+}
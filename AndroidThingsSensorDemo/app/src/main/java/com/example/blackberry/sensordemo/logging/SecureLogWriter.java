@@ -0,0 +1,410 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.example.blackberry.sensordemo.logging;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.good.gd.file.File;
+import com.good.gd.file.FileInputStream;
+import com.good.gd.file.FileOutputStream;
+import com.good.gd.file.GDFileSystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Log file in the BlackBerry Dynamics secure file system, written in segments.
+ *
+ * Records are appended to a buffer in memory, and written to the file in one go when the buffer
+ * fills or the flush interval has passed since the first record in it, so the file is opened once
+ * and written a few times however often records come in. The file at the log path is always the
+ * segment being written. When it reaches the segment size, or has been open for the rotation
+ * interval, it's sealed: renamed with the time it was sealed, and compressed with gzip in the
+ * background. The oldest sealed segments are deleted to keep the whole log within the retention
+ * size.
+ *
+ * Only sealed segments are uploaded. handOver() seals the segment being written and returns every
+ * sealed segment, and each one is deleted with uploaded() once it's on the server, so nothing is
+ * read while it's being written or renamed.
+ *
+ * For a log path of log.txt the sealed segments are log.txt.<milliseconds>.gz.
+ */
+public class SecureLogWriter {
+
+    private static final String TAG = SecureLogWriter.class.getSimpleName();
+
+    private static final String COMPRESSED_SUFFIX = ".gz";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    //Write straight away once this much is buffered, rather than waiting for the flush interval
+    private static final int FLUSH_BYTES = 8 * 1024;
+
+    //Singleton Code
+    private static final SecureLogWriter instance = new SecureLogWriter();
+
+    private SecureLogWriter() {
+        super();
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    public static SecureLogWriter sharedInstance() {
+        return SecureLogWriter.instance;
+    }
+
+
+    private final Handler mHandler;
+
+    //Records not yet written. Guarded by this.
+    private ByteArrayOutputStream mPending = new ByteArrayOutputStream(FLUSH_BYTES * 2);
+    private boolean mFlushScheduled = false;
+    private String mPath;
+    private long mSegmentBytes = 1024 * 1024;
+    private long mRotationMillis = 60 * 60 * 1000;
+    private long mRetentionBytes = 4 * 1024 * 1024;
+    private long mFlushMillis = 10 * 1000;
+
+    //The open segment. Guarded by mStreamLock, which is always taken before this.
+    private final Object mStreamLock = new Object();
+    private ByteArrayOutputStream mWriting = new ByteArrayOutputStream(FLUSH_BYTES * 2);
+    private FileOutputStream mStream;
+    private String mStreamPath;
+    private long mStreamLength;
+    private long mStreamOpened;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+
+    /**
+     * Set the log path and limits. Takes effect from the next write. Changing the path seals the
+     * segment at the old path.
+     */
+    public synchronized void configure(String path, long segmentBytes, long rotationMillis,
+                                       long retentionBytes, long flushMillis) {
+        mPath = path;
+        mSegmentBytes = Math.max(1024, segmentBytes);
+        mRotationMillis = Math.max(1000, rotationMillis);
+        mRetentionBytes = Math.max(mSegmentBytes, retentionBytes);
+        mFlushMillis = Math.max(0, flushMillis);
+    }
+
+    /**
+     * Add a record to the log. It's written to the file within the flush interval.
+     */
+    public void append(byte[] record) {
+        synchronized (this) {
+            mPending.write(record, 0, record.length);
+            if(mPending.size() >= FLUSH_BYTES) {
+                mHandler.removeCallbacks(mFlush);
+                mHandler.post(mFlush);
+                mFlushScheduled = true;
+            } else if(!mFlushScheduled) {
+                mHandler.postDelayed(mFlush, mFlushMillis);
+                mFlushScheduled = true;
+            }
+        }
+    }
+
+    /**
+     * Write everything appended so far to the file, and seal the segment if it's due. This can be
+     * called from any thread, for example before the log is read for an upload, but does file I/O.
+     */
+    public void flush() {
+        synchronized (mStreamLock) {
+            String path;
+            synchronized (this) {
+                mHandler.removeCallbacks(mFlush);
+                mFlushScheduled = false;
+                //Swap the buffers, so that records can be appended while these are written
+                ByteArrayOutputStream pending = mPending;
+                mPending = mWriting;
+                mWriting = pending;
+                path = mPath;
+            }
+
+            try {
+                if(mStream != null && !mStreamPath.equals(path)) {
+                    seal();
+                }
+                if(mWriting.size() > 0 && path != null) {
+                    if(mStream == null) {
+                        open(path);
+                    }
+                    mWriting.writeTo(mStream);
+                    mStream.flush();
+                    mStreamLength += mWriting.size();
+                }
+                mWriting.reset();
+
+                if(mStream != null && (mStreamLength >= segmentBytes() ||
+                        SystemClock.elapsedRealtime() - mStreamOpened >= rotationMillis())) {
+                    seal();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't write " + path, e);
+                mWriting.reset();
+                closeStream();
+            }
+        }
+    }
+
+    /**
+     * Write everything appended so far, and close the file. The next record opens it again.
+     */
+    public void close() {
+        flush();
+        synchronized (mStreamLock) {
+            closeStream();
+        }
+    }
+
+    /**
+     * Write everything appended so far, seal the segment being written, and return the paths of
+     * the sealed segments of the log, oldest first, all compressed. Pass each one to uploaded()
+     * once it's been uploaded. This does file I/O, so call it from a background thread.
+     */
+    public List<String> handOver(String path) {
+        List<String> paths = new ArrayList<>();
+        synchronized (mStreamLock) {
+            flush();
+            if(mStream != null && mStreamPath.equals(path)) {
+                seal();
+            } else {
+                //Left over from before the process was last stopped, or from a failed write
+                sealFile(path);
+            }
+            compressSealed(path);
+            for(Segment segment : segments(path)) {
+                if(segment.name.endsWith(COMPRESSED_SUFFIX)) {
+                    paths.add(segment.path);
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Delete a segment returned by handOver(), now that it's been uploaded.
+     */
+    public void uploaded(String path) {
+        synchronized (mStreamLock) {
+            if(new File(path).delete()) {
+                Log.i(TAG, "Deleted " + path + " after upload");
+            }
+        }
+    }
+
+    private synchronized long segmentBytes() {
+        return mSegmentBytes;
+    }
+
+    private synchronized long rotationMillis() {
+        return mRotationMillis;
+    }
+
+    private synchronized long retentionBytes() {
+        return mRetentionBytes;
+    }
+
+    //The methods below must be called with mStreamLock held.
+
+    private void open(String path) throws IOException {
+        File file = new File(path);
+        File parent = file.getParentFile();
+        if(parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        mStream = GDFileSystem.openFileOutput(path, Context.MODE_APPEND);
+        mStreamPath = path;
+        mStreamLength = file.length();
+        mStreamOpened = SystemClock.elapsedRealtime();
+
+        //Finish anything left over from before the process was last stopped
+        compressSealed(path);
+        Log.i(TAG, "Opened " + path + ", " + mStreamLength + " bytes");
+    }
+
+    private void closeStream() {
+        if(mStream != null) {
+            try {
+                mStream.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't close " + mStreamPath, e);
+            }
+        }
+        mStream = null;
+    }
+
+    //Close the segment, rename it out of the way, and compress it in the background
+    private void seal() {
+        final String path = mStreamPath;
+        closeStream();
+        if(mStreamLength == 0 || !sealFile(path)) {
+            return;
+        }
+        mStreamLength = 0;
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mStreamLock) {
+                    compressSealed(path);
+                }
+            }
+        });
+    }
+
+    //Rename the file at a log path with the time it was sealed, if there's anything in it
+    private boolean sealFile(String path) {
+        File file = new File(path);
+        long length = file.length();
+        if(length == 0) {
+            return false;
+        }
+        File sealed = new File(path + "." + System.currentTimeMillis());
+        if(!file.renameTo(sealed)) {
+            Log.e(TAG, "Couldn't seal " + path);
+            return false;
+        }
+        Log.i(TAG, "Sealed " + sealed.getPath() + ", " + length + " bytes");
+        return true;
+    }
+
+    //Compress any sealed segments of a log that aren't compressed yet, then apply the retention size
+    private void compressSealed(String path) {
+        for(Segment segment : segments(path)) {
+            if(segment.name.endsWith(TEMPORARY_SUFFIX)) {
+                new File(segment.path).delete();
+            } else if(!segment.name.endsWith(COMPRESSED_SUFFIX)) {
+                compress(segment.path);
+            }
+        }
+
+        //Oldest first, and never the segment being written
+        long total = new File(path).length();
+        List<Segment> segments = segments(path);
+        for(Segment segment : segments) {
+            total += segment.length;
+        }
+        for(Segment segment : segments) {
+            if(total <= retentionBytes()) {
+                break;
+            }
+            if(new File(segment.path).delete()) {
+                Log.i(TAG, "Deleted " + segment.path + " to stay within retention");
+                total -= segment.length;
+            }
+        }
+    }
+
+    private void compress(String path) {
+        String temporaryPath = path + COMPRESSED_SUFFIX + TEMPORARY_SUFFIX;
+        try {
+            FileInputStream inputStream = GDFileSystem.openFileInput(path);
+            try {
+                GZIPOutputStream outputStream = new GZIPOutputStream(
+                        GDFileSystem.openFileOutput(temporaryPath, Context.MODE_PRIVATE), 8192);
+                try {
+                    byte[] buffer = new byte[8192];
+                    for(int read = inputStream.read(buffer); read >= 0; read = inputStream.read(buffer)) {
+                        outputStream.write(buffer, 0, read);
+                    }
+                    outputStream.finish();
+                } finally {
+                    outputStream.close();
+                }
+            } finally {
+                inputStream.close();
+            }
+
+            if(!new File(temporaryPath).renameTo(new File(path + COMPRESSED_SUFFIX))) {
+                throw new IOException("Couldn't rename " + temporaryPath);
+            }
+            new File(path).delete();
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't compress " + path, e);
+            new File(temporaryPath).delete();
+        }
+    }
+
+    private static final class Segment implements Comparable<Segment> {
+        final String name;
+        final String path;
+        final long sealed;
+        final long length;
+
+        Segment(String name, String path, long sealed, long length) {
+            this.name = name;
+            this.path = path;
+            this.sealed = sealed;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(Segment other) {
+            return sealed < other.sealed ? -1 : (sealed == other.sealed ? 0 : 1);
+        }
+    }
+
+    //The sealed segments of a log, oldest first
+    private static List<Segment> segments(String path) {
+        File file = new File(path);
+        String parent = file.getParent();
+        String prefix = file.getName() + ".";
+        String[] names = new File(parent == null ? "/" : parent).list();
+
+        List<Segment> segments = new ArrayList<>();
+        if(names == null) {
+            return segments;
+        }
+        for(String name : names) {
+            if(!name.startsWith(prefix)) {
+                continue;
+            }
+            String time = name.substring(prefix.length());
+            int dot = time.indexOf('.');
+            if(dot >= 0) {
+                time = time.substring(0, dot);
+            }
+            try {
+                String segmentPath = parent == null ? name : parent + "/" + name;
+                segments.add(new Segment(name, segmentPath, Long.parseLong(time),
+                        new File(segmentPath).length()));
+            } catch (NumberFormatException e) {
+                //Something else that happens to start with the log name
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+}
@@ -86,6 +86,57 @@ public class AppPolicy {
         }
     }
 
+    public int getMqttQos() {
+        if(this._policy != null && this._policy.containsKey("mqttQos") && this._policy.get("mqttQos") != null) {
+            int mqttQos = (int)this._policy.get("mqttQos");
+            return Math.max(0, Math.min(2, mqttQos));
+        }
+        else {
+            return 1;
+        }
+    }
+
+    public int getMqttMaxInflight() {
+        if(this._policy != null && this._policy.containsKey("mqttMaxInflight") && this._policy.get("mqttMaxInflight") != null) {
+            int mqttMaxInflight = (int)this._policy.get("mqttMaxInflight");
+            return Math.max(1, mqttMaxInflight);
+        }
+        else {
+            return 10;
+        }
+    }
+
+    //Messages per second sent from the outbox, which limits how fast a backlog is drained after
+    //reconnecting
+    public int getMqttDrainRate() {
+        if(this._policy != null && this._policy.containsKey("mqttDrainRate") && this._policy.get("mqttDrainRate") != null) {
+            int mqttDrainRate = (int)this._policy.get("mqttDrainRate");
+            return Math.max(1, mqttDrainRate);
+        }
+        else {
+            return 5;
+        }
+    }
+
+    public int getMqttOutboxSize() {
+        if(this._policy != null && this._policy.containsKey("mqttOutboxSize") && this._policy.get("mqttOutboxSize") != null) {
+            int mqttOutboxSize = (int)this._policy.get("mqttOutboxSize");
+            return Math.max(1, mqttOutboxSize);
+        }
+        else {
+            return 5000;
+        }
+    }
+
+    public String getTelemetryEncoding() {
+        if(this._policy != null && this._policy.containsKey("telemetryEncoding") && this._policy.get("telemetryEncoding") != null) {
+            String telemetryEncoding = (String)this._policy.get("telemetryEncoding");
+            return telemetryEncoding;
+        } else {
+            return "json";
+        }
+    }
+
     public float getTemperatureConstant() {
         if(this._policy != null && this._policy.containsKey("temperatureConstant") && this._policy.get("temperatureConstant") != null) {
             Double temperatureConstant = (Double) this._policy.get("temperatureConstant");
@@ -135,6 +186,36 @@ public class AppPolicy {
         }
     }
 
+    public int getLocalRetentionSize() {
+        if(this._policy != null && this._policy.containsKey("localRetentionSize") && this._policy.get("localRetentionSize") != null) {
+            int localRetentionSize = (int)this._policy.get("localRetentionSize");
+            return Math.max(1, localRetentionSize);
+        }
+        else {
+            return 4096;
+        }
+    }
+
+    public int getLocalRotationInterval() {
+        if(this._policy != null && this._policy.containsKey("localRotationInterval") && this._policy.get("localRotationInterval") != null) {
+            int localRotationInterval = (int)this._policy.get("localRotationInterval");
+            return Math.max(1000, localRotationInterval);
+        }
+        else {
+            return 3600000;
+        }
+    }
+
+    public int getLocalFlushInterval() {
+        if(this._policy != null && this._policy.containsKey("localFlushInterval") && this._policy.get("localFlushInterval") != null) {
+            int localFlushInterval = (int)this._policy.get("localFlushInterval");
+            return Math.max(0, localFlushInterval);
+        }
+        else {
+            return 10000;
+        }
+    }
+
     public String getRemoteFilePath() {
         if(this._policy != null && this._policy.containsKey("remoteFilePath") && this._policy.get("remoteFilePath") != null) {
             String remoteFilePath = (String)this._policy.get("remoteFilePath");
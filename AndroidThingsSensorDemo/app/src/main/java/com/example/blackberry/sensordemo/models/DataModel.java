@@ -17,31 +17,22 @@
 
 package com.example.blackberry.sensordemo.models;
 
-import android.content.Context;
-import android.content.Intent;
+import android.os.SystemClock;
 
-import org.jetbrains.annotations.Nullable;
+import com.example.blackberry.sensordemo.models.TelemetryBus.Channel;
 
+/**
+ * Latest reading of each sensor. Every change is published on the TelemetryBus.
+ *
+ * The setters are called from the sensor thread, which is the single publisher on the bus.
+ */
 public class DataModel {
 
     private static final String TAG = DataModel.class.getSimpleName();
 
-    public static final String BROADCAST_ACTION_BMX250_TEMPERATURE_UPDATED = "BROADCAST_ACTION_BMX250_TEMPERATURE_UPDATED";
-    public static final String BROADCAST_ACTION_BMX250_PRESSURE_UPDATED = "BROADCAST_ACTION_BMX250_PRESSURE_UPDATED";
-    public static final String BROADCAST_ACTION_BCM2385_TEMPERATURE_UPDATED = "BROADCAST_ACTION_BCM2385_TEMPERATURE_UPDATED";
-    public static final String BROADCAST_ACTION_AIR_TEMPERATURE_UPDATED = "BROADCAST_ACTION_AIR_TEMPERATURE_UPDATED";
-
-    private Context mContext;
-
     //Singleton Code
     private static DataModel instance;
 
-    private Context context;
-
-    public void setContext(Context value) {
-        context = value;
-    }
-
     private DataModel() {
         super();
     }
@@ -58,10 +49,11 @@ public class DataModel {
 
     //Instance Variables & Setters/Getters
 
-    private float bmx250Temperature;
-    private float bmx250Pressure;
-    private float bcm2385Temperature;
-    private float airTemperature;
+    //Written on the sensor thread, and can be read on any thread
+    private volatile float bmx250Temperature;
+    private volatile float bmx250Pressure;
+    private volatile float bcm2385Temperature;
+    private volatile float airTemperature;
 
     public float getBmx250Temperature() {
         return bmx250Temperature;
@@ -80,39 +72,45 @@ public class DataModel {
     }
 
     public void setBmx250Temperature(float value) {
+        setBmx250Temperature(value, SystemClock.elapsedRealtimeNanos());
+    }
+
+    public void setBmx250Temperature(float value, long timestamp) {
         bmx250Temperature = value;
-        broadcast(BROADCAST_ACTION_BMX250_TEMPERATURE_UPDATED);
-        calculateAirTemperature();
+        TelemetryBus.sharedInstance().publish(Channel.BMX280_TEMPERATURE, value, timestamp);
+        calculateAirTemperature(timestamp);
     }
 
     public void setBmx250Pressure(float value) {
+        setBmx250Pressure(value, SystemClock.elapsedRealtimeNanos());
+    }
+
+    public void setBmx250Pressure(float value, long timestamp) {
         bmx250Pressure = value;
-        broadcast(BROADCAST_ACTION_BMX250_PRESSURE_UPDATED);
+        TelemetryBus.sharedInstance().publish(Channel.BMX280_PRESSURE, value, timestamp);
     }
 
     public void setBcm2385Temperature(float value) {
+        setBcm2385Temperature(value, SystemClock.elapsedRealtimeNanos());
+    }
+
+    public void setBcm2385Temperature(float value, long timestamp) {
         bcm2385Temperature = value;
-        broadcast(BROADCAST_ACTION_BCM2385_TEMPERATURE_UPDATED);
-        calculateAirTemperature();
+        TelemetryBus.sharedInstance().publish(Channel.BCM2835_TEMPERATURE, value, timestamp);
+        calculateAirTemperature(timestamp);
     }
 
-    public void setAirTemperature(float value) {
+    private void setAirTemperature(float value, long timestamp) {
         airTemperature = value;
-        broadcast(BROADCAST_ACTION_AIR_TEMPERATURE_UPDATED);
+        TelemetryBus.sharedInstance().publish(Channel.AIR_TEMPERATURE, value, timestamp);
     }
 
-    public void calculateAirTemperature() {
+    //The air temperature is derived from the two temperature sensors, and is published with the
+    //timestamp of the reading that changed it.
+    private void calculateAirTemperature(long timestamp) {
         float tempConstant = AppPolicy.sharedInstance().getTemperatureConstant();
-        float result = ((getBmx250Temperature() - tempConstant * getBcm2385Temperature()) / (1.0f - tempConstant));
-        setAirTemperature(result);
-    }
-
-    //Broadcast Intent to Notify of Changes
-    private void broadcast(String broadcastAction){
-        Intent broadCastIntent = new Intent();
-        broadCastIntent.setAction(broadcastAction);
-
-        context.getApplicationContext().sendBroadcast(broadCastIntent);
+        float result = ((bmx250Temperature - tempConstant * bcm2385Temperature) / (1.0f - tempConstant));
+        setAirTemperature(result, timestamp);
     }
 
 }
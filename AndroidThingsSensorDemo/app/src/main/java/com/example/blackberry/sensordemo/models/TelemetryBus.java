@@ -0,0 +1,207 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.example.blackberry.sensordemo.models;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process publish/subscribe bus for sensor readings.
+ *
+ * Readings are written by a single publisher, the sensor thread, into a fixed ring of slots.
+ * Each subscriber has its own cursor into the ring and is run on its own Handler, so a slow
+ * subscriber never holds up the publisher or the other subscribers. Publishing takes no locks and
+ * allocates nothing; at most one drain is posted to each subscriber's Handler however many
+ * readings arrive before it runs.
+ *
+ * A subscriber that falls more than the ring capacity behind skips to the oldest reading that's
+ * still in the ring, and the number of readings it missed is counted.
+ */
+public class TelemetryBus {
+
+    private static final String TAG = TelemetryBus.class.getSimpleName();
+
+    public enum Channel {
+        BMX280_TEMPERATURE,
+        BMX280_PRESSURE,
+        BCM2835_TEMPERATURE,
+        AIR_TEMPERATURE;
+
+        //values() makes a new array on every call
+        private static final Channel[] CHANNELS = values();
+
+        static Channel fromOrdinal(int ordinal) {
+            return CHANNELS[ordinal];
+        }
+
+        int mask() {
+            return 1 << ordinal();
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the subscriber's Handler for every reading on its channels, in order.
+         *
+         * @param timestamp nanoseconds since boot, the same clock as SensorEvent.timestamp
+         */
+        void onTelemetry(Channel channel, float value, long timestamp);
+    }
+
+    //Must be a power of two
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+
+    //Singleton Code
+    private static final TelemetryBus instance = new TelemetryBus();
+
+    private TelemetryBus() {
+        super();
+    }
+
+    public static TelemetryBus sharedInstance() {
+        return TelemetryBus.instance;
+    }
+
+
+    //Two words per slot: the timestamp, then the channel and the float bits of the value.
+    //Every access is volatile, so a subscriber that reads a slot and then sees that the slot hasn't
+    //been claimed again knows that it read a whole reading.
+    private final AtomicLongArray mSlots = new AtomicLongArray(CAPACITY * 2);
+
+    //Sequence number of the reading being written, and of the last one that can be read. Only the
+    //publisher writes these.
+    private volatile long mClaimed = -1;
+    private volatile long mPublished = -1;
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+
+    /**
+     * Publish a reading. Must only be called from one thread, which is the sensor thread.
+     */
+    public void publish(Channel channel, float value, long timestamp) {
+        final long sequence = mPublished + 1;
+        final int slot = (int) (sequence & MASK) * 2;
+
+        mClaimed = sequence;
+        mSlots.set(slot, timestamp);
+        mSlots.set(slot + 1,
+                ((long) channel.ordinal() << 32) | (Float.floatToRawIntBits(value) & 0xFFFFFFFFL));
+        mPublished = sequence;
+
+        final int channelMask = channel.mask();
+        for (Subscription subscription : mSubscriptions) {
+            if ((subscription.mChannels & channelMask) != 0) {
+                subscription.schedule();
+            }
+        }
+    }
+
+    /**
+     * Subscribe to readings on some channels. Only readings published after this call are
+     * delivered.
+     *
+     * @param handler the Handler that the listener is run on
+     */
+    public Subscription subscribe(Listener listener, Handler handler, Channel... channels) {
+        int channelMask = 0;
+        for (Channel channel : channels) {
+            channelMask |= channel.mask();
+        }
+        Subscription subscription = new Subscription(listener, handler, channelMask, mPublished + 1);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        if (subscription == null) {
+            return;
+        }
+        mSubscriptions.remove(subscription);
+        subscription.mHandler.removeCallbacks(subscription);
+        Log.i(TAG, "Unsubscribed " + subscription);
+    }
+
+
+    public final class Subscription implements Runnable {
+        private final Listener mListener;
+        private final Handler mHandler;
+        private final int mChannels;
+        private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+
+        //Only used on the subscriber's Handler
+        private long mCursor;
+        private long mDelivered = 0;
+        private long mMissed = 0;
+
+        private Subscription(Listener listener, Handler handler, int channels, long cursor) {
+            mListener = listener;
+            mHandler = handler;
+            mChannels = channels;
+            mCursor = cursor;
+        }
+
+        private void schedule() {
+            if (mScheduled.compareAndSet(false, true)) {
+                mHandler.post(this);
+            }
+        }
+
+        //Drain everything published so far. The flag is cleared first so that a reading published
+        //while this runs posts another drain rather than being left behind.
+        @Override
+        public void run() {
+            mScheduled.set(false);
+            final long published = mPublished;
+            while (mCursor <= published) {
+                if (published - mCursor >= CAPACITY) {
+                    final long oldest = published - CAPACITY + 1;
+                    mMissed += oldest - mCursor;
+                    mCursor = oldest;
+                }
+                final int slot = (int) (mCursor & MASK) * 2;
+                final long timestamp = mSlots.get(slot);
+                final long word = mSlots.get(slot + 1);
+                if (mClaimed - mCursor >= CAPACITY) {
+                    //Overwritten while it was being read, so skip it.
+                    mMissed++;
+                    mCursor++;
+                    continue;
+                }
+                mCursor++;
+                final Channel channel = Channel.fromOrdinal((int) (word >>> 32));
+                if ((mChannels & channel.mask()) != 0) {
+                    mDelivered++;
+                    mListener.onTelemetry(channel, Float.intBitsToFloat((int) word), timestamp);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mListener.getClass().getSimpleName() + " delivered:" + mDelivered +
+                    " missed:" + mMissed;
+        }
+    }
+
+}
@@ -0,0 +1,277 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.example.blackberry.sensordemo.models;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.example.blackberry.sensordemo.models.TelemetryBus.Channel;
+
+/**
+ * Recent history of every TelemetryBus channel, in fixed memory.
+ *
+ * Each channel has a ring of timestamps and a ring of values, as primitive arrays that are
+ * allocated once. Recording a reading and querying a window allocate nothing: the results of a
+ * query go into a Window or arrays that the caller keeps and reuses.
+ *
+ * Timestamps are nanoseconds since boot, the same clock as SystemClock.elapsedRealtimeNanos().
+ */
+public class TimeSeriesStore implements TelemetryBus.Listener {
+
+    //Readings kept for each channel. At the normal sensor rate this is well over an hour.
+    private static final int CAPACITY = 8192;
+
+    /**
+     * Aggregate of the readings in a window. Reuse one instance for every query.
+     */
+    public static final class Window {
+        private int count;
+        private float min;
+        private float max;
+        private float mean;
+        private float latest;
+        private long latestTimestamp;
+
+        public int getCount() {
+            return count;
+        }
+
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        public float getMin() {
+            return min;
+        }
+
+        public float getMax() {
+            return max;
+        }
+
+        public float getMean() {
+            return mean;
+        }
+
+        public float getLatest() {
+            return latest;
+        }
+
+        public long getLatestTimestamp() {
+            return latestTimestamp;
+        }
+
+        private void clear() {
+            count = 0;
+            min = Float.NaN;
+            max = Float.NaN;
+            mean = Float.NaN;
+            latest = Float.NaN;
+            latestTimestamp = 0;
+        }
+    }
+
+    //Ring for one channel. Guarded by the Series object itself.
+    private static final class Series {
+        private final long[] times = new long[CAPACITY];
+        private final float[] values = new float[CAPACITY];
+        //Index of the next write, and how many slots are in use
+        private int next = 0;
+        private int count = 0;
+
+        synchronized void add(float value, long timestamp) {
+            //Keep the ring in timestamp order. The air temperature takes the timestamps of two
+            //sensors, which might be very slightly out of step.
+            if(count > 0) {
+                timestamp = Math.max(timestamp, times[(next - 1 + CAPACITY) % CAPACITY]);
+            }
+            times[next] = timestamp;
+            values[next] = value;
+            next = (next + 1) % CAPACITY;
+            if(count < CAPACITY) {
+                count++;
+            }
+        }
+
+        //Index of the oldest reading at or after a time, or -1 if there isn't one. Readings are
+        //in timestamp order, so this is a binary search over the ring.
+        //Must be called with the lock held.
+        private int firstFrom(long since) {
+            int low = 0;
+            int high = count;
+            final int oldest = (next - count + CAPACITY) % CAPACITY;
+            while(low < high) {
+                int middle = (low + high) >>> 1;
+                if(times[(oldest + middle) % CAPACITY] < since) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low < count ? low : -1;
+        }
+
+        synchronized void aggregate(long since, long until, Window window) {
+            window.clear();
+            int first = firstFrom(since);
+            if(first < 0) {
+                return;
+            }
+            final int oldest = (next - count + CAPACITY) % CAPACITY;
+            double sum = 0;
+            for(int offset = first; offset < count; offset++) {
+                int index = (oldest + offset) % CAPACITY;
+                if(times[index] >= until) {
+                    break;
+                }
+                float value = values[index];
+                if(window.count == 0 || value < window.min) {
+                    window.min = value;
+                }
+                if(window.count == 0 || value > window.max) {
+                    window.max = value;
+                }
+                sum += value;
+                window.count++;
+                window.latest = value;
+                window.latestTimestamp = times[index];
+            }
+            if(window.count > 0) {
+                window.mean = (float) (sum / window.count);
+            }
+        }
+
+        synchronized int downsample(long since, long until, float[] means, int[] counts) {
+            final int buckets = means.length;
+            if(buckets == 0) {
+                return 0;
+            }
+            for(int bucket = 0; bucket < buckets; bucket++) {
+                means[bucket] = 0f;
+                counts[bucket] = 0;
+            }
+            int filled = 0;
+            int first = firstFrom(since);
+            if(first >= 0 && until > since) {
+                final int oldest = (next - count + CAPACITY) % CAPACITY;
+                final long span = until - since;
+                for(int offset = first; offset < count; offset++) {
+                    int index = (oldest + offset) % CAPACITY;
+                    long time = times[index];
+                    if(time >= until) {
+                        break;
+                    }
+                    int bucket = (int) ((time - since) * buckets / span);
+                    if(counts[bucket] == 0) {
+                        filled++;
+                    }
+                    means[bucket] += values[index];
+                    counts[bucket]++;
+                }
+            }
+            for(int bucket = 0; bucket < buckets; bucket++) {
+                means[bucket] = counts[bucket] == 0 ? Float.NaN : means[bucket] / counts[bucket];
+            }
+            return filled;
+        }
+
+        synchronized float latest() {
+            return count == 0 ? Float.NaN : values[(next - 1 + CAPACITY) % CAPACITY];
+        }
+    }
+
+
+    //Singleton Code
+    private static final TimeSeriesStore instance = new TimeSeriesStore();
+
+    private TimeSeriesStore() {
+        super();
+        Channel[] channels = Channel.values();
+        series = new Series[channels.length];
+        for(int index = 0; index < channels.length; index++) {
+            series[index] = new Series();
+        }
+    }
+
+    public static TimeSeriesStore sharedInstance() {
+        return TimeSeriesStore.instance;
+    }
+
+
+    //One Series for each Channel, by ordinal
+    private final Series[] series;
+    private TelemetryBus.Subscription subscription;
+
+
+    /**
+     * Start recording every channel on the TelemetryBus.
+     *
+     * @param handler the Handler that readings are recorded on
+     */
+    public synchronized void start(Handler handler) {
+        if(subscription == null) {
+            subscription = TelemetryBus.sharedInstance().subscribe(this, handler, Channel.values());
+        }
+    }
+
+    public synchronized void stop() {
+        TelemetryBus.sharedInstance().unsubscribe(subscription);
+        subscription = null;
+    }
+
+    @Override
+    public void onTelemetry(Channel channel, float value, long timestamp) {
+        series[channel.ordinal()].add(value, timestamp);
+    }
+
+    /**
+     * Aggregate the readings from since, inclusive, to until, exclusive.
+     */
+    public void aggregate(Channel channel, long since, long until, Window window) {
+        series[channel.ordinal()].aggregate(since, until, window);
+    }
+
+    /**
+     * Aggregate the readings in the last so many milliseconds.
+     */
+    public void aggregateLast(Channel channel, long milliseconds, Window window) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        aggregate(channel, now - milliseconds * 1000000L, Long.MAX_VALUE, window);
+    }
+
+    /**
+     * Mean of the readings in equal buckets from since to until. There's a bucket for each element
+     * of means, and a bucket with no readings has a mean of NaN.
+     *
+     * @param counts the number of readings in each bucket, same length as means
+     * @return the number of buckets that have readings
+     */
+    public int downsample(Channel channel, long since, long until, float[] means, int[] counts) {
+        if(counts.length != means.length) {
+            throw new IllegalArgumentException("means and counts must be the same length");
+        }
+        return series[channel.ordinal()].downsample(since, until, means, counts);
+    }
+
+    /**
+     * The last reading recorded, or NaN if there haven't been any.
+     */
+    public float latest(Channel channel) {
+        return series[channel.ordinal()].latest();
+    }
+
+}
@@ -15,11 +15,11 @@
 
 package com.example.blackberry.sensordemo.networking;
 
+import com.good.gd.apache.http.HttpEntity;
 import com.good.gd.apache.http.HttpResponse;
 import com.good.gd.apache.http.client.methods.HttpGet;
 import com.good.gd.apache.http.client.methods.HttpPost;
 import com.good.gd.apache.http.client.methods.HttpPut;
-import com.good.gd.apache.http.entity.StringEntity;
 import com.good.gd.apache.http.message.BasicHeader;
 import com.good.gd.net.GDHttpClient;
 
@@ -104,7 +104,7 @@ public class GDHttpConnector
             request.setHeaders(headers);
         }
 
-        StringEntity entity = params.getPostBody();
+        HttpEntity entity = params.getPostBody();
 
         if (entity != null)
         {
@@ -135,7 +135,7 @@ public class GDHttpConnector
             request.setHeaders(headers);
         }
 
-        StringEntity entity = params.getPostBody();
+        HttpEntity entity = params.getPostBody();
 
         if (entity != null)
         {
@@ -15,7 +15,7 @@
 
 package com.example.blackberry.sensordemo.networking;
 
-import com.good.gd.apache.http.entity.StringEntity;
+import com.good.gd.apache.http.HttpEntity;
 import com.good.gd.apache.http.message.BasicHeader;
 
 import java.util.ArrayList;
@@ -31,12 +31,12 @@ public class HttpRequestParams
 
     private String url;  //Contains the URL to be loaded.
     private ArrayList<BasicHeader> headers;  //Contains the headers for the HTTP request.
-    private StringEntity postBody;  //Contains the body of HTTP POST requests.
+    private HttpEntity postBody;  //Contains the body of HTTP POST requests.
     private int requestType;  //Contains the request type, either POST or GET.
 
 
     public HttpRequestParams(String url, ArrayList<BasicHeader> headers,
-                             StringEntity postBody, int requestType)
+                             HttpEntity postBody, int requestType)
     {
         this.url = url;
         this.headers = headers;
@@ -44,12 +44,12 @@ public class HttpRequestParams
         this.requestType = requestType;
     }
 
-    public StringEntity getPostBody()
+    public HttpEntity getPostBody()
     {
         return postBody;
     }
 
-    public void setPostBody(StringEntity postBody)
+    public void setPostBody(HttpEntity postBody)
     {
         this.postBody = postBody;
     }
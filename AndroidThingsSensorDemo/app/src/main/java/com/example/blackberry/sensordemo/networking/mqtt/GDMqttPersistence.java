@@ -0,0 +1,206 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.example.blackberry.sensordemo.networking.mqtt;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.good.gd.file.File;
+import com.good.gd.file.FileInputStream;
+import com.good.gd.file.FileOutputStream;
+import com.good.gd.file.GDFileSystem;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Vector;
+
+/**
+ * MQTT persistence in the BlackBerry Dynamics secure file system.
+ *
+ * The default persistence of the Paho client writes messages unencrypted to the application's
+ * files directory. This one keeps them in the secure container instead, one file per key, in a
+ * directory for each client and server. Each file is written under a temporary name and then
+ * renamed, so a message is either all there or not there at all after the process is killed.
+ */
+public class GDMqttPersistence implements MqttClientPersistence {
+
+    private static final String TAG = GDMqttPersistence.class.getSimpleName();
+
+    private static final String ROOT_DIRECTORY = "mqtt";
+    private static final String SUFFIX = ".msg";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private String mDirectory;
+
+    public GDMqttPersistence() {
+        super();
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        //Only characters that are safe in a file name
+        String name = (clientId + "-" + serverURI).replaceAll("[^A-Za-z0-9_.-]", "_");
+        String directory = ROOT_DIRECTORY + "/" + name;
+
+        File directoryFile = new File(directory);
+        if(!directoryFile.exists() && !directoryFile.mkdirs()) {
+            Log.e(TAG, "Couldn't create " + directory);
+            throw new MqttPersistenceException();
+        }
+        mDirectory = directory;
+
+        //Anything still under a temporary name wasn't finished
+        for(String fileName : list()) {
+            if(fileName.endsWith(TEMPORARY_SUFFIX)) {
+                new File(mDirectory + "/" + fileName).delete();
+            }
+        }
+        Log.i(TAG, "Opened " + mDirectory);
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        mDirectory = null;
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+        String path = pathFor(key);
+        String temporaryPath = mDirectory + "/" + key + TEMPORARY_SUFFIX;
+        try {
+            //A length prefix, the header, then the payload
+            FileOutputStream outputStream = GDFileSystem.openFileOutput(temporaryPath, Context.MODE_PRIVATE);
+            try {
+                DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+                dataOutputStream.writeInt(persistable.getHeaderLength());
+                dataOutputStream.write(persistable.getHeaderBytes(), persistable.getHeaderOffset(),
+                        persistable.getHeaderLength());
+                if(persistable.getPayloadBytes() != null) {
+                    dataOutputStream.write(persistable.getPayloadBytes(), persistable.getPayloadOffset(),
+                            persistable.getPayloadLength());
+                }
+                dataOutputStream.flush();
+            } finally {
+                outputStream.close();
+            }
+
+            File file = new File(path);
+            if(file.exists()) {
+                file.delete();
+            }
+            if(!new File(temporaryPath).renameTo(file)) {
+                throw new IOException("Couldn't rename " + temporaryPath);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't put " + key, e);
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        try {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            FileInputStream inputStream = GDFileSystem.openFileInput(pathFor(key));
+            try {
+                byte[] buffer = new byte[1024];
+                for(int read = inputStream.read(buffer); read >= 0; read = inputStream.read(buffer)) {
+                    contents.write(buffer, 0, read);
+                }
+            } finally {
+                inputStream.close();
+            }
+
+            byte[] bytes = contents.toByteArray();
+            if(bytes.length < 4) {
+                throw new IOException("Truncated " + key);
+            }
+            int headerLength = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) |
+                    ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+            if(headerLength < 0 || headerLength > bytes.length - 4) {
+                throw new IOException("Corrupt " + key);
+            }
+            return new MqttPersistentData(key, bytes, 4, headerLength,
+                    bytes, 4 + headerLength, bytes.length - 4 - headerLength);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't get " + key, e);
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        File file = new File(pathFor(key));
+        if(file.exists()) {
+            file.delete();
+        }
+    }
+
+    @Override
+    public synchronized Enumeration keys() throws MqttPersistenceException {
+        checkOpen();
+        Vector<String> keys = new Vector<>();
+        for(String fileName : list()) {
+            if(fileName.endsWith(SUFFIX)) {
+                keys.add(fileName.substring(0, fileName.length() - SUFFIX.length()));
+            }
+        }
+        return keys.elements();
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        for(String fileName : list()) {
+            new File(mDirectory + "/" + fileName).delete();
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return new File(pathFor(key)).exists();
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if(mDirectory == null) {
+            throw new MqttPersistenceException(MqttException.REASON_CODE_CLIENT_CLOSED);
+        }
+    }
+
+    private String pathFor(String key) {
+        return mDirectory + "/" + key + SUFFIX;
+    }
+
+    private String[] list() {
+        String[] fileNames = new File(mDirectory).list();
+        return fileNames == null ? new String[0] : fileNames;
+    }
+
+}
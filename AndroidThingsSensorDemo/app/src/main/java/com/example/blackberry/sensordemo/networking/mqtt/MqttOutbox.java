@@ -0,0 +1,227 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.example.blackberry.sensordemo.networking.mqtt;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.TreeSet;
+
+/**
+ * Messages waiting to be published, kept in the secure file system until the broker has them.
+ *
+ * Messages are added whether or not there's a connection, and so survive the connection being
+ * down and the process being killed. DynamicsMqttService takes them in order while it's connected
+ * and removes each one when its publish completes. When the outbox is full the oldest message is
+ * dropped to make room.
+ *
+ * Every method reads or writes the secure file system, so none of them should be called on the
+ * main thread. enqueue() can be, because it stores the message on a thread of the outbox's own.
+ */
+public class MqttOutbox {
+
+    private static final String TAG = MqttOutbox.class.getSimpleName();
+
+    private static final String KEY_PREFIX = "o-";
+
+    public interface Listener {
+        void onEnqueued();
+    }
+
+    public static final class Message {
+        private final long sequence;
+        private final String topic;
+        private final byte[] payload;
+
+        private Message(long sequence, String topic, byte[] payload) {
+            this.sequence = sequence;
+            this.topic = topic;
+            this.payload = payload;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    //Singleton Code
+    private static final MqttOutbox instance = new MqttOutbox();
+
+    private MqttOutbox() {
+        super();
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    public static MqttOutbox sharedInstance() {
+        return MqttOutbox.instance;
+    }
+
+
+    private final Handler mHandler;
+    private final GDMqttPersistence mStore = new GDMqttPersistence();
+    //Sequence numbers of the messages in the store, oldest first
+    private final TreeSet<Long> mSequences = new TreeSet<>();
+    private long mNextSequence = 0;
+    private boolean mOpen = false;
+    private int mDropped = 0;
+    private Listener mListener;
+
+
+    //Must be called with the lock held.
+    private void open() throws MqttPersistenceException {
+        if(mOpen) {
+            return;
+        }
+        mStore.open("outbox", "local");
+        Enumeration keys = mStore.keys();
+        while(keys.hasMoreElements()) {
+            String key = (String) keys.nextElement();
+            try {
+                mSequences.add(Long.parseLong(key.substring(KEY_PREFIX.length())));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                Log.e(TAG, "Removing unknown key " + key);
+                mStore.remove(key);
+            }
+        }
+        mNextSequence = mSequences.isEmpty() ? 0 : mSequences.last() + 1;
+        mOpen = true;
+        Log.i(TAG, "Opened with " + mSequences.size() + " messages waiting");
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Add a message, dropping the oldest if there are then more than maxMessages. The message is
+     * stored in the background, and the listener is called once it's there.
+     */
+    public void enqueue(final String topic, final byte[] payload, final int maxMessages) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                store(topic, payload, maxMessages);
+            }
+        });
+    }
+
+    //Only called on the outbox thread.
+    private void store(String topic, byte[] payload, int maxMessages) {
+        Listener listener;
+        synchronized (this) {
+            try {
+                open();
+                long sequence = mNextSequence++;
+                byte[] header = topic.getBytes(StandardCharsets.UTF_8);
+                mStore.put(KEY_PREFIX + sequence,
+                        new MqttPersistentData(KEY_PREFIX + sequence, header, 0, header.length,
+                                payload, 0, payload.length));
+                mSequences.add(sequence);
+
+                while(mSequences.size() > Math.max(1, maxMessages)) {
+                    mStore.remove(KEY_PREFIX + mSequences.pollFirst());
+                    mDropped++;
+                }
+            } catch (MqttPersistenceException e) {
+                Log.e(TAG, "Couldn't store message for " + topic, e);
+                return;
+            }
+            listener = mListener;
+        }
+        //Outside the lock, so that the listener can come straight back for the message
+        if(listener != null) {
+            listener.onEnqueued();
+        }
+    }
+
+    /**
+     * The sequence number of the first message after another, or -1 if there isn't one. Pass -1
+     * to get the oldest message.
+     */
+    public synchronized long next(long after) {
+        try {
+            open();
+        } catch (MqttPersistenceException e) {
+            Log.e(TAG, "Couldn't open", e);
+            return -1;
+        }
+        Long sequence = mSequences.higher(after);
+        return sequence == null ? -1 : sequence;
+    }
+
+    /**
+     * Read a message, or null if it isn't there or can't be read. A message that can't be read is
+     * removed.
+     */
+    public synchronized Message get(long sequence) {
+        if(!mSequences.contains(sequence)) {
+            return null;
+        }
+        try {
+            MqttPersistable persistable = mStore.get(KEY_PREFIX + sequence);
+            String topic = new String(persistable.getHeaderBytes(), persistable.getHeaderOffset(),
+                    persistable.getHeaderLength(), StandardCharsets.UTF_8);
+            byte[] payload = new byte[persistable.getPayloadLength()];
+            System.arraycopy(persistable.getPayloadBytes(), persistable.getPayloadOffset(),
+                    payload, 0, payload.length);
+            return new Message(sequence, topic, payload);
+        } catch (MqttPersistenceException e) {
+            Log.e(TAG, "Couldn't read message " + sequence + ", removing it", e);
+            remove(sequence);
+            return null;
+        }
+    }
+
+    public synchronized void remove(long sequence) {
+        if(!mSequences.remove(sequence)) {
+            return;
+        }
+        try {
+            mStore.remove(KEY_PREFIX + sequence);
+        } catch (MqttPersistenceException e) {
+            Log.e(TAG, "Couldn't remove message " + sequence, e);
+        }
+    }
+
+    public synchronized int size() {
+        return mSequences.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MqttOutbox waiting:" + mSequences.size() + " dropped:" + mDropped;
+    }
+
+}
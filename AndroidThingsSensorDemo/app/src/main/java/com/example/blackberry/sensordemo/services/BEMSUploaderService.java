@@ -6,6 +6,7 @@ import android.os.AsyncTask;
 import android.os.IBinder;
 import android.util.Log;
 
+import com.example.blackberry.sensordemo.logging.SecureLogWriter;
 import com.example.blackberry.sensordemo.models.BemsServer;
 import com.example.blackberry.sensordemo.networking.GDHttpConnector;
 import com.example.blackberry.sensordemo.networking.HttpRequestParams;
@@ -14,8 +15,9 @@ import com.good.gd.GDAppServer;
 import com.good.gd.GDServiceDetail;
 import com.good.gd.GDServiceProvider;
 import com.good.gd.GDServiceType;
-import com.good.gd.apache.http.entity.StringEntity;
+import com.good.gd.apache.http.entity.ByteArrayEntity;
 import com.good.gd.apache.http.message.BasicHeader;
+import com.good.gd.file.File;
 import com.good.gd.file.FileInputStream;
 import com.good.gd.file.GDFileSystem;
 import com.good.gd.utility.GDAuthTokenCallback;
@@ -23,9 +25,9 @@ import com.good.gd.utility.GDUtility;
 
 import org.jetbrains.annotations.Nullable;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 
 public class BEMSUploaderService extends Service implements GDAuthTokenCallback {
@@ -139,13 +141,10 @@ public class BEMSUploaderService extends Service implements GDAuthTokenCallback
         //Required - Set the GD auth token to authenticate with the docs server.
         headers.add(new BasicHeader("X-Good-GD-AuthToken", bdAuthToken));
 
-        String uploadFilename = remoteFile;
+        //Each sealed segment of the log goes up as a file of its own, named after the remote file
+        String urlWithServer = "https://" + docsServers.get(0).getServer() + THE_URL + remoteFile;
 
-        String urlWithServer = "https://" + docsServers.get(0).getServer() + THE_URL + uploadFilename;
-
-        Log.d(TAG, "Requesting URL: " + urlWithServer);
-
-        //Build the HttpRequestParams.
+        //Build the HttpRequestParams, the URL and body are filled in for each segment.
         HttpRequestParams params = new HttpRequestParams(urlWithServer, headers, null, HttpRequestParams.PUT);
 
         DownloadTask task = new DownloadTask();
@@ -163,29 +162,52 @@ public class BEMSUploaderService extends Service implements GDAuthTokenCallback
         @Override
         protected String doInBackground(HttpRequestParams... params)
         {
-            try {
-                FileInputStream inputStream = GDFileSystem.openFileInput(localFile);
-
-                if ( inputStream != null ) {
-                    InputStreamReader inputStreamReader = new InputStreamReader(inputStream);
-                    BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-                    String receiveString;
-                    StringBuilder stringBuilder = new StringBuilder();
-
-                    while ( (receiveString = bufferedReader.readLine()) != null ) {
-                        stringBuilder.append(receiveString);
+            //Seal everything logged so far. The writer doesn't write or rename sealed segments, so
+            //they can be read here without its lock. If retention deletes one first, that upload
+            //just fails.
+            SecureLogWriter writer = SecureLogWriter.sharedInstance();
+            List<String> segments = writer.handOver(localFile);
+            String baseUrl = params[0].getUrl();
+            String localName = new File(localFile).getName();
+
+            int uploaded = 0;
+            String result = "";
+            for(String segment : segments) {
+                //For example log.txt.1539800000000.gz for a remote file of log.txt
+                String suffix = new File(segment).getName().substring(localName.length());
+                params[0].setUrl(baseUrl + suffix);
+                Log.d(TAG, "Requesting URL: " + params[0].getUrl());
+
+                try {
+                    FileInputStream inputStream = GDFileSystem.openFileInput(segment);
+
+                    //Segments are compressed, so they go up byte for byte
+                    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+                    try {
+                        byte[] buffer = new byte[8192];
+                        for(int read = inputStream.read(buffer); read >= 0; read = inputStream.read(buffer)) {
+                            contents.write(buffer, 0, read);
+                        }
+                    } finally {
+                        inputStream.close();
                     }
+                    params[0].setPostBody(new ByteArrayEntity(contents.toByteArray()));
 
-                    inputStream.close();
-                    params[0].setPostBody(new StringEntity(stringBuilder.toString()));
+                    GDHttpConnector http = new GDHttpConnector();
+                    result = http.doRequest(params[0]);
+                } catch (Exception e) {
+                    result = e.toString();
                 }
 
-                GDHttpConnector http = new GDHttpConnector();
-                return http.doRequest(params[0]);
-
-            } catch (Exception e) {
-                return e.toString();
+                //Stop at the first failure, and try again from there next time
+                if(!SUCCESS_MESSAGE.equals(result.trim())) {
+                    return "Uploaded " + uploaded + " of " + segments.size() + " segments, " +
+                            segment + ": " + result;
+                }
+                writer.uploaded(segment);
+                uploaded++;
             }
+            return "Uploaded " + uploaded + " segments";
         }
 
         /**
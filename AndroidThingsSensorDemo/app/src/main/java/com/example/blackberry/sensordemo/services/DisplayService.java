@@ -2,22 +2,33 @@ package com.example.blackberry.sensordemo.services;
 
 import android.app.Service;
 import android.content.Intent;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
+import com.example.blackberry.sensordemo.models.TelemetryBus;
+import com.example.blackberry.sensordemo.models.TelemetryBus.Channel;
 import com.google.android.things.contrib.driver.ht16k33.AlphanumericDisplay;
 
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 
-public class DisplayService extends Service {
+/**
+ * Shows the air temperature on the alphanumeric display. Readings come from the TelemetryBus
+ * while the service is running, and text can also be sent with ACTION_DISPLAY.
+ */
+public class DisplayService extends Service implements TelemetryBus.Listener {
 
     private static final String TAG = DisplayService.class.getSimpleName();
     public static final String ACTION_DISPLAY = "ACTION_DISPLAY";
     public static final String EXTRA_TEXT = "EXTRA_TEXT";
 
     private AlphanumericDisplay mDisplay;
+    private TelemetryBus.Subscription mSubscription;
+    //Last text written, so that the display is only written when the text changes
+    private String mText;
 
     @Nullable
     @Override
@@ -36,6 +47,8 @@ public class DisplayService extends Service {
         } catch(IOException e) {
             Log.d(TAG, "display error");
         }
+        mSubscription = TelemetryBus.sharedInstance().subscribe(this,
+                new Handler(Looper.getMainLooper()), Channel.AIR_TEMPERATURE);
     }
 
     @Override
@@ -53,9 +66,22 @@ public class DisplayService extends Service {
     public void onDestroy() {
         super.onDestroy();
         Log.i(TAG, "onDestroy");
+        TelemetryBus.sharedInstance().unsubscribe(mSubscription);
+        mSubscription = null;
+    }
+
+    @Override
+    public void onTelemetry(Channel channel, float value, long timestamp) {
+        //Up to three characters of the temperature, for example 21.
+        String temperature = String.valueOf(value);
+        setText(temperature.substring(0, Math.min(3, temperature.length() - 1)) + " C");
     }
 
     private void setText(String text) {
+        if(text.equals(mText)) {
+            return;
+        }
+        mText = text;
         try {
 
             mDisplay.display(text);
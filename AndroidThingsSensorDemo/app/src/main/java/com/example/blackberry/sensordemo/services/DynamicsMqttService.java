@@ -6,15 +6,21 @@ import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 
+import android.os.SystemClock;
+import android.provider.Settings;
 import android.util.Log;
 
 
+import com.example.blackberry.sensordemo.models.AppPolicy;
+import com.example.blackberry.sensordemo.networking.mqtt.GDMqttPersistence;
+import com.example.blackberry.sensordemo.networking.mqtt.MqttOutbox;
 import com.example.blackberry.sensordemo.networking.socket.CustomSocketFactory;
 
 import org.eclipse.paho.android.service.MqttAndroidClient;
-import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
@@ -27,6 +33,17 @@ import org.jetbrains.annotations.Nullable;
 
 /**
  * Created by davidarnold on 01/12/2017.
+ *
+ * Publishes the messages in the MqttOutbox. While connected, messages are taken from the outbox
+ * in order, with at most the policy's in-flight window of publishes outstanding, and at no more
+ * than the policy's drain rate, so that a backlog from a long disconnection doesn't flood the
+ * broker or the tunnel when the connection comes back. Each message is removed from the outbox
+ * when its publish completes, so anything not yet delivered is sent again after a reconnect or a
+ * restart.
+ *
+ * The outbox is in the secure file system, so publishing runs on a thread of its own, and the MQTT
+ * callbacks are passed over to it. Each publish is tagged with the connection it was sent on, and
+ * a publish that finishes after a reconnect isn't counted against the new connection's window.
  */
 
 public class DynamicsMqttService extends Service {
@@ -46,7 +63,20 @@ public class DynamicsMqttService extends Service {
 
     private MqttAndroidClient mqttAndroidClient;
 
-    private final String clientId = "DynamicsMqttService" + System.currentTimeMillis();
+    //Stable across restarts, so that the client's persistence directory is reused
+    private String clientId;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private final MqttOutbox mOutbox = MqttOutbox.sharedInstance();
+    //These are only used on the publishing thread
+    //Bumped on every connect, and so on every reconnect
+    private int mConnection = 0;
+    private int mInflight = 0;
+    //Sequence number of the last message sent from the outbox in this connection
+    private long mLastSent = -1;
+    private long mNextSendTime = 0;
+    private boolean mPumpScheduled = false;
 
     @Override
     public void onCreate() {
@@ -70,6 +100,21 @@ public class DynamicsMqttService extends Service {
 
         startForeground(1, notification);
 
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        clientId = "DynamicsMqttService-" +
+                Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID);
+
+        mOutbox.setListener(new MqttOutbox.Listener() {
+            @Override
+            public void onEnqueued() {
+                //Could be on any thread
+                mHandler.post(mEnqueued);
+            }
+        });
+
         Log.d(TAG, "onCreate");
 
     }
@@ -88,7 +133,8 @@ public class DynamicsMqttService extends Service {
             connect(intent.getStringExtra(EXTRA_HOST), intent.getIntExtra(EXTRA_PORT,1883));
         }
         else if(intent.getAction() == ACTION_MESSAGE) {
-            publishMessage(intent.getStringExtra(EXTRA_VALUE), intent.getStringExtra(EXTRA_TOPIC));
+            mOutbox.enqueue(intent.getStringExtra(EXTRA_TOPIC), intent.getStringExtra(EXTRA_VALUE).getBytes(),
+                    AppPolicy.sharedInstance().getMqttOutboxSize());
         }
 
         return Service.START_NOT_STICKY;
@@ -97,7 +143,9 @@ public class DynamicsMqttService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-
+        mOutbox.setListener(null);
+        mHandler.removeCallbacks(mPump);
+        mThread.quitSafely();
 
     }
 
@@ -127,7 +175,7 @@ public class DynamicsMqttService extends Service {
 
             Context context = this.getApplication().getApplicationContext();
 
-            mqttAndroidClient = new MqttAndroidClient(context, serverUri, clientId);
+            mqttAndroidClient = new MqttAndroidClient(context, serverUri, clientId, new GDMqttPersistence());
 
             mqttAndroidClient.setCallback(new MqttCallbackExtended() {
 
@@ -140,11 +188,14 @@ public class DynamicsMqttService extends Service {
                     } else {
                         Log.d(TAG,"Connected to: " + serverURI);
                     }
+
+                    mHandler.post(mConnected);
                 }
 
                 @Override
                 public void connectionLost(Throwable cause) {
                     Log.d(TAG,"The Connection was lost.");
+                    mHandler.post(mDisconnected);
                 }
 
                 @Override
@@ -171,9 +222,11 @@ public class DynamicsMqttService extends Service {
 
         MqttConnectOptions mqttConnectOptions = new MqttConnectOptions();
         mqttConnectOptions.setAutomaticReconnect(true);
+        //Undelivered messages are kept in the outbox and sent again, so the session isn't needed
+        //and keeping it would send them twice
         mqttConnectOptions.setCleanSession(true);
         mqttConnectOptions.setConnectionTimeout(30);
-        mqttConnectOptions.setMaxInflight(10);
+        mqttConnectOptions.setMaxInflight(AppPolicy.sharedInstance().getMqttMaxInflight());
         mqttConnectOptions.setKeepAliveInterval(60);
         mqttConnectOptions.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
 
@@ -188,13 +241,6 @@ public class DynamicsMqttService extends Service {
                 public void onSuccess(IMqttToken asyncActionToken) {
                     Log.d(TAG, "connection successful");
 
-                    DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
-                    disconnectedBufferOptions.setBufferEnabled(true);
-                    disconnectedBufferOptions.setBufferSize(100);
-                    disconnectedBufferOptions.setPersistBuffer(false);
-                    disconnectedBufferOptions.setDeleteOldestMessages(false);
-                    mqttAndroidClient.setBufferOpts(disconnectedBufferOptions);
-
                     sendBroadcastActionReady();
                 }
 
@@ -202,13 +248,7 @@ public class DynamicsMqttService extends Service {
                 public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
                     Log.d(TAG,"Failed to connect to: " + serverUri);
 
-                    DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
-                    disconnectedBufferOptions.setBufferEnabled(true);
-                    disconnectedBufferOptions.setBufferSize(100);
-                    disconnectedBufferOptions.setPersistBuffer(false);
-                    disconnectedBufferOptions.setDeleteOldestMessages(false);
-                    mqttAndroidClient.setBufferOpts(disconnectedBufferOptions);
-
+                    //Readings still go into the outbox, and are sent when there's a connection
                     sendBroadcastActionReady();
                 }
             });
@@ -222,27 +262,133 @@ public class DynamicsMqttService extends Service {
     }
 
 
-    public void publishMessage(String message, String topic){
+    private void schedulePump(long delay) {
+        if(!mPumpScheduled) {
+            mPumpScheduled = true;
+            mHandler.postDelayed(mPump, delay);
+        }
+    }
+
+    private final Runnable mEnqueued = new Runnable() {
+        @Override
+        public void run() {
+            schedulePump(0);
+        }
+    };
+
+    private final Runnable mConnected = new Runnable() {
+        @Override
+        public void run() {
+            //Start again from the oldest message that hasn't been delivered. Publishes from the
+            //last connection can still finish, but they're not in this connection's window.
+            mConnection++;
+            mInflight = 0;
+            mLastSent = -1;
+            Log.d(TAG, mOutbox.toString());
+            schedulePump(0);
+        }
+    };
 
-        try {
+    private final Runnable mDisconnected = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.removeCallbacks(mPump);
+            mPumpScheduled = false;
+        }
+    };
 
-            MqttMessage mqttMessage = new MqttMessage();
-            mqttMessage.setPayload(message.getBytes());
+    private final Runnable mPump = new Runnable() {
+        @Override
+        public void run() {
+            mPumpScheduled = false;
+            pump();
+        }
+    };
 
-            if(mqttAndroidClient.isConnected()) {
-                mqttAndroidClient.publish(topic, mqttMessage);
-                Log.d(TAG,"Message Published");
+    //Send messages from the outbox until the in-flight window is full, the outbox is empty, or the
+    //drain rate says to wait.
+    private void pump() {
+        if(mqttAndroidClient == null || !mqttAndroidClient.isConnected()) {
+            return;
+        }
+        final AppPolicy appPolicy = AppPolicy.sharedInstance();
+        final int window = appPolicy.getMqttMaxInflight();
+        final long spacing = 1000L / appPolicy.getMqttDrainRate();
+
+        while(mInflight < window) {
+            long now = SystemClock.elapsedRealtime();
+            if(now < mNextSendTime) {
+                schedulePump(mNextSendTime - now);
+                return;
             }
-
-            if(!mqttAndroidClient.isConnected()){
-                mqttAndroidClient.publish(topic, mqttMessage);
-                Log.d(TAG,mqttAndroidClient.getBufferedMessageCount() + " messages in buffer.");
+            long sequence = mOutbox.next(mLastSent);
+            if(sequence < 0) {
+                return;
+            }
+            mLastSent = sequence;
+            MqttOutbox.Message message = mOutbox.get(sequence);
+            if(message == null) {
+                continue;
+            }
+            if(!publishMessage(message, appPolicy.getMqttQos())) {
+                return;
             }
+            mNextSendTime = Math.max(now, mNextSendTime) + spacing;
+        }
+    }
+
+    private boolean publishMessage(final MqttOutbox.Message message, int qos) {
+        final int connection = mConnection;
+        try {
+            mqttAndroidClient.publish(message.getTopic(), message.getPayload(), qos, false, null,
+                    new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    postPublishFinished(message, connection, true);
+                }
 
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    Log.d(TAG, "Publish failed, message " + message.getSequence() + " stays in the outbox");
+                    postPublishFinished(message, connection, false);
+                }
+            });
+            mInflight++;
+            return true;
         } catch (MqttException e) {
-            System.err.println("Error Publishing: " + e.getMessage());
-            e.printStackTrace();
+            Log.e(TAG, "Error Publishing: " + e.getMessage());
+            //Send it again later
+            mLastSent = -1;
+            return false;
+        }
+    }
+
+    //Called by the MQTT client, on whichever thread it uses
+    private void postPublishFinished(final MqttOutbox.Message message, final int connection,
+                                     final boolean delivered) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(delivered) {
+                    //Even from an earlier connection, the broker has it
+                    mOutbox.remove(message.getSequence());
+                }
+                publishFinished(connection);
+            }
+        });
+    }
+
+    private void publishFinished(int connection) {
+        if(connection != mConnection) {
+            //The window was reset when this connection was replaced
+            return;
+        }
+        mInflight = Math.max(0, mInflight - 1);
+        if(mInflight == 0) {
+            //Anything that failed is still in the outbox, so start again from the oldest
+            mLastSent = -1;
         }
+        schedulePump(0);
     }
 
 
@@ -1,22 +1,15 @@
 package com.example.blackberry.sensordemo.services;
 
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
 
 
-import com.good.gd.file.File;
-import com.good.gd.file.FileOutputStream;
-import com.good.gd.file.GDFileSystem;
+import com.example.blackberry.sensordemo.logging.SecureLogWriter;
 
 import org.jetbrains.annotations.Nullable;
 
-import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 public class LogFileService extends Service {
 
@@ -24,8 +17,12 @@ public class LogFileService extends Service {
 
     public static final String ACTION_LOG = "ACTION_LOG";
     public static final String EXTRA_TEXT = "EXTRA_TEXT";
+    public static final String EXTRA_BYTES = "EXTRA_BYTES";
     public static final String EXTRA_LOCAL_FILE = "EXTRA_LOCAL_FILE";
     public static final String EXTRA_LOCAL_MAX_FILE_SIZE = "EXTRA_LOCAL_MAX_FILE_SIZE";
+    public static final String EXTRA_LOCAL_RETENTION_SIZE = "EXTRA_LOCAL_RETENTION_SIZE";
+    public static final String EXTRA_LOCAL_ROTATION_INTERVAL = "EXTRA_LOCAL_ROTATION_INTERVAL";
+    public static final String EXTRA_LOCAL_FLUSH_INTERVAL = "EXTRA_LOCAL_FLUSH_INTERVAL";
 
     @Nullable
     @Override
@@ -46,7 +43,14 @@ public class LogFileService extends Service {
         Log.i(TAG, "onStartCommand");
 
         if(intent.getAction() == ACTION_LOG && intent.hasExtra(EXTRA_TEXT) && intent.hasExtra(EXTRA_LOCAL_FILE) && intent.hasExtra(EXTRA_LOCAL_MAX_FILE_SIZE)) {
-            logText(intent.getStringExtra(EXTRA_TEXT), intent.getStringExtra(EXTRA_LOCAL_FILE), intent.getIntExtra(EXTRA_LOCAL_MAX_FILE_SIZE,1024));
+            logBytes(intent.getStringExtra(EXTRA_TEXT).getBytes(), intent.getStringExtra(EXTRA_LOCAL_FILE), intent.getIntExtra(EXTRA_LOCAL_MAX_FILE_SIZE,1024),
+                    intent.getIntExtra(EXTRA_LOCAL_RETENTION_SIZE,4096), intent.getIntExtra(EXTRA_LOCAL_ROTATION_INTERVAL,3600000),
+                    intent.getIntExtra(EXTRA_LOCAL_FLUSH_INTERVAL,10000));
+        } else if(intent.getAction() == ACTION_LOG && intent.hasExtra(EXTRA_BYTES) && intent.hasExtra(EXTRA_LOCAL_FILE) && intent.hasExtra(EXTRA_LOCAL_MAX_FILE_SIZE)) {
+            //An encoded record, see TelemetryEncoder.encodeRecord
+            logBytes(intent.getByteArrayExtra(EXTRA_BYTES), intent.getStringExtra(EXTRA_LOCAL_FILE), intent.getIntExtra(EXTRA_LOCAL_MAX_FILE_SIZE,1024),
+                    intent.getIntExtra(EXTRA_LOCAL_RETENTION_SIZE,4096), intent.getIntExtra(EXTRA_LOCAL_ROTATION_INTERVAL,3600000),
+                    intent.getIntExtra(EXTRA_LOCAL_FLUSH_INTERVAL,10000));
         }
 
         return Service.START_NOT_STICKY;
@@ -58,53 +62,20 @@ public class LogFileService extends Service {
         Log.i(TAG, "onDestroy");
     }
 
-    private void logText(String text, String filePath, int localMaxFileSize) {
-        fileInfo(filePath);
-        monitorLocalFileSize(filePath, localMaxFileSize);
+    private void logBytes(byte[] bytes, String filePath, int localMaxFileSize, int localRetentionSize,
+                          int localRotationInterval, int localFlushInterval) {
         try
         {
-            FileOutputStream outputStream = GDFileSystem.openFileOutput(filePath, Context.MODE_APPEND);
-            outputStream.write(text.getBytes());
-            outputStream.close();
-            outputStream = null;
-            String.format("Log File: %s, Data: %s", filePath, text);
-            Log.i(TAG, "Log file written: ");
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
+            //The writer keeps the file open and writes records in batches, so this returns
+            //without any file I/O
+            SecureLogWriter writer = SecureLogWriter.sharedInstance();
+            writer.configure(filePath, localMaxFileSize * 1024L, localRotationInterval,
+                    localRetentionSize * 1024L, localFlushInterval);
+            writer.append(bytes);
+            Log.i(TAG, "Log record queued: " + bytes.length + " bytes");
         } finally {
             stopSelf();
         }
     }
 
-    private void fileInfo(String filePath) {
-        File localFile = new File(filePath);
-        if( localFile.exists() ) {
-            Log.i(TAG, "File Name: " + localFile.getName());
-            Log.i(TAG, "File Size: " + localFile.length());
-
-            Date lastModified = new Date( localFile.lastModified() );
-            DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
-            Log.i(TAG, "Last Modified: " + dateFormat.format(lastModified));
-
-            Log.i(TAG, "File Name: " + localFile.getName());
-
-            Log.i(TAG, "Total Space: " + localFile.getTotalSpace());
-            Log.i(TAG, "Free Space: " + localFile.getFreeSpace());
-            Log.i(TAG, "Usable Space: " + localFile.getUsableSpace());
-
-        }
-    }
-
-    private void monitorLocalFileSize(String filePath, int maxFileSize) {
-        File localFile = new File(filePath);
-        if( localFile.exists() ) {
-            //If local file size is greater than maxFileSize (KB)
-            if (localFile.length() > maxFileSize * 1024) {
-                localFile.delete();
-            }
-        }
-    }
-
 }
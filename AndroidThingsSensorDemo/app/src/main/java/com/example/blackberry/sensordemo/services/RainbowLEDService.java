@@ -3,9 +3,14 @@ package com.example.blackberry.sensordemo.services;
 import android.app.Service;
 import android.content.Intent;
 import android.graphics.Color;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
+import com.example.blackberry.sensordemo.models.AppPolicy;
+import com.example.blackberry.sensordemo.models.TelemetryBus;
+import com.example.blackberry.sensordemo.models.TelemetryBus.Channel;
 import com.google.android.things.contrib.driver.apa102.Apa102;
 
 import org.apache.commons.lang3.ArrayUtils;
@@ -14,7 +19,11 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.util.Arrays;
 
-public class RainbowLEDService extends Service {
+/**
+ * Lights the LEDs to show the air pressure. Readings come from the TelemetryBus while the service
+ * is running, and a count and colour can also be sent with ACTION_LEDS.
+ */
+public class RainbowLEDService extends Service implements TelemetryBus.Listener {
 
     private static final String TAG = RainbowLEDService.class.getSimpleName();
 
@@ -25,6 +34,10 @@ public class RainbowLEDService extends Service {
     private int[] mLEDColors = new int[7];
 
     private Apa102 mLedStrip;
+    private TelemetryBus.Subscription mSubscription;
+    //Last colour and count written, so that the strip is only written when they change
+    private String mLEDColor;
+    private int mLEDCount = -1;
 
     @Nullable
     @Override
@@ -43,6 +56,8 @@ public class RainbowLEDService extends Service {
         } catch (IOException e) {
             Log.d(TAG, e.getLocalizedMessage());
         }
+        mSubscription = TelemetryBus.sharedInstance().subscribe(this,
+                new Handler(Looper.getMainLooper()), Channel.BMX280_PRESSURE);
     }
 
     @Override
@@ -51,15 +66,7 @@ public class RainbowLEDService extends Service {
 
         if(intent.getAction() == ACTION_LEDS && intent.hasExtra(EXTRA_LED_COUNT) && intent.hasExtra(EXTRA_LED_COLOR)) {
 
-            //Set LED Colors
-            if(intent.getStringExtra(EXTRA_LED_COLOR).equals("RAINBOW")) {
-                rainbow();
-            } else {
-                staticLEDColor(intent.getStringExtra(EXTRA_LED_COLOR));
-            }
-
-            //light the LEDs
-            lightLEDS(intent.getIntExtra(EXTRA_LED_COUNT,0));
+            showLEDs(intent.getIntExtra(EXTRA_LED_COUNT,0), intent.getStringExtra(EXTRA_LED_COLOR));
 
         }
 
@@ -70,9 +77,41 @@ public class RainbowLEDService extends Service {
     public void onDestroy() {
         super.onDestroy();
         Log.i(TAG, "onDestroy");
+        TelemetryBus.sharedInstance().unsubscribe(mSubscription);
+        mSubscription = null;
         mLEDColors = null;
     }
 
+    @Override
+    public void onTelemetry(Channel channel, float pressure, long timestamp) {
+        //One LED for every 10 hPa above 970, up to all 7
+        int leds = (int) (pressure - 970) / 10 + 1;
+        leds = (leds > 7 ? 7 : leds);
+        leds = (leds < 0 ? 0 : leds);
+
+        showLEDs(leds, AppPolicy.sharedInstance().getLedColor());
+    }
+
+    private void showLEDs(int ledCount, String color) {
+        if(ledCount == mLEDCount && color.equals(mLEDColor)) {
+            return;
+        }
+
+        //Set LED Colors
+        if(!color.equals(mLEDColor)) {
+            if(color.equals("RAINBOW")) {
+                rainbow();
+            } else {
+                staticLEDColor(color);
+            }
+        }
+        mLEDColor = color;
+        mLEDCount = ledCount;
+
+        //light the LEDs
+        lightLEDS(ledCount);
+    }
+
 
     private void rainbow() {
         for (int i = 0; i < mLEDColors.length; i++) {
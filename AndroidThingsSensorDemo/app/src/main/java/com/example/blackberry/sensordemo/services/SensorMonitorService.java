@@ -11,16 +11,18 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.IBinder;
-import android.provider.ContactsContract;
 import android.util.Log;
 
 import com.example.blackberry.sensordemo.models.DataModel;
+import com.example.blackberry.sensordemo.models.TelemetryBus.Channel;
 import com.example.blackberry.sensordemo.sensordrivers.BCM2385TemperatureSensorDriver;
 import com.google.android.things.contrib.driver.bmx280.Bmx280SensorDriver;
 
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 public class SensorMonitorService extends Service implements SensorEventListener{
 
@@ -30,6 +32,7 @@ public class SensorMonitorService extends Service implements SensorEventListener
     public static final String ACTION_STOP_MONITORING = "ACTION_STOP_MONITORING";
 
     private static final String I2C_BUS = "I2C1";
+    private static final String BMX280_SENSOR_NAME = "BMP280/BME280";
 
     private SensorManager mSensorManager;
     private SensorCallback mCallback = new SensorCallback();
@@ -37,6 +40,10 @@ public class SensorMonitorService extends Service implements SensorEventListener
     private Bmx280SensorDriver mBmx280SensorDriver;
     private BCM2385TemperatureSensorDriver mBcm2385TemperatureSensorDriver;
 
+    //Channel for each connected sensor, worked out once when the sensor connects so that readings
+    //don't need the sensor name and type comparing. Only used on the main thread.
+    private final Map<Sensor, Channel> mSensorChannels = new IdentityHashMap<>();
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
@@ -97,16 +104,25 @@ public class SensorMonitorService extends Service implements SensorEventListener
     //--------------------------------------------------------
     @Override
     public void onSensorChanged(SensorEvent sensorEvent) {
-        Log.d(TAG, "onSensorChanged");
-        if(sensorEvent.sensor.getName().equals("BMP280/BME280") && sensorEvent.sensor.getType() == Sensor.TYPE_AMBIENT_TEMPERATURE) {
-            //RainbowHat Temperature Sensor
-            DataModel.sharedInstance().setBmx250Temperature(sensorEvent.values[0]);
-        } else if(sensorEvent.sensor.getName().equals("BMP280/BME280") && sensorEvent.sensor.getType() == Sensor.TYPE_PRESSURE) {
-            //RainbowHat Pressure Sensor
-            DataModel.sharedInstance().setBmx250Pressure(sensorEvent.values[0]);
-        } else if(sensorEvent.sensor.getName().equals(BCM2385TemperatureSensorDriver.DRIVER_NAME) && sensorEvent.sensor.getType() == Sensor.TYPE_AMBIENT_TEMPERATURE) {
-            //CPU Temperature Reading
-            DataModel.sharedInstance().setBcm2385Temperature(sensorEvent.values[0]);
+        Channel channel = mSensorChannels.get(sensorEvent.sensor);
+        if(channel == null) {
+            return;
+        }
+        switch (channel) {
+            case BMX280_TEMPERATURE:
+                //RainbowHat Temperature Sensor
+                DataModel.sharedInstance().setBmx250Temperature(sensorEvent.values[0], sensorEvent.timestamp);
+                break;
+            case BMX280_PRESSURE:
+                //RainbowHat Pressure Sensor
+                DataModel.sharedInstance().setBmx250Pressure(sensorEvent.values[0], sensorEvent.timestamp);
+                break;
+            case BCM2835_TEMPERATURE:
+                //CPU Temperature Reading
+                DataModel.sharedInstance().setBcm2385Temperature(sensorEvent.values[0], sensorEvent.timestamp);
+                break;
+            default:
+                break;
         }
     }
 
@@ -161,11 +177,29 @@ public class SensorMonitorService extends Service implements SensorEventListener
     }
 
 
+    //The channel that a sensor's readings go to, or null if it isn't one that's monitored
+    private static Channel channelFor(Sensor sensor) {
+        if(sensor.getName().equals(BMX280_SENSOR_NAME) && sensor.getType() == Sensor.TYPE_AMBIENT_TEMPERATURE) {
+            return Channel.BMX280_TEMPERATURE;
+        } else if(sensor.getName().equals(BMX280_SENSOR_NAME) && sensor.getType() == Sensor.TYPE_PRESSURE) {
+            return Channel.BMX280_PRESSURE;
+        } else if(sensor.getName().equals(BCM2385TemperatureSensorDriver.DRIVER_NAME) && sensor.getType() == Sensor.TYPE_AMBIENT_TEMPERATURE) {
+            return Channel.BCM2835_TEMPERATURE;
+        }
+        return null;
+    }
+
+
     // Listen for registration events from the sensor driver
     private class SensorCallback extends SensorManager.DynamicSensorCallback {
         @Override
         public void onDynamicSensorConnected(Sensor sensor) {
+            Channel channel = channelFor(sensor);
+            if(channel == null) {
+                return;
+            }
             // Begin listening for sensor readings
+            mSensorChannels.put(sensor, channel);
             mSensorManager.registerListener(SensorMonitorService.this, sensor,
                     SensorManager.SENSOR_DELAY_NORMAL);
         }
@@ -174,6 +208,7 @@ public class SensorMonitorService extends Service implements SensorEventListener
         public void onDynamicSensorDisconnected(Sensor sensor) {
             // Stop receiving sensor readings
             mSensorManager.unregisterListener(SensorMonitorService.this, sensor);
+            mSensorChannels.remove(sensor);
         }
     }
 
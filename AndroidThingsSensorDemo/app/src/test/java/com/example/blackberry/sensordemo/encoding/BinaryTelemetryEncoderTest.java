@@ -0,0 +1,200 @@
+package com.example.blackberry.sensordemo.encoding;
+
+import com.example.blackberry.sensordemo.models.TelemetryBus.Channel;
+import com.example.blackberry.sensordemo.models.TimeSeriesStore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips through BinaryTelemetryEncoder and TelemetryDecoder, which are plain Java.
+ *
+ * Each test records on its own channel, because the TimeSeriesStore is shared.
+ */
+public class BinaryTelemetryEncoderTest {
+
+    private static final long SECOND = 1000000000L;
+    //Scaled to hundredths, so a value can be out by half of one
+    private static final float DELTA = 0.0051f;
+
+    private final BinaryTelemetryEncoder encoder = new BinaryTelemetryEncoder();
+
+    private static void assertChannel(TelemetryFrame frame, int slot, TelemetryDecoder.ChannelData data) {
+        assertEquals(frame.getChannel(slot).ordinal(), data.channel);
+        assertEquals(frame.getCount(slot), data.count);
+        assertEquals(frame.getMean(slot), data.mean, DELTA);
+        if(data.count > 0) {
+            assertEquals(frame.getMin(slot), data.min, DELTA);
+            assertEquals(frame.getMax(slot), data.max, DELTA);
+        }
+        assertEquals(frame.getPointCount(slot), data.offsets.length);
+        for(int point = 0; point < data.offsets.length; point++) {
+            assertEquals(frame.getPointOffset(slot, point), data.offsets[point]);
+            assertEquals(frame.getPointValue(slot, point), data.values[point], DELTA);
+        }
+    }
+
+    @Test
+    public void message_roundTripsAggregatesAndSeries() throws IOException {
+        //A reading every five seconds over a minute, crossing zero
+        long since = 1000 * SECOND;
+        for(int index = 0; index < 12; index++) {
+            TimeSeriesStore.sharedInstance().onTelemetry(Channel.AIR_TEMPERATURE,
+                    -3.25f + index * 0.61f, since + index * 5 * SECOND + 1);
+        }
+
+        TelemetryFrame frame = new TelemetryFrame(10);
+        frame.reset(1539800000000L, 60000, "Salle d'été");
+        frame.addChannel(Channel.AIR_TEMPERATURE, since, since + 60 * SECOND);
+
+        byte[] message = encoder.encodeMessage(frame);
+        TelemetryDecoder.Frame decoded = TelemetryDecoder.decode(message, 0, message.length);
+
+        assertEquals(1539800000000L, decoded.timeStamp);
+        assertEquals(60000, decoded.intervalMillis);
+        assertEquals("Salle d'été", decoded.room);
+        assertEquals(1, decoded.channels.size());
+        assertEquals(12, decoded.channels.get(0).count);
+        assertEquals(10, decoded.channels.get(0).offsets.length);
+        assertTrue(decoded.channels.get(0).min < 0);
+        assertChannel(frame, 0, decoded.channels.get(0));
+    }
+
+    @Test
+    public void emptyChannel_hasNoSeries() throws IOException {
+        //Nothing is ever recorded on this channel, so the mean falls back to zero
+        TelemetryFrame frame = new TelemetryFrame(10);
+        frame.reset(0, 0, "");
+        frame.addChannel(Channel.BCM2835_TEMPERATURE, 0, 60 * SECOND);
+
+        byte[] message = encoder.encodeMessage(frame);
+        TelemetryDecoder.Frame decoded = TelemetryDecoder.decode(message, 0, message.length);
+
+        assertEquals(0, decoded.timeStamp);
+        assertEquals("", decoded.room);
+        TelemetryDecoder.ChannelData data = decoded.channels.get(0);
+        assertEquals(0, data.count);
+        assertEquals(0f, data.mean, 0f);
+        assertEquals(0, data.offsets.length);
+        assertChannel(frame, 0, data);
+    }
+
+    @Test
+    public void extremeValues_roundTrip() throws IOException {
+        //Large values of both signs make the zigzag deltas between points many bytes long
+        long since = 5000 * SECOND;
+        float[] values = {-1e15f, 1e15f, -1e15f, -0.01f, 0.01f};
+        for(int index = 0; index < values.length; index++) {
+            TimeSeriesStore.sharedInstance().onTelemetry(Channel.BMX280_TEMPERATURE,
+                    values[index], since + index * SECOND);
+        }
+
+        TelemetryFrame frame = new TelemetryFrame(values.length);
+        frame.reset(Long.MAX_VALUE, Integer.MAX_VALUE, "room");
+        frame.addChannel(Channel.BMX280_TEMPERATURE, since, since + values.length * SECOND);
+
+        byte[] message = encoder.encodeMessage(frame);
+        TelemetryDecoder.Frame decoded = TelemetryDecoder.decode(message, 0, message.length);
+
+        assertEquals(Long.MAX_VALUE, decoded.timeStamp);
+        assertEquals(Integer.MAX_VALUE, decoded.intervalMillis);
+        TelemetryDecoder.ChannelData data = decoded.channels.get(0);
+        assertEquals(values.length, data.offsets.length);
+        for(int point = 0; point < values.length; point++) {
+            assertEquals(values[point], data.values[point], Math.abs(values[point]) * 1e-6f + DELTA);
+        }
+        assertEquals(-1e15f, data.min, 1e9f);
+        assertEquals(1e15f, data.max, 1e9f);
+    }
+
+    @Test
+    public void varintLimits_decode() throws IOException {
+        //Time stamp Long.MAX_VALUE takes nine bytes, and -1 as a zigzag is a single 1
+        byte[] message = {
+                (byte) TelemetryDecoder.MAGIC, TelemetryDecoder.VERSION,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F,
+                0x00,
+                0x00,
+                0x01,
+                0x03, 0x00, 0x01, 0x00
+        };
+        TelemetryDecoder.Frame decoded = TelemetryDecoder.decode(message, 0, message.length);
+        assertEquals(Long.MAX_VALUE, decoded.timeStamp);
+        assertEquals(0, decoded.intervalMillis);
+        TelemetryDecoder.ChannelData data = decoded.channels.get(0);
+        assertEquals(Channel.AIR_TEMPERATURE.ordinal(), data.channel);
+        assertEquals(0, data.count);
+        assertEquals(-0.01f, data.mean, 0f);
+        assertEquals(0, data.offsets.length);
+    }
+
+    @Test
+    public void overlongVarint_isRejected() {
+        byte[] message = new byte[14];
+        message[0] = (byte) TelemetryDecoder.MAGIC;
+        message[1] = TelemetryDecoder.VERSION;
+        for(int index = 2; index < message.length; index++) {
+            message[index] = (byte) 0x80;
+        }
+        try {
+            TelemetryDecoder.decode(message, 0, message.length);
+            fail("Decoded an overlong varint");
+        } catch (IOException e) {
+            assertFalse(e instanceof EOFException);
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedMessage_isRejected() throws IOException {
+        TelemetryFrame frame = new TelemetryFrame(0);
+        frame.reset(1539800000000L, 60000, "room");
+        frame.addChannel(Channel.BMX280_PRESSURE, 0, 1);
+        byte[] message = encoder.encodeMessage(frame);
+        TelemetryDecoder.decode(message, 0, message.length - 1);
+    }
+
+    @Test
+    public void records_decodeAmongJSONLines() throws IOException {
+        TelemetryFrame frame = new TelemetryFrame(0);
+        frame.reset(1539800000000L, 60000, null);
+        frame.addChannel(Channel.BMX280_PRESSURE, 0, 1);
+        frame.addChannel(Channel.BCM2835_TEMPERATURE, 0, 1);
+
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        byte[] json = "{\"timeStamp\":1}\r\n".getBytes(StandardCharsets.UTF_8);
+        log.write(json);
+        byte[] record = encoder.encodeRecord(frame);
+        log.write(record);
+        log.write(record);
+        log.write(json);
+
+        final List<String> seen = new ArrayList<>();
+        TelemetryDecoder.decodeRecords(new ByteArrayInputStream(log.toByteArray()),
+                new TelemetryDecoder.RecordHandler() {
+                    @Override
+                    public void onFrame(TelemetryDecoder.Frame decoded) {
+                        assertEquals(1539800000000L, decoded.timeStamp);
+                        assertEquals(2, decoded.channels.size());
+                        seen.add("frame");
+                    }
+
+                    @Override
+                    public void onJSONLine(String line) {
+                        assertEquals("{\"timeStamp\":1}", line);
+                        seen.add("json");
+                    }
+                });
+        assertEquals("[json, frame, frame, json]", seen.toString());
+    }
+
+}
@@ -168,11 +168,19 @@ class Main {
         }
         
         for(const controlName of Object.keys(controls).sort()) {
-            if (controlName !== "links") {
+            if (controlName === "links") {
+                continue;
+            }
+            if (typeof controls[controlName] === 'boolean') {
                 const controlElement = u.element(tag, null);
                 this._controls.push(new Control(controlName, controlElement));
                 controlsElement.appendChild(controlElement);
             }
+            else {
+                // Numeric settings can't be toggled, so just show their values.
+                controlsElement.appendChild(u.element(
+                    tag, controlName + ": " + controls[controlName]));
+            }
         }
         
         function callBridge(functionName, resultElement) { return function() {
@@ -0,0 +1,227 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Index of the application's assets, built as they're requested, with small ones held in memory.
+ *
+ * The assets are part of the APK and can't change while the application is running, so
+ * everything about them can be worked out once: the content type, the size, and a strong ETag
+ * from a digest of the contents. An asset is indexed on a background thread the first time it's
+ * requested, which reads it once. That first request is served straight from the APK, without an
+ * ETag, so that it doesn't wait for the digest. Assets up to a size limit are kept as byte arrays
+ * when they're indexed, within the assetCacheKilobytes budget, so that serving the built-in user
+ * interface and test website again takes no asset reads.
+ */
+class AssetIndex {
+    private static final String TAG = AssetIndex.class.getSimpleName();
+
+    // Larger assets are always read from the APK.
+    private static final int MAX_HELD_BYTES = 256 * 1024;
+
+    static class Asset {
+        final String path;
+        final String contentType;
+        final long size;
+        final String etag;
+        // Contents, or null if the asset isn't held in memory. Never changed.
+        final byte[] bytes;
+
+        Asset(String path, String contentType, long size, String etag, byte[] bytes) {
+            this.path = path;
+            this.contentType = contentType;
+            this.size = size;
+            this.etag = etag;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final AssetIndex sharedInstance = new AssetIndex();
+    public static AssetIndex getInstance() {
+        return sharedInstance;
+    }
+    private AssetIndex() {
+        super();
+    }
+
+    private final ConcurrentHashMap<String, Asset> assets =
+        new ConcurrentHashMap<String, Asset>();
+    // Paths queued for indexing, so that each is only queued once at a time. Guarded by the
+    // index object.
+    private final Set<String> pending = new HashSet<String>();
+    private final ExecutorService indexExecutor = Executors.newSingleThreadExecutor();
+
+    // These are guarded by the index object. Apart from heldBytes, they're for logging only.
+    private long heldBytes = 0;
+    private int memoryHits = 0;
+    private int assetReads = 0;
+    private int unindexedReads = 0;
+    private int matched = 0;
+
+    /** Content type for a path, or null if it isn't known. */
+    static String contentTypeFor(String path) {
+        final int dot = path.lastIndexOf('.');
+        final String extension =
+            dot < 0 ? "" : path.substring(dot + 1).toLowerCase(Locale.US);
+        // If contentType isn't set, the WebView won't run the JS code. It appears that the
+        // MimeTypeMap doesn't map .js to anything, so there's a special case for that.
+        final String contentType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+        if (contentType == null && extension.equals("js")) {
+            return "application/javascript";
+        }
+        return contentType;
+    }
+
+    /** Get an asset from the index, or queue it to be indexed if it isn't there yet.
+     *
+     * @return the asset, or null if it hasn't been indexed, in which case the caller should use
+     * openUnindexed() this time.
+     */
+    Asset get(Context context, final String path) {
+        final Asset asset = this.assets.get(path);
+        if (asset != null) {
+            return asset;
+        }
+        synchronized (this) {
+            if (!this.pending.add(path)) {
+                return null;
+            }
+        }
+        final AssetManager assetManager = context.getApplicationContext().getAssets();
+        this.indexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                AssetIndex.this.addFile(assetManager, path);
+                synchronized (AssetIndex.this) {
+                    AssetIndex.this.pending.remove(path);
+                }
+            }
+        });
+        return null;
+    }
+
+    // Only called on the index thread, so the held bytes can't grow while the asset is read.
+    private void addFile(AssetManager assetManager, String path) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new AssertionError("No SHA-1 " + exception.toString());
+        }
+        final long budget;
+        synchronized (this) {
+            budget = 1024L * Settings.getInstance().getSnapshot().assetCacheKilobytes -
+                this.heldBytes;
+        }
+        final ByteArrayOutputStream held = new ByteArrayOutputStream();
+        boolean hold = true;
+        long size = 0;
+        final byte[] buffer = BufferPool.acquire();
+        try {
+            final InputStream inputStream = assetManager.open(path);
+            try {
+                for (int read = inputStream.read(buffer);
+                     read >= 0;
+                     read = inputStream.read(buffer))
+                {
+                    digest.update(buffer, 0, read);
+                    size += read;
+                    hold = hold && size <= MAX_HELD_BYTES && size <= budget;
+                    if (hold) {
+                        held.write(buffer, 0, read);
+                    }
+                }
+            }
+            finally {
+                inputStream.close();
+            }
+        } catch (IOException exception) {
+            // Not an asset, or a directory. It's tried again if it's requested again.
+            Log.d(TAG, "Not indexed \"" + path + "\" " + exception.toString() + ".");
+            return;
+        }
+        finally {
+            BufferPool.release(buffer);
+        }
+
+        final StringBuilder etag = new StringBuilder("\"");
+        for (byte value : digest.digest()) {
+            etag.append(String.format("%02x", value & 0xFF));
+        }
+        etag.append("\"");
+        final byte[] bytes = hold ? held.toByteArray() : null;
+        if (bytes != null) {
+            synchronized (this) {
+                this.heldBytes += bytes.length;
+            }
+        }
+        this.assets.put(path, new Asset(path, contentTypeFor(path), size, etag.toString(), bytes));
+        Log.d(TAG, "Indexed \"" + path + "\" size:" + size + " held:" + (bytes != null) + " " +
+            this);
+    }
+
+    /** Open the contents of an asset, from memory if it's held. */
+    InputStream open(Context context, Asset asset) throws IOException {
+        if (asset.bytes != null) {
+            synchronized (this) {
+                this.memoryHits++;
+            }
+            return new ByteArrayInputStream(asset.bytes);
+        }
+        synchronized (this) {
+            this.assetReads++;
+        }
+        return context.getAssets().open(asset.path);
+    }
+
+    /** Open an asset that isn't in the index, straight from the APK. */
+    InputStream openUnindexed(Context context, String path) throws IOException {
+        synchronized (this) {
+            this.unindexedReads++;
+        }
+        return context.getAssets().open(path);
+    }
+
+    /** Count a conditional request whose validator matched. */
+    synchronized void countMatched() {
+        this.matched++;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AssetIndex assets:" + this.assets.size() + " held:" + this.heldBytes +
+            " memoryHits:" + this.memoryHits + " assetReads:" + this.assetReads +
+            " unindexedReads:" + this.unindexedReads + " matched:" + this.matched;
+    }
+}
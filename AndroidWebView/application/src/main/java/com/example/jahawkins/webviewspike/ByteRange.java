@@ -0,0 +1,178 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.webkit.WebResourceRequest;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Single byte range, from a Range request header or a Content-Range response header.
+ *
+ * Only the forms that media players and PDF viewers send are handled: one range, given as
+ * first-last, first- or -suffix, RFC 7233 section 2.1. A request for more than one range is
+ * passed upstream as it is, and the multipart response goes back to the WebView unchanged.
+ */
+class ByteRange {
+    private static final Pattern RANGE =
+        Pattern.compile("^\\s*bytes\\s*=\\s*(\\d*)\\s*-\\s*(\\d*)\\s*$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CONTENT_RANGE = Pattern.compile(
+        "^\\s*bytes\\s+(\\d+)-(\\d+)\\s*/\\s*(\\d+|\\*)\\s*$", Pattern.CASE_INSENSITIVE);
+
+    // Offset of the first byte, or -1 for a suffix range.
+    final long first;
+    // Offset of the last byte, or -1 if the range runs to the end. For a suffix range, this is
+    // the number of bytes at the end instead.
+    final long last;
+    // Length of the whole representation, or -1 if it isn't known. Only set from Content-Range,
+    // or by resolve().
+    final long length;
+
+    private ByteRange(long first, long last, long length) {
+        super();
+        this.first = first;
+        this.last = last;
+        this.length = length;
+    }
+
+    /** Resolved range, with length -1 if the length of the whole isn't known. */
+    static ByteRange of(long first, long last, long length) {
+        return new ByteRange(first, last, length);
+    }
+
+    boolean isSuffix() {
+        return this.first < 0;
+    }
+
+    boolean isOpenEnded() {
+        return this.first >= 0 && this.last < 0;
+    }
+
+    /** Number of bytes in a resolved range. */
+    long count() {
+        return this.last - this.first + 1;
+    }
+
+    /** Parse the value of a Range header, or return null if it isn't a single byte range. */
+    static ByteRange parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        final Matcher matcher = RANGE.matcher(value);
+        if (!matcher.matches()) {
+            return null;
+        }
+        final String first = matcher.group(1);
+        final String last = matcher.group(2);
+        try {
+            if (first.isEmpty()) {
+                return last.isEmpty() ? null : new ByteRange(-1, Long.parseLong(last), -1);
+            }
+            final ByteRange range = new ByteRange(
+                Long.parseLong(first), last.isEmpty() ? -1 : Long.parseLong(last), -1);
+            // A range that ends before it starts is invalid, and the header is to be ignored.
+            return (range.last >= 0 && range.last < range.first) ? null : range;
+        } catch (NumberFormatException exception) {
+            return null;
+        }
+    }
+
+    /** The single byte range requested by the WebView, or null if there isn't one. */
+    static ByteRange fromRequest(WebResourceRequest request) {
+        final Map<String, String> headers = request.getRequestHeaders();
+        for (String header : headers.keySet()) {
+            if (header.equalsIgnoreCase("Range")) {
+                return parse(headers.get(header));
+            }
+        }
+        return null;
+    }
+
+    static boolean hasRangeHeader(WebResourceRequest request) {
+        for (String header : request.getRequestHeaders().keySet()) {
+            if (header.equalsIgnoreCase("Range")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Parse the value of a Content-Range header, or return null if it isn't a satisfied byte
+     * range. */
+    static ByteRange fromContentRange(String value) {
+        if (value == null) {
+            return null;
+        }
+        final Matcher matcher = CONTENT_RANGE.matcher(value);
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            final String length = matcher.group(3);
+            return new ByteRange(Long.parseLong(matcher.group(1)),
+                Long.parseLong(matcher.group(2)),
+                length.equals("*") ? -1 : Long.parseLong(length));
+        } catch (NumberFormatException exception) {
+            return null;
+        }
+    }
+
+    /** Work out the bytes to send from a representation of known length.
+     *
+     * @return the range with first, last and length all set, or null if it isn't satisfiable.
+     */
+    ByteRange resolve(long length) {
+        if (length <= 0) {
+            return null;
+        }
+        if (this.isSuffix()) {
+            return this.last <= 0 ? null :
+                new ByteRange(Math.max(0, length - this.last), length - 1, length);
+        }
+        if (this.first >= length) {
+            return null;
+        }
+        return new ByteRange(this.first,
+            (this.last < 0 || this.last >= length) ? length - 1 : this.last, length);
+    }
+
+    /** Range header value to request from an offset to the end of this range. */
+    String requestFrom(long offset) {
+        return "bytes=" + offset + "-" + (this.last < 0 ? "" : Long.toString(this.last));
+    }
+
+    /** Content-Range header value for a resolved range. */
+    String toContentRange() {
+        return String.format(Locale.US, "bytes %d-%d/%s", this.first, this.last,
+            this.length < 0 ? "*" : Long.toString(this.length));
+    }
+
+    /** Content-Range header value for a 416 response. */
+    static String unsatisfiable(long length) {
+        return "bytes */" + length;
+    }
+
+    @Override
+    public String toString() {
+        if (this.isSuffix()) {
+            return "bytes=-" + this.last;
+        }
+        return this.length < 0 ? this.requestFrom(this.first) : this.toContentRange();
+    }
+}
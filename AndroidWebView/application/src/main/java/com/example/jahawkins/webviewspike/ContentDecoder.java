@@ -0,0 +1,142 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/** Content-coding stage between the HTTP response and the ResponseBuilder body.
+ *
+ * Requests go upstream with an Accept-Encoding of gzip and deflate, so text travels through the
+ * secure tunnel compressed. The Apache HTTP layer in BlackBerry Dynamics doesn't decode responses
+ * itself, and the WebView doesn't decode an intercepted response, so every coded body is decoded
+ * here, as it streams. That also lets HTML injection work on the decoded markup.
+ *
+ * Brotli isn't supported because there's no decoder for it in the Android platform.
+ */
+class ContentDecoder extends InputStream {
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private final InputStream body;
+    private final boolean isGzip;
+    private InputStream decoder = null;
+    // Only set for deflate. GZIPInputStream ends its own Inflater when it's closed.
+    private Inflater inflater = null;
+
+    private ContentDecoder(InputStream body, boolean isGzip) {
+        super();
+        this.body = body;
+        this.isGzip = isGzip;
+    }
+
+    /** True if a Content-Encoding value is one that decode() can handle. */
+    static boolean canDecode(String contentEncoding) {
+        if (contentEncoding == null) {
+            return false;
+        }
+        final String coding = contentEncoding.trim().toLowerCase(Locale.US);
+        return coding.equals("gzip") || coding.equals("x-gzip") || coding.equals("deflate");
+    }
+
+    /** Wrap a body so that it's decoded as it's read. Only call this if canDecode() is true. */
+    static InputStream decode(String contentEncoding, InputStream body) {
+        return new ContentDecoder(
+            body, !contentEncoding.trim().toLowerCase(Locale.US).equals("deflate"));
+    }
+
+    // The decoder is only created on the first read, because creating a GZIPInputStream reads the
+    // header, which would fail for an empty body and would block the thread that's waiting to
+    // return the response headers.
+    private InputStream getDecoder() throws IOException {
+        if (this.decoder != null) {
+            return this.decoder;
+        }
+        // Look at the first two bytes. An empty body, for example from a server that sends the
+        // header on a 204, stays empty.
+        final PushbackInputStream pushback = new PushbackInputStream(this.body, 2);
+        final byte[] header = new byte[2];
+        int read = 0;
+        while (read < 2) {
+            final int count = pushback.read(header, read, 2 - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        if (read == 0) {
+            this.decoder = pushback;
+            return this.decoder;
+        }
+        pushback.unread(header, 0, read);
+
+        if (this.isGzip) {
+            this.decoder = new GZIPInputStream(pushback, BufferPool.BUFFER_SIZE);
+            return this.decoder;
+        }
+        // HTTP deflate should have a zlib wrapper, RFC 7230 section 4.2.2, but some servers send
+        // raw deflate.
+        final boolean isZlib = read == 2 &&
+            (header[0] & 0x0F) == 8 && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+        this.inflater = new Inflater(!isZlib);
+        this.decoder = new InflaterInputStream(pushback, this.inflater, BufferPool.BUFFER_SIZE);
+        return this.decoder;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return this.getDecoder().read();
+    }
+
+    @Override
+    public int read(@NonNull byte[] bytes, int offset, int length) throws IOException {
+        return this.getDecoder().read(bytes, offset, length);
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        return this.getDecoder().skip(count);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return this.decoder == null ? 0 : this.decoder.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.decoder == null) {
+                this.body.close();
+            }
+            else {
+                this.decoder.close();
+            }
+        }
+        finally {
+            if (this.inflater != null) {
+                this.inflater.end();
+            }
+        }
+    }
+}
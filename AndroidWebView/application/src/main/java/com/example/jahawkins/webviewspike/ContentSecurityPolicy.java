@@ -0,0 +1,132 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import java.util.Locale;
+
+/** Just enough parsing of a Content-Security-Policy value for script injection.
+ *
+ * A value is one policy, a list of directives separated by semicolons. Each directive is a name
+ * followed by a source list. Directives are looked up by exact name, so script-src doesn't match
+ * script-src-elem, and the first one with a name wins, as in the specification.
+ */
+final class ContentSecurityPolicy {
+    // Directives that govern script elements, most specific first.
+    private static final String[] SCRIPT_DIRECTIVES = {
+        "script-src-elem", "script-src", "default-src"
+    };
+    // Directives that get the once values of injected scripts.
+    private static final String[] NONCE_DIRECTIVES = {"script-src-elem", "script-src"};
+
+    private static final String UNSAFE_INLINE = "'unsafe-inline'";
+    // Any of these in a source list makes unsafe-inline ignored.
+    private static final String[] IGNORES_UNSAFE_INLINE = {
+        "'nonce-", "'sha256-", "'sha384-", "'sha512-", "'strict-dynamic'"
+    };
+
+    private ContentSecurityPolicy() {}
+
+    private static String directiveName(String directive) {
+        final String trimmed = directive.trim();
+        int end = 0;
+        while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+            end++;
+        }
+        return trimmed.substring(0, end).toLowerCase(Locale.US);
+    }
+
+    private static String directiveSources(String policy, String name) {
+        for (String directive : policy.split(";")) {
+            final String trimmed = directive.trim();
+            if (directiveName(trimmed).equals(name)) {
+                return trimmed.substring(name.length()).trim();
+            }
+        }
+        return null;
+    }
+
+    /** Source list that applies to script elements, or null if the policy doesn't restrict them.
+     */
+    static String scriptSources(String policy) {
+        for (String name : SCRIPT_DIRECTIVES) {
+            final String sources = directiveSources(policy, name);
+            if (sources != null) {
+                return sources;
+            }
+        }
+        return null;
+    }
+
+    /** True if the policy lets inline scripts run without a nonce. */
+    static boolean allowsInlineScripts(String policy) {
+        final String sources = scriptSources(policy);
+        if (sources == null) {
+            return true;
+        }
+        final String lower = sources.toLowerCase(Locale.US);
+        if (!lower.contains(UNSAFE_INLINE)) {
+            return false;
+        }
+        for (String ignores : IGNORES_UNSAFE_INLINE) {
+            if (lower.contains(ignores)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Policy with sources appended to its script-src and script-src-elem directives, or null
+     * if it has neither. */
+    static String addScriptSources(String policy, String sources) {
+        final String[] directives = policy.split(";", -1);
+        boolean added = false;
+        for (int index = 0; index < directives.length; index++) {
+            final String name = directiveName(directives[index]);
+            for (String nonceDirective : NONCE_DIRECTIVES) {
+                if (name.equals(nonceDirective) && isFirst(directives, index, name)) {
+                    // In front of any trailing white space, so the layout is kept.
+                    final String directive = directives[index];
+                    int end = directive.length();
+                    while (end > 0 && Character.isWhitespace(directive.charAt(end - 1))) {
+                        end--;
+                    }
+                    directives[index] =
+                        directive.substring(0, end) + sources + directive.substring(end);
+                    added = true;
+                }
+            }
+        }
+        if (!added) {
+            return null;
+        }
+        final StringBuilder builder = new StringBuilder(directives[0]);
+        for (int index = 1; index < directives.length; index++) {
+            builder.append(';').append(directives[index]);
+        }
+        return builder.toString();
+    }
+
+    // Later directives with the same name are ignored, so only the first gets the sources.
+    private static boolean isFirst(String[] directives, int index, String name) {
+        for (int earlier = 0; earlier < index; earlier++) {
+            if (directiveName(directives[earlier]).equals(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
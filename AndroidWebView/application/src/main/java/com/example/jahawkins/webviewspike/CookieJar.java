@@ -0,0 +1,712 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.good.gd.apache.http.client.CookieStore;
+import com.good.gd.apache.http.cookie.Cookie;
+import com.good.gd.database.SQLException;
+import com.good.gd.database.sqlite.SQLiteDatabase;
+import com.good.gd.database.sqlite.SQLiteStatement;
+import com.good.gd.file.File;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** The one cookie jar for the app, shared by the HTTP clients and by document.cookie.
+ *
+ * Set-Cookie headers received by the pooled GDHttpClient instances arrive through the Apache
+ * CookieStore interface. Cookies set by script arrive through the DocumentCookieStore bridge. Both
+ * end up in the same place, so each side sees the other's cookies.
+ *
+ * Cookies are held in memory, grouped by registrable domain. The groups are spread over a number
+ * of stripes, each with its own read-write lock, so that requests to different sites don't wait
+ * for each other. Changes are written to a secure SQLite database, with the DocumentCookieStoreSQL
+ * schema, by a single background thread. Writes are queued, coalesced by cookie, and committed in
+ * one transaction per batch.
+ */
+public class CookieJar implements CookieStore {
+    private static final String TAG = CookieJar.class.getSimpleName();
+
+    private static final CookieJar sharedInstance = new CookieJar();
+    public static CookieJar getInstance() {
+        return sharedInstance;
+    }
+    private CookieJar() {
+        super();
+        for (int index = 0; index < this.stripes.length; index++) {
+            this.stripes[index] = new Stripe();
+        }
+    }
+
+    public static class CookieJarException extends Exception {
+        public CookieJarException(String message) {
+            super(message);
+        }
+    }
+
+    // Same file as the original document cookie store, so cookies from earlier runs are kept.
+    private static final String DATABASE_PATH = "DocumentCookieStore.db";
+    private static final int STRIPE_COUNT = 16;
+    // Queued writes are committed after this delay, or straight away once there are enough.
+    private static final long FLUSH_DELAY_MILLIS = 500;
+    private static final int FLUSH_BATCH = 64;
+    // Expired cookies are dropped from memory as they're encountered, and deleted from the
+    // database in one statement at most this often.
+    private static final long EXPIRY_SWEEP_MILLIS = 60 * 1000;
+
+    // SimpleDateFormat isn't thread-safe. Only used for logging here.
+    private static final ThreadLocal<SimpleDateFormat> dumpFormat =
+        new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                final SimpleDateFormat format =
+                    new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss z", Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                return format;
+            }
+        };
+
+    public Boolean dumpExpiringCookies = false;
+
+    private static class Stripe {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // Registrable domain to cookie key to cookie.
+        final Map<String, Map<String, DocumentCookie>> groups =
+            new HashMap<String, Map<String, DocumentCookie>>();
+    }
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    private Stripe stripeFor(String domain) {
+        return this.stripes[(domain.hashCode() & 0x7FFFFFFF) % STRIPE_COUNT];
+    }
+
+    // Queued database writes, by cookie key, oldest first. Deletions are flagged in
+    // pendingDeletes.
+    private final LinkedHashMap<String, DocumentCookie> pendingWrites =
+        new LinkedHashMap<String, DocumentCookie>();
+    private final Map<String, Boolean> pendingDeletes = new HashMap<String, Boolean>();
+    private boolean flushScheduled = false;
+
+    private final ScheduledExecutorService databaseExecutor =
+        Executors.newSingleThreadScheduledExecutor();
+    private final AtomicLong nextExpirySweep = new AtomicLong(0);
+    private volatile boolean loaded = false;
+
+    // Bumped on every change to the cookies in memory, while the stripe is still locked.
+    private final AtomicLong generation = new AtomicLong(0);
+    // Snapshot handed to the HTTP clients, and the generation it was built from. It's only used
+    // while that's still the current generation, so a rebuild that raced a change is never served.
+    private static class ClientCookies {
+        final long generation;
+        final List<Cookie> cookies;
+        ClientCookies(long generation, List<Cookie> cookies) {
+            this.generation = generation;
+            this.cookies = cookies;
+        }
+    }
+    private final AtomicReference<ClientCookies> clientCookies =
+        new AtomicReference<ClientCookies>(null);
+
+    // Longer paths first, then earlier creation, as in RFC 6265 section 5.4.
+    private static final Comparator<DocumentCookie> cookieOrder =
+        new Comparator<DocumentCookie>() {
+            @Override
+            public int compare(DocumentCookie cookie1, DocumentCookie cookie2) {
+                if (cookie1.path.length() != cookie2.path.length()) {
+                    return cookie2.path.length() - cookie1.path.length();
+                }
+                return cookie1.creationUtc < cookie2.creationUtc ? -1 :
+                    (cookie1.creationUtc == cookie2.creationUtc ? 0 : 1);
+            }
+        };
+
+    /** Cookies that would be sent to a host and path, in the order they should be sent. */
+    public List<DocumentCookie> match(String host, String path) {
+        this.load();
+        final long now = System.currentTimeMillis();
+        final String domain = DocumentCookie.registrableDomain(host);
+        final Stripe stripe = this.stripeFor(domain);
+        final List<DocumentCookie> matches = new ArrayList<DocumentCookie>();
+        boolean expired = false;
+
+        stripe.lock.readLock().lock();
+        try {
+            final Map<String, DocumentCookie> group = stripe.groups.get(domain);
+            if (group != null) {
+                for (DocumentCookie cookie : group.values()) {
+                    if (cookie.isExpired(now)) {
+                        expired = true;
+                    }
+                    else if (cookie.matchesHost(host) && cookie.matchesPath(path)) {
+                        matches.add(cookie);
+                    }
+                }
+            }
+        }
+        finally {
+            stripe.lock.readLock().unlock();
+        }
+
+        if (expired) {
+            this.removeExpired(stripe, now);
+        }
+        this.scheduleExpirySweep(now);
+        Collections.sort(matches, cookieOrder);
+        return matches;
+    }
+
+    /** Store a cookie, or delete it if it has already expired.
+     *
+     * @param fromScript true if the cookie was set through document.cookie, in which case it
+     * can't replace an HttpOnly cookie.
+     * @return false if the cookie was rejected.
+     */
+    public boolean store(DocumentCookie cookie, boolean fromScript) {
+        this.load();
+        final long now = System.currentTimeMillis();
+        final String domain = DocumentCookie.registrableDomain(cookie.getDomain());
+        final Stripe stripe = this.stripeFor(domain);
+        final boolean delete = cookie.isExpired(now);
+
+        stripe.lock.writeLock().lock();
+        try {
+            Map<String, DocumentCookie> group = stripe.groups.get(domain);
+            final DocumentCookie existing = group == null ? null : group.get(cookie.getKey());
+            if (existing != null && existing.isHttpOnly && fromScript) {
+                Log.d(TAG, "Not replacing HttpOnly cookie from script " + existing + ".");
+                return false;
+            }
+            if (existing != null) {
+                // Replacement keeps the original creation time, RFC 6265 section 5.3.
+                cookie = cookie.withCreation(existing.creationUtc);
+            }
+
+            if (delete) {
+                if (group != null) {
+                    group.remove(cookie.getKey());
+                }
+            }
+            else {
+                if (group == null) {
+                    group = new HashMap<String, DocumentCookie>();
+                    stripe.groups.put(domain, group);
+                }
+                group.put(cookie.getKey(), cookie);
+            }
+            this.generation.incrementAndGet();
+            // Queued while the stripe is locked, so the database gets changes to a cookie in the
+            // same order as memory does.
+            this.persist(cookie, delete);
+        }
+        finally {
+            stripe.lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    // Removes expired cookies from memory only, and returns how many were removed.
+    private int removeExpired(Stripe stripe, long now) {
+        int removed = 0;
+        stripe.lock.writeLock().lock();
+        try {
+            for (Map<String, DocumentCookie> group : stripe.groups.values()) {
+                final Iterator<DocumentCookie> iterator = group.values().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().isExpired(now)) {
+                        iterator.remove();
+                        removed++;
+                    }
+                }
+            }
+            if (removed > 0) {
+                this.generation.incrementAndGet();
+            }
+        }
+        finally {
+            stripe.lock.writeLock().unlock();
+        }
+        return removed;
+    }
+
+    // Removes cookies from memory only, and returns how many were removed.
+    private int removeAll(boolean sessionOnly) {
+        int removed = 0;
+        for (Stripe stripe : this.stripes) {
+            stripe.lock.writeLock().lock();
+            try {
+                for (Map<String, DocumentCookie> group : stripe.groups.values()) {
+                    final Iterator<DocumentCookie> iterator = group.values().iterator();
+                    while (iterator.hasNext()) {
+                        final DocumentCookie cookie = iterator.next();
+                        if (!sessionOnly || cookie.isSession()) {
+                            iterator.remove();
+                            removed++;
+                        }
+                    }
+                }
+                this.generation.incrementAndGet();
+            }
+            finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+        return removed;
+    }
+
+    // CookieStore interface, used by the HTTP clients.
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        final long start = System.nanoTime();
+        Log.d(TAG, "Adding cookie \"" + cookie.toString() + "\".");
+        this.store(DocumentCookie.fromClientCookie(cookie, System.currentTimeMillis()), false);
+        RequestTimeline.addCookieNanos(System.nanoTime() - start);
+    }
+
+    @Override
+    public List<Cookie> getCookies() {
+        // The client matches every cookie against the request itself, so hand it everything. The
+        // list is kept between requests and only rebuilt after a change.
+        this.load();
+        final ClientCookies current = this.clientCookies.get();
+        final long generation = this.generation.get();
+        if (current != null && current.generation == generation) {
+            return current.cookies;
+        }
+
+        final long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        List<Cookie> cookies = new ArrayList<Cookie>();
+        for (Stripe stripe : this.stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                for (Map<String, DocumentCookie> group : stripe.groups.values()) {
+                    for (DocumentCookie cookie : group.values()) {
+                        if (!cookie.isExpired(now)) {
+                            cookies.add(cookie.toClientCookie());
+                        }
+                    }
+                }
+            }
+            finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        cookies = Collections.unmodifiableList(cookies);
+        // Only kept if nothing changed while it was being built. Otherwise it's still right to
+        // return, because it has everything up to the start of this call.
+        if (this.generation.get() == generation) {
+            this.clientCookies.compareAndSet(current, new ClientCookies(generation, cookies));
+        }
+        RequestTimeline.addCookieNanos(System.nanoTime() - start);
+        return cookies;
+    }
+
+    @Override
+    public boolean clearExpired(Date date) {
+        int removed = 0;
+        for (Stripe stripe : this.stripes) {
+            removed += this.removeExpired(stripe, date.getTime());
+        }
+        this.nextExpirySweep.set(0);
+        this.scheduleExpirySweep(date.getTime());
+        return removed > 0;
+    }
+
+    @Override
+    public void clear() {
+        this.removeAll(false);
+        this.databaseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final CookieJar jar = CookieJar.this;
+                synchronized (jar.pendingWrites) {
+                    jar.pendingWrites.clear();
+                    jar.pendingDeletes.clear();
+                }
+                try {
+                    final int deleted = jar.getDatabase().delete(
+                        DocumentCookieStoreSQL.TABLE_NAME, null, null);
+                    Log.d(TAG, "Cleared cookies:" + deleted + ".");
+                } catch (CookieJarException exception) {
+                    Log.d(TAG, "Not clearing cookies before authorisation.");
+                }
+            }
+        });
+    }
+
+    // Database.
+
+    // Runs a database task on the database thread, after any writes already queued, and waits
+    // for its result.
+    private <T> T onDatabaseThread(Callable<T> task) throws CookieJarException {
+        try {
+            return this.databaseExecutor.submit(task).get();
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof CookieJarException) {
+                throw (CookieJarException)exception.getCause();
+            }
+            throw new CookieJarException(exception.getCause().toString());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new CookieJarException(exception.toString());
+        }
+    }
+
+    public boolean deleteDatabase() throws CookieJarException {
+        if (!Lifecycle.getInstance().getAuthorisationState()) {
+            throw new CookieJarException(
+                "Cannot delete database until authorised; file is in the secure store.");
+        }
+
+        this.removeAll(false);
+        return this.onDatabaseThread(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                final CookieJar jar = CookieJar.this;
+                synchronized (jar.pendingWrites) {
+                    jar.pendingWrites.clear();
+                    jar.pendingDeletes.clear();
+                }
+                synchronized (jar) {
+                    jar.loaded = false;
+                    if (jar.database != null) {
+                        jar.database.close();
+                        jar.database = null;
+                    }
+                }
+                return SQLiteDatabase.deleteDatabase(new File(DATABASE_PATH));
+            }
+        });
+    }
+
+    public int deleteSessionCookies() throws CookieJarException {
+        if (!Lifecycle.getInstance().getAuthorisationState()) {
+            throw new CookieJarException("Cannot delete session cookies until" +
+                " authorised; database is in the secure store.");
+        }
+
+        this.removeAll(true);
+        return this.onDatabaseThread(new Callable<Integer>() {
+            @Override
+            public Integer call() throws CookieJarException {
+                // Commit queued writes first, so that none of them brings a session cookie back.
+                CookieJar.this.flush();
+                return CookieJar.this.expireCookies(true);
+            }
+        });
+    }
+
+    private SQLiteDatabase database = null;
+    private synchronized SQLiteDatabase getDatabase() throws CookieJarException {
+        if (this.database == null) {
+            if (!Lifecycle.getInstance().getAuthorisationState()) {
+                throw new CookieJarException("Cannot open database until authorised.");
+            }
+
+            this.database = SQLiteDatabase.openOrCreateDatabase(DATABASE_PATH, null);
+
+            Cursor cursor = this.database.rawQuery(
+                "select sqlite_version() AS sqlite_version", null);
+            if (cursor.moveToNext()) {
+                Log.d(TAG, String.format("Opened database at path:\"%s\" SQLite version:\"%s\"",
+                    DATABASE_PATH, cursor.getString(0)));
+            }
+            else {
+                Log.e(TAG, "Couldn't retrieve SQLite version.");
+            }
+            cursor.close();
+
+            SQLiteStatement countStatement = this.getCookieCounter();
+            if (countStatement == null) {
+                SQLiteStatement createStatement = this.database.compileStatement(
+                    DocumentCookieStoreSQL.TABLE_DDL);
+                createStatement.execute();
+                createStatement.close();
+                countStatement = this.getCookieCounter();
+            }
+
+            if (countStatement == null) {
+                Log.e(TAG, "Couldn't create cookie table.");
+            }
+            else {
+                long cookieCount = countStatement.simpleQueryForLong();
+                Log.d(TAG, "Cookie count:" + cookieCount);
+                countStatement.close();
+
+                try {
+                    this.database.execSQL(DocumentCookieStoreSQL.INDEX_DDL);
+                }
+                catch (SQLException exception) {
+                    Log.e(TAG, "Couldn't create expiry index: " + exception.toString() + ".");
+                }
+            }
+        }
+
+        return this.database;
+    }
+    private SQLiteStatement getCookieCounter() {
+        SQLiteStatement statement;
+        try {
+            statement = this.database.compileStatement(DocumentCookieStoreSQL.SELECT_COUNT);
+        }
+        catch (SQLException exception) {
+            Log.d(TAG, "Couldn't count cookies: " + exception.toString() + ".");
+            statement = null;
+        }
+        return statement;
+    }
+
+    // Reads the whole table into memory, once, on first use after authorisation. Cookies that
+    // were stored in memory before then take precedence over those read from the database.
+    private void load() {
+        if (this.loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (this.loaded || !Lifecycle.getInstance().getAuthorisationState()) {
+                return;
+            }
+
+            final long now = System.currentTimeMillis();
+            final List<DocumentCookie> stored = new ArrayList<DocumentCookie>();
+            try {
+                final Cursor cursor = this.getDatabase().rawQuery(
+                    DocumentCookieStoreSQL.SELECT_LOAD + " WHERE NOT (" +
+                        DocumentCookieStoreSQL.conditionExpiry(new Date(now)) + ")", null);
+                while (cursor.moveToNext()) {
+                    stored.add(DocumentCookie.fromCursor(cursor));
+                }
+                cursor.close();
+            } catch (CookieJarException exception) {
+                Log.d(TAG, "Not loading cookies " + exception.getMessage());
+                return;
+            }
+
+            for (DocumentCookie cookie : stored) {
+                final String domain = DocumentCookie.registrableDomain(cookie.getDomain());
+                final Stripe stripe = this.stripeFor(domain);
+                stripe.lock.writeLock().lock();
+                try {
+                    Map<String, DocumentCookie> group = stripe.groups.get(domain);
+                    if (group == null) {
+                        group = new HashMap<String, DocumentCookie>();
+                        stripe.groups.put(domain, group);
+                    }
+                    if (!group.containsKey(cookie.getKey())) {
+                        group.put(cookie.getKey(), cookie);
+                    }
+                    this.generation.incrementAndGet();
+                }
+                finally {
+                    stripe.lock.writeLock().unlock();
+                }
+            }
+            this.loaded = true;
+            Log.d(TAG, "Loaded cookies:" + stored.size() + ".");
+        }
+    }
+
+    // Queues a database write. Later writes for the same cookie replace earlier ones.
+    private void persist(DocumentCookie cookie, boolean delete) {
+        final boolean now;
+        synchronized (this.pendingWrites) {
+            this.pendingWrites.remove(cookie.getKey());
+            this.pendingWrites.put(cookie.getKey(), cookie);
+            if (delete) {
+                this.pendingDeletes.put(cookie.getKey(), true);
+            }
+            else {
+                this.pendingDeletes.remove(cookie.getKey());
+            }
+            now = this.pendingWrites.size() >= FLUSH_BATCH;
+            if (this.flushScheduled && !now) {
+                return;
+            }
+            this.flushScheduled = true;
+        }
+
+        this.databaseExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                CookieJar.this.flush();
+            }
+        }, now ? 0 : FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Commits the queued writes in one transaction. Only called on the database thread.
+    private void flush() {
+        final LinkedHashMap<String, DocumentCookie> writes;
+        final Map<String, Boolean> deletes;
+        synchronized (this.pendingWrites) {
+            this.flushScheduled = false;
+            if (this.pendingWrites.isEmpty()) {
+                return;
+            }
+            writes = new LinkedHashMap<String, DocumentCookie>(this.pendingWrites);
+            deletes = new HashMap<String, Boolean>(this.pendingDeletes);
+            this.pendingWrites.clear();
+            this.pendingDeletes.clear();
+        }
+
+        final SQLiteDatabase database;
+        try {
+            database = this.getDatabase();
+        } catch (CookieJarException exception) {
+            // Put them back, behind anything newer, for the next flush after authorisation.
+            Log.d(TAG, "Not writing " + writes.size() + " cookies before authorisation.");
+            synchronized (this.pendingWrites) {
+                for (Map.Entry<String, DocumentCookie> entry : writes.entrySet()) {
+                    if (!this.pendingWrites.containsKey(entry.getKey())) {
+                        this.pendingWrites.put(entry.getKey(), entry.getValue());
+                        if (deletes.containsKey(entry.getKey())) {
+                            this.pendingDeletes.put(entry.getKey(), true);
+                        }
+                    }
+                }
+            }
+            return;
+        }
+
+        int inserted = 0;
+        int deleted = 0;
+        database.beginTransaction();
+        try {
+            for (DocumentCookie cookie : writes.values()) {
+                if (deletes.containsKey(cookie.getKey())) {
+                    deleted += database.delete(
+                        DocumentCookieStoreSQL.TABLE_NAME, DocumentCookieStoreSQL.CONDITION_KEY,
+                        new String[]{cookie.hostKey, cookie.name, cookie.path});
+                }
+                else if (database.insertWithOnConflict(
+                    DocumentCookieStoreSQL.TABLE_NAME, null, cookie.toContentValues(),
+                    SQLiteDatabase.CONFLICT_REPLACE) != -1)
+                {
+                    inserted++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } catch (SQLException exception) {
+            Log.e(TAG, "Couldn't write cookies " + exception.toString() + ".");
+        }
+        finally {
+            database.endTransaction();
+        }
+        Log.d(TAG, "Cookie batch of " + writes.size() + " inserted:" + inserted +
+            " deleted:" + deleted + ".");
+    }
+
+    private void scheduleExpirySweep(long now) {
+        final long due = this.nextExpirySweep.get();
+        if (now < due || !this.nextExpirySweep.compareAndSet(due, now + EXPIRY_SWEEP_MILLIS)) {
+            return;
+        }
+        this.databaseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CookieJar.this.expireCookies(false);
+                } catch (CookieJarException exception) {
+                    Log.d(TAG, "Not expiring cookies before authorisation.");
+                }
+            }
+        });
+    }
+
+    // Only called on the database thread.
+    private int expireCookies(Boolean session) throws CookieJarException {
+        // Deletes all expired cookies, not just those for the current host and path.
+
+        // Same clause can be used for the dump and the delete.
+        String expiryClause = session ?
+            DocumentCookieStoreSQL.CONDITION_SESSION_COOKIE :
+            DocumentCookieStoreSQL.conditionExpiry(new Date());
+
+        if (this.dumpExpiringCookies) {
+            this.dumpCookies(null);
+            this.dumpCookies(expiryClause);
+        }
+
+        int deleted = this.getDatabase().delete(
+            DocumentCookieStoreSQL.TABLE_NAME, expiryClause, null);
+        Log.d(TAG, "Expired cookies deleted:" + deleted + ".");
+
+        if (deleted > 0 && this.dumpExpiringCookies) {
+            this.dumpCookies(null);
+        }
+        return deleted;
+    }
+
+    private int dumpCookies(String whereClause) {
+        String description = (whereClause == null ? "All" : "\"" + whereClause + "\"");
+        int count = 0;
+        Cursor cursor;
+        try {
+            cursor = this.getDatabase().rawQuery(DocumentCookieStoreSQL.SELECT_DUMP +
+                (whereClause == null ? "" : " WHERE " + whereClause), null);
+        } catch (CookieJarException exception) {
+            description = description + " before authorisation";
+            cursor = null;
+        }
+        if (cursor == null) {
+            Log.d(TAG, description + " cursor null.");
+        }
+        else {
+            if (cursor.moveToFirst()) {
+                Log.d(TAG, description + " cursor has " + cursor.getCount() + ":");
+                while (true) {
+                    count++;
+                    Boolean expires = (cursor.getInt(2) == 1);
+                    Date expiryTime = (expires ? new Date(cursor.getLong(3)) : null);
+                    Log.d(TAG, String.format(
+                        "[%d] host:\"%s\" path:\"%s\" name:\"%s\" value:\"%s\" expires:%s.",
+                        count, cursor.getString(4), cursor.getString(5),
+                        cursor.getString(0), cursor.getString(1),
+                        expires ? dumpFormat.get().format(expiryTime) : "Session"));
+                    if (!cursor.moveToNext()) {
+                        break;
+                    }
+                }
+            } else {
+                Log.d(TAG, description + " cursor empty.");
+            }
+            cursor.close();
+        }
+        return count;
+    }
+}
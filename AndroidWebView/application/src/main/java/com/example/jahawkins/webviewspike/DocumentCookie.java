@@ -0,0 +1,230 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.good.gd.apache.http.cookie.ClientCookie;
+import com.good.gd.apache.http.cookie.Cookie;
+import com.good.gd.apache.http.impl.cookie.BasicClientCookie;
+
+import java.util.Date;
+import java.util.Locale;
+
+/** One cookie, as held in memory by the CookieJar.
+ *
+ * Instances are immutable, so they can be shared between threads without locking. The fields
+ * follow the columns of the cookie table in DocumentCookieStoreSQL. As in that schema, a host key
+ * with a leading dot is a domain cookie, and one without is a host-only cookie.
+ */
+class DocumentCookie {
+    final String hostKey;
+    final String name;
+    final String value;
+    final String path;
+    // Zero for a session cookie.
+    final long expiresUtc;
+    final boolean isSecure;
+    final boolean isHttpOnly;
+    final long creationUtc;
+
+    DocumentCookie(String hostKey, String name, String value, String path, long expiresUtc,
+                   boolean isSecure, boolean isHttpOnly, long creationUtc)
+    {
+        this.hostKey = hostKey.toLowerCase(Locale.US);
+        this.name = name;
+        this.value = value;
+        this.path = path;
+        this.expiresUtc = expiresUtc;
+        this.isSecure = isSecure;
+        this.isHttpOnly = isHttpOnly;
+        this.creationUtc = creationUtc;
+    }
+
+    static DocumentCookie fromCursor(Cursor cursor) {
+        return new DocumentCookie(
+            cursor.getString(cursor.getColumnIndex("host_key")),
+            cursor.getString(cursor.getColumnIndex("name")),
+            cursor.getString(cursor.getColumnIndex("value")),
+            cursor.getString(cursor.getColumnIndex("path")),
+            cursor.getInt(cursor.getColumnIndex("has_expires")) == 1 ?
+                cursor.getLong(cursor.getColumnIndex("expires_utc")) : 0,
+            cursor.getInt(cursor.getColumnIndex("is_secure")) == 1,
+            cursor.getInt(cursor.getColumnIndex("is_httponly")) == 1,
+            cursor.getLong(cursor.getColumnIndex("creation_utc")));
+    }
+
+    /** Convert a cookie parsed from a Set-Cookie header by the HTTP client. */
+    static DocumentCookie fromClientCookie(Cookie cookie, long now) {
+        String domain = cookie.getDomain() == null ? "" : cookie.getDomain();
+        if (domain.startsWith(".")) {
+            domain = domain.substring(1);
+        }
+        // The cookie spec fills in the domain and path from the request if the attributes weren't
+        // in the header, so only the presence of the attribute marks a domain cookie.
+        boolean isDomain = false;
+        boolean isHttpOnly = false;
+        if (cookie instanceof ClientCookie) {
+            final ClientCookie clientCookie = (ClientCookie) cookie;
+            isDomain = clientCookie.containsAttribute(ClientCookie.DOMAIN_ATTR);
+            isHttpOnly = clientCookie.containsAttribute("httponly");
+        }
+        long expiresUtc = 0;
+        if (cookie.getExpiryDate() != null) {
+            // Zero is reserved for session cookies.
+            expiresUtc = Math.max(1, cookie.getExpiryDate().getTime());
+        }
+        return new DocumentCookie(
+            isDomain ? "." + domain : domain,
+            cookie.getName(),
+            cookie.getValue() == null ? "" : cookie.getValue(),
+            cookie.getPath() == null ? "/" : cookie.getPath(),
+            expiresUtc, cookie.isSecure(), isHttpOnly, now);
+    }
+
+    /** Convert for the HTTP client, which does its own matching against each request. */
+    Cookie toClientCookie() {
+        final BasicClientCookie cookie = new BasicClientCookie(this.name, this.value);
+        cookie.setDomain(this.getDomain());
+        cookie.setPath(this.path);
+        cookie.setSecure(this.isSecure);
+        cookie.setVersion(0);
+        cookie.setAttribute(ClientCookie.PATH_ATTR, this.path);
+        if (!this.isHostOnly()) {
+            cookie.setAttribute(ClientCookie.DOMAIN_ATTR, this.hostKey);
+        }
+        if (!this.isSession()) {
+            cookie.setExpiryDate(new Date(this.expiresUtc));
+        }
+        return cookie;
+    }
+
+    DocumentCookie withCreation(long creationUtc) {
+        return new DocumentCookie(this.hostKey, this.name, this.value, this.path, this.expiresUtc,
+            this.isSecure, this.isHttpOnly, creationUtc);
+    }
+
+    ContentValues toContentValues() {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put("creation_utc", this.creationUtc);
+        contentValues.put("host_key", this.hostKey);
+        contentValues.put("name", this.name);
+        contentValues.put("value", this.value);
+        contentValues.put("path", this.path);
+        contentValues.put("expires_utc", this.expiresUtc);
+        contentValues.put("is_secure", this.isSecure ? 1 : 0);
+        contentValues.put("is_httponly", this.isHttpOnly ? 1 : 0);
+        contentValues.put("last_access_utc", this.creationUtc);
+        contentValues.put("has_expires", this.isSession() ? 0 : 1);
+        contentValues.put("is_persistent", this.isSession() ? 0 : 1);
+        contentValues.put("priority", 1);
+        contentValues.put("encrypted_value", "");
+        contentValues.put("firstpartyonly", 0);
+        return contentValues;
+    }
+
+    boolean isSession() {
+        return this.expiresUtc == 0;
+    }
+
+    boolean isExpired(long now) {
+        return !this.isSession() && this.expiresUtc < now;
+    }
+
+    boolean isHostOnly() {
+        return !this.hostKey.startsWith(".");
+    }
+
+    String getDomain() {
+        return this.isHostOnly() ? this.hostKey : this.hostKey.substring(1);
+    }
+
+    // Identity in the store is the same as the UNIQUE constraint in the table.
+    String getKey() {
+        return this.hostKey + "\n" + this.path + "\n" + this.name;
+    }
+
+    /** Domain matching from RFC 6265 section 5.1.3, host-only cookies excepted. */
+    boolean matchesHost(String host) {
+        host = host.toLowerCase(Locale.US);
+        final String domain = this.getDomain();
+        if (host.equals(domain)) {
+            return true;
+        }
+        return !this.isHostOnly() &&
+            host.endsWith(domain) &&
+            host.charAt(host.length() - domain.length() - 1) == '.' &&
+            !isAddress(host);
+    }
+
+    /** Path matching from RFC 6265 section 5.1.4. */
+    boolean matchesPath(String requestPath) {
+        if (requestPath == null || requestPath.isEmpty()) {
+            requestPath = "/";
+        }
+        if (requestPath.equals(this.path)) {
+            return true;
+        }
+        return requestPath.startsWith(this.path) &&
+            (this.path.endsWith("/") || requestPath.charAt(this.path.length()) == '/');
+    }
+
+    /** Default path from RFC 6265 section 5.1.4, for a cookie without a Path attribute. */
+    static String defaultPath(String requestPath) {
+        if (requestPath == null || !requestPath.startsWith("/")) {
+            return "/";
+        }
+        final int lastSlash = requestPath.lastIndexOf('/');
+        return lastSlash <= 0 ? "/" : requestPath.substring(0, lastSlash);
+    }
+
+    static boolean isAddress(String host) {
+        return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+    }
+
+    /** Approximate registrable domain, used only to group cookies for lookup.
+     *
+     * There isn't a public suffix list on the device, so this is the last two labels of the host.
+     * A host and every domain that it can match share their last two labels, so the grouping is
+     * always consistent. Suffixes like co.uk put more than one site in a group, which only costs
+     * some extra matchesHost() checks.
+     */
+    static String registrableDomain(String host) {
+        host = host.toLowerCase(Locale.US);
+        if (host.startsWith(".")) {
+            host = host.substring(1);
+        }
+        if (isAddress(host)) {
+            return host;
+        }
+        final int lastDot = host.lastIndexOf('.');
+        if (lastDot <= 0) {
+            return host;
+        }
+        final int previousDot = host.lastIndexOf('.', lastDot - 1);
+        return previousDot < 0 ? host : host.substring(previousDot + 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+            "host:\"%s\" path:\"%s\" name:\"%s\" value:\"%s\" expires:%d secure:%b httpOnly:%b",
+            this.hostKey, this.path, this.name, this.value, this.expiresUtc, this.isSecure,
+            this.isHttpOnly);
+    }
+}
@@ -49,11 +49,11 @@
 package com.example.jahawkins.webviewspike;
 
 import java.util.Date;
+import java.util.Locale;
 
 public class DocumentCookieStoreSQL {
     final static String TABLE_NAME = "cookies";
-    final static String COLUMNS_NAME_VALUE[] = {"name", "value"};
-    final static String CONDITION_HOST_PATH = "host_key = ? AND path = ?";
+    final static String CONDITION_KEY = "host_key = ? AND name = ? AND path = ?";
     final static String CONDITION_SESSION_COOKIE = "has_expires == 0";
 
     final static String TABLE_DDL =
@@ -73,12 +73,23 @@ public class DocumentCookieStoreSQL {
         "firstpartyonly INTEGER NOT NULL DEFAULT 0," +
         "UNIQUE (host_key, name, path))";
 
+    // Makes the expiry sweep a range scan instead of a table scan. Run on every open so that
+    // databases created before the index was added get it too.
+    final static String INDEX_DDL =
+        "CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_expires_utc ON " + TABLE_NAME +
+        " (expires_utc)";
+
     final static String SELECT_DUMP =
         "SELECT name, value, has_expires, expires_utc, host_key, path FROM " + TABLE_NAME;
 
+    final static String SELECT_LOAD =
+        "SELECT host_key, name, value, path, has_expires, expires_utc, is_secure, is_httponly," +
+        " creation_utc FROM " + TABLE_NAME;
+
     final static String SELECT_COUNT = "SELECT count(0) FROM " + TABLE_NAME;
 
     static String conditionExpiry(Date expiryDate) {
-        return String.format("has_expires = 1 AND expires_utc < %d", expiryDate.getTime());
+        return String.format(Locale.US,
+            "expires_utc < %d AND has_expires = 1", expiryDate.getTime());
     }
 }
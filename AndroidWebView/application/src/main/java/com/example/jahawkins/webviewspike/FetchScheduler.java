@@ -0,0 +1,298 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.WebResourceRequest;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+/** Runs intercepted requests on a bounded pool of worker threads, most important first.
+ *
+ * The WebView calls shouldInterceptRequest on its own threads and each call waits until the
+ * response headers are back. Without the scheduler, every waiting request goes straight to the
+ * network, so a page with a lot of images can fill the HttpClientPool limit for its host and
+ * leave the style sheets and scripts that hold up rendering waiting for a connection.
+ *
+ * With the scheduler, each request is queued with a priority taken from what it's for: the main
+ * frame first, then style sheets and scripts, then everything else, then images. Workers take the
+ * highest priority request whose host has a client to spare in the HttpClientPool, so a busy host
+ * doesn't hold up requests to other hosts. A worker is done with a request as soon as the headers
+ * have arrived. The body then streams straight from the connection to the WebView on the WebView's
+ * own read thread, and the host's client isn't free again until the body is closed.
+ */
+public class FetchScheduler {
+    private static final String TAG = FetchScheduler.class.getSimpleName();
+
+    static final int PRIORITY_DOCUMENT = 0;
+    static final int PRIORITY_BLOCKING = 1;
+    static final int PRIORITY_NORMAL = 2;
+    static final int PRIORITY_IMAGE = 3;
+    private static final String[] PRIORITY_NAMES = {"document", "blocking", "normal", "image"};
+
+    private static final String[] BLOCKING_EXTENSIONS = {".css", ".js", ".mjs"};
+    private static final String[] IMAGE_EXTENSIONS = {
+        ".png", ".jpg", ".jpeg", ".gif", ".webp", ".svg", ".ico", ".bmp"
+    };
+
+    private static final FetchScheduler sharedInstance = new FetchScheduler();
+    public static FetchScheduler getInstance() {
+        return sharedInstance;
+    }
+    private FetchScheduler() {
+        super();
+    }
+
+    private static class Task {
+        final String key;
+        final int priority;
+        final long sequence;
+        final Callable<ResponseBuilder> callable;
+        final long queued = SystemClock.elapsedRealtime();
+        // These are guarded by the task object.
+        ResponseBuilder result = null;
+        boolean done = false;
+        // Set if the caller stopped waiting.
+        boolean abandoned = false;
+
+        Task(String key, int priority, long sequence, Callable<ResponseBuilder> callable) {
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.callable = callable;
+        }
+
+        // Returns false if nobody is waiting for the result.
+        synchronized boolean complete(ResponseBuilder result) {
+            if (this.abandoned) {
+                return false;
+            }
+            this.result = result;
+            this.done = true;
+            this.notifyAll();
+            return true;
+        }
+    }
+
+    // Highest priority first, then first come first served.
+    private static final Comparator<Task> ORDER = new Comparator<Task>() {
+        @Override
+        public int compare(Task task1, Task task2) {
+            if (task1.priority != task2.priority) {
+                return task1.priority < task2.priority ? -1 : 1;
+            }
+            return task1.sequence < task2.sequence ? -1 :
+                (task1.sequence == task2.sequence ? 0 : 1);
+        }
+    };
+
+    // All these are guarded by the scheduler object itself.
+    private final TreeSet<Task> queue = new TreeSet<Task>(ORDER);
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private long sequence = 0;
+
+    // Statistics, for logging only.
+    private final long[] completed = new long[PRIORITY_NAMES.length];
+    private final long[] totalWaitMillis = new long[PRIORITY_NAMES.length];
+    private long maxWaitMillis = 0;
+
+    /** Work out the priority of a request from what the WebView is going to do with it. */
+    static int priorityFor(WebResourceRequest request) {
+        if (request.isForMainFrame()) {
+            return PRIORITY_DOCUMENT;
+        }
+        String accept = null;
+        final Map<String, String> headers = request.getRequestHeaders();
+        for (String header : headers.keySet()) {
+            if (header.equalsIgnoreCase("Accept")) {
+                accept = headers.get(header).toLowerCase(Locale.US);
+            }
+        }
+        if (accept != null) {
+            // The WebView sends a specific Accept header for style sheets, sub-frames and images.
+            if (accept.startsWith("text/css") || accept.startsWith("text/html")) {
+                return PRIORITY_BLOCKING;
+            }
+            if (accept.startsWith("image/")) {
+                return PRIORITY_IMAGE;
+            }
+        }
+        final String path = request.getUrl().getPath();
+        if (path != null) {
+            final String lowerPath = path.toLowerCase(Locale.US);
+            for (String extension : BLOCKING_EXTENSIONS) {
+                if (lowerPath.endsWith(extension)) {
+                    return PRIORITY_BLOCKING;
+                }
+            }
+            for (String extension : IMAGE_EXTENSIONS) {
+                if (lowerPath.endsWith(extension)) {
+                    return PRIORITY_IMAGE;
+                }
+            }
+        }
+        return PRIORITY_NORMAL;
+    }
+
+    /** Run a fetch on a worker, and wait for it to return its response headers.
+     *
+     * @param request request from the WebView, used for the priority and host.
+     * @param callable fetch to run. It returns when the headers have arrived, leaving the body to
+     *                 be read from the stream in the ResponseBuilder.
+     * @return the result of the callable, or an error response if it couldn't be run.
+     */
+    public ResponseBuilder fetch(WebResourceRequest request, Callable<ResponseBuilder> callable) {
+        final Uri uri = request.getUrl();
+        final Task task;
+        synchronized (this) {
+            this.startWorkers();
+            task = new Task(HttpClientPool.keyFor(uri), priorityFor(request), this.sequence++,
+                callable);
+            this.queue.add(task);
+            this.notifyAll();
+        }
+
+        synchronized (task) {
+            while (!task.done) {
+                try {
+                    task.wait();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (task.done) {
+                return task.result;
+            }
+            // Interrupted. If the task has already started, the worker closes its response.
+            task.abandoned = true;
+        }
+        synchronized (this) {
+            this.queue.remove(task);
+        }
+        return new ResponseBuilder(404, "Interrupted waiting for \"" + uri + "\".");
+    }
+
+    // Must be called with the lock held.
+    private void startWorkers() {
+        if (this.workers.isEmpty()) {
+            // Requests that were held back for a busy host can go when one of its clients is free.
+            HttpClientPool.getInstance().setCapacityListener(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (FetchScheduler.this) {
+                        FetchScheduler.this.notifyAll();
+                    }
+                }
+            });
+        }
+        final int workerCount = Math.max(1, Settings.getInstance().getSnapshot().fetchWorkers);
+        while (this.workers.size() < workerCount) {
+            final Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    FetchScheduler.this.work();
+                }
+            }, TAG + "-" + this.workers.size());
+            worker.setDaemon(true);
+            this.workers.add(worker);
+            worker.start();
+        }
+    }
+
+    // Must be called with the lock held, on the worker thread that will run the task, because the
+    // pool reservation belongs to the thread.
+    private Task next() {
+        final HttpClientPool pool = HttpClientPool.getInstance();
+        for (Iterator<Task> iterator = this.queue.iterator(); iterator.hasNext();) {
+            final Task task = iterator.next();
+            if (pool.reserve(task.key)) {
+                iterator.remove();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private void work() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                while ((task = this.next()) == null) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException exception) {
+                        Log.d(TAG, "Worker interrupted " + Thread.currentThread().getName());
+                        return;
+                    }
+                }
+            }
+
+            final long waitMillis = SystemClock.elapsedRealtime() - task.queued;
+            ResponseBuilder result;
+            try {
+                result = task.callable.call();
+            } catch (Exception exception) {
+                Log.e(TAG, "Fetch failed \"" + task.key + "\" " + exception.toString());
+                result = new ResponseBuilder(404, exception);
+            }
+            finally {
+                // For example if the response came from the cache.
+                HttpClientPool.getInstance().endReservation();
+            }
+            if (!task.complete(result) && result.stream != null) {
+                result.stream.close();
+            }
+
+            synchronized (this) {
+                this.completed[task.priority]++;
+                this.totalWaitMillis[task.priority] += waitMillis;
+                this.maxWaitMillis = Math.max(this.maxWaitMillis, waitMillis);
+                this.notifyAll();
+            }
+            if (waitMillis > 1000) {
+                Log.d(TAG, "Long queue wait " + waitMillis + "ms \"" + task.key + "\" " +
+                    PRIORITY_NAMES[task.priority] + ".");
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder("FetchScheduler workers:")
+            .append(this.workers.size()).append(" queued:").append(this.queue.size())
+            .append(" maxWait:").append(this.maxWaitMillis).append("ms");
+        for (int priority = 0; priority < PRIORITY_NAMES.length; priority++) {
+            builder.append(" ").append(PRIORITY_NAMES[priority]).append(":")
+                .append(this.completed[priority]);
+            if (this.completed[priority] > 0) {
+                builder.append("/").append(
+                    this.totalWaitMillis[priority] / this.completed[priority]).append("ms");
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,257 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import com.good.gd.apache.http.Header;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/** Response header fields in the order received, with case-insensitive lookup by name.
+ *
+ * Unlike a map from name to value, a field that appears more than once, like Set-Cookie, Link or
+ * Vary, keeps every value. The WebView only takes a map, so toWebResponseHeaders() combines
+ * repeated fields into one comma-separated value, as allowed by RFC 7230 section 3.2.2. That
+ * section makes an exception of Set-Cookie, which can't be combined. It's left out of the map
+ * instead, because the CookieJar has already stored the cookies.
+ */
+class HeaderMap implements Iterable<HeaderMap.Field> {
+    static class Field {
+        final String name;
+        final String value;
+
+        Field(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    private final ArrayList<Field> fields = new ArrayList<Field>();
+
+    HeaderMap() {
+        super();
+    }
+
+    HeaderMap(HeaderMap headerMap) {
+        super();
+        if (headerMap != null) {
+            this.fields.addAll(headerMap.fields);
+        }
+    }
+
+    static HeaderMap fromHeaders(Header[] headers) {
+        final HeaderMap headerMap = new HeaderMap();
+        for (Header header : headers) {
+            headerMap.add(header.getName(), header.getValue());
+        }
+        return headerMap;
+    }
+
+    /** Read from the output of toJSON(), or from the name to value object that ResponseCache
+     * index files used to have. */
+    static HeaderMap fromJSON(Object json) throws JSONException {
+        final HeaderMap headerMap = new HeaderMap();
+        if (json instanceof JSONArray) {
+            final JSONArray array = (JSONArray) json;
+            for (int index = 0; index < array.length(); index++) {
+                final JSONArray field = array.getJSONArray(index);
+                headerMap.add(field.getString(0), field.getString(1));
+            }
+        }
+        else if (json instanceof JSONObject) {
+            final JSONObject object = (JSONObject) json;
+            final Iterator<String> keyIterator = object.keys();
+            while (keyIterator.hasNext()) {
+                final String key = keyIterator.next();
+                headerMap.add(key, object.getString(key));
+            }
+        }
+        return headerMap;
+    }
+
+    JSONArray toJSON() {
+        final JSONArray array = new JSONArray();
+        for (Field field : this.fields) {
+            array.put(new JSONArray().put(field.name).put(field.value));
+        }
+        return array;
+    }
+
+    void add(String name, String value) {
+        this.fields.add(new Field(name, value == null ? "" : value));
+    }
+
+    /** Replace every field with the name by one field, in the position of the first. */
+    void set(String name, String value) {
+        final Field replacement = new Field(name, value == null ? "" : value);
+        boolean replaced = false;
+        int index = 0;
+        while (index < this.fields.size()) {
+            if (!this.fields.get(index).name.equalsIgnoreCase(name)) {
+                index++;
+            }
+            else if (replaced) {
+                this.fields.remove(index);
+            }
+            else {
+                this.fields.set(index++, replacement);
+                replaced = true;
+            }
+        }
+        if (!replaced) {
+            this.fields.add(replacement);
+        }
+    }
+
+    /** Value of the first field with the name, or null if there isn't one. */
+    String get(String name) {
+        for (Field field : this.fields) {
+            if (field.name.equalsIgnoreCase(name)) {
+                return field.value;
+            }
+        }
+        return null;
+    }
+
+    List<String> getAll(String name) {
+        final List<String> values = new ArrayList<String>();
+        for (Field field : this.fields) {
+            if (field.name.equalsIgnoreCase(name)) {
+                values.add(field.value);
+            }
+        }
+        return values;
+    }
+
+    /** Values of every field with the name combined with commas, or null if there isn't one.
+     * Use this for list-valued fields like Cache-Control and Vary. */
+    String getCombined(String name) {
+        final List<String> values = this.getAll(name);
+        return values.isEmpty() ? null : join(values);
+    }
+
+    boolean contains(String name) {
+        return this.get(name) != null;
+    }
+
+    /** Remove every field with the name.
+     *
+     * @return the value of the first field removed, or null if there wasn't one.
+     */
+    String remove(String name) {
+        String removed = null;
+        for (Iterator<Field> iterator = this.fields.iterator(); iterator.hasNext();) {
+            final Field field = iterator.next();
+            if (field.name.equalsIgnoreCase(name)) {
+                if (removed == null) {
+                    removed = field.value;
+                }
+                iterator.remove();
+            }
+        }
+        return removed;
+    }
+
+    /** Replace the fields that are in another map, leaving the rest. Names in the except list
+     * are neither replaced nor added. */
+    void replaceFrom(HeaderMap headerMap, String... except) {
+        final Set<String> names = new HashSet<String>();
+        for (Field field : headerMap.fields) {
+            names.add(field.name.toLowerCase(Locale.US));
+        }
+        for (String name : except) {
+            names.remove(name.toLowerCase(Locale.US));
+        }
+        for (String name : names) {
+            this.remove(name);
+        }
+        for (Field field : headerMap.fields) {
+            if (names.contains(field.name.toLowerCase(Locale.US))) {
+                this.fields.add(field);
+            }
+        }
+    }
+
+    int size() {
+        return this.fields.size();
+    }
+
+    @Override
+    public Iterator<Field> iterator() {
+        return Collections.unmodifiableList(this.fields).iterator();
+    }
+
+    /** Single-valued map for WebResourceResponse, in which repeated fields are combined. The
+     * name used is the one from the first field. Set-Cookie fields are left out. */
+    Map<String, String> toWebResponseHeaders() {
+        final Map<String, List<String>> grouped = new LinkedHashMap<String, List<String>>();
+        final Map<String, String> names = new LinkedHashMap<String, String>();
+        for (Field field : this.fields) {
+            final String key = field.name.toLowerCase(Locale.US);
+            if (key.equals("set-cookie")) {
+                continue;
+            }
+            List<String> values = grouped.get(key);
+            if (values == null) {
+                values = new ArrayList<String>();
+                grouped.put(key, values);
+                names.put(key, field.name);
+            }
+            values.add(field.value);
+        }
+        final Map<String, String> webHeaders = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, List<String>> entry : grouped.entrySet()) {
+            webHeaders.put(names.get(entry.getKey()), join(entry.getValue()));
+        }
+        return webHeaders;
+    }
+
+    private static String join(List<String> values) {
+        final StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        if (this.fields.isEmpty()) {
+            return " None";
+        }
+        final StringBuilder builder = new StringBuilder();
+        for (Field field : this.fields) {
+            builder.append("\n'").append(field.name).append("': \"").append(field.value)
+                .append("\"");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,407 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.good.gd.net.GDNetUtility;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Asynchronous cache of GDNetUtility nslookup results, and connection pre-warming.
+ *
+ * Lookups never block the caller. The result is cached for the time-to-live in the response, or
+ * for a default time if there isn't one. Failures are cached too, for a shorter time, so that a
+ * host that doesn't resolve isn't asked about again on every request.
+ *
+ * Hosts can also be found ahead of use, by scanning the tags of main-frame HTML as it streams
+ * through the HtmlInjectionStream, and from preload and preconnect hints in Link response
+ * headers. Each new host found is looked up and, once it resolves, a connection to it is opened
+ * in the HttpClientPool. The first request to the host then doesn't wait for the TCP and TLS
+ * handshakes.
+ */
+public class HostResolver {
+    private static final String TAG = HostResolver.class.getSimpleName();
+    private String logStr(String value) {
+        if (value == null) {
+            return " null";
+        }
+        return " \"" + value + "\"";
+    }
+
+    private static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+    private static final long MIN_TTL_MILLIS = 10 * 1000;
+    private static final long MAX_TTL_MILLIS = 60 * 60 * 1000;
+    private static final int MAX_RECORDS = 512;
+    // Limit on the hosts prefetched from one page, so that a page full of links doesn't open a
+    // connection to every one of them.
+    private static final int MAX_PREFETCH_PER_PAGE = 8;
+    private static final int PREWARM_THREADS = 2;
+
+    // Attributes that hold URLs that the page is likely to load or navigate to.
+    private static final Pattern URL_ATTRIBUTE = Pattern.compile(
+        "\\s(?:href|src|action|poster|data)\\s*=\\s*[\"']?\\s*((?:https?:)?//[^/\"'\\s>?#]+)",
+        Pattern.CASE_INSENSITIVE);
+    // Absolute target and parameters of one value in a Link header, RFC 8288.
+    private static final Pattern LINK_VALUE = Pattern.compile(
+        "<\\s*((?:https?:)?//[^/>?#\\s]+)[^>]*>([^,]*)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LINK_REL = Pattern.compile(
+        "\\brel\\s*=\\s*\"?([^\";]*)", Pattern.CASE_INSENSITIVE);
+    private static final Set<String> URL_TAGS = new HashSet<String>(
+        Arrays.asList("a", "link", "script", "img", "iframe", "form", "source",
+            "video", "audio", "embed", "object"));
+
+    private static final HostResolver sharedInstance = new HostResolver();
+    public static HostResolver getInstance() {
+        return sharedInstance;
+    }
+    private HostResolver() {
+        super();
+    }
+
+    static class Record {
+        final List<String> addresses;
+        final long expires;
+
+        Record(List<String> addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+
+        boolean isNegative() {
+            return this.addresses.isEmpty();
+        }
+
+        boolean isFresh() {
+            return SystemClock.elapsedRealtime() < this.expires;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Record> records =
+        new ConcurrentHashMap<String, Record>();
+    // Hosts with a lookup in progress, and the origin to pre-warm when it finishes, if any.
+    private final ConcurrentHashMap<String, String> pending =
+        new ConcurrentHashMap<String, String>();
+    private final ExecutorService prewarmExecutor = Executors.newFixedThreadPool(PREWARM_THREADS);
+
+    private final AtomicLong lookups = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong negativeHits = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private final AtomicLong prewarms = new AtomicLong(0);
+
+    /** Get the cached record for a host, or null if there isn't a fresh one. */
+    Record get(String host) {
+        final Record record = this.records.get(host.toLowerCase(Locale.US));
+        if (record == null || !record.isFresh()) {
+            return null;
+        }
+        if (record.isNegative()) {
+            this.negativeHits.incrementAndGet();
+        }
+        else {
+            this.hits.incrementAndGet();
+        }
+        return record;
+    }
+
+    /** Describe the cached state of a host, for the request timeline, without counting a hit. */
+    String describe(String host) {
+        if (host == null) {
+            return "none";
+        }
+        final Record record = this.records.get(host.toLowerCase(Locale.US));
+        if (record == null || !record.isFresh()) {
+            return "miss";
+        }
+        return record.isNegative() ? "negative" : "hit";
+    }
+
+    /**
+     * Look up a host in the background, unless there's already a fresh record or a lookup in
+     * progress.
+     *
+     * @param prewarm origin, as scheme://authority, to open a connection to once the host has
+     * resolved, or null to only look it up.
+     */
+    public void resolve(String host, final Uri prewarm) {
+        if (host == null || host.isEmpty()) {
+            return;
+        }
+        final String key = host.toLowerCase(Locale.US);
+        final Record record = this.get(key);
+        if (record != null) {
+            if (prewarm != null && !record.isNegative()) {
+                this.prewarm(prewarm);
+            }
+            return;
+        }
+        if (looksLikeAddress(key) || key.startsWith("[")) {
+            // An address already, which is bracketed in a URI if it's IPv6. Nothing to look up.
+            if (prewarm != null) {
+                this.prewarm(prewarm);
+            }
+            return;
+        }
+        if (this.pending.putIfAbsent(key, prewarm == null ? "" : prewarm.toString()) != null) {
+            return;
+        }
+
+        this.lookups.incrementAndGet();
+        Log.d(TAG, "Sending nslookup for" + logStr(key) + " ...");
+        GDNetUtility.getInstance().nslookup(
+            key,
+            GDNetUtility.GDNslookupType.GDNslookupARECORD,
+            new GDNetUtility.GDNslookupCallback() {
+                @Override
+                public void onNslookupResponseSuccess(JSONObject jsonObject) {
+                    HostResolver.this.onResult(key, jsonObject);
+                }
+
+                @Override
+                public void onNslookupResponseFailure(
+                    GDNetUtility.GDNetUtilityErr gdNetUtilityErr
+                ) {
+                    Log.d(TAG, "... nslookup failure" + logStr(key) + " " +
+                        gdNetUtilityErr.toString());
+                    HostResolver.this.onFailure(key);
+                }
+            }
+        );
+    }
+
+    private void onResult(String host, JSONObject jsonObject) {
+        final List<String> addresses = new ArrayList<String>();
+        final long[] ttl = {-1};
+        collect(jsonObject, addresses, ttl);
+        if (addresses.isEmpty()) {
+            Log.d(TAG, "... nslookup no addresses" + logStr(host) + " " + jsonObject.toString());
+            this.onFailure(host);
+            return;
+        }
+
+        final long ttlMillis = ttl[0] < 0 ? DEFAULT_TTL_MILLIS :
+            Math.max(MIN_TTL_MILLIS, Math.min(MAX_TTL_MILLIS, ttl[0] * 1000));
+        this.store(host, new Record(Collections.unmodifiableList(addresses),
+            SystemClock.elapsedRealtime() + ttlMillis));
+        Log.d(TAG, "... nslookup" + logStr(host) + " addresses:" + addresses +
+            " ttl:" + (ttlMillis / 1000) + "s.");
+
+        final String prewarm = this.pending.remove(host);
+        if (prewarm != null && !prewarm.isEmpty()) {
+            this.prewarm(Uri.parse(prewarm));
+        }
+    }
+
+    private void onFailure(String host) {
+        this.failures.incrementAndGet();
+        final long negativeMillis =
+            1000L * Settings.getInstance().getSnapshot().negativeLookupSeconds;
+        this.store(host, new Record(
+            Collections.<String>emptyList(), SystemClock.elapsedRealtime() + negativeMillis));
+        this.pending.remove(host);
+    }
+
+    private void store(String host, Record record) {
+        if (this.records.size() >= MAX_RECORDS) {
+            // Make room by dropping stale records, or anything if there aren't any.
+            final Iterator<Record> iterator = this.records.values().iterator();
+            boolean removed = false;
+            while (iterator.hasNext()) {
+                if (!iterator.next().isFresh()) {
+                    iterator.remove();
+                    removed = true;
+                }
+            }
+            if (!removed) {
+                this.records.clear();
+            }
+        }
+        this.records.put(host, record);
+    }
+
+    // The layout of the nslookup result isn't fixed, so look anywhere in it for address and TTL
+    // values.
+    private static void collect(Object value, List<String> addresses, long[] ttl) {
+        if (value instanceof JSONObject) {
+            final JSONObject object = (JSONObject) value;
+            final Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                final Object child = object.opt(key);
+                final String lowerKey = key.toLowerCase(Locale.US);
+                if (lowerKey.contains("ttl")) {
+                    final long childTTL = object.optLong(key, -1);
+                    if (childTTL >= 0 && (ttl[0] < 0 || childTTL < ttl[0])) {
+                        ttl[0] = childTTL;
+                    }
+                }
+                else if ((lowerKey.contains("address") || lowerKey.equals("ip")) &&
+                    child instanceof String)
+                {
+                    addresses.add((String) child);
+                }
+                else {
+                    collect(child, addresses, ttl);
+                }
+            }
+        }
+        else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            for (int index = 0; index < array.length(); index++) {
+                final Object child = array.opt(index);
+                if (child instanceof String && looksLikeAddress((String) child)) {
+                    addresses.add((String) child);
+                }
+                else {
+                    collect(child, addresses, ttl);
+                }
+            }
+        }
+    }
+
+    private static boolean looksLikeAddress(String value) {
+        return value.matches("[0-9.]+") || value.matches("[0-9a-fA-F:]+:[0-9a-fA-F:.]*");
+    }
+
+    private void prewarm(final Uri origin) {
+        if (!Settings.getInstance().getSnapshot().preconnect) {
+            return;
+        }
+        this.prewarmExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (HttpClientPool.getInstance().prewarm(origin)) {
+                    HostResolver.this.prewarms.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /** Receives the tags of one page, and prefetches the hosts that they refer to. */
+    class PageScanner implements HtmlInjectionStream.TagObserver {
+        private final Uri page;
+        private final Set<String> seen = new HashSet<String>();
+
+        PageScanner(Uri page) {
+            this.page = page;
+            // The page's own host is already connected.
+            if (page.getHost() != null) {
+                this.seen.add(page.getHost().toLowerCase(Locale.US));
+            }
+        }
+
+        @Override
+        public void onTag(String name, String tagString) {
+            if (this.seen.size() > MAX_PREFETCH_PER_PAGE || !URL_TAGS.contains(name)) {
+                return;
+            }
+            final Matcher matcher = URL_ATTRIBUTE.matcher(tagString);
+            while (matcher.find() && this.seen.size() <= MAX_PREFETCH_PER_PAGE) {
+                String origin = matcher.group(1);
+                if (origin.startsWith("//")) {
+                    // Protocol-relative, so the same scheme as the page.
+                    origin = this.page.getScheme() + ":" + origin;
+                }
+                final Uri uri = Uri.parse(origin);
+                final String host = uri.getHost();
+                if (host == null || !this.seen.add(host.toLowerCase(Locale.US))) {
+                    continue;
+                }
+                Log.d(TAG, "Prefetching" + logStr(origin) + " found in" +
+                    logStr(this.page.toString()) + ".");
+                HostResolver.this.resolve(host, uri);
+            }
+        }
+    }
+
+    /** Prefetch the hosts in the preload, preconnect and dns-prefetch hints of Link headers.
+     *
+     * @param base URI of the response that had the headers.
+     * @param values every Link header value, because a response can have more than one.
+     * @param settings the settings for the request that got the response.
+     */
+    void prefetchLinks(Uri base, List<String> values, Settings.Snapshot settings) {
+        if (values.isEmpty() || !settings.prefetchHosts) {
+            return;
+        }
+        final Set<String> seen = new HashSet<String>();
+        if (base.getHost() != null) {
+            seen.add(base.getHost().toLowerCase(Locale.US));
+        }
+        for (String value : values) {
+            final Matcher matcher = LINK_VALUE.matcher(value);
+            while (matcher.find() && seen.size() <= MAX_PREFETCH_PER_PAGE) {
+                final Matcher relMatcher = LINK_REL.matcher(matcher.group(2));
+                if (!relMatcher.find()) {
+                    continue;
+                }
+                final String rel = relMatcher.group(1).toLowerCase(Locale.US);
+                final boolean resolveOnly = rel.contains("dns-prefetch");
+                if (!resolveOnly && !rel.contains("preload") && !rel.contains("preconnect") &&
+                    !rel.contains("prefetch"))
+                {
+                    continue;
+                }
+                String origin = matcher.group(1);
+                if (origin.startsWith("//")) {
+                    origin = base.getScheme() + ":" + origin;
+                }
+                final Uri uri = Uri.parse(origin);
+                final String host = uri.getHost();
+                if (host == null || !seen.add(host.toLowerCase(Locale.US))) {
+                    continue;
+                }
+                Log.d(TAG, "Prefetching" + logStr(origin) + " from Link" + logStr(rel) + ".");
+                this.resolve(host, resolveOnly ? null : uri);
+            }
+        }
+    }
+
+    /** Get a scanner for the tags of a page, or null if prefetching is switched off. */
+    HtmlInjectionStream.TagObserver scannerFor(Uri page, Settings.Snapshot settings) {
+        if (!settings.prefetchHosts) {
+            return null;
+        }
+        return new PageScanner(page);
+    }
+
+    @Override
+    public String toString() {
+        return "HostResolver records:" + this.records.size() + " lookups:" + this.lookups.get() +
+            " hits:" + this.hits.get() + " negativeHits:" + this.negativeHits.get() +
+            " failures:" + this.failures.get() + " prewarms:" + this.prewarms.get();
+    }
+}
@@ -0,0 +1,557 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/** Single-pass HTML rewriter that injects scripts into a response body as it streams.
+ *
+ * The body is tokenized only as far as needed to find tags. Text, comments and the contents of
+ * script, style, textarea, title and xmp elements are passed through untouched. The following
+ * changes are made.
+ *
+ * -   The injected scripts are inserted straight after the opening head tag. If the document
+ *     doesn't have one, they go in front of the first tag that must be in the head or body, or at
+ *     the end if there isn't one of those either.
+ * -   A meta http-equiv Content-Security-Policy tag gets the once values of the injected scripts
+ *     added to its script directives, the same as the header gets in ResponseBuilder.
+ * -   If every policy in effect lets inline scripts run without a nonce, and the once values were
+ *     added to at least one of them, inline scripts that don't have a nonce get the once value of
+ *     the first injected script. Otherwise they'd be blocked, because a policy that has a nonce
+ *     source ignores unsafe-inline. If any policy blocks inline scripts, they're left alone.
+ *
+ * Nothing is buffered beyond the tag being examined, so the length of the output isn't known in
+ * advance and the response has to be sent without a Content-Length.
+ */
+class HtmlInjectionStream extends InputStream {
+    private static final String TAG = HtmlInjectionStream.class.getSimpleName();
+
+    // Byte-preserving charset for looking at tags as strings.
+    private final static Charset latin1Charset = Charset.forName("ISO-8859-1");
+
+    // Longest tag that will be examined. Anything longer is passed through unchanged.
+    private static final int MAX_TAG = 16 * 1024;
+
+    // Tags that can't come before the head element, so injection goes in front of them.
+    private static final String[] INJECT_BEFORE = {
+        "body", "script", "link", "style", "title", "base", "noscript", "template"
+    };
+
+    // Elements whose content is text up to the end tag. Content of textarea and title can have
+    // character references, but that doesn't matter when passing it through.
+    private static final String[] RAW_TEXT_ELEMENTS = {"style", "textarea", "title", "xmp"};
+
+    private enum State {TEXT, TAG, COMMENT, RAW_TEXT, RAW_END}
+
+    /** Gets every opening tag as it passes through, for example to find hosts to prefetch. */
+    interface TagObserver {
+        void onTag(String name, String tagString);
+    }
+
+    private final InputStream body;
+    private final JavaScriptAssetStream[] injectStreams;
+    private final String nonce;
+    private final String nonceSources;
+    private final boolean stripPolicy;
+    private boolean inlineScriptsAllowed;
+    private boolean policyNonced;
+    private TagObserver tagObserver = null;
+    // Time spent here, not counting reads from the body, goes on the request's timeline.
+    private final RequestTimeline timeline = RequestTimeline.current();
+
+    private State state = State.TEXT;
+    private char quote = 0;
+    private String rawTextName = null;
+    private boolean injected = false;
+    private boolean injecting = false;
+    private int injectIndex = 0;
+    private byte[] afterInjection = null;
+    private boolean bodyEOF = false;
+
+    // Tag, comment terminator or raw text end tag being examined.
+    private byte[] tag = new byte[256];
+    private int tagLength = 0;
+
+    // Input from the body that hasn't been processed yet.
+    private byte[] input = null;
+    private int inputPosition = 0;
+    private int inputLimit = 0;
+
+    // Output that hasn't been read yet.
+    private byte[] output = new byte[BufferPool.BUFFER_SIZE];
+    private int outputPosition = 0;
+    private int outputLimit = 0;
+
+    /**
+     * @param body response body from the server.
+     * @param injectStreams scripts to inject, which must already have once values.
+     * @param inlineScriptsAllowed true if every Content-Security-Policy header lets inline
+     *                             scripts run without a nonce.
+     * @param policyNonced true if the once values were added to any of the headers.
+     * @param settings the settings for the request that got the response.
+     */
+    HtmlInjectionStream(InputStream body,
+                        JavaScriptAssetStream[] injectStreams,
+                        boolean inlineScriptsAllowed,
+                        boolean policyNonced,
+                        Settings.Snapshot settings)
+    {
+        this.body = body;
+        this.stripPolicy = settings.stripContentSecurityPolicy;
+        this.injectStreams = injectStreams;
+        this.inlineScriptsAllowed = inlineScriptsAllowed;
+        this.policyNonced = policyNonced;
+        final StringBuilder sources = new StringBuilder();
+        String firstNonce = null;
+        for (JavaScriptAssetStream injectStream : injectStreams) {
+            final String onceValue = injectStream.getOnceValue();
+            if (onceValue == null) {
+                continue;
+            }
+            if (firstNonce == null) {
+                firstNonce = onceValue;
+            }
+            sources.append(String.format(" 'nonce-%s'", onceValue));
+        }
+        this.nonce = firstNonce;
+        this.nonceSources = sources.toString();
+    }
+
+    /** Set an observer of opening tags, or null for none. */
+    HtmlInjectionStream setTagObserver(TagObserver tagObserver) {
+        this.tagObserver = tagObserver;
+        return this;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        final int read = this.read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (true) {
+            if (this.outputPosition < this.outputLimit) {
+                final int count = Math.min(length, this.outputLimit - this.outputPosition);
+                System.arraycopy(this.output, this.outputPosition, bytes, offset, count);
+                this.outputPosition += count;
+                return count;
+            }
+            this.outputPosition = 0;
+            this.outputLimit = 0;
+
+            if (this.injecting) {
+                // Injected scripts are read straight into the caller's array.
+                final long start = System.nanoTime();
+                final int read = this.readInjection(bytes, offset, length);
+                this.addInjectionTime(start);
+                if (read != -1) {
+                    return read;
+                }
+                continue;
+            }
+
+            if (this.inputPosition < this.inputLimit) {
+                final long start = System.nanoTime();
+                this.process();
+                this.addInjectionTime(start);
+                continue;
+            }
+
+            if (this.bodyEOF) {
+                return -1;
+            }
+            if (this.input == null) {
+                this.input = BufferPool.acquire();
+            }
+            final int read = this.body.read(this.input, 0, this.input.length);
+            if (read == -1) {
+                this.finish();
+            }
+            else {
+                this.inputPosition = 0;
+                this.inputLimit = read;
+            }
+        }
+    }
+
+    private void addInjectionTime(long start) {
+        if (this.timeline != null) {
+            this.timeline.addInjectionNanos(System.nanoTime() - start);
+        }
+    }
+
+    private int readInjection(byte[] bytes, int offset, int length) throws IOException {
+        while (this.injectIndex < this.injectStreams.length) {
+            final int read = this.injectStreams[this.injectIndex].read(bytes, offset, length);
+            if (read != -1) {
+                return read;
+            }
+            this.injectStreams[this.injectIndex].close();
+            this.injectIndex++;
+        }
+        this.injecting = false;
+        if (this.afterInjection != null) {
+            this.emit(this.afterInjection, 0, this.afterInjection.length);
+            this.afterInjection = null;
+        }
+        return -1;
+    }
+
+    private void startInjection(byte[] after) {
+        Log.d(TAG, "Injecting " + this.injectStreams.length + " scripts" +
+            (after == null ? " after head." : " before tag."));
+        this.injected = true;
+        this.injecting = true;
+        this.afterInjection = after;
+    }
+
+    private void finish() {
+        this.bodyEOF = true;
+        // Whatever was being examined goes out as it is. In a comment, it's already gone out.
+        if (this.state == State.TAG || this.state == State.RAW_END) {
+            this.emit(this.tag, 0, this.tagLength);
+        }
+        this.tagLength = 0;
+        if (!this.injected) {
+            Log.d(TAG, "No place to inject found, injecting at end.");
+            this.startInjection(null);
+        }
+    }
+
+    private void emit(byte[] bytes, int offset, int length) {
+        if (this.outputLimit + length > this.output.length) {
+            final byte[] grown =
+                new byte[Math.max(this.output.length * 2, this.outputLimit + length)];
+            System.arraycopy(this.output, 0, grown, 0, this.outputLimit);
+            this.output = grown;
+        }
+        System.arraycopy(bytes, offset, this.output, this.outputLimit, length);
+        this.outputLimit += length;
+    }
+
+    private void emit(byte value) {
+        if (this.outputLimit >= this.output.length) {
+            final byte[] grown = new byte[this.output.length * 2];
+            System.arraycopy(this.output, 0, grown, 0, this.outputLimit);
+            this.output = grown;
+        }
+        this.output[this.outputLimit++] = value;
+    }
+
+    private void addToTag(byte value) {
+        if (this.tagLength >= this.tag.length) {
+            final byte[] grown = new byte[this.tag.length * 2];
+            System.arraycopy(this.tag, 0, grown, 0, this.tagLength);
+            this.tag = grown;
+        }
+        this.tag[this.tagLength++] = value;
+    }
+
+    private void abandonTag(State nextState) {
+        this.emit(this.tag, 0, this.tagLength);
+        this.tagLength = 0;
+        this.state = nextState;
+    }
+
+    // Runs until the input is used up or an injection starts.
+    private void process() {
+        while (this.inputPosition < this.inputLimit && !this.injecting) {
+            if (this.state == State.TEXT || this.state == State.RAW_TEXT) {
+                // Pass a run of text through in one go.
+                int end = this.inputPosition;
+                while (end < this.inputLimit && this.input[end] != '<') {
+                    end++;
+                }
+                this.emit(this.input, this.inputPosition, end - this.inputPosition);
+                this.inputPosition = end;
+                if (end < this.inputLimit) {
+                    this.state = (this.state == State.TEXT ? State.TAG : State.RAW_END);
+                    this.quote = 0;
+                    this.addToTag(this.input[this.inputPosition++]);
+                }
+                continue;
+            }
+
+            final byte value = this.input[this.inputPosition++];
+            switch (this.state) {
+                case COMMENT:
+                    this.emit(value);
+                    this.addToTag(value);
+                    if (this.tagLength >= 3 &&
+                        this.tag[this.tagLength - 1] == '>' &&
+                        this.tag[this.tagLength - 2] == '-' &&
+                        this.tag[this.tagLength - 3] == '-')
+                    {
+                        this.tagLength = 0;
+                        this.state = State.TEXT;
+                    }
+                    else if (this.tagLength >= 3) {
+                        // Only the last three bytes matter.
+                        this.tag[0] = this.tag[1];
+                        this.tag[1] = this.tag[2];
+                        this.tagLength = 2;
+                    }
+                    break;
+
+                case RAW_END:
+                    this.processRawEnd(value);
+                    break;
+
+                case TAG:
+                    this.processTagByte(value);
+                    break;
+
+                default:
+                    throw new AssertionError("Unexpected state " + this.state);
+            }
+        }
+    }
+
+    private void processRawEnd(byte value) {
+        // Looking for "</" followed by the name of the raw text element, in any case.
+        final String endTag = "</" + this.rawTextName;
+        this.addToTag(value);
+        final int index = this.tagLength - 1;
+        if (index < endTag.length()) {
+            if (Character.toLowerCase((char) (value & 0xFF)) != endTag.charAt(index)) {
+                // Not the end tag. The byte that didn't match could start another one.
+                this.tagLength--;
+                this.abandonTag(State.RAW_TEXT);
+                this.inputPosition--;
+            }
+            return;
+        }
+        // Whole name matched, it's the end tag if the next character ends the name.
+        if (value == '>' || value == '/' || Character.isWhitespace((char) (value & 0xFF))) {
+            this.rawTextName = null;
+            this.state = State.TAG;
+            if (value == '>') {
+                this.endTag();
+            }
+        }
+        else {
+            this.abandonTag(State.RAW_TEXT);
+        }
+    }
+
+    private void processTagByte(byte value) {
+        this.addToTag(value);
+        if (this.tagLength == 2) {
+            // Next character after < decides whether this is markup at all.
+            final char second = (char) (value & 0xFF);
+            if (!(Character.isLetter(second) || second == '/' || second == '!' || second == '?'))
+            {
+                // Something like "a < b" in text.
+                this.tagLength--;
+                this.abandonTag(State.TEXT);
+                this.inputPosition--;
+                return;
+            }
+        }
+        if (this.tagLength == 4 &&
+            this.tag[1] == '!' && this.tag[2] == '-' && this.tag[3] == '-')
+        {
+            this.emit(this.tag, 0, this.tagLength);
+            this.tagLength = 0;
+            this.state = State.COMMENT;
+            return;
+        }
+        if (this.quote != 0) {
+            if (value == this.quote) {
+                this.quote = 0;
+            }
+        }
+        else if (value == '"' || value == '\'') {
+            this.quote = (char) value;
+        }
+        else if (value == '>') {
+            this.endTag();
+            return;
+        }
+        if (this.tagLength > MAX_TAG) {
+            this.abandonTag(State.TEXT);
+        }
+    }
+
+    private static String tagName(String tagString) {
+        int start = 1;
+        if (tagString.length() > start && tagString.charAt(start) == '/') {
+            start++;
+        }
+        int end = start;
+        while (end < tagString.length()) {
+            final char character = tagString.charAt(end);
+            if (Character.isWhitespace(character) || character == '/' || character == '>') {
+                break;
+            }
+            end++;
+        }
+        return tagString.substring(start, end).toLowerCase(Locale.US);
+    }
+
+    private static boolean hasAttribute(String lowerTag, String attribute) {
+        int index = lowerTag.indexOf(attribute);
+        while (index > 0) {
+            final char before = lowerTag.charAt(index - 1);
+            final int after = index + attribute.length();
+            final char next = after < lowerTag.length() ? lowerTag.charAt(after) : '>';
+            if (Character.isWhitespace(before) &&
+                (next == '=' || next == '>' || next == '/' || Character.isWhitespace(next)))
+            {
+                return true;
+            }
+            index = lowerTag.indexOf(attribute, index + 1);
+        }
+        return false;
+    }
+
+    private void endTag() {
+        String tagString = new String(this.tag, 0, this.tagLength, latin1Charset);
+        this.tagLength = 0;
+        this.state = State.TEXT;
+
+        final String lowerTag = tagString.toLowerCase(Locale.US);
+        final String name = tagName(tagString);
+        final boolean closing = tagString.startsWith("</");
+        if (!closing && this.tagObserver != null) {
+            this.tagObserver.onTag(name, tagString);
+        }
+
+        if (!closing && name.equals("meta") &&
+            lowerTag.contains("http-equiv") && lowerTag.contains("content-security-policy"))
+        {
+            if (this.stripPolicy) {
+                Log.d(TAG, "Removing meta tag " + tagString);
+                return;
+            }
+            tagString = this.rewritePolicy(tagString, lowerTag);
+        }
+        else if (!closing && name.equals("script")) {
+            if (this.inlineScriptsAllowed && this.policyNonced && this.nonce != null &&
+                !hasAttribute(lowerTag, "src") && !hasAttribute(lowerTag, "nonce"))
+            {
+                tagString = tagString.substring(0, 7) + " nonce=\"" + this.nonce + "\"" +
+                    tagString.substring(7);
+            }
+            if (!tagString.endsWith("/>")) {
+                this.state = State.RAW_TEXT;
+                this.rawTextName = name;
+            }
+        }
+        else if (!closing && isRawTextElement(name)) {
+            this.state = State.RAW_TEXT;
+            this.rawTextName = name;
+        }
+
+        final byte[] tagBytes = tagString.getBytes(latin1Charset);
+        if (!this.injected && !closing) {
+            if (name.equals("head")) {
+                this.emit(tagBytes, 0, tagBytes.length);
+                this.startInjection(null);
+                return;
+            }
+            for (String before : INJECT_BEFORE) {
+                if (name.equals(before)) {
+                    this.startInjection(tagBytes);
+                    return;
+                }
+            }
+        }
+        this.emit(tagBytes, 0, tagBytes.length);
+    }
+
+    private static boolean isRawTextElement(String name) {
+        for (String element : RAW_TEXT_ELEMENTS) {
+            if (name.equals(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String rewritePolicy(String tagString, String lowerTag) {
+        // The policy is the value of the content attribute.
+        int start = lowerTag.indexOf("content");
+        while (start > 0 && !Character.isWhitespace(lowerTag.charAt(start - 1))) {
+            start = lowerTag.indexOf("content", start + 1);
+        }
+        int end = -1;
+        if (start > 0) {
+            start = lowerTag.indexOf('=', start);
+            while (start > 0 && start + 1 < lowerTag.length() &&
+                Character.isWhitespace(lowerTag.charAt(start + 1)))
+            {
+                start++;
+            }
+            final char quote = start > 0 && start + 1 < lowerTag.length() ?
+                lowerTag.charAt(start + 1) : 0;
+            if (quote == '"' || quote == '\'') {
+                start += 2;
+                end = lowerTag.indexOf(quote, start);
+            }
+        }
+        if (end < 0) {
+            // Can't tell what the policy is, so it could block inline scripts.
+            Log.d(TAG, "Meta CSP without quoted content " + tagString);
+            this.inlineScriptsAllowed = false;
+            return tagString;
+        }
+
+        final String policy = tagString.substring(start, end);
+        this.inlineScriptsAllowed =
+            this.inlineScriptsAllowed && ContentSecurityPolicy.allowsInlineScripts(policy);
+        final String modified = this.nonceSources.length() <= 0 ? null :
+            ContentSecurityPolicy.addScriptSources(policy, this.nonceSources);
+        if (modified == null) {
+            Log.d(TAG, "Meta CSP without directive or once values " + tagString);
+            return tagString;
+        }
+        this.policyNonced = true;
+        final String rewritten =
+            tagString.substring(0, start) + modified + tagString.substring(end);
+        Log.d(TAG, "Modified meta CSP\n" + tagString + "\n" + rewritten);
+        return rewritten;
+    }
+
+    @Override
+    public int available() {
+        return this.outputLimit - this.outputPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (; this.injectIndex < this.injectStreams.length; this.injectIndex++) {
+            this.injectStreams[this.injectIndex].close();
+        }
+        if (this.input != null) {
+            BufferPool.release(this.input);
+            this.input = null;
+        }
+        this.body.close();
+    }
+}
@@ -0,0 +1,431 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.good.gd.apache.http.HttpException;
+import com.good.gd.apache.http.HttpHost;
+import com.good.gd.apache.http.HttpRequest;
+import com.good.gd.apache.http.HttpRequestInterceptor;
+import com.good.gd.apache.http.conn.ClientConnectionManager;
+import com.good.gd.apache.http.conn.ManagedClientConnection;
+import com.good.gd.apache.http.conn.routing.HttpRoute;
+import com.good.gd.apache.http.params.HttpConnectionParams;
+import com.good.gd.apache.http.params.HttpParams;
+import com.good.gd.apache.http.protocol.BasicHttpContext;
+import com.good.gd.apache.http.protocol.HttpContext;
+import com.good.gd.net.GDHttpClient;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Shared pool of GDHttpClient instances, keyed by scheme and authority.
+ *
+ * Each GDHttpClient has its own connection manager, which holds at most one connection. The
+ * connection is kept alive between requests unless the server closes it, so a client that goes
+ * back into the pool after its response has been read takes its open connection with it. The
+ * next request to the same host then skips the TCP and TLS handshakes through the secure tunnel.
+ *
+ * The number of clients per host is limited by the poolMaxPerHost setting. Clients that have been
+ * idle for longer than the poolIdleSeconds setting are shut down the next time the pool is used.
+ *
+ * The FetchScheduler reserves a client for a host before it hands a request to a worker, and the
+ * worker's first acquire() for that host takes the reservation without waiting. A lease lasts
+ * until the response body is closed, so counting reservations with leases means the scheduler
+ * doesn't start requests to a host that has no client to give them. Other callers wait a short
+ * time at most, then go over the limit.
+ */
+public class HttpClientPool {
+    private static final String TAG = HttpClientPool.class.getSimpleName();
+
+    private static final HttpClientPool sharedInstance = new HttpClientPool();
+    public static HttpClientPool getInstance() {
+        return sharedInstance;
+    }
+    private HttpClientPool() {
+        super();
+    }
+
+    private static class Idle {
+        final GDHttpClient httpClient;
+        final long since;
+
+        Idle(GDHttpClient httpClient) {
+            this.httpClient = httpClient;
+            this.since = SystemClock.elapsedRealtime();
+        }
+    }
+
+    // All these are guarded by the pool object itself.
+    private final Map<String, Deque<Idle>> idleClients = new HashMap<String, Deque<Idle>>();
+    private final Map<String, Integer> leaseCounts = new HashMap<String, Integer>();
+    private final Map<GDHttpClient, String> leases = new IdentityHashMap<GDHttpClient, String>();
+    private final Map<String, Integer> reservationCounts = new HashMap<String, Integer>();
+    // Host reserved by the current thread, if any.
+    private final ThreadLocal<String> reservation = new ThreadLocal<String>();
+    // Told whenever a lease or reservation ends, outside the pool lock.
+    private Runnable capacityListener = null;
+
+    // Longest that acquire() waits for a client without a reservation.
+    private static final long MAX_WAIT_MILLIS = 2000;
+
+    // Statistics, for logging only.
+    private int created = 0;
+    private int reused = 0;
+    private int evicted = 0;
+    private int prewarmed = 0;
+
+    static String keyFor(Uri uri) {
+        return uri.getScheme() + "://" + uri.getEncodedAuthority();
+    }
+
+    /** Get a client for a request to the specified URI.
+     *
+     * @param uri the request URI. Only the scheme and authority are used.
+     * @return a client that must later be passed to release() or discard().
+     */
+    public GDHttpClient acquire(Uri uri) {
+        final Settings.Snapshot settings = Settings.getInstance().getSnapshot();
+        final String key = keyFor(uri);
+        final int maxPerHost = Math.max(1, settings.poolMaxPerHost);
+        final long waitMillis = Math.min(MAX_WAIT_MILLIS, 1000L * settings.connectTimeoutSeconds);
+
+        synchronized (this) {
+            this.evictIdle();
+            if (key.equals(this.reservation.get())) {
+                // Capacity was set aside for this request when it was scheduled.
+                this.reservation.remove();
+                this.unreserve(key);
+                return this.leaseIdleOrNew(key);
+            }
+            final long deadline = SystemClock.elapsedRealtime() + waitMillis;
+            while (true) {
+                if (this.getLeaseCount(key) + this.getReservationCount(key) < maxPerHost) {
+                    return this.leaseIdleOrNew(key);
+                }
+                final long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    this.wait(remaining);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        // The host is at its limit and nothing was released in time. Go over the limit rather than
+        // fail the request. The extra client is shut down, not pooled, when it's released.
+        Log.d(TAG, "Pool limit " + maxPerHost + " reached for \"" + key +
+            "\", using an unpooled client.");
+        return newClient();
+    }
+
+    /** Set aside a client for a host, for the next acquire() by the current thread.
+     *
+     * @param key host key from keyFor().
+     * @return false if the host's leases and reservations are already at the limit.
+     */
+    synchronized boolean reserve(String key) {
+        if (this.reservation.get() != null) {
+            throw new IllegalStateException("Thread already has a reservation.");
+        }
+        final int maxPerHost = Math.max(1, Settings.getInstance().getSnapshot().poolMaxPerHost);
+        if (this.getLeaseCount(key) + this.getReservationCount(key) >= maxPerHost) {
+            return false;
+        }
+        this.reservationCounts.put(key, this.getReservationCount(key) + 1);
+        this.reservation.set(key);
+        return true;
+    }
+
+    /** Give up the current thread's reservation, if acquire() didn't take it. */
+    void endReservation() {
+        final String key = this.reservation.get();
+        if (key == null) {
+            return;
+        }
+        synchronized (this) {
+            this.reservation.remove();
+            this.unreserve(key);
+            this.notifyAll();
+        }
+        this.capacityChanged();
+    }
+
+    synchronized void setCapacityListener(Runnable capacityListener) {
+        this.capacityListener = capacityListener;
+    }
+
+    private void capacityChanged() {
+        final Runnable listener;
+        synchronized (this) {
+            listener = this.capacityListener;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /** Open a connection to an origin ahead of any request to it, and pool it as idle.
+     *
+     * Nothing is done if the origin already has a client, idle or leased, since that one will
+     * have a connection or be making one. This blocks for the connection time, so call it from a
+     * background thread.
+     *
+     * @param origin URI of the origin. Only the scheme and authority are used.
+     * @return true if a connection was opened.
+     */
+    public boolean prewarm(Uri origin) {
+        final Settings.Snapshot settings = Settings.getInstance().getSnapshot();
+        final String scheme = origin.getScheme();
+        if (origin.getHost() == null ||
+            !("http".equals(scheme) || "https".equals(scheme)) ||
+            !settings.keepAlive)
+        {
+            return false;
+        }
+        final String key = keyFor(origin);
+        final GDHttpClient httpClient;
+        synchronized (this) {
+            this.evictIdle();
+            final Deque<Idle> idle = this.idleClients.get(key);
+            if ((idle != null && !idle.isEmpty()) ||
+                this.getLeaseCount(key) + this.getReservationCount(key) > 0)
+            {
+                return false;
+            }
+            this.created++;
+            httpClient = this.lease(key, newClient());
+        }
+
+        final long started = SystemClock.elapsedRealtime();
+        try {
+            final HttpParams params = httpClient.getParams().copy();
+            HttpConnectionParams.setConnectionTimeout(
+                params, 1000 * settings.connectTimeoutSeconds);
+            // The same route as the request director plans for a request to the origin, or else
+            // the connection manager closes the prewarmed connection instead of reusing it. The
+            // target port stays -1 if the URI has none, as it does in the director.
+            final HttpHost target = new HttpHost(origin.getHost(), origin.getPort(), scheme);
+            final HttpRoute route = new HttpRoute(target, null, "https".equals(scheme));
+            final ClientConnectionManager manager = httpClient.getConnectionManager();
+            final ManagedClientConnection connection =
+                manager.requestConnection(route, null).getConnection(0, TimeUnit.MILLISECONDS);
+            try {
+                if (!connection.isOpen()) {
+                    connection.open(route, new BasicHttpContext(), params);
+                }
+                connection.markReusable();
+            }
+            finally {
+                manager.releaseConnection(
+                    connection, settings.poolIdleSeconds, TimeUnit.SECONDS);
+            }
+        } catch (Exception exception) {
+            Log.d(TAG, "Couldn't prewarm \"" + key + "\" " + exception.toString() + ".");
+            this.discard(httpClient);
+            return false;
+        }
+        synchronized (this) {
+            this.prewarmed++;
+        }
+        Log.d(TAG, "Prewarmed \"" + key + "\" in " +
+            (SystemClock.elapsedRealtime() - started) + "ms.");
+        this.release(httpClient);
+        return true;
+    }
+
+    // Request interceptors run once the connection is open, so the first one marks the end of the
+    // connect phase on the request's timeline.
+    private static final HttpRequestInterceptor connectedMarker = new HttpRequestInterceptor() {
+        @Override
+        public void process(HttpRequest request, HttpContext context)
+            throws HttpException, IOException
+        {
+            RequestTimeline.markCurrent(RequestTimeline.Mark.CONNECTED);
+        }
+    };
+
+    // Every client shares the one cookie jar, which is also what document.cookie reads.
+    private static GDHttpClient newClient() {
+        final GDHttpClient httpClient = new GDHttpClient();
+        httpClient.setCookieStore(CookieJar.getInstance());
+        httpClient.addRequestInterceptor(connectedMarker, 0);
+        return httpClient;
+    }
+
+    // Must be called with the pool lock held.
+    private GDHttpClient leaseIdleOrNew(String key) {
+        final Deque<Idle> idle = this.idleClients.get(key);
+        if (idle != null && !idle.isEmpty()) {
+            this.reused++;
+            return this.lease(key, idle.removeFirst().httpClient);
+        }
+        this.created++;
+        return this.lease(key, newClient());
+    }
+
+    private GDHttpClient lease(String key, GDHttpClient httpClient) {
+        this.leases.put(httpClient, key);
+        this.leaseCounts.put(key, this.getLeaseCount(key) + 1);
+        return httpClient;
+    }
+
+    private int getLeaseCount(String key) {
+        final Integer count = this.leaseCounts.get(key);
+        return count == null ? 0 : count;
+    }
+
+    private int getReservationCount(String key) {
+        final Integer count = this.reservationCounts.get(key);
+        return count == null ? 0 : count;
+    }
+
+    private void unreserve(String key) {
+        final int count = this.getReservationCount(key) - 1;
+        if (count <= 0) {
+            this.reservationCounts.remove(key);
+        }
+        else {
+            this.reservationCounts.put(key, count);
+        }
+    }
+
+    private String endLease(GDHttpClient httpClient) {
+        final String key = this.leases.remove(httpClient);
+        if (key != null) {
+            this.leaseCounts.put(key, this.getLeaseCount(key) - 1);
+            this.notifyAll();
+        }
+        return key;
+    }
+
+    /** Return a client to the pool after its response has been read or closed.
+     *
+     * The connection is only reused if the response entity was consumed, which is what closing
+     * the entity content stream does. If keep-alive is switched off in the settings, or the client
+     * wasn't leased from the pool, its connection is shut down instead.
+     */
+    public void release(GDHttpClient httpClient) {
+        if (httpClient == null) {
+            return;
+        }
+        final String key;
+        final boolean pooled;
+        synchronized (this) {
+            key = this.endLease(httpClient);
+            pooled = key != null && Settings.getInstance().getSnapshot().keepAlive;
+            if (pooled) {
+                Deque<Idle> idle = this.idleClients.get(key);
+                if (idle == null) {
+                    idle = new ArrayDeque<Idle>();
+                    this.idleClients.put(key, idle);
+                }
+                // Most recently used goes first, so that the connection that is most likely to
+                // still be open gets picked next.
+                idle.addFirst(new Idle(httpClient));
+            }
+        }
+        if (!pooled) {
+            httpClient.getConnectionManager().shutdown();
+        }
+        if (key != null) {
+            this.capacityChanged();
+        }
+    }
+
+    /** Shut down a client instead of returning it to the pool, for example after an error. */
+    public void discard(GDHttpClient httpClient) {
+        if (httpClient == null) {
+            return;
+        }
+        final String key;
+        synchronized (this) {
+            key = this.endLease(httpClient);
+        }
+        httpClient.getConnectionManager().shutdown();
+        if (key != null) {
+            this.capacityChanged();
+        }
+    }
+
+    // Must be called with the pool lock held.
+    private void evictIdle() {
+        final long idleMillis = 1000L * Settings.getInstance().getSnapshot().poolIdleSeconds;
+        final long now = SystemClock.elapsedRealtime();
+        for (Iterator<Deque<Idle>> hosts = this.idleClients.values().iterator(); hosts.hasNext();) {
+            final Deque<Idle> idle = hosts.next();
+            for (Iterator<Idle> clients = idle.iterator(); clients.hasNext();) {
+                final Idle client = clients.next();
+                if (now - client.since >= idleMillis) {
+                    clients.remove();
+                    client.httpClient.getConnectionManager().shutdown();
+                    this.evicted++;
+                }
+                else {
+                    // Also let the connection manager close a connection that the server has
+                    // already timed out.
+                    client.httpClient.getConnectionManager().closeExpiredConnections();
+                    client.httpClient.getConnectionManager().closeIdleConnections(
+                        idleMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (idle.isEmpty()) {
+                hosts.remove();
+            }
+        }
+    }
+
+    /** Shut down every idle client. Leased clients are shut down when they are released. */
+    public synchronized void shutdown() {
+        for (Deque<Idle> idle : this.idleClients.values()) {
+            for (Idle client : idle) {
+                client.httpClient.getConnectionManager().shutdown();
+            }
+        }
+        this.idleClients.clear();
+        Log.d(TAG, "Shut down " + this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        int idleCount = 0;
+        for (Deque<Idle> idle : this.idleClients.values()) {
+            idleCount += idle.size();
+        }
+        int reservedCount = 0;
+        for (int count : this.reservationCounts.values()) {
+            reservedCount += count;
+        }
+        return "HttpClientPool created:" + this.created + " reused:" + this.reused +
+            " evicted:" + this.evicted + " prewarmed:" + this.prewarmed +
+            " leased:" + this.leases.size() + " reserved:" + reservedCount +
+            " idle:" + idleCount;
+    }
+}
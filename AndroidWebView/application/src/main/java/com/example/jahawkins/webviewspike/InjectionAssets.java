@@ -0,0 +1,79 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Holds the contents of injected script assets in memory.
+ *
+ * The assets are loaded once, by preload() at start-up, and kept as byte arrays that are never
+ * changed, so that any number of JavaScriptAssetStream instances can read them at the same time.
+ * That takes asset I/O off the path of every main-frame response.
+ */
+class InjectionAssets {
+    private static final String TAG = InjectionAssets.class.getSimpleName();
+
+    private static final ConcurrentHashMap<String, byte[]> assets =
+        new ConcurrentHashMap<String, byte[]>();
+
+    private InjectionAssets() {}
+
+    /** Load assets ahead of use. Failures are logged and retried on first use. */
+    static void preload(Context context, String... assetFilenames) {
+        for (String assetFilename : assetFilenames) {
+            try {
+                final byte[] bytes = get(context, assetFilename);
+                Log.d(TAG, "Preloaded \"" + assetFilename + "\" length:" + bytes.length + ".");
+            } catch (IOException exception) {
+                Log.e(TAG, "Couldn't preload \"" + assetFilename + "\" " +
+                    exception.toString() + ".");
+            }
+        }
+    }
+
+    /** Get the contents of an asset, loading it if it wasn't preloaded. */
+    static byte[] get(Context context, String assetFilename) throws IOException {
+        byte[] bytes = assets.get(assetFilename);
+        if (bytes != null) {
+            return bytes;
+        }
+
+        final InputStream inputStream = context.getAssets().open(assetFilename);
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final byte[] buffer = BufferPool.acquire();
+        try {
+            for (int read = inputStream.read(buffer); read >= 0; read = inputStream.read(buffer)) {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+        finally {
+            BufferPool.release(buffer);
+            inputStream.close();
+        }
+        bytes = outputStream.toByteArray();
+
+        // If two threads load at the same time, they both end up using whichever got in first.
+        final byte[] existing = assets.putIfAbsent(assetFilename, bytes);
+        return existing == null ? bytes : existing;
+    }
+}
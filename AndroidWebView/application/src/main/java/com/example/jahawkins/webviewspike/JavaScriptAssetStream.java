@@ -19,10 +19,8 @@ package com.example.jahawkins.webviewspike;
 import android.content.Context;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.security.SecureRandom;
 import java.util.ArrayList;
@@ -49,6 +47,9 @@ public class JavaScriptAssetStream extends InputStream {
 
     private final static Charset utf8Charset = Charset.forName("UTF-8");
     private final static byte DOCTYPE[] = "<!DOCTYPE HTML>\n".getBytes(utf8Charset);
+    private final static byte SCRIPT_OPEN[] = "<script>\n".getBytes(utf8Charset);
+    private final static byte SCRIPT_NONCE_OPEN[] = "<script nonce=\"".getBytes(utf8Charset);
+    private final static byte SCRIPT_NONCE_CLOSE[] = "\">\n".getBytes(utf8Charset);
     private final static byte SCRIPT_CLOSE[] = "</script>\n".getBytes(utf8Charset);
 
     private Context assetContext;
@@ -63,7 +64,6 @@ public class JavaScriptAssetStream extends InputStream {
     }
 
     private Boolean addDOCTYPE = true;
-    private byte scriptTagOpen[] = null;
     private byte onceValue[] = null;
 
     public JavaScriptAssetStream setAddDOCTYPE(Boolean setValue) {
@@ -72,19 +72,16 @@ public class JavaScriptAssetStream extends InputStream {
     }
     public JavaScriptAssetStream setAddScriptNOnce(Boolean setValue) {
         if (setValue) {
-            StringBuilder onceString = new StringBuilder(onceLength);
-
+            // The once value is the only part of the stream that is generated per response. The
+            // rest is shared, immutable bytes.
+            final byte[] onceBytes = new byte[onceLength];
             for (int index = 0; index < onceLength; index++) {
-                onceString.append(onceChars[secureRandom.nextInt(onceChars.length)]);
+                onceBytes[index] = (byte) onceChars[secureRandom.nextInt(onceChars.length)];
             }
-            // Assume the injected asset file is encoded in UTF-8.
-            this.onceValue = onceString.toString().getBytes(utf8Charset);
-            this.scriptTagOpen = ("<script nonce=\"" + this.getOnceValue() + "\">\n")
-                .getBytes(utf8Charset);
+            this.onceValue = onceBytes;
         }
         else {
             this.onceValue = null;
-            this.scriptTagOpen = null;
         }
         return this;
     }
@@ -93,69 +90,121 @@ public class JavaScriptAssetStream extends InputStream {
         if (this.onceValue == null) {
             return null;
         }
-
-        try {
-            return new String(this.onceValue, utf8Charset.name());
-        } catch (UnsupportedEncodingException exception) {
-            Log.d(TAG, "Couldn't generate once value for" +
-                logStr(this.onceValue.toString()) + " " + exception.toString());
-        }
-        return this.onceValue.toString();
+        // The once characters are all ASCII.
+        return new String(this.onceValue, utf8Charset);
     }
 
     public long getLength() throws IOException {
-        InputStream inputStream = this.assetContext.getAssets().open(this.assetFilename);
-        long length =
-            (this.addDOCTYPE ? DOCTYPE.length : 0
-            ) + (this.scriptTagOpen == null ? 0 : this.scriptTagOpen.length + SCRIPT_CLOSE.length);
-
-
-        byte[] bytes = new byte[1024];
-        int read = inputStream.read(bytes);
-        while (read >= 0) {
-            length += read;
-            read = inputStream.read(bytes);
+        if (this.segments == null) {
+            this.open();
+        }
+        long length = 0;
+        for (byte[] segment : this.segments) {
+            length += segment.length;
         }
-        inputStream.close();
         return length;
     }
 
-    private InputStream streams[] = null;
-    private int streamIndex = 0;
+    private byte segments[][] = null;
+    private int segmentIndex = 0;
+    private int segmentOffset = 0;
 
     private void open() throws IOException {
-        int count = 1 + (this.addDOCTYPE ? 1 : 0) + (this.scriptTagOpen == null ? 0 : 2);
-
-        this.streams = new InputStream[count];
-        int index = 0;
+        final byte[] asset = InjectionAssets.get(this.assetContext, this.assetFilename);
+        final ArrayList<byte[]> segments = new ArrayList<byte[]>(6);
         if (this.addDOCTYPE) {
-            this.streams[index++] = new ByteArrayInputStream(DOCTYPE);
+            segments.add(DOCTYPE);
         }
-        if (this.scriptTagOpen != null) {
-            this.streams[index++] = new ByteArrayInputStream(this.scriptTagOpen);
+        if (this.onceValue == null) {
+            segments.add(SCRIPT_OPEN);
         }
-        this.streams[index++] = this.assetContext.getAssets().open(this.assetFilename);
-        if (this.scriptTagOpen != null) {
-            this.streams[index++] = new ByteArrayInputStream(SCRIPT_CLOSE);
+        else {
+            segments.add(SCRIPT_NONCE_OPEN);
+            segments.add(this.onceValue);
+            segments.add(SCRIPT_NONCE_CLOSE);
         }
-        this.streamIndex = 0;
+        segments.add(asset);
+        segments.add(SCRIPT_CLOSE);
+        this.segments = segments.toArray(new byte[segments.size()][]);
+        this.segmentIndex = 0;
+        this.segmentOffset = 0;
     }
 
     @Override
     public int read() throws IOException {
-        if (this.streams == null) {
+        if (this.segments == null) {
+            this.open();
+        }
+        while (this.segmentIndex < this.segments.length) {
+            final byte[] segment = this.segments[this.segmentIndex];
+            if (this.segmentOffset < segment.length) {
+                return segment[this.segmentOffset++] & 0xFF;
+            }
+            this.segmentIndex++;
+            this.segmentOffset = 0;
+        }
+        return -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (this.segments == null) {
             this.open();
         }
-        int readResult = -1;
-        while (this.streamIndex < this.streams.length) {
-            readResult = this.streams[this.streamIndex].read();
-            if (readResult != -1) {
-                break;
+        if (length == 0) {
+            return 0;
+        }
+        while (this.segmentIndex < this.segments.length) {
+            final byte[] segment = this.segments[this.segmentIndex];
+            final int remaining = segment.length - this.segmentOffset;
+            if (remaining > 0) {
+                final int count = Math.min(remaining, length);
+                System.arraycopy(segment, this.segmentOffset, bytes, offset, count);
+                this.segmentOffset += count;
+                return count;
             }
-            this.streams[this.streamIndex].close();
-            this.streamIndex++;
+            this.segmentIndex++;
+            this.segmentOffset = 0;
+        }
+        return -1;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        if (this.segments == null) {
+            this.open();
+        }
+        long skipped = 0;
+        while (skipped < count && this.segmentIndex < this.segments.length) {
+            final int remaining = this.segments[this.segmentIndex].length - this.segmentOffset;
+            final int step = (int) Math.min(remaining, count - skipped);
+            this.segmentOffset += step;
+            skipped += step;
+            if (this.segmentOffset >= this.segments[this.segmentIndex].length) {
+                this.segmentIndex++;
+                this.segmentOffset = 0;
+            }
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        if (this.segments == null) {
+            return 0;
+        }
+        long available = 0;
+        for (int index = this.segmentIndex; index < this.segments.length; index++) {
+            available += this.segments[index].length;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, available - this.segmentOffset);
+    }
+
+    @Override
+    public void close() {
+        if (this.segments != null) {
+            this.segmentIndex = this.segments.length;
         }
-        return readResult;
     }
 
 }
@@ -31,6 +31,7 @@ import com.good.gd.GDAndroid;
 import com.good.gd.GDAppServer;
 import com.good.gd.GDStateAction;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -75,6 +76,7 @@ public class Lifecycle implements ActivityLifecycleCallbacks {
         filter.addAction(GDStateAction.GD_STATE_LOCKED_ACTION);
         filter.addAction(GDStateAction.GD_STATE_WIPED_ACTION);
         filter.addAction(GDStateAction.GD_STATE_UPDATE_POLICY_ACTION);
+        filter.addAction(GDStateAction.GD_STATE_UPDATE_CONFIG_ACTION);
 
         gdAndroid.registerReceiver(new BroadcastReceiver() {
             // Following attributes are used for diagnostic logging only.
@@ -97,6 +99,7 @@ public class Lifecycle implements ActivityLifecycleCallbacks {
                     case GDStateAction.GD_STATE_AUTHORIZED_ACTION:
                         Lifecycle.this.authorisationState = true;
                         Lifecycle.this.setLinks();
+                        ServiceProviders.getInstance().refresh();
                         break;
                     case GDStateAction.GD_STATE_LOCKED_ACTION:
                     case GDStateAction.GD_STATE_WIPED_ACTION:
@@ -108,6 +111,9 @@ public class Lifecycle implements ActivityLifecycleCallbacks {
                         break;
                     case GDStateAction.GD_STATE_UPDATE_CONFIG_ACTION:
                         Lifecycle.this.setLinks();
+                        // The set of AppKinetics providers can change with the configuration.
+                        ServiceProviders.getInstance().refresh();
+                        break;
                     default:
                         // Other actions aren't used by this application.
                         break;
@@ -119,8 +125,7 @@ public class Lifecycle implements ActivityLifecycleCallbacks {
     }
 
     private void setLinks() {
-        Settings settings = Settings.getInstance();
-        settings.resetLinks();
+        final List<String> links = new ArrayList<String>();
 
         Map<String, Object> configMap = GDAndroid.getInstance().getApplicationConfig();
 
@@ -130,11 +135,12 @@ public class Lifecycle implements ActivityLifecycleCallbacks {
             Uri.Builder link = new Uri.Builder();
             link.scheme("http");
             link.encodedAuthority(server.server + ":" + server.port);
-            settings.addLinks(link.build().toString());
+            Settings.addLinks(links, link.build().toString());
         }
 
         String config = (String) configMap.get(GDAndroid.GDAppConfigKeyConfig);
-        settings.addLinks(config);
+        Settings.addLinks(links, config);
+        Settings.getInstance().setLinks(links);
 
         if (this.currentActivity != null) {
             WebView webView = this.currentActivity.findViewById(MainActivity.WEB_VIEW_ID);
@@ -201,6 +207,10 @@ public class Lifecycle implements ActivityLifecycleCallbacks {
     @Override
     public void onActivityStopped(Activity activity) {
         Log.d(TAG, String.format("onActivityStopped(%s).", activity.getClass().getSimpleName()));
+        if (isMainActivity(activity)) {
+            // The process can be stopped at any time from here on.
+            ResponseCache.getInstance().flush();
+        }
     }
 
     @Override
@@ -29,6 +29,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
 
 public class LocalWebResource {
     private static final String TAG = LocalWebResource.class.getSimpleName();
@@ -47,38 +49,69 @@ public class LocalWebResource {
         Log.d(TAG, String.format("uri\"%s\" specific\"%s\" fragment\"%s\" path\"%s\" asset:%s",
             uri.toString(), uri.getSchemeSpecificPart(), uri.getFragment(), uri.getPath(), assetPath));
 
-        final String extension = MimeTypeMap.getFileExtensionFromUrl(uri.toString());
-        // If contentType isn't set, the WebView won't run the JS code. It appears that the
-        // MimeTypeMap doesn't map .js to anything, so there's a special case for that.
-        String contentType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
-        if (contentType == null && extension.equals("js")) {
-            contentType = "application/javascript";
-        }
-
+        final AssetIndex assetIndex = AssetIndex.getInstance();
+        final AssetIndex.Asset asset = assetIndex.get(context, assetPath);
+        String contentType = asset == null ?
+            AssetIndex.contentTypeFor(assetPath) : asset.contentType;
 
         int statusCode = 200;
         String reasonPhrase = "OK";
         InputStream stream = null;
+        Map<String, String> headers = null;
         Exception assetException = null;
 
         try {
-            stream = context.getAssets().open(assetPath);
+            // An asset that hasn't been indexed yet is read straight from the APK.
+            stream = asset == null ?
+                assetIndex.openUnindexed(context, assetPath) : assetIndex.open(context, asset);
         } catch (IOException exception) {
-            Log.d(TAG, "Asset exception " + exception.toString());
             assetException = exception;
         }
 
         if (assetException != null) {
+            Log.d(TAG, "Asset exception " + assetException.toString());
             statusCode = 404;
             reasonPhrase = assetException.toString();
             stream = errorPage(contentType, assetException);
         }
+        else {
+            headers = new HashMap<String, String>();
+            headers.put("Cache-Control", "no-cache");
+            if (asset != null) {
+                headers.put("ETag", asset.etag);
+                headers.put("Content-Length", Long.toString(asset.size));
+                // A WebResourceResponse can't have a 3xx status code, so a matching conditional
+                // request can't get a 304. It gets the full response instead, which costs no
+                // asset read if the asset is held in memory.
+                if (matches(request, asset.etag)) {
+                    assetIndex.countMatched();
+                }
+            }
+        }
 
-        return new WebResourceResponse(contentType, null, statusCode, reasonPhrase, null, stream);
+        return new WebResourceResponse(
+            contentType, null, statusCode, reasonPhrase, headers, stream);
+    }
+
+    private static boolean matches(WebResourceRequest request, String etag) {
+        final Map<String, String> headers = request.getRequestHeaders();
+        for (String header : headers.keySet()) {
+            if (header.equalsIgnoreCase("If-None-Match")) {
+                for (String value : headers.get(header).split(",")) {
+                    final String trimmed = value.trim();
+                    if (trimmed.equals("*") || trimmed.equals(etag) ||
+                        trimmed.equals("W/" + etag))
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
     }
 
     public static InputStream errorPage(String contentType, Exception exception) {
-        if (contentType.equals(htmlContentType)) {
+        if (contentType != null && contentType.equals(htmlContentType)) {
             final String html = String.format(
                 "<!DOCTYPE html>\n<html><body><p>Asset&nbsp;Exception: %s.</p></body></html>",
                 exception.toString());
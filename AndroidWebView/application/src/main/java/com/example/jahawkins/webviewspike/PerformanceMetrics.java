@@ -0,0 +1,382 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.good.gd.file.GDFileSystem;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/** Aggregates RequestTimeline instances into histograms, and exports them.
+ *
+ * There are histograms of total time and time to first byte for each host and for each content
+ * type. These show whether slowness is in one server, in one kind of resource, or everywhere,
+ * which points at the tunnel. The most recent timelines are also kept so that they can be
+ * exported as a HAR file, which can be loaded into the Chrome developer tools and other viewers.
+ * The proxy's own costs, cookie and injection time, and the redirect and queue times go in
+ * underscore fields, which HAR allows for custom data.
+ */
+public class PerformanceMetrics {
+    private static final String TAG = PerformanceMetrics.class.getSimpleName();
+
+    // Upper bounds of the histogram buckets in milliseconds. There's one more bucket for anything
+    // slower than the last bound.
+    private static final long[] BOUNDS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+    private static final int MAX_KEYS = 64;
+    private static final int MAX_PAGES = 32;
+    private static final String FILE_PREFIX = "Performance_";
+    private final static Charset utf8Charset = Charset.forName("UTF-8");
+
+    private static final PerformanceMetrics sharedInstance = new PerformanceMetrics();
+    public static PerformanceMetrics getInstance() {
+        return sharedInstance;
+    }
+    private PerformanceMetrics() {
+        super();
+    }
+
+    static class Histogram {
+        final long[] counts = new long[BOUNDS.length + 1];
+        long count = 0;
+        long totalMillis = 0;
+        long maxMillis = 0;
+
+        void add(long millis) {
+            if (millis < 0) {
+                return;
+            }
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+                bucket++;
+            }
+            this.counts[bucket]++;
+            this.count++;
+            this.totalMillis += millis;
+            this.maxMillis = Math.max(this.maxMillis, millis);
+        }
+
+        /** Upper bound of the bucket that holds the percentile, or the maximum if it's the last. */
+        long percentile(int percent) {
+            final long target = (this.count * percent + 99) / 100;
+            long soFar = 0;
+            for (int bucket = 0; bucket < BOUNDS.length; bucket++) {
+                soFar += this.counts[bucket];
+                if (soFar >= target) {
+                    return Math.min(BOUNDS[bucket], this.maxMillis);
+                }
+            }
+            return this.maxMillis;
+        }
+
+        JSONObject toJSON() throws JSONException {
+            final JSONArray buckets = new JSONArray();
+            for (int bucket = 0; bucket < this.counts.length; bucket++) {
+                buckets.put(new JSONObject()
+                    .put("le", bucket < BOUNDS.length ? BOUNDS[bucket] : -1)
+                    .put("count", this.counts[bucket]));
+            }
+            return new JSONObject()
+                .put("count", this.count)
+                .put("meanMillis", this.count == 0 ? 0 : this.totalMillis / this.count)
+                .put("p50Millis", this.percentile(50))
+                .put("p90Millis", this.percentile(90))
+                .put("maxMillis", this.maxMillis)
+                .put("buckets", buckets);
+        }
+
+        @Override
+        public String toString() {
+            return "n:" + this.count + " p50:" + this.percentile(50) + " p90:" +
+                this.percentile(90) + " max:" + this.maxMillis;
+        }
+    }
+
+    private static class Stats {
+        final Histogram total = new Histogram();
+        final Histogram firstByte = new Histogram();
+        long bytes = 0;
+
+        void add(RequestTimeline timeline) {
+            this.total.add(timeline.getTotalMillis());
+            this.firstByte.add(timeline.getFirstByteMillis());
+            this.bytes += timeline.bodyBytes;
+        }
+    }
+
+    private static class Page {
+        final String url;
+        final long startedDateTime;
+        final long millis;
+
+        Page(String url, long startedDateTime, long millis) {
+            this.url = url;
+            this.startedDateTime = startedDateTime;
+            this.millis = millis;
+        }
+    }
+
+    // All these are guarded by the object itself.
+    private final Map<String, Stats> byHost = newStatsMap();
+    private final Map<String, Stats> byContentType = newStatsMap();
+    private final Deque<RequestTimeline> recent = new ArrayDeque<RequestTimeline>();
+    private final Deque<Page> pages = new ArrayDeque<Page>();
+    private long recorded = 0;
+
+    // Hosts and content types that haven't been seen for a while are dropped, so that a long
+    // browsing session doesn't grow the maps without limit.
+    private static Map<String, Stats> newStatsMap() {
+        return new LinkedHashMap<String, Stats>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Stats> eldest) {
+                return this.size() > MAX_KEYS;
+            }
+        };
+    }
+
+    private static Stats statsFor(Map<String, Stats> map, String key) {
+        Stats stats = map.get(key);
+        if (stats == null) {
+            stats = new Stats();
+            map.put(key, stats);
+        }
+        return stats;
+    }
+
+    private static String contentTypeKey(String contentType) {
+        if (contentType == null) {
+            return "none";
+        }
+        final int semicolon = contentType.indexOf(';');
+        return (semicolon < 0 ? contentType : contentType.substring(0, semicolon))
+            .trim().toLowerCase(Locale.US);
+    }
+
+    void record(RequestTimeline timeline) {
+        final Settings.Snapshot settings = Settings.getInstance().getSnapshot();
+        if (!settings.timeline) {
+            return;
+        }
+        final int maxEntries = Math.max(0, settings.timelineEntries);
+        synchronized (this) {
+            statsFor(this.byHost, String.valueOf(timeline.uri.getHost())).add(timeline);
+            statsFor(this.byContentType, contentTypeKey(timeline.contentType)).add(timeline);
+            this.recent.addLast(timeline);
+            while (this.recent.size() > maxEntries) {
+                this.recent.removeFirst();
+            }
+            this.recorded++;
+        }
+        Log.d(TAG, timeline.toString());
+    }
+
+    /** Record a page load, from onPageStarted to onPageFinished. */
+    synchronized void recordPage(String url, long startedDateTime, long millis) {
+        this.pages.addLast(new Page(url, startedDateTime, millis));
+        while (this.pages.size() > MAX_PAGES) {
+            this.pages.removeFirst();
+        }
+    }
+
+    public synchronized void clear() {
+        this.byHost.clear();
+        this.byContentType.clear();
+        this.recent.clear();
+        this.pages.clear();
+    }
+
+    /** Summary for showing in the user interface, one line per host and content type. */
+    public synchronized String summary() {
+        final StringBuilder builder = new StringBuilder("Requests:")
+            .append(this.recorded).append(" kept:").append(this.recent.size())
+            .append(" (total ms, first byte ms)");
+        appendStats(builder, "Host", this.byHost);
+        appendStats(builder, "Type", this.byContentType);
+        return builder.toString();
+    }
+
+    private static void appendStats(StringBuilder builder, String label, Map<String, Stats> map) {
+        for (Map.Entry<String, Stats> entry : map.entrySet()) {
+            final Stats stats = entry.getValue();
+            builder.append("\n").append(label).append(" ").append(entry.getKey())
+                .append(" [").append(stats.total).append("] [").append(stats.firstByte)
+                .append("] bytes:").append(stats.bytes);
+        }
+    }
+
+    /** Write the kept timelines and the histograms to a HAR file in the secure file system.
+     *
+     * @return the name of the file written.
+     */
+    public String exportHAR() throws IOException {
+        final String fileName = FILE_PREFIX +
+            new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".har";
+        final byte[] bytes;
+        try {
+            bytes = this.toHAR().toString(1).getBytes(utf8Charset);
+        } catch (JSONException exception) {
+            throw new IOException("Couldn't build HAR " + exception.toString());
+        }
+        final OutputStream outputStream =
+            GDFileSystem.openFileOutput(fileName, Context.MODE_PRIVATE);
+        try {
+            outputStream.write(bytes);
+        }
+        finally {
+            outputStream.close();
+        }
+        Log.d(TAG, "Exported " + fileName + " bytes:" + bytes.length);
+        return fileName;
+    }
+
+    private synchronized JSONObject toHAR() throws JSONException {
+        final SimpleDateFormat dateFormat =
+            new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        final JSONArray pageArray = new JSONArray();
+        int pageIndex = 0;
+        for (Page page : this.pages) {
+            pageArray.put(new JSONObject()
+                .put("startedDateTime", dateFormat.format(new Date(page.startedDateTime)))
+                .put("id", "page_" + (pageIndex++))
+                .put("title", page.url)
+                .put("pageTimings", new JSONObject()
+                    .put("onContentLoad", -1)
+                    .put("onLoad", page.millis)));
+        }
+
+        final JSONArray entries = new JSONArray();
+        for (RequestTimeline timeline : this.recent) {
+            entries.put(entryJSON(timeline, dateFormat));
+        }
+
+        final JSONObject metrics = new JSONObject();
+        final JSONObject hosts = new JSONObject();
+        for (Map.Entry<String, Stats> entry : this.byHost.entrySet()) {
+            hosts.put(entry.getKey(), statsJSON(entry.getValue()));
+        }
+        final JSONObject contentTypes = new JSONObject();
+        for (Map.Entry<String, Stats> entry : this.byContentType.entrySet()) {
+            contentTypes.put(entry.getKey(), statsJSON(entry.getValue()));
+        }
+        metrics.put("hosts", hosts).put("contentTypes", contentTypes);
+
+        return new JSONObject().put("log", new JSONObject()
+            .put("version", "1.2")
+            .put("creator", new JSONObject()
+                .put("name", "WebViewSpike").put("version", "1.0"))
+            .put("pages", pageArray)
+            .put("entries", entries)
+            .put("_metrics", metrics));
+    }
+
+    private static JSONObject statsJSON(Stats stats) throws JSONException {
+        return new JSONObject()
+            .put("total", stats.total.toJSON())
+            .put("firstByte", stats.firstByte.toJSON())
+            .put("bytes", stats.bytes);
+    }
+
+    private static JSONObject entryJSON(RequestTimeline timeline, SimpleDateFormat dateFormat)
+        throws JSONException
+    {
+        final long queue = timeline.between(
+            RequestTimeline.Mark.CREATED, RequestTimeline.Mark.STARTED);
+        final long started = timeline.between(
+            RequestTimeline.Mark.STARTED, RequestTimeline.Mark.SENDING);
+        // Blocked is the time in the proxy before the request went out, not counting earlier
+        // hops of a redirect chain, which are reported separately.
+        final long blocked = started < 0 ? -1 :
+            Math.max(0, started - timeline.redirectMillis) + Math.max(0, queue);
+        final long connect = timeline.between(
+            RequestTimeline.Mark.SENDING, RequestTimeline.Mark.CONNECTED);
+        final long wait = Math.max(0, timeline.between(
+            timeline.getMark(RequestTimeline.Mark.CONNECTED) < 0 ?
+                RequestTimeline.Mark.STARTED : RequestTimeline.Mark.CONNECTED,
+            RequestTimeline.Mark.HEADERS));
+        final long receive = Math.max(0, timeline.between(
+            RequestTimeline.Mark.HEADERS, RequestTimeline.Mark.COMPLETE));
+
+        final JSONArray redirects = new JSONArray();
+        if (timeline.redirects != null) {
+            for (RedirectEngine.Hop hop : timeline.redirects) {
+                redirects.put(hop.toString());
+            }
+        }
+
+        return new JSONObject()
+            .put("startedDateTime", dateFormat.format(new Date(timeline.startedDateTime)))
+            .put("time", Math.max(0, timeline.getTotalMillis()))
+            .put("request", new JSONObject()
+                .put("method", timeline.method)
+                .put("url", timeline.uri.toString())
+                .put("httpVersion", "HTTP/1.1")
+                .put("cookies", new JSONArray())
+                .put("headers", new JSONArray())
+                .put("queryString", new JSONArray())
+                .put("headersSize", -1)
+                .put("bodySize", -1))
+            .put("response", new JSONObject()
+                .put("status", timeline.statusCode)
+                .put("statusText", "")
+                .put("httpVersion", "HTTP/1.1")
+                .put("cookies", new JSONArray())
+                .put("headers", new JSONArray())
+                .put("content", new JSONObject()
+                    .put("size", timeline.bodyBytes)
+                    .put("mimeType",
+                        timeline.contentType == null ? "" : timeline.contentType))
+                .put("redirectURL", "")
+                .put("headersSize", -1)
+                .put("bodySize", timeline.bodyBytes))
+            .put("cache", new JSONObject())
+            .put("timings", new JSONObject()
+                .put("blocked", blocked)
+                // Name resolution happens inside the secure tunnel, out of sight of the
+                // application, so it's part of connect.
+                .put("dns", -1)
+                .put("connect", connect)
+                .put("ssl", -1)
+                .put("send", 0)
+                .put("wait", wait)
+                .put("receive", receive))
+            .put("_mainFrame", timeline.isForMainFrame)
+            .put("_fromCache", timeline.fromCache)
+            .put("_queue", queue)
+            .put("_resolver", timeline.resolverState == null ? "" : timeline.resolverState)
+            .put("_redirectTime", timeline.redirectMillis)
+            .put("_redirects", redirects)
+            .put("_cookieTime", timeline.getCookieMillis())
+            .put("_injectionTime", timeline.getInjectionMillis());
+    }
+}
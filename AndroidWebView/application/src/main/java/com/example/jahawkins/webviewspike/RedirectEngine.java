@@ -0,0 +1,186 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/** Support for the redirect loop in WebViewClient.getByHTTP.
+ *
+ * Each hop goes through the HttpClientPool, so a redirect back to a host that was visited
+ * earlier in the chain, which is usual in single sign-on flows, reuses the open connection to it.
+ * Redirect bodies are skipped if they're small, which keeps the connection, or abandoned by
+ * shutting down the connection if they're large. Permanent redirects, 301 and 308, are
+ * remembered for the rest of the session so that the next request for the same URL goes straight
+ * to the target.
+ */
+public class RedirectEngine {
+    private static final String TAG = RedirectEngine.class.getSimpleName();
+
+    static final int MAX_REDIRECTS = 10;
+    private static final int MAX_PERMANENT = 256;
+
+    private static final RedirectEngine sharedInstance = new RedirectEngine();
+    public static RedirectEngine getInstance() {
+        return sharedInstance;
+    }
+    private RedirectEngine() {
+        super();
+    }
+
+    /** One hop in a redirect chain. */
+    public static class Hop {
+        public final String method;
+        public final Uri from;
+        public final int statusCode;
+        public final Uri to;
+        public final long millis;
+        // How the body of the redirect response was dealt with.
+        public final String disposal;
+
+        Hop(String method, Uri from, int statusCode, Uri to, long millis, String disposal) {
+            this.method = method;
+            this.from = from;
+            this.statusCode = statusCode;
+            this.to = to;
+            this.millis = millis;
+            this.disposal = disposal;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s %s %d -> %s %dms %s",
+                this.method.toUpperCase(Locale.US), this.from, this.statusCode, this.to,
+                this.millis, this.disposal);
+        }
+    }
+
+    // Access order, so that the least recently used is dropped first.
+    private final LinkedHashMap<String, Uri> permanent =
+        new LinkedHashMap<String, Uri>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Uri> eldest) {
+                return this.size() > MAX_PERMANENT;
+            }
+        };
+    private long permanentHits = 0;
+
+    static boolean isRedirect(int statusCode) {
+        return statusCode == 301 || statusCode == 302 || statusCode == 303 ||
+            statusCode == 307 || statusCode == 308;
+    }
+
+    static boolean isPermanent(int statusCode) {
+        return statusCode == 301 || statusCode == 308;
+    }
+
+    /** Method for the next hop, following what browsers do rather than the letter of RFC 7231. */
+    static String methodAfter(int statusCode, String method) {
+        if (statusCode == 303 && !method.equals("head")) {
+            return "get";
+        }
+        if ((statusCode == 301 || statusCode == 302) && method.equals("post")) {
+            return "get";
+        }
+        return method;
+    }
+
+    /** Resolve a Location header value against the URI of the request that it came from. */
+    static Uri resolve(Uri base, String location) {
+        if (location == null) {
+            return null;
+        }
+        try {
+            return Uri.parse(new URI(base.toString()).resolve(location.trim()).toString());
+        } catch (URISyntaxException | IllegalArgumentException exception) {
+            Log.d(TAG, "Couldn't resolve Location \"" + location + "\" against \"" + base +
+                "\" " + exception.toString() + ".");
+            return null;
+        }
+    }
+
+    // Permanent redirects are only used for requests without a body, so that a cached 301
+    // can't turn a POST into a GET without the server being asked.
+    private static boolean canRemember(String method) {
+        return method.equals("get") || method.equals("head");
+    }
+
+    synchronized void remember(String method, Uri from, Uri to) {
+        if (canRemember(method)) {
+            this.permanent.put(from.toString(), to);
+        }
+    }
+
+    synchronized Uri lookup(String method, Uri uri) {
+        if (!canRemember(method)) {
+            return null;
+        }
+        final Uri to = this.permanent.get(uri.toString());
+        if (to != null) {
+            this.permanentHits++;
+        }
+        return to;
+    }
+
+    public synchronized void clear() {
+        this.permanent.clear();
+    }
+
+    /**
+     * Get rid of the body of a redirect response, and with it the connection's lease.
+     *
+     * @return description of what was done, for the hop record.
+     */
+    static String discardBody(ResponseBuilder responseBuilder) {
+        final WebInputStream stream = responseBuilder.stream;
+        if (stream == null) {
+            return "none";
+        }
+        final long limit = 1024L * Settings.getInstance().getSnapshot().redirectDrainKilobytes;
+        if (responseBuilder.contentLength > limit) {
+            stream.abort();
+            return "aborted:" + responseBuilder.contentLength;
+        }
+        if (stream.drain(limit)) {
+            stream.close();
+            return "skipped";
+        }
+        stream.abort();
+        return "aborted";
+    }
+
+    static String describe(List<Hop> hops) {
+        final StringBuilder builder = new StringBuilder();
+        for (Hop hop : hops) {
+            builder.append("\n    ").append(hop.toString());
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RedirectEngine permanent:" + this.permanent.size() + " hits:" +
+            this.permanentHits;
+    }
+}
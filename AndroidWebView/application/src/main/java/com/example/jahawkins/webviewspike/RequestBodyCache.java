@@ -0,0 +1,235 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.good.gd.file.File;
+import com.good.gd.file.GDFileSystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/** Holds request bodies posted from the injected JavaScript until the WebView requests them.
+ *
+ * The injected code sends each form body through the postMessage bridge, keyed by a unique
+ * identifier that's also put in the action URL or the X-GD-UUID header. The body is picked up
+ * here when the WebView makes the matching request, which doesn't itself have the body.
+ *
+ * Bodies are held as UTF-8 bytes in least recently used order. The total is limited by the
+ * requestBodyKilobytes setting, and bodies that haven't been used for requestBodyMaxAgeSeconds
+ * are dropped. Bodies larger than requestBodySpillKilobytes are written to the secure file system
+ * so that large uploads don't take up memory while they wait.
+ */
+public class RequestBodyCache {
+    private static final String TAG = RequestBodyCache.class.getSimpleName();
+    private String logStr(String value) {
+        if (value == null) {
+            return " null";
+        }
+        return " \"" + value + "\"";
+    }
+
+    private static final String SPILL_PREFIX = "RequestBody_";
+    // Memory charged against the budget for a body that's been spilled to a file.
+    private static final long SPILLED_SIZE = 1024;
+    private final static Charset utf8Charset = Charset.forName("UTF-8");
+
+    private static final RequestBodyCache sharedInstance = new RequestBodyCache();
+    public static RequestBodyCache getInstance() {
+        return sharedInstance;
+    }
+    private RequestBodyCache() {
+        super();
+    }
+
+    static class Entry {
+        final String uuid;
+        final String originalAction;
+        // Length of the body in bytes, wherever it's held.
+        final long length;
+        // One or the other of these is null.
+        final byte[] body;
+        final String fileName;
+        long lastUsed;
+
+        Entry(String uuid, String originalAction, long length, byte[] body, String fileName) {
+            this.uuid = uuid;
+            this.originalAction = originalAction;
+            this.length = length;
+            this.body = body;
+            this.fileName = fileName;
+            this.lastUsed = SystemClock.elapsedRealtime();
+        }
+
+        boolean hasBody() {
+            return this.body != null || this.fileName != null;
+        }
+
+        long getBudgetSize() {
+            return this.body == null ? (this.fileName == null ? 0 : SPILLED_SIZE) :
+                this.body.length;
+        }
+
+        /** Open the body, which is UTF-8 encoded. Each call gets a new stream. */
+        InputStream openStream() throws IOException {
+            if (this.body != null) {
+                return new ByteArrayInputStream(this.body);
+            }
+            if (this.fileName != null) {
+                return GDFileSystem.openFileInput(this.fileName);
+            }
+            return new ByteArrayInputStream(new byte[0]);
+        }
+    }
+
+    // Access order, so that iteration starts with the least recently used.
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long totalSize = 0;
+    private long spillSequence = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long stores = 0;
+    private long spills = 0;
+    private long expired = 0;
+    private long evicted = 0;
+
+    /** Store a body. The originalAction and body can each be null. */
+    public void put(String uuid, String originalAction, String body) {
+        if (uuid == null) {
+            Log.e(TAG, "Not storing request body without an identifier.");
+            return;
+        }
+        final Settings.Snapshot settings = Settings.getInstance().getSnapshot();
+        final byte[] bytes = body == null ? null : body.getBytes(utf8Charset);
+
+        // The file is written outside the lock so that other requests aren't held up.
+        String fileName = null;
+        if (bytes != null &&
+            bytes.length > 1024L * settings.requestBodySpillKilobytes)
+        {
+            fileName = this.spill(bytes);
+        }
+        final Entry entry = new Entry(
+            uuid, originalAction, bytes == null ? 0 : bytes.length,
+            fileName == null ? bytes : null, fileName);
+
+        synchronized (this) {
+            this.removeExpired();
+            final Entry replaced = this.entries.put(uuid, entry);
+            if (replaced != null) {
+                this.discard(replaced);
+            }
+            this.totalSize += entry.getBudgetSize();
+            this.stores++;
+            if (fileName != null) {
+                this.spills++;
+            }
+            this.evict(1024L * settings.requestBodyKilobytes);
+        }
+        Log.d(TAG, "Stored" + logStr(uuid) + " length:" + entry.length +
+            (fileName == null ? "" : " in file" + logStr(fileName)) + " " + this);
+    }
+
+    /** Get a body, or null if there isn't one for the identifier or it was evicted. */
+    public synchronized Entry get(String uuid) {
+        this.removeExpired();
+        final Entry entry = uuid == null ? null : this.entries.get(uuid);
+        if (entry == null) {
+            this.misses++;
+            Log.d(TAG, "Miss" + logStr(uuid) + ".");
+            return null;
+        }
+        this.hits++;
+        entry.lastUsed = SystemClock.elapsedRealtime();
+        return entry;
+    }
+
+    public synchronized void clear() {
+        this.evict(-1);
+    }
+
+    private String spill(byte[] bytes) {
+        final String fileName;
+        synchronized (this) {
+            fileName = SPILL_PREFIX + (this.spillSequence++);
+        }
+        try {
+            final OutputStream outputStream =
+                GDFileSystem.openFileOutput(fileName, Context.MODE_PRIVATE);
+            outputStream.write(bytes);
+            outputStream.close();
+            return fileName;
+        } catch (IOException exception) {
+            // Keep it in memory instead. It'll be evicted first if the budget is exceeded.
+            Log.e(TAG, "Couldn't spill request body " + exception.toString() + ".");
+            return null;
+        }
+    }
+
+    // Must be called with the lock held.
+    private void discard(Entry entry) {
+        this.totalSize -= entry.getBudgetSize();
+        if (entry.fileName != null && !new File(entry.fileName).delete()) {
+            Log.d(TAG, "Couldn't delete spill file" + logStr(entry.fileName) + ".");
+        }
+    }
+
+    // Must be called with the lock held.
+    private void removeExpired() {
+        final long cutoff = SystemClock.elapsedRealtime() -
+            1000L * Settings.getInstance().getSnapshot().requestBodyMaxAgeSeconds;
+        final Iterator<Entry> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            // Least recently used first, so the rest are newer.
+            if (entry.lastUsed >= cutoff) {
+                break;
+            }
+            iterator.remove();
+            this.discard(entry);
+            this.expired++;
+        }
+    }
+
+    // Must be called with the lock held.
+    private void evict(long budget) {
+        final Iterator<Entry> iterator = this.entries.values().iterator();
+        while (this.totalSize > budget && iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            iterator.remove();
+            this.discard(entry);
+            this.evicted++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RequestBodyCache entries:" + this.entries.size() + " bytes:" + this.totalSize +
+            " hits:" + this.hits + " misses:" + this.misses + " stores:" + this.stores +
+            " spills:" + this.spills + " expired:" + this.expired + " evicted:" + this.evicted;
+    }
+}
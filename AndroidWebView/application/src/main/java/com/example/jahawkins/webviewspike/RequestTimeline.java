@@ -0,0 +1,194 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.webkit.WebResourceRequest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Timings for one intercepted request, from the WebView asking for it to the end of the body.
+ *
+ * A timeline is attached to the thread that executes the request, between begin() and end(), so
+ * that code deep in the HTTP stack, like the CookieJar and the connection interceptor set up in
+ * HttpClientPool, can add to it without it being passed down. The static mark and add methods do
+ * nothing if no timeline is attached, which is the case for requests made outside the
+ * WebViewClient, and when the timeline setting is off.
+ *
+ * When the body has been read, the timeline is handed to the PerformanceMetrics.
+ */
+class RequestTimeline {
+    // Each mark is the time at which a phase ended, in elapsedRealtime milliseconds.
+    enum Mark {
+        // The WebView called shouldInterceptRequest.
+        CREATED,
+        // A FetchScheduler worker, or the WebView thread, started the request.
+        STARTED,
+        // A client was acquired from the HttpClientPool and the request was about to be sent.
+        SENDING,
+        // The connection was open, new or reused, and the request headers were being written.
+        CONNECTED,
+        // The response headers had arrived.
+        HEADERS,
+        // The body had been read or the stream was closed.
+        COMPLETE
+    }
+
+    private static final ThreadLocal<RequestTimeline> current = new ThreadLocal<RequestTimeline>();
+
+    final String method;
+    final Uri uri;
+    final boolean isForMainFrame;
+    // Wall clock time of CREATED, for the HAR startedDateTime.
+    final long startedDateTime = System.currentTimeMillis();
+    private final long[] marks = new long[Mark.values().length];
+
+    private final AtomicLong cookieNanos = new AtomicLong(0);
+    private final AtomicLong injectionNanos = new AtomicLong(0);
+
+    // Set when the response headers are known.
+    int statusCode = 0;
+    String contentType = null;
+    boolean fromCache = false;
+    List<RedirectEngine.Hop> redirects = null;
+    long redirectMillis = 0;
+    // State of the HostResolver cache for the host when the request started.
+    String resolverState = null;
+    long bodyBytes = 0;
+    private boolean completed = false;
+
+    RequestTimeline(WebResourceRequest request) {
+        this.method = request.getMethod().toUpperCase(Locale.US);
+        this.uri = request.getUrl();
+        this.isForMainFrame = request.isForMainFrame();
+        Arrays.fill(this.marks, -1);
+        this.marks[Mark.CREATED.ordinal()] = SystemClock.elapsedRealtime();
+    }
+
+    /** Attach to the current thread. */
+    void begin() {
+        this.mark(Mark.STARTED);
+        current.set(this);
+    }
+
+    /** Detach from the current thread. */
+    void end() {
+        current.remove();
+    }
+
+    static RequestTimeline current() {
+        return current.get();
+    }
+
+    void mark(Mark mark) {
+        this.marks[mark.ordinal()] = SystemClock.elapsedRealtime();
+    }
+
+    /** Mark the timeline attached to the current thread, if there is one. */
+    static void markCurrent(Mark mark) {
+        final RequestTimeline timeline = current.get();
+        if (timeline != null) {
+            timeline.mark(mark);
+        }
+    }
+
+    static void addCookieNanos(long nanos) {
+        final RequestTimeline timeline = current.get();
+        if (timeline != null) {
+            timeline.cookieNanos.addAndGet(nanos);
+        }
+    }
+
+    void addInjectionNanos(long nanos) {
+        this.injectionNanos.addAndGet(nanos);
+    }
+
+    /** Record what came back. Called on the executing thread once the redirects are done. */
+    void setResponse(ResponseBuilder responseBuilder) {
+        this.statusCode = responseBuilder.statusCode;
+        this.contentType = responseBuilder.contentType;
+        this.redirects = responseBuilder.redirects;
+        if (this.redirects != null) {
+            for (RedirectEngine.Hop hop : this.redirects) {
+                this.redirectMillis += hop.millis;
+            }
+        }
+        if (this.getMark(Mark.HEADERS) < 0) {
+            this.mark(Mark.HEADERS);
+        }
+    }
+
+    /** Mark the end of the body and hand the timeline over for aggregation. Only the first call
+     * has any effect. */
+    void complete(long bodyBytes) {
+        synchronized (this) {
+            if (this.completed) {
+                return;
+            }
+            this.completed = true;
+        }
+        this.bodyBytes = bodyBytes;
+        this.mark(Mark.COMPLETE);
+        PerformanceMetrics.getInstance().record(this);
+    }
+
+    long getMark(Mark mark) {
+        return this.marks[mark.ordinal()];
+    }
+
+    /** Time between two marks, or -1 if either wasn't reached. */
+    long between(Mark from, Mark to) {
+        final long start = this.getMark(from);
+        final long finish = this.getMark(to);
+        return (start < 0 || finish < 0) ? -1 : Math.max(0, finish - start);
+    }
+
+    long getCookieMillis() {
+        return this.cookieNanos.get() / 1000000;
+    }
+
+    long getInjectionMillis() {
+        return this.injectionNanos.get() / 1000000;
+    }
+
+    long getTotalMillis() {
+        return this.between(Mark.CREATED, Mark.COMPLETE);
+    }
+
+    long getFirstByteMillis() {
+        return this.between(Mark.CREATED, Mark.HEADERS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+            "%s %s %d queue:%d blocked:%d connect:%d wait:%d receive:%d redirects:%d " +
+                "cookies:%d injection:%d bytes:%d%s",
+            this.method, this.uri, this.statusCode,
+            this.between(Mark.CREATED, Mark.STARTED),
+            this.between(Mark.STARTED, Mark.SENDING),
+            this.between(Mark.SENDING, Mark.CONNECTED),
+            this.between(Mark.CONNECTED, Mark.HEADERS),
+            this.between(Mark.HEADERS, Mark.COMPLETE),
+            this.redirectMillis, this.getCookieMillis(), this.getInjectionMillis(),
+            this.bodyBytes, this.fromCache ? " cache" : "");
+    }
+}
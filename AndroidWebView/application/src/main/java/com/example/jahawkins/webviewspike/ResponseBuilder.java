@@ -30,7 +30,8 @@ import com.good.gd.net.GDHttpClient;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.io.SequenceInputStream;
+import java.util.List;
 
 // Kind of an extra class to work around the fact that a WebResourceResponse can't be created
 // with a 3xx status code.
@@ -39,6 +40,8 @@ class ResponseBuilder {
 
     private static final String headerContentLength = "Content-Length";
     private static final String headerCSP = "Content-Security-Policy";
+    private static final String headerContentEncoding = "Content-Encoding";
+    private static final String headerContentRange = "Content-Range";
 
     private String logStr(String value) {
         if (value == null) {
@@ -65,16 +68,27 @@ class ResponseBuilder {
 
     public int statusCode;
     public String reasonPhrase;
-    public HashMap<String, String> headers = null;
+    public HeaderMap headers = null;
     public String contentType = null;
     public String contentEncoding = null;
     public WebInputStream stream = null;
+    // Length of the body as received, or -1 if it wasn't known.
+    public long contentLength = -1;
+    // Redirects that were followed to get this response, or null if there weren't any.
+    public List<RedirectEngine.Hop> redirects = null;
     public GDHttpClient getGDHttpClient() {
         return (this.stream == null) ? null : this.stream.httpClient;
     }
+    // The request's snapshot, so that a change part way through isn't half applied. Error
+    // responses aren't built, so they don't have one.
+    private final Settings.Snapshot settings;
 
     private String injectAssets[] = null;
     JavaScriptAssetStream injectStreams[] = null;
+    // Whether every policy in the headers lets inline scripts run without a nonce, and whether
+    // any of them has been given the once values of the injected scripts.
+    private boolean inlineScriptsAllowed = true;
+    private boolean policyNonced = false;
 
     public void setInjectAssets(String... assetFilenames) {
         if (assetFilenames == null) {
@@ -89,11 +103,13 @@ class ResponseBuilder {
     }
 
     public ResponseBuilder(int statusCode, String reasonPhrase) {
+        this.settings = null;
         this.statusCode = statusCode;
         // ToDo: Create an HTML page on the fly.
         this.reasonPhrase = reasonPhrase;
     }
     public ResponseBuilder(int statusCode, Exception exception) {
+        this.settings = null;
         this.statusCode = statusCode;
         this.setFromException(exception);
     }
@@ -101,7 +117,21 @@ class ResponseBuilder {
         // ToDo: Create an HTML page from the stack trace.
         this.reasonPhrase = exception.toString();
     }
-    public ResponseBuilder() {}
+    public ResponseBuilder(Settings.Snapshot settings) {
+        this.settings = settings;
+    }
+
+    // Set by the caller to the URI under which the response body should be stored in the
+    // ResponseCache, or left null if it shouldn't be stored.
+    public Uri cacheUri = null;
+
+    // Set by the caller to the partial ResponseCache entry that the request asked upstream for
+    // the rest of, and to the range that the WebView asked for, if any.
+    public ResponseCache.Entry resumeFrom = null;
+    public ByteRange range = null;
+    // Set if the server didn't send the rest of the partial entry, in which case the response
+    // can't be passed to the WebView.
+    public boolean resumeFailed = false;
 
     public ResponseBuilder build(WebResourceRequest resourceRequest,
                                  HttpResponse httpResponse,
@@ -109,14 +139,17 @@ class ResponseBuilder {
                                  final Context context
     ) {
         String trimmedContentType = this.setFromHttpResponse(httpResponse);
+        // Preload and preconnect hints can be acted on before the body has even been read.
+        HostResolver.getInstance().prefetchLinks(
+            resourceRequest.getUrl(), this.headers.getAll("Link"), this.settings);
 
         InputStream stream = null;
-        Boolean injectedAssets = false;
         long contentLength = -1;
 
         final HttpEntity httpEntity = httpResponse.getEntity();
         if (httpEntity != null) {
             contentLength = httpEntity.getContentLength();
+            this.contentLength = contentLength;
             // The next line can throw IOException. It's in the getContent method signature.
             // I don't know in what circumstance that would occur.
             try {
@@ -128,8 +161,192 @@ class ResponseBuilder {
                 stream = null;
             }
         }
+        if (stream != null && this.resumeFrom != null && this.statusCode == 206) {
+            stream = this.resume(resourceRequest, stream);
+            contentLength = this.contentLength;
+        }
+        else if (stream != null) {
+            stream = ResponseCache.getInstance().store(
+                this.cacheUri, this, stream, contentLength);
+        }
+
+        this.buildBody(resourceRequest, stream, contentLength, httpClient, context);
+
+        String statusLine = httpResponse.getStatusLine().toString();
+        Log.d(TAG, "Response building" + logURI(resourceRequest.getUrl()) + logStr(statusLine) +
+            logStr(this.contentType) + logStr(trimmedContentType) +
+            logStr(this.contentEncoding) + this.headers.toString());
+
+        return this;
+    }
+
+    // Join the stored part of a partial entry to the rest of the body in a 206 response. The
+    // WebView gets a 200 if it didn't ask for a range, or a 206 for the range it asked for.
+    private InputStream resume(WebResourceRequest resourceRequest, InputStream stream) {
+        final ResponseCache.Entry entry = this.resumeFrom;
+        final ByteRange received =
+            ByteRange.fromContentRange(this.headers.get(headerContentRange));
+        if (received == null || received.first != entry.size) {
+            Log.d(TAG, "Resume mismatch" + logURI(resourceRequest.getUrl()) + " stored:" +
+                entry.size + logStr(this.headers.get(headerContentRange)) + ".");
+            this.resumeFailed = true;
+            return stream;
+        }
+        final long first = this.range == null ? 0 : this.range.first;
+        final InputStream stored;
+        try {
+            stored = entry.open(first, entry.size - first);
+        } catch (IOException exception) {
+            Log.e(TAG, "Couldn't open cached body for" + logStr(entry.uri) + " " +
+                exception.toString() + ".");
+            this.resumeFailed = true;
+            return stream;
+        }
+        final long length = received.length >= 0 ? received.length : entry.length;
+
+        // Metadata in the 206 is newer than the stored metadata.
+        final HeaderMap headers = new HeaderMap(entry.headers);
+        headers.replaceFrom(this.headers, headerContentRange, headerContentLength);
+        this.headers = headers;
+        this.contentType = entry.contentType;
+        this.contentEncoding = entry.contentEncoding;
+        this.contentLength = received.last - first + 1;
+        if (this.range == null) {
+            this.statusCode = 200;
+            this.reasonPhrase = "OK";
+            this.headers.remove(headerContentRange);
+            if (length >= 0 && received.last == length - 1) {
+                this.headers.set(headerContentLength, Long.toString(length));
+            }
+            else {
+                this.headers.remove(headerContentLength);
+                this.contentLength = -1;
+            }
+        }
+        else {
+            this.headers.set(headerContentRange,
+                ByteRange.of(first, received.last, length).toContentRange());
+            this.headers.set(headerContentLength, Long.toString(this.contentLength));
+        }
+        Log.d(TAG, "Resuming" + logURI(resourceRequest.getUrl()) + " stored:" + entry.size +
+            " from:" + first + " received:" + received + ".");
+
+        return new SequenceInputStream(
+            stored, ResponseCache.getInstance().append(entry, stream, received));
+    }
+
+    /** Build from a ResponseCache entry instead of an HTTP response.
+     *
+     * @return true if the entry's body could be opened, false otherwise.
+     */
+    public boolean buildFromCache(WebResourceRequest resourceRequest,
+                                  ResponseCache.Entry entry,
+                                  final Context context
+    ) {
+        return this.buildFromCache(resourceRequest, entry, null, context);
+    }
+
+    /** Build from a ResponseCache entry, sending only a byte range of it if range isn't null.
+     *
+     * @return true if the entry's body could be opened, false otherwise.
+     */
+    public boolean buildFromCache(WebResourceRequest resourceRequest,
+                                  ResponseCache.Entry entry,
+                                  ByteRange range,
+                                  final Context context
+    ) {
+        this.contentType = entry.contentType;
+        this.contentEncoding = entry.contentEncoding;
+        this.headers = new HeaderMap(entry.headers);
+
+        ByteRange resolved = null;
+        if (range != null) {
+            resolved = range.resolve(entry.length);
+            if (resolved == null) {
+                this.statusCode = 416;
+                this.reasonPhrase = "Range Not Satisfiable";
+                this.headers.set(headerContentRange, ByteRange.unsatisfiable(entry.length));
+                this.headers.remove(headerContentLength);
+                Log.d(TAG, "Unsatisfiable range from cache" + logURI(resourceRequest.getUrl()) +
+                    " " + range + " length:" + entry.length + ".");
+                return true;
+            }
+        }
+
+        InputStream stream;
+        try {
+            stream = resolved == null ?
+                entry.open() : entry.open(resolved.first, resolved.count());
+        } catch (IOException exception) {
+            Log.e(TAG, "Couldn't open cached body for" + logStr(entry.uri) + " " +
+                exception.toString() + ".");
+            return false;
+        }
+        long size = entry.size;
+        if (resolved == null) {
+            this.statusCode = entry.statusCode;
+            this.reasonPhrase = entry.reasonPhrase;
+        }
+        else {
+            this.statusCode = 206;
+            this.reasonPhrase = "Partial Content";
+            size = resolved.count();
+            this.headers.set(headerContentRange, resolved.toContentRange());
+            this.headers.set(headerContentLength, Long.toString(size));
+            ResponseCache.getInstance().servedRange();
+        }
+
+        this.buildBody(resourceRequest, stream, size, null, context);
+        Log.d(TAG, "Response building from cache" + logURI(resourceRequest.getUrl()) +
+            logStr(entry.uri) + logStr(this.contentType) + this.headers.toString());
+        return true;
+    }
+
+    /** Build a 200 response around a stream that didn't come from an HTTP request.
+     *
+     * Used by the StreamBenchmark to drive the same injection and stream code as a real response.
+     */
+    ResponseBuilder buildFromStream(WebResourceRequest resourceRequest,
+                                    String contentType,
+                                    InputStream stream,
+                                    long contentLength,
+                                    final Context context
+    ) {
+        this.statusCode = 200;
+        this.reasonPhrase = "OK";
+        this.contentType = contentType;
+        this.headers = new HeaderMap();
+        this.headers.add("Content-Type", contentType);
+        if (contentLength >= 0) {
+            this.headers.add(headerContentLength, String.format("%d", contentLength));
+        }
+        this.buildBody(resourceRequest, stream, contentLength, null, context);
+        return this;
+    }
+
+    private void buildBody(WebResourceRequest resourceRequest,
+                           InputStream stream,
+                           long contentLength,
+                           GDHttpClient httpClient,
+                           final Context context
+    ) {
+        Boolean injectedAssets = false;
+        this.injectStreams = new JavaScriptAssetStream[0];
+
+        // A range of a coded body can't be decoded on its own.
+        final String codings = this.headers.getCombined(headerContentEncoding);
+        if (stream != null && this.statusCode != 206 && ContentDecoder.canDecode(codings)) {
+            // The WebView gets the decoded body, so the coding and the coded length go.
+            stream = ContentDecoder.decode(codings, stream);
+            this.headers.remove(headerContentEncoding);
+            this.headers.remove(headerContentLength);
+            this.contentEncoding = null;
+            Log.d(TAG, "Decoding" + logStr(codings) + logURI(resourceRequest.getUrl()) +
+                " coded length:" + contentLength + ".");
+            contentLength = -1;
+        }
+
         if (stream != null) {
-            InputStream[] inputStreams = null;
             if (this.injectAssets == null) {
                 Log.d(TAG, "Injection switched off" + logURI(resourceRequest.getUrl()) + ".");
             }
@@ -139,82 +356,64 @@ class ResponseBuilder {
                         " isForMain:" + resourceRequest.isForMainFrame() + logStr(this.contentType)
                 );
                 if ((this.statusCode < 300 || this.statusCode >= 400) &&
+                    this.statusCode != 206 &&
                     resourceRequest.isForMainFrame() &&
                     this.contentType != null &&
                     this.contentType.startsWith("text/html"))
                 {
                     this.injectStreams = new JavaScriptAssetStream[this.injectAssets.length];
-                    inputStreams = new InputStream[this.injectStreams.length + 1];
-                    int inputIndex = 0;
-                    for (;inputIndex < this.injectAssets.length; inputIndex++) {
-                        this.injectStreams[inputIndex] = new JavaScriptAssetStream(
-                            context, this.injectAssets[inputIndex])
-                            .setAddDOCTYPE(inputIndex == 0).setAddScriptNOnce(true);
-                        inputStreams[inputIndex] = this.injectStreams[inputIndex];
+                    for (int index = 0; index < this.injectAssets.length; index++) {
+                        // The scripts go after the opening head tag, so the document keeps its
+                        // own DOCTYPE.
+                        this.injectStreams[index] = new JavaScriptAssetStream(
+                            context, this.injectAssets[index])
+                            .setAddDOCTYPE(false).setAddScriptNOnce(true);
                     }
-                    inputStreams[inputIndex] = stream;
                     injectedAssets = true;
                 }
-                else {
-                    this.injectStreams = new JavaScriptAssetStream[0];
-                }
             }
-            if (inputStreams == null) {
-                inputStreams = new InputStream[]{stream};
-            }
-            this.stream = new WebInputStream(resourceRequest.getUrl(), httpClient, inputStreams);
         }
 
         this.updateHeaders();
 
-        if (injectedAssets) {
-            boolean hasKey = this.headers.containsKey(headerContentLength);
-            long injectLength = 0;
-            for (JavaScriptAssetStream injectStream : this.injectStreams) {
-                try {
-                    injectLength += injectStream.getLength();
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to get asset stream length for" +
-                        logStr(injectStream.getName() + ". " + e.toString()));
-                    e.printStackTrace();
-                }
+        if (stream != null) {
+            if (injectedAssets) {
+                stream = new HtmlInjectionStream(
+                    stream, this.injectStreams, this.inlineScriptsAllowed, this.policyNonced,
+                    this.settings)
+                    .setTagObserver(HostResolver.getInstance().scannerFor(
+                        resourceRequest.getUrl(), this.settings));
             }
-            Log.d(TAG,
-                "Injected assets" + logStrArray(this.injectAssets) + " length:" + injectLength +
-                    logStr(headerContentLength) + ":" + hasKey + " original:" + contentLength + ".");
-            if (contentLength >= 0) {
-                if (hasKey) {
-                    this.headers.put(headerContentLength,
-                        String.format("%d", contentLength + injectLength));
-                }
-                else {
-                    Log.e(TAG, "No header" + logStr(headerContentLength) + " in:\n" +
-                        this.headers.toString());
-                }
+            if (httpClient != null && this.settings.chunked &&
+                !RedirectEngine.isRedirect(this.statusCode))
+            {
+                // Read ahead of the WebView as the body arrives. Redirect bodies aren't worth it
+                // because they're discarded.
+                stream = new RingBufferStream(stream,
+                    1024 * this.settings.streamBufferKilobytes,
+                    resourceRequest.getUrl().toString());
             }
+            this.stream = new WebInputStream(resourceRequest.getUrl(), httpClient, stream);
+        }
+
+        if (injectedAssets) {
+            // The injection is done as the body streams so the final length isn't known.
+            final String removed = this.headers.remove(headerContentLength);
+            Log.d(TAG,
+                "Injecting assets" + logStrArray(this.injectAssets) +
+                    logStr(headerContentLength) + ":" + logStr(removed) +
+                    " original:" + contentLength + ".");
         }
         else {
             Log.d(TAG, "No injected asset" + logURI(resourceRequest.getUrl()));
         }
-
-        String statusLine = httpResponse.getStatusLine().toString();
-        Log.d(TAG, "Response building" + logURI(resourceRequest.getUrl()) + logStr(statusLine) +
-            logStr(this.contentType) + logStr(trimmedContentType) +
-            logStrArray(injectedAssets ? this.injectAssets : null) +
-            logStr(this.contentEncoding) + "\n" + this.headers.toString());
-
-        return this;
     }
 
     static final String directive = "script-src";
     private String setFromHttpResponse(HttpResponse httpResponse) {
         this.statusCode = httpResponse.getStatusLine().getStatusCode();
         this.reasonPhrase = httpResponse.getStatusLine().getReasonPhrase();
-        final Header headers[] = httpResponse.getAllHeaders();
-        this.headers = new HashMap<String, String>();
-        for (Header header : headers) {
-            this.headers.put(header.getName(), header.getValue());
-        }
+        this.headers = HeaderMap.fromHeaders(httpResponse.getAllHeaders());
 
         String trimmedContentType = null;
         final HttpEntity httpEntity = httpResponse.getEntity();
@@ -241,40 +440,44 @@ class ResponseBuilder {
         return trimmedContentType;
     }
 
+    // Sets inlineScriptsAllowed and policyNonced from the Content-Security-Policy headers, and
+    // adds the once values of the injected scripts to them.
     private void updateHeaders() {
-        String value = this.headers.get(headerCSP);
-        if (value != null) {
-            if (Settings.getInstance().getSetting("stripContentSecurityPolicy")) {
-                Log.d(TAG, "Removing response header" + logStr(headerCSP) + " " +
-                    logStr(value) + ".");
-                this.headers.remove(headerCSP);
+        this.inlineScriptsAllowed = true;
+        this.policyNonced = false;
+        final List<String> values = this.headers.getAll(headerCSP);
+        if (values.isEmpty()) {
+            return;
+        }
+        if (this.settings.stripContentSecurityPolicy) {
+            Log.d(TAG, "Removing response header" + logStr(headerCSP) + " " + values + ".");
+            this.headers.remove(headerCSP);
+            return;
+        }
+
+        StringBuilder sources = new StringBuilder("");
+        for (JavaScriptAssetStream injectStream : this.injectStreams) {
+            sources.append(String.format(" 'nonce-%s'", injectStream.getOnceValue()));
+        }
+        // Each policy is enforced separately, so an inline script only runs if every one of them
+        // allows it, and every one with the directive needs the once values.
+        this.headers.remove(headerCSP);
+        for (String value : values) {
+            this.inlineScriptsAllowed =
+                this.inlineScriptsAllowed && ContentSecurityPolicy.allowsInlineScripts(value);
+            final String modified = sources.length() <= 0 ? null :
+                ContentSecurityPolicy.addScriptSources(value, sources.toString());
+            if (modified == null) {
+                Log.d(TAG, "CSP header" + logStr(value) + " doesn't have directive" +
+                    logStr(directive) + " or there isn't a once value to inject.");
             }
             else {
-                int endIndex = value.indexOf(directive);
-                if (endIndex < 0) {
-                    Log.d(TAG, "CSP header" + logStr(value) + " doesn't have directive" +
-                        logStr(directive) + ".");
-                }
-                else {
-                    StringBuilder sources = new StringBuilder("");
-                    for (JavaScriptAssetStream injectStream : this.injectStreams) {
-                        sources.append(String.format(
-                            " 'nonce-%s'", injectStream.getOnceValue()));
-                    }
-                    if (sources.length() <= 0) {
-                        Log.d(TAG, "CSP header has directive" + logStr(directive) +
-                            " but there isn't a once value to inject.");
-                    }
-                    else {
-                        endIndex += directive.length();
-                        this.headers.put(headerCSP,
-                            value.substring(0, endIndex) + sources  + value.substring(endIndex));
-                        Log.d(TAG, "Modified CSP\n" + value + "\n" + this.headers.get(headerCSP));
-                    }
-                }
+                Log.d(TAG, "Modified CSP\n" + value + "\n" + modified);
+                value = modified;
+                this.policyNonced = true;
             }
+            this.headers.add(headerCSP, value);
         }
-
     }
 
     public WebResourceResponse toWebResponse() {
@@ -284,6 +487,6 @@ class ResponseBuilder {
         }
         return new WebResourceResponse(
             this.contentType, this.contentEncoding, this.statusCode, this.reasonPhrase,
-            this.headers, this.stream);
+            this.headers == null ? null : this.headers.toWebResponseHeaders(), this.stream);
     }
 }
@@ -0,0 +1,845 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import com.good.gd.apache.http.HttpRequest;
+import com.good.gd.apache.http.HttpResponse;
+import com.good.gd.file.File;
+import com.good.gd.file.GDFileSystem;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Size-bounded LRU cache of intercepted HTTP responses.
+ *
+ * Bodies and the index are stored in the BlackBerry Dynamics secure file system, so they are
+ * encrypted and are only available after authorisation. The cache is switched on and off by the
+ * allowCache setting, and its size is set by responseCacheMegabytes.
+ *
+ * Only 200 responses to GET requests, and 206 responses that start at the first byte, are
+ * stored. The body that's stored is the one received from the server, before any injection, so
+ * that injection can be redone with a fresh once value each time the entry is served.
+ *
+ * A body that isn't read to the end, for example because a video player seeked, is kept as a
+ * partial entry if it has a strong validator and no content coding. A later request resumes it by
+ * asking upstream for the rest with Range and If-Range, and the rest is appended to the entry as
+ * it's read. Single byte ranges are served from complete entries, and from the stored part of
+ * partial ones, as 206 responses.
+ *
+ * Changes to the index are written on a background thread, never with the lock held. Changes that
+ * come close together go in one write, so a burst of stores rewrites the index once.
+ */
+public class ResponseCache {
+    private static final String TAG = ResponseCache.class.getSimpleName();
+    private String logStr(String value) {
+        if (value == null) {
+            return " null";
+        }
+        return " \"" + value + "\"";
+    }
+
+    private static final String INDEX_FILE = "ResponseCache.json";
+    private static final String BODY_PREFIX = "ResponseCache_";
+    private final static Charset utf8Charset = Charset.forName("UTF-8");
+    // How long changes to the index are collected before it's written.
+    private static final long SAVE_DELAY_MILLIS = 1000;
+
+    // Used for heuristic freshness when there is a Last-Modified header but no explicit lifetime.
+    private static final double HEURISTIC_FRACTION = 0.1;
+    private static final long HEURISTIC_MAX_MILLIS = 24L * 60L * 60L * 1000L;
+
+    private static final ThreadLocal<SimpleDateFormat> httpDateFormat =
+        new ThreadLocal<SimpleDateFormat>() {
+            @Override
+            protected SimpleDateFormat initialValue() {
+                SimpleDateFormat format =
+                    new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                return format;
+            }
+        };
+
+    private static final ResponseCache sharedInstance = new ResponseCache();
+    public static ResponseCache getInstance() {
+        return sharedInstance;
+    }
+    private ResponseCache() {
+        super();
+    }
+
+    static class Entry {
+        String uri;
+        int statusCode;
+        String reasonPhrase;
+        String contentType;
+        String contentEncoding;
+        HeaderMap headers;
+        String etag;
+        String lastModified;
+        long freshUntil;
+        long size;
+        String fileName;
+        // Length of the whole body, or -1 if it isn't known. Only differs from size for a
+        // partial entry.
+        long length = -1;
+        boolean complete = true;
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < this.freshUntil;
+        }
+
+        boolean hasValidator() {
+            return this.etag != null || this.lastModified != null;
+        }
+
+        boolean isPartial() {
+            return !this.complete;
+        }
+
+        boolean isIdentity() {
+            return this.contentEncoding == null || this.contentEncoding.trim().isEmpty() ||
+                this.contentEncoding.trim().equalsIgnoreCase("identity");
+        }
+
+        /** Validator for If-Range, which has to be strong, or null if there isn't one. */
+        String getRangeValidator() {
+            if (this.etag != null && !this.etag.startsWith("W/")) {
+                return this.etag;
+            }
+            return this.lastModified;
+        }
+
+        /** True if the request, with the range if there is one, can be served from the entry
+         * without going upstream. */
+        boolean canServe(ByteRange range) {
+            if (!this.isFresh()) {
+                return false;
+            }
+            if (range == null) {
+                return this.complete;
+            }
+            if (!this.isIdentity()) {
+                // The stored bytes aren't the ones the range refers to.
+                return false;
+            }
+            if (this.complete) {
+                return true;
+            }
+            final ByteRange resolved = range.resolve(this.length);
+            return resolved != null && resolved.last < this.size;
+        }
+
+        /** True if the entry is partial and the request can be served by sending what's stored
+         * and then asking upstream for the rest. */
+        boolean canResume(ByteRange range) {
+            if (this.complete || this.size <= 0 || this.getRangeValidator() == null) {
+                return false;
+            }
+            if (range == null) {
+                return true;
+            }
+            return !range.isSuffix() && range.first < this.size &&
+                (range.isOpenEnded() || range.last >= this.size);
+        }
+
+        /** True if a stale entry can be revalidated with a conditional request. */
+        boolean canRevalidate(ByteRange range) {
+            return range == null && this.complete && this.hasValidator();
+        }
+
+        InputStream open() throws IOException {
+            return GDFileSystem.openFileInput(this.fileName);
+        }
+
+        /** Open part of the stored body. */
+        InputStream open(long offset, long count) throws IOException {
+            final InputStream stream = this.open();
+            long skipped = 0;
+            while (skipped < offset) {
+                final long skip = stream.skip(offset - skipped);
+                if (skip <= 0) {
+                    stream.close();
+                    throw new IOException("Cached body is shorter than " + offset + ".");
+                }
+                skipped += skip;
+            }
+            return new RangeInputStream(stream, count);
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("uri", this.uri);
+            json.put("statusCode", this.statusCode);
+            json.put("reasonPhrase", this.reasonPhrase);
+            json.put("contentType", this.contentType);
+            json.put("contentEncoding", this.contentEncoding);
+            json.put("headers", this.headers.toJSON());
+            json.put("etag", this.etag);
+            json.put("lastModified", this.lastModified);
+            json.put("freshUntil", this.freshUntil);
+            json.put("size", this.size);
+            json.put("fileName", this.fileName);
+            json.put("length", this.length);
+            json.put("complete", this.complete);
+            return json;
+        }
+
+        static Entry fromJSON(JSONObject json) throws JSONException {
+            Entry entry = new Entry();
+            entry.uri = json.getString("uri");
+            entry.statusCode = json.getInt("statusCode");
+            entry.reasonPhrase = json.optString("reasonPhrase", null);
+            entry.contentType = json.optString("contentType", null);
+            entry.contentEncoding = json.optString("contentEncoding", null);
+            // Index files from before HeaderMap have an object instead of an array.
+            entry.headers = HeaderMap.fromJSON(json.get("headers"));
+            entry.etag = json.optString("etag", null);
+            entry.lastModified = json.optString("lastModified", null);
+            entry.freshUntil = json.getLong("freshUntil");
+            entry.size = json.getLong("size");
+            entry.fileName = json.getString("fileName");
+            entry.length = json.optLong("length", entry.size);
+            entry.complete = json.optBoolean("complete", true);
+            return entry;
+        }
+    }
+
+    // Access order, so that iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long totalSize = 0;
+    private long sequence = 0;
+    private boolean loaded = false;
+    // Files of partial entries that a StoreStream is appending to.
+    private final Set<String> appending = new HashSet<String>();
+
+    private final ScheduledExecutorService indexExecutor =
+        Executors.newSingleThreadScheduledExecutor();
+    // Index has changes that haven't been written, and a write is queued for them.
+    private boolean indexDirty = false;
+    private boolean saveScheduled = false;
+    private final Runnable writeIndexTask = new Runnable() {
+        @Override
+        public void run() {
+            ResponseCache.this.writeIndex();
+        }
+    };
+
+    // Statistics, for logging only.
+    private int hits = 0;
+    private int misses = 0;
+    private int revalidations = 0;
+    private int stores = 0;
+    private int ranges = 0;
+    private int resumes = 0;
+
+    public boolean isEnabled() {
+        return Settings.getInstance().getSnapshot().allowCache &&
+            Lifecycle.getInstance().getAuthorisationState();
+    }
+
+    private long getBudget() {
+        return 1024L * 1024L * Settings.getInstance().getSnapshot().responseCacheMegabytes;
+    }
+
+    private static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return httpDateFormat.get().parse(value.trim()).getTime();
+        } catch (ParseException exception) {
+            return -1;
+        }
+    }
+
+    /** Time until which a response is fresh, or -1 if it mustn't be stored at all. */
+    static long freshUntil(HeaderMap headers, long now) {
+        final String cacheControl = headers.getCombined("Cache-Control");
+        if (cacheControl != null) {
+            final String directives = cacheControl.toLowerCase(Locale.US);
+            if (directives.contains("no-store")) {
+                return -1;
+            }
+            if (directives.contains("no-cache")) {
+                // Can be stored but must be revalidated every time.
+                return now;
+            }
+            for (String directive : directives.split(",")) {
+                String[] nameValue = directive.trim().split("=", 2);
+                if (nameValue[0].equals("max-age") && nameValue.length > 1) {
+                    try {
+                        return now + 1000L * Long.parseLong(nameValue[1].replace("\"", ""));
+                    } catch (NumberFormatException exception) {
+                        return now;
+                    }
+                }
+            }
+        }
+
+        final long date = parseDate(headers.get("Date"));
+        final long base = date < 0 ? now : date;
+        final String expiresValue = headers.get("Expires");
+        if (expiresValue != null) {
+            final long expires = parseDate(expiresValue);
+            // An invalid Expires value, like 0, means already expired.
+            return expires < 0 ? now : now + (expires - base);
+        }
+
+        final long lastModified = parseDate(headers.get("Last-Modified"));
+        if (lastModified >= 0 && lastModified < base) {
+            return now + Math.min(
+                (long) ((base - lastModified) * HEURISTIC_FRACTION), HEURISTIC_MAX_MILLIS);
+        }
+        return now;
+    }
+
+    /** Get the entry for a URI, fresh or stale, or null if there isn't one. */
+    public synchronized Entry lookup(Uri uri) {
+        if (!this.isEnabled()) {
+            return null;
+        }
+        this.load();
+        final Entry entry = this.entries.get(uri.toString());
+        if (entry == null) {
+            this.misses++;
+        }
+        else if (entry.isFresh()) {
+            this.hits++;
+        }
+        return entry;
+    }
+
+    /** Add conditional request headers so that a stale entry can be revalidated, or so that a
+     * partial entry can be resumed.
+     *
+     * @param range byte range requested by the WebView, or null.
+     */
+    public void addValidators(HttpRequest httpRequest, Entry entry, ByteRange range) {
+        if (entry.isPartial()) {
+            httpRequest.setHeader("Range", range == null ?
+                "bytes=" + entry.size + "-" : range.requestFrom(entry.size));
+            httpRequest.setHeader("If-Range", entry.getRangeValidator());
+            return;
+        }
+        if (entry.etag != null) {
+            httpRequest.setHeader("If-None-Match", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            httpRequest.setHeader("If-Modified-Since", entry.lastModified);
+        }
+    }
+
+    /** Count a range that was served from an entry. */
+    public synchronized void servedRange() {
+        this.ranges++;
+    }
+
+    public synchronized void remove(Entry entry) {
+        if (this.entries.get(entry.uri) != entry) {
+            return;
+        }
+        this.entries.remove(entry.uri);
+        this.totalSize -= entry.size;
+        deleteFile(entry.fileName);
+        this.saveIndex();
+    }
+
+    /** Update a stale entry from a 304 response, and return it to be served. */
+    public synchronized Entry revalidated(Entry entry, HttpResponse httpResponse) {
+        this.revalidations++;
+        final HeaderMap headers = new HeaderMap(entry.headers);
+        // Representation metadata in a 304 replaces the stored fields, except that the stored
+        // body is the authority on its own length.
+        headers.replaceFrom(
+            HeaderMap.fromHeaders(httpResponse.getAllHeaders()), "Content-Length");
+        entry.headers = headers;
+        final long until = freshUntil(headers, System.currentTimeMillis());
+        entry.freshUntil = Math.max(until, 0);
+        final String etag = headers.get("ETag");
+        if (etag != null) {
+            entry.etag = etag;
+        }
+        this.saveIndex();
+        Log.d(TAG, "Revalidated" + logStr(entry.uri) + " " + this);
+        return entry;
+    }
+
+    /** Wrap a response body so that it's stored as it's read, if it can be cached.
+     *
+     * @return the stream to read instead of the original, which could be the original.
+     */
+    public InputStream store(Uri uri, ResponseBuilder responseBuilder, InputStream stream,
+                             long contentLength)
+    {
+        if (uri == null || !this.isEnabled()) {
+            return stream;
+        }
+        long length = contentLength;
+        if (responseBuilder.statusCode == 206) {
+            // Only a range from the start can be stored, as a partial entry that a later request
+            // can complete.
+            final ByteRange received = ByteRange.fromContentRange(
+                responseBuilder.headers.get("Content-Range"));
+            if (received == null || received.first != 0 ||
+                !Settings.getInstance().getSnapshot().rangeRequests)
+            {
+                return stream;
+            }
+            length = received.length;
+        }
+        else if (responseBuilder.statusCode != 200) {
+            return stream;
+        }
+        final long now = System.currentTimeMillis();
+        final long freshUntil = freshUntil(responseBuilder.headers, now);
+        if (freshUntil < 0) {
+            return stream;
+        }
+        final String vary = responseBuilder.headers.getCombined("Vary");
+        if (vary != null && !vary.trim().equalsIgnoreCase("Accept-Encoding")) {
+            // The request headers that would have to match aren't stored, so don't cache.
+            return stream;
+        }
+        final long budget = this.getBudget();
+        if (length > budget / 4) {
+            return stream;
+        }
+
+        final Entry entry = new Entry();
+        entry.uri = uri.toString();
+        entry.statusCode = 200;
+        entry.reasonPhrase =
+            responseBuilder.statusCode == 200 ? responseBuilder.reasonPhrase : "OK";
+        entry.contentType = responseBuilder.contentType;
+        entry.contentEncoding = responseBuilder.contentEncoding;
+        entry.headers = new HeaderMap(responseBuilder.headers);
+        entry.length = length;
+        // Stored as the whole representation, even if it came from a range.
+        entry.headers.remove("Content-Range");
+        if (length >= 0) {
+            entry.headers.set("Content-Length", Long.toString(length));
+        }
+        else {
+            entry.headers.remove("Content-Length");
+        }
+        entry.etag = entry.headers.get("ETag");
+        entry.lastModified = entry.headers.get("Last-Modified");
+        entry.freshUntil = freshUntil;
+        if (!entry.hasValidator() && freshUntil <= now) {
+            // Would never be served.
+            return stream;
+        }
+        synchronized (this) {
+            entry.fileName = BODY_PREFIX + System.currentTimeMillis() + "_" + (this.sequence++);
+        }
+
+        final OutputStream outputStream;
+        try {
+            outputStream = GDFileSystem.openFileOutput(entry.fileName, Context.MODE_PRIVATE);
+        } catch (IOException exception) {
+            Log.e(TAG, "Couldn't open cache file" + logStr(entry.fileName) + " " +
+                exception.toString() + ".");
+            return stream;
+        }
+        return new StoreStream(stream, outputStream, entry, budget / 4, 0,
+            responseBuilder.statusCode == 200);
+    }
+
+    /** Wrap the rest of a resumed body so that it's appended to the partial entry as it's read.
+     *
+     * @param received range in the 206 response, which has to start at the end of the entry.
+     * @return the stream to read instead of the original, which could be the original.
+     */
+    public InputStream append(Entry entry, InputStream stream, ByteRange received) {
+        synchronized (this) {
+            this.resumes++;
+            if (!this.isEnabled() || this.entries.get(entry.uri) != entry ||
+                received.first != entry.size || this.appending.contains(entry.fileName))
+            {
+                return stream;
+            }
+            this.appending.add(entry.fileName);
+            if (received.length >= 0) {
+                entry.length = received.length;
+            }
+        }
+        final OutputStream outputStream;
+        try {
+            outputStream = GDFileSystem.openFileOutput(entry.fileName, Context.MODE_APPEND);
+        } catch (IOException exception) {
+            Log.e(TAG, "Couldn't append to cache file" + logStr(entry.fileName) + " " +
+                exception.toString() + ".");
+            synchronized (this) {
+                this.appending.remove(entry.fileName);
+            }
+            return stream;
+        }
+        return new StoreStream(stream, outputStream, entry, this.getBudget() / 4, entry.size,
+            false);
+    }
+
+    private class StoreStream extends FilterInputStream {
+        private OutputStream outputStream;
+        private final Entry entry;
+        private final long maxSize;
+        // Number of bytes in the file, including any that were there before.
+        private long written;
+        private final boolean isAppend;
+        // True if the end of the stream is the end of the body even if its length isn't known.
+        private final boolean endIsComplete;
+
+        StoreStream(InputStream stream, OutputStream outputStream, Entry entry, long maxSize,
+                    long written, boolean endIsComplete)
+        {
+            super(stream);
+            this.outputStream = outputStream;
+            this.entry = entry;
+            this.maxSize = maxSize;
+            this.written = written;
+            this.isAppend = written > 0;
+            this.endIsComplete = endIsComplete;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int read = super.read();
+            if (read == -1) {
+                this.finish(true, false);
+            }
+            else if (this.outputStream != null) {
+                this.write(new byte[]{(byte) read}, 0, 1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            final int read = super.read(bytes, offset, length);
+            if (read == -1) {
+                this.finish(true, false);
+            }
+            else if (read > 0 && this.outputStream != null) {
+                this.write(bytes, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes can't be stored, so the entry would be incomplete.
+            this.finish(false, false);
+            return super.skip(count);
+        }
+
+        private void write(byte[] bytes, int offset, int length) {
+            if (this.written + length > this.maxSize) {
+                this.finish(false, false);
+                return;
+            }
+            try {
+                this.outputStream.write(bytes, offset, length);
+                this.written += length;
+            } catch (IOException exception) {
+                Log.e(TAG, "Cache write failed" + logStr(this.entry.uri) + " " +
+                    exception.toString() + ".");
+                this.finish(false, true);
+            }
+        }
+
+        // The file holds whatever was written before the end of the stream or a failure.
+        private void finish(boolean isEnd, boolean failed) {
+            if (this.outputStream == null) {
+                return;
+            }
+            try {
+                this.outputStream.close();
+            } catch (IOException exception) {
+                failed = true;
+            }
+            this.outputStream = null;
+            final boolean complete = isEnd && !failed && (this.entry.length >= 0 ?
+                this.written >= this.entry.length : this.endIsComplete);
+            if (this.isAppend) {
+                ResponseCache.this.appended(this.entry, this.written, complete, failed);
+            }
+            else if (complete) {
+                this.entry.size = this.written;
+                this.entry.length = this.written;
+                ResponseCache.this.commit(this.entry);
+            }
+            else if (!failed && ResponseCache.isResumable(this.entry, this.written)) {
+                this.entry.size = this.written;
+                this.entry.complete = false;
+                ResponseCache.this.commit(this.entry);
+            }
+            else {
+                ResponseCache.deleteFile(this.entry.fileName);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Closed before EOF means the body is incomplete, so it's only kept if it can be
+            // resumed. The WebInputStream that owns the connection has shut it down by now in
+            // that case, so closing the source doesn't read the rest of the body.
+            this.finish(false, false);
+            super.close();
+        }
+    }
+
+    private static boolean isResumable(Entry entry, long written) {
+        final Settings.Snapshot settings = Settings.getInstance().getSnapshot();
+        return settings.rangeRequests && entry.isIdentity() &&
+            entry.getRangeValidator() != null && written > 0 &&
+            written >= 1024L * settings.partialCacheKilobytes;
+    }
+
+    // Reads at most a fixed number of bytes from the stream.
+    private static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream stream, long count) {
+            super(stream);
+            this.remaining = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            final int read = super.read();
+            if (read >= 0) {
+                this.remaining--;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            final int read = super.read(bytes, offset, (int) Math.min(length, this.remaining));
+            if (read > 0) {
+                this.remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            final long skipped = super.skip(Math.min(count, this.remaining));
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), this.remaining);
+        }
+    }
+
+    private static void deleteFile(String fileName) {
+        if (!new File(fileName).delete()) {
+            Log.d(TAG, "Couldn't delete cache file \"" + fileName + "\".");
+        }
+    }
+
+    private synchronized void commit(Entry entry) {
+        this.load();
+        final Entry replaced = this.entries.put(entry.uri, entry);
+        if (replaced != null) {
+            this.totalSize -= replaced.size;
+            deleteFile(replaced.fileName);
+        }
+        this.totalSize += entry.size;
+        this.stores++;
+        this.evict(this.getBudget());
+        this.saveIndex();
+        Log.d(TAG, "Stored" + logStr(entry.uri) + " size:" + entry.size + " complete:" +
+            entry.complete + " " + this);
+    }
+
+    private synchronized void appended(Entry entry, long size, boolean complete, boolean failed) {
+        this.appending.remove(entry.fileName);
+        if (this.entries.get(entry.uri) != entry) {
+            // Evicted or replaced while the rest was being read.
+            return;
+        }
+        if (failed) {
+            // Whatever did get written would be in the way of the next append.
+            this.remove(entry);
+            return;
+        }
+        this.totalSize += size - entry.size;
+        entry.size = size;
+        entry.complete = complete;
+        this.stores++;
+        this.evict(this.getBudget());
+        this.saveIndex();
+        Log.d(TAG, "Appended" + logStr(entry.uri) + " size:" + entry.size + " complete:" +
+            complete + " " + this);
+    }
+
+    // Must be called with the lock held.
+    private void evict(long budget) {
+        final Iterator<Entry> iterator = this.entries.values().iterator();
+        while (this.totalSize > budget && iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            iterator.remove();
+            this.totalSize -= entry.size;
+            deleteFile(entry.fileName);
+        }
+    }
+
+    public synchronized void clear() {
+        this.load();
+        this.evict(-1);
+        // Straight away, so that the cleared entries don't come back if the process is stopped.
+        this.saveIndex(true);
+    }
+
+    /** Write any changes to the index now, instead of after the delay. Doesn't wait for the
+     * write, so it can be called on the main thread, for example when the application goes into
+     * the background and could be stopped.
+     */
+    public synchronized void flush() {
+        if (this.indexDirty) {
+            this.saveIndex(true);
+        }
+    }
+
+    // Must be called with the lock held.
+    private void load() {
+        if (this.loaded) {
+            return;
+        }
+        this.loaded = true;
+        final StringBuilder builder = new StringBuilder();
+        try {
+            final Reader reader = new InputStreamReader(
+                GDFileSystem.openFileInput(INDEX_FILE), utf8Charset);
+            final char[] buffer = new char[4096];
+            for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+                builder.append(buffer, 0, read);
+            }
+            reader.close();
+        } catch (IOException exception) {
+            Log.d(TAG, "No cache index to load " + exception.toString() + ".");
+            return;
+        }
+        try {
+            final JSONArray array = new JSONArray(builder.toString());
+            for (int index = 0; index < array.length(); index++) {
+                final Entry entry = Entry.fromJSON(array.getJSONObject(index));
+                this.entries.put(entry.uri, entry);
+                this.totalSize += entry.size;
+            }
+        } catch (JSONException exception) {
+            Log.e(TAG, "Discarding unreadable cache index " + exception.toString() + ".");
+            this.entries.clear();
+            this.totalSize = 0;
+        }
+        Log.d(TAG, "Loaded " + this);
+    }
+
+    // Must be called with the lock held.
+    private void saveIndex() {
+        this.saveIndex(false);
+    }
+
+    // Marks the index as changed, and queues a write if there isn't one already queued. The
+    // write takes in every change made before it runs. Must be called with the lock held.
+    private void saveIndex(boolean now) {
+        this.indexDirty = true;
+        if (this.saveScheduled && !now) {
+            return;
+        }
+        this.saveScheduled = true;
+        this.indexExecutor.schedule(
+            this.writeIndexTask, now ? 0 : SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Only called on the index thread. Serialises under the lock, because entries can change,
+    // but writes the file without it.
+    private void writeIndex() {
+        final String index;
+        synchronized (this) {
+            this.saveScheduled = false;
+            if (!this.indexDirty) {
+                return;
+            }
+            final JSONArray array = new JSONArray();
+            try {
+                for (Entry entry : this.entries.values()) {
+                    array.put(entry.toJSON());
+                }
+            } catch (JSONException exception) {
+                Log.e(TAG, "Couldn't serialise cache index " + exception.toString() + ".");
+                return;
+            }
+            index = array.toString();
+            this.indexDirty = false;
+        }
+        try {
+            final OutputStream outputStream =
+                GDFileSystem.openFileOutput(INDEX_FILE, Context.MODE_PRIVATE);
+            outputStream.write(index.getBytes(utf8Charset));
+            outputStream.close();
+        } catch (IOException exception) {
+            Log.e(TAG, "Couldn't save cache index " + exception.toString() + ".");
+            // Try again with the next change or flush, rather than in a loop while locked.
+            synchronized (this) {
+                this.indexDirty = true;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResponseCache entries:" + this.entries.size() + " bytes:" + this.totalSize +
+            " hits:" + this.hits + " misses:" + this.misses +
+            " revalidations:" + this.revalidations + " stores:" + this.stores +
+            " ranges:" + this.ranges + " resumes:" + this.resumes;
+    }
+}
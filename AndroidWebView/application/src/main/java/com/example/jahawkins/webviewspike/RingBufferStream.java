@@ -0,0 +1,233 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Reads a response body ahead of the WebView, through a bounded ring buffer.
+ *
+ * A pump thread reads the body as it arrives from upstream, chunk by chunk, including any
+ * decoding and injection, and puts it in the ring. The WebView's read gets whatever is in the ring
+ * as soon as there is anything, instead of waiting for the upstream read that it would otherwise
+ * make itself. Reading starts as soon as the response headers are back, so the first part of the
+ * body is usually ready by the time the WebView asks for it.
+ *
+ * When the ring is full, the pump waits, which stops reading from the connection and so applies
+ * backpressure to the server through TCP flow control. Nothing is ever held beyond the ring.
+ */
+class RingBufferStream extends InputStream {
+    private static final String TAG = RingBufferStream.class.getSimpleName();
+
+    private static final AtomicInteger threadCount = new AtomicInteger(0);
+    // Threads are kept for a while after their pump finishes, so that the next response doesn't
+    // have to start one.
+    private static final ExecutorService pumpExecutor = Executors.newCachedThreadPool(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                final Thread thread =
+                    new Thread(runnable, TAG + "-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final InputStream source;
+    private final String name;
+    private final byte[] ring;
+
+    // These are all guarded by the stream object itself.
+    private int head = 0;
+    private int count = 0;
+    private boolean atEOF = false;
+    private boolean closed = false;
+    private boolean pumpDone = false;
+    private IOException failure = null;
+    // Statistics, for logging only.
+    private int readerWaits = 0;
+    private int pumpWaits = 0;
+
+    /** Start reading a stream ahead.
+     *
+     * @param source stream to read. It's closed by the pump when it has been read or when this
+     *               stream is closed.
+     * @param capacity size of the ring buffer in bytes.
+     * @param name for logging.
+     */
+    RingBufferStream(InputStream source, int capacity, String name) {
+        super();
+        this.source = source;
+        this.name = name;
+        this.ring = new byte[Math.max(capacity, BufferPool.BUFFER_SIZE)];
+        pumpExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RingBufferStream.this.pump();
+            }
+        });
+    }
+
+    private void pump() {
+        final byte[] buffer = BufferPool.acquire();
+        long total = 0;
+        try {
+            while (true) {
+                final int read = this.source.read(buffer, 0, buffer.length);
+                if (read < 0) {
+                    synchronized (this) {
+                        this.atEOF = true;
+                        this.notifyAll();
+                    }
+                    break;
+                }
+                total += read;
+                if (!this.put(buffer, read)) {
+                    // Closed by the reader.
+                    break;
+                }
+            }
+        } catch (IOException exception) {
+            synchronized (this) {
+                this.failure = exception;
+                this.notifyAll();
+            }
+        } finally {
+            BufferPool.release(buffer);
+            try {
+                this.source.close();
+            } catch (IOException exception) {
+                Log.d(TAG, "Exception closing source \"" + this.name + "\" " +
+                    exception.toString() + ".");
+            }
+        }
+        synchronized (this) {
+            this.pumpDone = true;
+            this.notifyAll();
+            Log.d(TAG, "Pump finished \"" + this.name + "\" read:" + total +
+                " readerWaits:" + this.readerWaits + " pumpWaits:" + this.pumpWaits +
+                (this.failure == null ? "" : " " + this.failure.toString()) + ".");
+        }
+    }
+
+    // Copy into the ring, waiting for space as necessary. Returns false if the stream was closed.
+    private synchronized boolean put(byte[] bytes, int length) {
+        int offset = 0;
+        while (offset < length) {
+            while (this.count >= this.ring.length && !this.closed) {
+                this.pumpWaits++;
+                try {
+                    this.wait();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (this.closed) {
+                return false;
+            }
+            final int tail = (this.head + this.count) % this.ring.length;
+            final int space = Math.min(this.ring.length - this.count, this.ring.length - tail);
+            final int copy = Math.min(space, length - offset);
+            System.arraycopy(bytes, offset, this.ring, tail, copy);
+            this.count += copy;
+            offset += copy;
+            this.notifyAll();
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        final int read = this.read(single, 0, 1);
+        return read <= 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(@NonNull byte[] bytes, int offset, int length)
+        throws IOException
+    {
+        if (length == 0) {
+            return 0;
+        }
+        while (this.count == 0 && !this.atEOF && this.failure == null && !this.closed) {
+            this.readerWaits++;
+            try {
+                this.wait();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted reading \"" + this.name + "\".");
+            }
+        }
+        if (this.count == 0) {
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            return -1;
+        }
+        // At most two copies, either side of the wrap.
+        int copied = 0;
+        while (copied < length && this.count > 0) {
+            final int copy = Math.min(
+                Math.min(this.count, this.ring.length - this.head), length - copied);
+            System.arraycopy(this.ring, this.head, bytes, offset + copied, copy);
+            this.head = (this.head + copy) % this.ring.length;
+            this.count -= copy;
+            copied += copy;
+        }
+        this.notifyAll();
+        return copied;
+    }
+
+    @Override
+    public synchronized int available() {
+        return this.count;
+    }
+
+    /** Stop the pump.
+     *
+     * The source is closed on the pump thread, so that the close doesn't race a read. If the
+     * pump has reached the end of the source, the close is quick and is waited for, so that the
+     * connection is finished with when this returns and can go back to the HttpClientPool.
+     * Otherwise the pump may be blocked in a read, and closing the source would read the rest
+     * of the body, so this doesn't wait. The owning WebInputStream discards the connection in
+     * that case, which makes the pump's read fail.
+     */
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        this.count = 0;
+        this.notifyAll();
+        while (this.atEOF && !this.pumpDone) {
+            try {
+                this.wait();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.good.gd.GDAndroid;
+import com.good.gd.GDServiceProvider;
+import com.good.gd.GDServiceType;
+import com.good.gd.icc.GDICCForegroundOptions;
+import com.good.gd.icc.GDServiceClient;
+import com.good.gd.icc.GDServiceException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Cached discovery and ranked selection of AppKinetics providers of the open URL service.
+ *
+ * Service discovery is done on a background thread when the application is authorised and
+ * whenever the application configuration is updated, which is when the set of providers can
+ * change. Opening a link uses the cached list, so it only waits for discovery the first time, if
+ * the background discovery hasn't finished, and then it waits for that discovery rather than
+ * starting another.
+ *
+ * Providers are tried in ranked order until a request is sent: the ones with fewer recent failed
+ * sends, then the highest application version, then the lowest measured time from sending a
+ * request to its onMessageSent callback, then by address so that the order is stable. The one
+ * that last worked is tried first instead, as long as it has no more recent failures than the
+ * best of the others and is within a margin of its time. Failures are halved by every successful
+ * send, and forgotten when there hasn't been one for a while, so that a provider that failed once
+ * gets another chance.
+ */
+public class ServiceProviders {
+    private static final String TAG = ServiceProviders.class.getSimpleName();
+    private String logStr(String value) {
+        if (value == null) {
+            return " null";
+        }
+        return " \"" + value + "\"";
+    }
+
+    static final String SERVICE_ID = "com.good.gdservice.open-url.http";
+    static final String SERVICE_VERSION = "1.0.0.0";
+    // Sent requests that have had no onMessageSent callback are forgotten after this many.
+    private static final int MAX_PENDING = 32;
+    // Failures of a provider are forgotten when it hasn't had one for this long.
+    private static final long FAILURE_EXPIRY_MILLIS = 10L * 60L * 1000L;
+    // How much slower than the best provider the last one that worked can be and stay first.
+    private static final int STICKY_MARGIN_PERCENT = 25;
+
+    private static final ServiceProviders sharedInstance = new ServiceProviders();
+    public static ServiceProviders getInstance() {
+        return sharedInstance;
+    }
+    private ServiceProviders() {
+        super();
+    }
+
+    // Measurements for one provider address. These are guarded by the ServiceProviders object.
+    private static class Record {
+        int sends = 0;
+        int failures = 0;
+        long lastFailure = 0;
+        int measured = 0;
+        long totalMillis = 0;
+
+        int recentFailures(long now) {
+            return now - this.lastFailure >= FAILURE_EXPIRY_MILLIS ? 0 : this.failures;
+        }
+
+        long averageMillis() {
+            return this.measured == 0 ? -1 : this.totalMillis / this.measured;
+        }
+    }
+
+    private static class Pending {
+        final String address;
+        final long sent = SystemClock.elapsedRealtime();
+
+        Pending(String address) {
+            this.address = address;
+        }
+    }
+
+    private final ExecutorService discoveryExecutor = Executors.newSingleThreadExecutor();
+
+    // Replaced, never changed, so that it can be read without the lock.
+    private volatile List<GDServiceProvider> providers = null;
+
+    // These are guarded by the ServiceProviders object itself.
+    private final Map<String, Record> records = new HashMap<String, Record>();
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+    private String winner = null;
+    private int discoveries = 0;
+    // Most recently queued discovery, which the first getProviders() waits for.
+    private Future<List<GDServiceProvider>> discovery = null;
+
+    /** Run discovery in the background and replace the cached list when it's done. */
+    public void refresh() {
+        this.startDiscovery();
+    }
+
+    private synchronized Future<List<GDServiceProvider>> startDiscovery() {
+        this.discovery = this.discoveryExecutor.submit(new Callable<List<GDServiceProvider>>() {
+            @Override
+            public List<GDServiceProvider> call() {
+                return ServiceProviders.this.discover();
+            }
+        });
+        return this.discovery;
+    }
+
+    private List<GDServiceProvider> discover() {
+        final long start = SystemClock.elapsedRealtime();
+        final Vector<GDServiceProvider> discovered = GDAndroid.getInstance()
+            .getServiceProvidersFor(
+                SERVICE_ID, SERVICE_VERSION, GDServiceType.GD_SERVICE_TYPE_APPLICATION);
+        final List<GDServiceProvider> list = Collections.unmodifiableList(
+            discovered == null ?
+                new ArrayList<GDServiceProvider>() : new ArrayList<GDServiceProvider>(discovered));
+        this.providers = list;
+        synchronized (this) {
+            this.discoveries++;
+        }
+        Log.d(TAG, "Discovered" + logStr(SERVICE_ID) + logStr(SERVICE_VERSION) + " providers:" +
+            list.size() + " in " + (SystemClock.elapsedRealtime() - start) + "ms.");
+        return list;
+    }
+
+    /** Cached providers, waiting for discovery if there hasn't been one yet. */
+    public List<GDServiceProvider> getProviders() {
+        final List<GDServiceProvider> list = this.providers;
+        if (list != null) {
+            return list;
+        }
+        // Wait for the discovery that's already queued, if there is one, rather than doing
+        // another at the same time. One that failed is done, but didn't set the list.
+        final Future<List<GDServiceProvider>> pending;
+        synchronized (this) {
+            pending = this.discovery == null || this.discovery.isDone() ?
+                this.startDiscovery() : this.discovery;
+        }
+        try {
+            return pending.get();
+        } catch (ExecutionException exception) {
+            Log.e(TAG, "Discovery failed " + exception.getCause().toString());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        return Collections.emptyList();
+    }
+
+    // Compare dotted version strings numerically, so that 1.10 is after 1.9.
+    static int compareVersions(String version1, String version2) {
+        final String[] parts1 = version1 == null ? new String[0] : version1.split("\\.");
+        final String[] parts2 = version2 == null ? new String[0] : version2.split("\\.");
+        for (int index = 0; index < Math.max(parts1.length, parts2.length); index++) {
+            final long part1 = index < parts1.length ? parseVersionPart(parts1[index]) : 0;
+            final long part2 = index < parts2.length ? parseVersionPart(parts2[index]) : 0;
+            if (part1 != part2) {
+                return part1 < part2 ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private static long parseVersionPart(String part) {
+        try {
+            return Long.parseLong(part.trim());
+        } catch (NumberFormatException exception) {
+            return 0;
+        }
+    }
+
+    /** Providers in the order in which they should be tried. */
+    public List<GDServiceProvider> ranked() {
+        // Discovery, if it's needed, is done without the lock held.
+        final List<GDServiceProvider> list = new ArrayList<GDServiceProvider>(
+            this.getProviders());
+        synchronized (this) {
+            this.sort(list);
+        }
+        return list;
+    }
+
+    // Must be called with the lock held.
+    private void sort(List<GDServiceProvider> list) {
+        final long now = SystemClock.elapsedRealtime();
+        final Map<String, Record> records = this.records;
+        Collections.sort(list, new Comparator<GDServiceProvider>() {
+            @Override
+            public int compare(GDServiceProvider provider1, GDServiceProvider provider2) {
+                final String address1 = provider1.getAddress();
+                final String address2 = provider2.getAddress();
+                final Record record1 = records.get(address1);
+                final Record record2 = records.get(address2);
+                final int failures1 = record1 == null ? 0 : record1.recentFailures(now);
+                final int failures2 = record2 == null ? 0 : record2.recentFailures(now);
+                if (failures1 != failures2) {
+                    return failures1 < failures2 ? -1 : 1;
+                }
+                final int byVersion =
+                    compareVersions(provider2.getVersion(), provider1.getVersion());
+                if (byVersion != 0) {
+                    return byVersion;
+                }
+                // Measured before not measured, then fastest first.
+                final long millis1 = record1 == null ? -1 : record1.averageMillis();
+                final long millis2 = record2 == null ? -1 : record2.averageMillis();
+                if (millis1 != millis2) {
+                    if (millis1 < 0 || millis2 < 0) {
+                        return millis1 < 0 ? 1 : -1;
+                    }
+                    return millis1 < millis2 ? -1 : 1;
+                }
+                return address1.compareTo(address2);
+            }
+        });
+
+        // Stickiness is applied after sorting, rather than in the comparison, so that the
+        // comparison stays consistent.
+        if (list.isEmpty() || this.winner == null ||
+            list.get(0).getAddress().equals(this.winner))
+        {
+            return;
+        }
+        for (int index = 1; index < list.size(); index++) {
+            if (list.get(index).getAddress().equals(this.winner)) {
+                if (this.keepsLead(list.get(0).getAddress(), now)) {
+                    list.add(0, list.remove(index));
+                }
+                return;
+            }
+        }
+    }
+
+    // Whether the last provider that worked should still go before the best of the others.
+    // Must be called with the lock held.
+    private boolean keepsLead(String best, long now) {
+        final Record winnerRecord = this.records.get(this.winner);
+        final Record bestRecord = this.records.get(best);
+        final int winnerFailures = winnerRecord == null ? 0 : winnerRecord.recentFailures(now);
+        final int bestFailures = bestRecord == null ? 0 : bestRecord.recentFailures(now);
+        if (winnerFailures > bestFailures) {
+            return false;
+        }
+        final long bestMillis = bestRecord == null ? -1 : bestRecord.averageMillis();
+        if (bestMillis < 0) {
+            return true;
+        }
+        final long winnerMillis = winnerRecord == null ? -1 : winnerRecord.averageMillis();
+        return winnerMillis >= 0 &&
+            winnerMillis <= bestMillis + bestMillis * STICKY_MARGIN_PERCENT / 100;
+    }
+
+    // Must be called with the lock held.
+    private Record recordFor(String address) {
+        Record record = this.records.get(address);
+        if (record == null) {
+            record = new Record();
+            this.records.put(address, record);
+        }
+        return record;
+    }
+
+    /** Send a service request to the best provider that will take it.
+     *
+     * @return the address of the provider that the request was sent to, or null if there aren't
+     * any providers or they all failed.
+     */
+    public String send(String method, Map<String, String> params, String[] attachments) {
+        for (GDServiceProvider provider : this.ranked()) {
+            final String address = provider.getAddress();
+            try {
+                final String requestID = GDServiceClient.sendTo(address, SERVICE_ID,
+                    SERVICE_VERSION, method, params, attachments,
+                    GDICCForegroundOptions.PreferPeerInForeground);
+                synchronized (this) {
+                    final Record record = this.recordFor(address);
+                    record.sends++;
+                    record.failures /= 2;
+                    this.winner = address;
+                    if (this.pending.size() >= MAX_PENDING) {
+                        this.pending.clear();
+                    }
+                    this.pending.put(requestID, new Pending(address));
+                }
+                Log.d(TAG, "Sent service request" + logStr(address) + logStr(requestID));
+                return address;
+            } catch (GDServiceException exception) {
+                synchronized (this) {
+                    final Record record = this.recordFor(address);
+                    final long now = SystemClock.elapsedRealtime();
+                    record.failures = record.recentFailures(now) + 1;
+                    record.lastFailure = now;
+                    if (address.equals(this.winner)) {
+                        this.winner = null;
+                    }
+                }
+                Log.e(TAG, "Service exception" + logStr(address) + " " + exception.toString());
+            }
+        }
+        return null;
+    }
+
+    /** Record the time taken to send a request. Called from the GDServiceClientListener. */
+    public synchronized void messageSent(String application, String requestID) {
+        final Pending sent = this.pending.remove(requestID);
+        if (sent == null) {
+            return;
+        }
+        final Record record = this.recordFor(sent.address);
+        record.measured++;
+        record.totalMillis += SystemClock.elapsedRealtime() - sent.sent;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final List<GDServiceProvider> list = this.providers;
+        final StringBuilder builder = new StringBuilder("ServiceProviders discoveries:")
+            .append(this.discoveries).append(" providers:")
+            .append(list == null ? "unknown" : Integer.toString(list.size()))
+            .append(" winner:").append(this.winner == null ? "none" : this.winner);
+        for (Map.Entry<String, Record> entry : this.records.entrySet()) {
+            final Record record = entry.getValue();
+            builder.append("\n  ").append(entry.getKey()).append(" sends:").append(record.sends)
+                .append(" failures:")
+                .append(record.recentFailures(SystemClock.elapsedRealtime()))
+                .append(" average:").append(record.averageMillis()).append("ms");
+        }
+        return builder.toString();
+    }
+}
@@ -24,11 +24,20 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Pattern;
 
+/** Application settings, shown and changed in the user interface.
+ *
+ * The current settings are held in an immutable Snapshot that's replaced as a whole when anything
+ * changes, so that the threads that handle intercepted requests can read them without locking and
+ * without seeing a change half made. Observers are told about each change.
+ */
 public class Settings {
     private static final String LINKS = "links";
     private static final String DEBUG_ENABLED = "debugEnabled";
@@ -36,9 +45,17 @@ public class Settings {
     private static final Pattern eolPattern = Pattern.compile("$", Pattern.MULTILINE);
 
     private static final String DEFAULT_SETTINGS = "{" +
-        "'intercept': true, 'injectHTML': true, 'nslookup':false, 'apacheRedirect':true, " +
+        "'intercept': true, 'injectHTML': true, 'nslookup':false, 'apacheRedirect':false, " +
         "'retrieve':false, 'debugEnabled': true, 'allowCache':true, " +
-        "'stripContentSecurityPolicy':false, 'appKinetics':false, 'chunked':true" +
+        "'stripContentSecurityPolicy':false, 'appKinetics':false, 'chunked':true, " +
+        "'keepAlive':true, 'poolMaxPerHost':6, 'poolIdleSeconds':30, 'connectTimeoutSeconds':20, " +
+        "'responseCacheMegabytes':50, 'requestBodyKilobytes':4096, " +
+        "'requestBodySpillKilobytes':256, 'requestBodyMaxAgeSeconds':600, " +
+        "'readTimeoutSeconds':60, 'expectContinueKilobytes':64, 'continueTimeoutSeconds':3, " +
+        "'redirectDrainKilobytes':64, 'prefetchHosts':true, 'preconnect':true, " +
+        "'negativeLookupSeconds':30, 'fetchScheduler':true, 'fetchWorkers':8, " +
+        "'timeline':true, 'timelineEntries':256, 'compression':true, 'rangeRequests':true, " +
+        "'partialCacheKilobytes':64, 'assetCacheKilobytes':1024, 'streamBufferKilobytes':256" +
         "}";
     /*
         intercept:false
@@ -48,12 +65,73 @@ public class Settings {
         Switches on injection of the inject.js asset file into suitable responses.
 
         nslookup:true
-        Would switch on a GDNetUtility nslookup() call for every server address. The result is only
-        logged, not used for anything.
+        Would switch on a HostResolver lookup for every server address. The lookup doesn't hold up
+        the request. Its result is cached, with its time-to-live, and logged.
+
+        prefetchHosts:false
+        Would switch off scanning of main-frame HTML for the hosts of links, scripts, images and
+        so on. Each host found is looked up by the HostResolver ahead of the WebView requesting
+        anything from it. Only pages that go through script injection are scanned.
+
+        preconnect:false
+        Would switch off opening a connection in the HttpClientPool to each prefetched host once
+        it has been looked up. Hosts that didn't resolve aren't connected to.
+
+        negativeLookupSeconds:30
+        Time for which a failed lookup is cached, so that a host that doesn't resolve isn't looked
+        up again on every request.
+
+        fetchScheduler:false
+        Would switch off the FetchScheduler. Each intercepted request would then be executed on
+        whichever WebView thread called shouldInterceptRequest, in no particular order, instead of
+        being queued by priority with the main frame, style sheets and scripts ahead of images.
+
+        fetchWorkers:8
+        Number of FetchScheduler worker threads, and hence the most requests that can be waiting
+        for response headers at once. Requests to one host are also limited by poolMaxPerHost.
+
+        timeline:false
+        Would switch off the RequestTimeline for intercepted requests, and hence the histograms and
+        HAR export in PerformanceMetrics.
 
-        apacheRedirect:false
-        Would switch off redirection in the BlackBerry Dynamics Apache HTTP layer. The application
-        code then handles HTTP redirects instead.
+        timelineEntries:256
+        Number of the most recent request timelines kept for HAR export. The histograms cover every
+        request regardless.
+
+        compression:false
+        Would switch off sending Accept-Encoding: gzip, deflate upstream, so that responses come
+        back uncompressed. Responses that are compressed anyway are still decoded before they go
+        to the WebView.
+
+        rangeRequests:false
+        Would switch off use of the ResponseCache for Range requests from the WebView, so that
+        they all go upstream, and would stop bodies that aren't read to the end from being kept
+        as partial entries to be resumed.
+
+        partialCacheKilobytes:64
+        Smallest part of a body that's kept as a partial ResponseCache entry when the WebView stops
+        reading before the end, for example when a video is seeked.
+
+        chunked:false
+        Would switch off chunked transfer of request bodies, so that they're sent with a
+        Content-Length, and would switch off reading response bodies ahead of the WebView. With it
+        on, a pump thread reads each response body through a RingBufferStream as it arrives, and
+        the WebView's reads take whatever has arrived.
+
+        streamBufferKilobytes:256
+        Size of the ring buffer for each response body read ahead. When it's full, reading from
+        the connection stops until the WebView catches up.
+
+        assetCacheKilobytes:1024
+        Memory budget for assets held by the AssetIndex, which serves assets: URLs. Assets that
+        don't fit are read from the APK on every request. The budget is applied as each asset is
+        indexed, after the first request for it.
+
+        apacheRedirect:true
+        Would switch on redirection in the BlackBerry Dynamics Apache HTTP layer, instead of the
+        application code's RedirectEngine. The Apache layer follows every hop on the same
+        GDHttpClient, so each change of host closes the connection and opens a new one. It also
+        doesn't remember permanent redirects.
 
         retrieve:true
         Would switch on retrieve mode, in which HTTP requests are executed but their responses
@@ -65,7 +143,8 @@ public class Settings {
 
         allowCache:false
         Would switch off use of caching by the WebView, which probably should be done in production
-        but which makes it run even slower.
+        but which makes it run even slower. Also switches off the ResponseCache, which stores
+        intercepted responses in the secure file system.
 
         stripContentSecurityPolicy:true
         Strips the Content-Security-Policy (CSP) header from any responses in which it is present. It's
@@ -79,9 +158,165 @@ public class Settings {
         open the ADAL login page in BlackBerry Access, so you can get called back by Intent to
         com.blackberry.work, which is registered in the Android manifest.
 
+        keepAlive:false
+        Would switch off reuse of pooled HTTP connections. Every GDHttpClient would then be shut
+        down after its response has been read, which was the original behaviour.
+
+        responseCacheMegabytes:50
+        Size limit of the ResponseCache. No single response larger than a quarter of this is
+        stored.
+
+        poolMaxPerHost:6
+        Maximum number of GDHttpClient instances, and hence connections, per scheme and authority
+        in the HttpClientPool.
+
+        poolIdleSeconds:30
+        Time after which an unused pooled connection is shut down.
+
+        connectTimeoutSeconds:20
+        Connection timeout for HTTP requests. It's also how long a request will wait for a pooled
+        connection before going over the poolMaxPerHost limit.
+
+        readTimeoutSeconds:60
+        Time to wait for data from the server, once connected, before a request fails.
+
+        expectContinueKilobytes:64
+        Request bodies at least this large are sent with Expect: 100-continue, so that the server
+        can refuse the request before the body is uploaded. Smaller bodies are sent straight away.
+
+        continueTimeoutSeconds:3
+        Time to wait for a 100 Continue response before sending the body anyway, for servers that
+        don't support Expect.
+
+        redirectDrainKilobytes:64
+        Redirect response bodies up to this size are read and discarded, so that the connection
+        can be used for the next hop. Larger ones are abandoned by closing the connection.
+
+        requestBodyKilobytes:4096
+        Memory budget of the RequestBodyCache, which holds form bodies posted from the injected
+        JavaScript until the WebView makes the matching request. Least recently used bodies are
+        dropped when it's exceeded.
+
+        requestBodySpillKilobytes:256
+        Bodies larger than this are written to the secure file system instead of being held in
+        memory. They still count towards the requestBodyKilobytes budget, at a token size.
+
+        requestBodyMaxAgeSeconds:600
+        Time after which an unused request body is dropped.
+
     */
 
-    private Map<String, Object> map = null;
+    /** All the settings at one time, never changed once it's been made.
+     *
+     * The settings used on the request path are also typed fields, so that they can be read
+     * without a map lookup and an unboxing. Take one snapshot at the start of a piece of work
+     * and use it throughout, so that a change part way through doesn't mix old and new settings.
+     */
+    public static final class Snapshot {
+        public final boolean intercept;
+        public final boolean injectHTML;
+        public final boolean nslookup;
+        public final boolean retrieve;
+        public final boolean chunked;
+        public final boolean apacheRedirect;
+        public final boolean appKinetics;
+        public final boolean compression;
+        public final boolean rangeRequests;
+        public final boolean fetchScheduler;
+        public final boolean timeline;
+        public final boolean allowCache;
+        public final boolean keepAlive;
+        public final boolean stripContentSecurityPolicy;
+        public final boolean prefetchHosts;
+        public final boolean preconnect;
+
+        public final int poolMaxPerHost;
+        public final int poolIdleSeconds;
+        public final int connectTimeoutSeconds;
+        public final int readTimeoutSeconds;
+        public final int expectContinueKilobytes;
+        public final int continueTimeoutSeconds;
+        public final int redirectDrainKilobytes;
+        public final int negativeLookupSeconds;
+        public final int fetchWorkers;
+        public final int timelineEntries;
+        public final int responseCacheMegabytes;
+        public final int partialCacheKilobytes;
+        public final int assetCacheKilobytes;
+        public final int streamBufferKilobytes;
+        public final int requestBodyKilobytes;
+        public final int requestBodySpillKilobytes;
+        public final int requestBodyMaxAgeSeconds;
+
+        private final Map<String, Object> map;
+
+        private Snapshot(Map<String, Object> map) {
+            super();
+            this.map = Collections.unmodifiableMap(map);
+            this.intercept = this.getSetting("intercept");
+            this.injectHTML = this.getSetting("injectHTML");
+            this.nslookup = this.getSetting("nslookup");
+            this.retrieve = this.getSetting("retrieve");
+            this.chunked = this.getSetting("chunked");
+            this.apacheRedirect = this.getSetting("apacheRedirect");
+            this.appKinetics = this.getSetting("appKinetics");
+            this.compression = this.getSetting("compression");
+            this.rangeRequests = this.getSetting("rangeRequests");
+            this.fetchScheduler = this.getSetting("fetchScheduler");
+            this.timeline = this.getSetting("timeline");
+            this.allowCache = this.getSetting(ALLOW_CACHE);
+            this.keepAlive = this.getSetting("keepAlive");
+            this.stripContentSecurityPolicy = this.getSetting("stripContentSecurityPolicy");
+            this.prefetchHosts = this.getSetting("prefetchHosts");
+            this.preconnect = this.getSetting("preconnect");
+
+            this.poolMaxPerHost = this.getSettingInt("poolMaxPerHost");
+            this.poolIdleSeconds = this.getSettingInt("poolIdleSeconds");
+            this.connectTimeoutSeconds = this.getSettingInt("connectTimeoutSeconds");
+            this.readTimeoutSeconds = this.getSettingInt("readTimeoutSeconds");
+            this.expectContinueKilobytes = this.getSettingInt("expectContinueKilobytes");
+            this.continueTimeoutSeconds = this.getSettingInt("continueTimeoutSeconds");
+            this.redirectDrainKilobytes = this.getSettingInt("redirectDrainKilobytes");
+            this.negativeLookupSeconds = this.getSettingInt("negativeLookupSeconds");
+            this.fetchWorkers = this.getSettingInt("fetchWorkers");
+            this.timelineEntries = this.getSettingInt("timelineEntries");
+            this.responseCacheMegabytes = this.getSettingInt("responseCacheMegabytes");
+            this.partialCacheKilobytes = this.getSettingInt("partialCacheKilobytes");
+            this.assetCacheKilobytes = this.getSettingInt("assetCacheKilobytes");
+            this.streamBufferKilobytes = this.getSettingInt("streamBufferKilobytes");
+            this.requestBodyKilobytes = this.getSettingInt("requestBodyKilobytes");
+            this.requestBodySpillKilobytes = this.getSettingInt("requestBodySpillKilobytes");
+            this.requestBodyMaxAgeSeconds = this.getSettingInt("requestBodyMaxAgeSeconds");
+        }
+
+        public boolean getSetting(String key) {
+            return (Boolean) this.map.get(key);
+        }
+
+        public int getSettingInt(String key) {
+            return ((Number) this.map.get(key)).intValue();
+        }
+
+        @SuppressWarnings("unchecked")
+        public List<String> getLinks() {
+            return (List<String>) this.map.get(Settings.LINKS);
+        }
+
+        @Override
+        public String toString() {
+            return JSONObject.wrap(this.map).toString();
+        }
+    }
+
+    /** Notified after the settings have changed, on the thread that changed them. */
+    public interface Observer {
+        void onSettingsChanged(Snapshot previous, Snapshot current);
+    }
+
+    // Replaced, never changed. Writers hold the lock, readers don't need to.
+    private volatile Snapshot snapshot;
+    private final CopyOnWriteArrayList<Observer> observers =
+        new CopyOnWriteArrayList<Observer>();
 
     private static final Settings sharedInstance = new Settings();
     public static Settings getInstance() {
@@ -89,28 +324,51 @@ public class Settings {
     }
     private Settings() {
         super();
-        this.map = new HashMap<String, Object>();
+        final HashMap<String, Object> map = new HashMap<String, Object>();
         try {
-            this.updateSettings(DEFAULT_SETTINGS);
+            final JSONObject defaults = new JSONObject(DEFAULT_SETTINGS);
+            final Iterator<String> keyIterator = defaults.keys();
+            while (keyIterator.hasNext()) {
+                final String key = keyIterator.next();
+                map.put(key, defaults.get(key));
+            }
         } catch (JSONException exception) {
             throw new AssertionError(
                 "JSON exception in default settings:" + exception.toString() +
                     " " + DEFAULT_SETTINGS);
         }
-        this.resetLinks();
+        map.put(Settings.LINKS, Collections.<String>emptyList());
+        this.snapshot = new Snapshot(map);
+    }
+
+    public Snapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    public void addObserver(Observer observer) {
+        this.observers.addIfAbsent(observer);
+    }
+
+    public void removeObserver(Observer observer) {
+        this.observers.remove(observer);
     }
 
     @Override
     public String toString() {
-        return JSONObject.wrap(this.map).toString();
+        return this.snapshot.toString();
     }
 
     public Boolean getSetting(String key) {
-        return (Boolean) this.map.get(key);
+        return this.snapshot.getSetting(key);
+    }
+
+    public int getSettingInt(String key) {
+        return this.snapshot.getSettingInt(key);
     }
 
 
-    public void applySettings(Map<String, Object> oldSettings, final WebView webView) {
+    public void applySettings(Snapshot previous, final WebView webView) {
+        final Snapshot current = this.snapshot;
         // Changes that are made here can only be run on the UI thread, which means we need the
         // Activity.
         Activity activity = (Activity) webView.getContext();
@@ -119,24 +377,17 @@ public class Settings {
         // chrome://inspect page in the Chrome browser on an attached computer. From that page,
         // the WebView can be opened in theChrome Developer Tools, which is awesome.
         // Note that the set... is a class method and applies at the application level.
-        Boolean nowDebugging = (Boolean) this.map.get(Settings.DEBUG_ENABLED);
-        if (oldSettings != null) {
-            final Boolean oldDebugging = (Boolean) oldSettings.get(Settings.DEBUG_ENABLED);
-            if (nowDebugging.equals(oldDebugging)) {
-                nowDebugging = null;
-            }
-        }
-        if (nowDebugging != null) {
-            final Boolean finalNowDebugging = nowDebugging;
+        final boolean nowDebugging = current.getSetting(Settings.DEBUG_ENABLED);
+        if (previous == null || nowDebugging != previous.getSetting(Settings.DEBUG_ENABLED)) {
             activity.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    WebView.setWebContentsDebuggingEnabled(finalNowDebugging);
+                    WebView.setWebContentsDebuggingEnabled(nowDebugging);
                 }
             });
         }
 
-        final int cacheMode = ((boolean)this.map.get(Settings.ALLOW_CACHE)) ?
+        final int cacheMode = current.getSetting(Settings.ALLOW_CACHE) ?
             WebSettings.LOAD_DEFAULT : WebSettings.LOAD_NO_CACHE;
         activity.runOnUiThread(new Runnable() {
             @Override
@@ -148,32 +399,68 @@ public class Settings {
         });
     }
 
-    private HashMap<String, Object> updateSettings(String toMergeJSON) throws JSONException {
-        final HashMap<String, Object> oldSettings = (
-            this.map.size() > 0 ? new HashMap<String, Object>(this.map) : null);
-        final JSONObject toMerge = new JSONObject(toMergeJSON);
-        final Iterator<String> keyIterator = toMerge.keys();
-        while (keyIterator != null && keyIterator.hasNext()) {
-            String key = keyIterator.next();
-            this.map.put(key, toMerge.opt(key));
+    // Must be called with the lock held.
+    private Snapshot publish(Map<String, Object> map) {
+        final Snapshot previous = this.snapshot;
+        this.snapshot = new Snapshot(map);
+        return previous;
+    }
+
+    private void notifyObservers(Snapshot previous, Snapshot current) {
+        for (Observer observer : this.observers) {
+            observer.onSettingsChanged(previous, current);
         }
-        return oldSettings;
     }
 
-    public String mergeSettings(String toMergeJSON, WebView webView) throws JSONException {
-        this.applySettings(this.updateSettings(toMergeJSON), webView);
-        return this.toString();
+    /** Merge settings from JSON and publish them all at once. Nothing is changed if any value is
+     * of the wrong type for its setting.
+     *
+     * @return all the settings, as JSON.
+     */
+    public String mergeSettings(String toMergeJSON) throws JSONException {
+        final JSONObject toMerge = new JSONObject(toMergeJSON);
+        final Snapshot previous;
+        final Snapshot current;
+        synchronized (this) {
+            final HashMap<String, Object> map = new HashMap<String, Object>(this.snapshot.map);
+            final Iterator<String> keyIterator = toMerge.keys();
+            while (keyIterator.hasNext()) {
+                final String key = keyIterator.next();
+                final Object value = toMerge.opt(key);
+                final Object existing = map.get(key);
+                if (key.equals(Settings.LINKS) || (existing != null && (
+                    (existing instanceof Boolean && !(value instanceof Boolean)) ||
+                    (existing instanceof Number && !(value instanceof Number)))))
+                {
+                    throw new JSONException("Wrong type for setting \"" + key + "\" " + value);
+                }
+                map.put(key, value);
+            }
+            previous = this.publish(map);
+            current = this.snapshot;
+        }
+        this.notifyObservers(previous, current);
+        return current.toString();
     }
 
-    public void resetLinks() {
-        this.map.put(Settings.LINKS, new ArrayList<String>());
+    /** Replace the links that are shown in the user interface. */
+    public void setLinks(List<String> links) {
+        final Snapshot previous;
+        final Snapshot current;
+        synchronized (this) {
+            final HashMap<String, Object> map = new HashMap<String, Object>(this.snapshot.map);
+            map.put(Settings.LINKS, Collections.unmodifiableList(new ArrayList<String>(links)));
+            previous = this.publish(map);
+            current = this.snapshot;
+        }
+        this.notifyObservers(previous, current);
     }
 
-    public void addLinks(String linksString) {
+    /** Add links from a string, one per line, to a list. */
+    public static void addLinks(List<String> links, String linksString) {
         if (linksString == null) {
             return;
         }
-        ArrayList<String> links = (ArrayList<String>) this.map.get(Settings.LINKS);
         String[] linkLines = eolPattern.split(linksString);
         for (String link : linkLines) {
             links.add(link.trim());
@@ -0,0 +1,175 @@
+/* Copyright (c) 2018 BlackBerry Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.example.jahawkins.webviewspike;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/** Microbenchmark of the response stream chain.
+ *
+ * Synthetic bodies are pushed through ResponseBuilder, with and without injection, and read out
+ * of the resulting WebResourceResponse the way that the WebView reads them. No network or asset
+ * body I/O is involved so the result is the throughput of the proxy code alone. It's run from a
+ * button on the UserInterface page.
+ */
+class StreamBenchmark {
+    private static final String TAG = StreamBenchmark.class.getSimpleName();
+
+    private final static Charset utf8Charset = Charset.forName("UTF-8");
+    private static final int MEGABYTE = 1024 * 1024;
+
+    private StreamBenchmark() {}
+
+    // Generates a repeating pattern without allocating per read.
+    private static class SyntheticStream extends InputStream {
+        private final byte[] pattern;
+        private final long length;
+        private long position = 0;
+
+        SyntheticStream(byte[] pattern, long length) {
+            this.pattern = pattern;
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            if (this.position >= this.length) {
+                return -1;
+            }
+            return this.pattern[(int) (this.position++ % this.pattern.length)] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) {
+            if (this.position >= this.length) {
+                return -1;
+            }
+            count = (int) Math.min(count, this.length - this.position);
+            int done = 0;
+            while (done < count) {
+                final int patternOffset = (int) ((this.position + done) % this.pattern.length);
+                final int chunk = Math.min(count - done, this.pattern.length - patternOffset);
+                System.arraycopy(this.pattern, patternOffset, bytes, offset + done, chunk);
+                done += chunk;
+            }
+            this.position += done;
+            return done;
+        }
+    }
+
+    private static WebResourceRequest request(final boolean mainFrame) {
+        return new WebResourceRequest() {
+            @Override
+            public Uri getUrl() {
+                return Uri.parse("https://benchmark.invalid/");
+            }
+
+            @Override
+            public boolean isForMainFrame() {
+                return mainFrame;
+            }
+
+            @Override
+            public boolean isRedirect() {
+                return false;
+            }
+
+            @Override
+            public boolean hasGesture() {
+                return false;
+            }
+
+            @Override
+            public String getMethod() {
+                return "GET";
+            }
+
+            @Override
+            public Map<String, String> getRequestHeaders() {
+                return new HashMap<String, String>();
+            }
+        };
+    }
+
+    private static double measure(Context context,
+                                  String contentType,
+                                  byte[] pattern,
+                                  int megabytes,
+                                  boolean mainFrame,
+                                  String... injectAssets
+    ) throws IOException {
+        final long length = (long) megabytes * MEGABYTE;
+        final ResponseBuilder responseBuilder = new ResponseBuilder(
+            Settings.getInstance().getSnapshot());
+        responseBuilder.setInjectAssets(injectAssets);
+
+        final long start = System.nanoTime();
+        final WebResourceResponse response = responseBuilder.buildFromStream(
+            request(mainFrame), contentType, new SyntheticStream(pattern, length), length, context)
+            .toWebResponse();
+        final InputStream data = response.getData();
+        final byte[] buffer = new byte[8 * 1024];
+        long total = 0;
+        for (int read = data.read(buffer); read != -1; read = data.read(buffer)) {
+            total += read;
+        }
+        data.close();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (total < length) {
+            // Reported in the result by run(), instead of taking the application down.
+            throw new EOFException("Benchmark read " + total + " of " + length + " bytes.");
+        }
+        return (total / (double) MEGABYTE) / seconds;
+    }
+
+    static String run(Context context, int megabytes) {
+        final byte[] html =
+            "<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>\n".getBytes(
+                utf8Charset);
+        final byte[] binary = new byte[4096];
+        for (int index = 0; index < binary.length; index++) {
+            binary[index] = (byte) (index * 31);
+        }
+
+        String result;
+        try {
+            final double htmlRate = measure(
+                context, "text/html", html, megabytes, true, "inject.js", "DocumentCookieStore.js");
+            final double binaryRate = measure(
+                context, "application/octet-stream", binary, megabytes, false);
+            result = String.format(Locale.US,
+                "%d MB injected HTML: %.1f MB/s, binary: %.1f MB/s.",
+                megabytes, htmlRate, binaryRate);
+        } catch (IOException exception) {
+            result = "Benchmark failed " + exception.toString() + ".";
+        }
+        Log.d(TAG, result);
+        return result;
+    }
+}
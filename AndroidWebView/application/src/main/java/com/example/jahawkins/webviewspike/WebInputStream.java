@@ -38,6 +38,8 @@ public class WebInputStream extends InputStream {
     private int streamIndex = 0;
     public GDHttpClient httpClient = null;
     private boolean shutdownDone = false;
+    // Completed at end of file or on close, whichever comes first.
+    RequestTimeline timeline = null;
 
     public int progressIncrement = 100000;
 
@@ -63,8 +65,8 @@ public class WebInputStream extends InputStream {
     /** Construct a stream for a BlackBerry Dynamics HTTP request.
      *
      * @param uri used to set the stream logging name.
-     * @param gdHttpClient HTTP client whose connection will be shut down when the stream has
-     *                     all been read.
+     * @param gdHttpClient HTTP client that will be released to the HttpClientPool when the
+     *                     stream is closed, or discarded if it's closed before the end.
      * @param inputStreams stream from the returned HTTP entity.
      */
     public WebInputStream(Uri uri,
@@ -85,9 +87,13 @@ public class WebInputStream extends InputStream {
      *
      * The Android WebResourceResponse documentation states:
      * >   Callers must implement InputStream.read(byte[]).
-     * Therefore this class implements it here. However, it seems that it doesn't get called and
-     * only the plain InputStream.read() gets called. The InputStream docco says that it calls
-     * read() if read(byte[]) isn't implemented.
+     * Therefore this class implements it here, by way of read(byte[],int,int), which does the
+     * actual work. Earlier observation was that only the plain InputStream.read() gets called, so
+     * that's buffered too, in case.
+     *
+     * Reads go straight to the current segment stream, into the caller's array, so that the
+     * segments are concatenated without copying. The only copy is for plain read() calls, which
+     * are served from a pooled buffer that gets filled by bulk reads.
      *
      * It seems that the consumer of the stream will continue to call it after it has returned -1,
      * which indicates end-of-file (EOF). From the logs, it appears to be called three times in
@@ -95,15 +101,36 @@ public class WebInputStream extends InputStream {
      */
     @Override
     public int read(@NonNull byte[] bytes) throws IOException {
-        if (this.soFar <= 0) {
-            Log.d(TAG, "Starting" + this.logName() + " buffer length:" + bytes.length + ".");
+        return this.read(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public int read(@NonNull byte[] bytes, int offset, int length) throws IOException {
+        if (this.soFar <= 0 && this.bufferPosition >= this.bufferLimit) {
+            Log.d(TAG, "Starting" + this.logName() + " buffer length:" + length + ".");
+        }
+        if (length == 0) {
+            return 0;
+        }
+        // Anything left over from a plain read() goes first.
+        final int buffered = this.bufferLimit - this.bufferPosition;
+        if (buffered > 0) {
+            final int count = Math.min(buffered, length);
+            System.arraycopy(this.buffer, this.bufferPosition, bytes, offset, count);
+            this.bufferPosition += count;
+            return count;
         }
+        return this.readSegments(bytes, offset, length);
+    }
+
+    private int readSegments(byte[] bytes, int offset, int length) throws IOException {
         int return_ = -1;
         while (this.streamIndex < this.streams.length) {
-            return_ = this.streams[this.streamIndex].read(bytes);
+            return_ = this.streams[this.streamIndex].read(bytes, offset, length);
             if (return_ != -1) {
+                final int before = this.soFar;
                 this.soFar += return_;
-                if (this.soFar % this.progressIncrement == 1) {
+                if (this.soFar / this.progressIncrement != before / this.progressIncrement) {
                     Log.d(TAG, "Reading" + this.logName() + " " + this.soFar + " ...");
                 }
                 break;
@@ -117,30 +144,78 @@ public class WebInputStream extends InputStream {
             // Log the number of times EOF is returned.
             this.returnedEOF++;
             Log.d(TAG, "Returning EOF " + this.returnedEOF + this.logName() + ".");
+            if (this.timeline != null) {
+                this.timeline.complete(this.soFar);
+            }
         }
 
         return return_;
     }
 
-    private byte[] readBuffer = new byte[1];
+    private byte[] buffer = null;
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
     @Override
     public int read() throws IOException {
         if (this.readPlainCalls <= 0) {
             Log.d(TAG, "Plain read() called, not read(byte[])" + this.logName() + ".");
         }
         this.readPlainCalls++;
-        int readReturn = this.read(readBuffer);
-        if (readReturn == -1) {
-            return readReturn;
+        if (this.bufferPosition >= this.bufferLimit) {
+            if (this.buffer == null) {
+                this.buffer = BufferPool.acquire();
+            }
+            final int readReturn = this.readSegments(this.buffer, 0, this.buffer.length);
+            if (readReturn <= 0) {
+                return -1;
+            }
+            this.bufferPosition = 0;
+            this.bufferLimit = readReturn;
         }
         //
         // Java treats a byte as a signed number and therefore extends the sign when casting to int.
         // To fix this, the sign portion is masked out in the following line.
-        readReturn = readBuffer[0] & 0xFF;
-        if (readReturn < 0 || readReturn > 255) {
-            throw new AssertionError("read return out of range " + readReturn);
+        return this.buffer[this.bufferPosition++] & 0xFF;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        if (count <= 0) {
+            return 0;
         }
-        return readReturn;
+        final int buffered = this.bufferLimit - this.bufferPosition;
+        if (buffered > 0) {
+            final int skipped = (int) Math.min(buffered, count);
+            this.bufferPosition += skipped;
+            return skipped;
+        }
+        while (this.streamIndex < this.streams.length) {
+            final long skipped = this.streams[this.streamIndex].skip(count);
+            if (skipped > 0) {
+                this.soFar += skipped;
+                return skipped;
+            }
+            // A segment can return zero from skip() without being at EOF, so check with a read.
+            final int read = this.streams[this.streamIndex].read();
+            if (read != -1) {
+                this.soFar++;
+                return 1;
+            }
+            this.streamIndex++;
+        }
+        return 0;
+    }
+
+    @Override
+    public int available() throws IOException {
+        final int buffered = this.bufferLimit - this.bufferPosition;
+        if (buffered > 0) {
+            return buffered;
+        }
+        if (this.streamIndex < this.streams.length) {
+            return this.streams[this.streamIndex].available();
+        }
+        return 0;
     }
 
     @Override
@@ -150,6 +225,15 @@ public class WebInputStream extends InputStream {
         message.append(this.closes);
         int closedOK = 0;
         int closeExceptions = 0;
+        if (this.httpClient != null && !this.shutdownDone &&
+            this.streamIndex < this.streams.length)
+        {
+            // Closing an HTTP body before its end reads the rest of it from the network. Shut the
+            // connection down instead, so that the close, and any read ahead, fail straight away.
+            message.append(" GDHttpClient discarded before EOF");
+            HttpClientPool.getInstance().discard(this.httpClient);
+            this.shutdownDone = true;
+        }
         for (int index=0; index < this.streams.length; index++) {
             try {
                 this.streams[index].close();
@@ -160,35 +244,82 @@ public class WebInputStream extends InputStream {
             }
         }
         message.append(" ok:").append(closedOK).append(" exceptions:").append(closeExceptions);
+        if (this.buffer != null) {
+            BufferPool.release(this.buffer);
+            this.buffer = null;
+            this.bufferPosition = 0;
+            this.bufferLimit = 0;
+        }
         if (this.httpClient == null) {
             message.append(" httpClient:null");
         }
         else {
             if (this.shutdownDone) {
-                message.append(" GDHttpClient already shut down");
+                message.append(" GDHttpClient already released");
             }
             else {
-                message.append(" GDHttpClient connection shut down");
-                this.httpClient.getConnectionManager().shutdown();
+                message.append(" GDHttpClient released to pool");
+                HttpClientPool.getInstance().release(this.httpClient);
                 this.shutdownDone = true;
             }
         }
         message.append(this.logName()).append(" read:").append(this.soFar).append(".");
         Log.d(TAG, message.toString());
+        if (this.timeline != null) {
+            this.timeline.complete(this.soFar);
+        }
     }
 
     public int drain() {
         int drainage = 0;
+        final byte[] drainBuffer = BufferPool.acquire();
         try {
-            int drainRead = this.read();
+            int drainRead = this.read(drainBuffer, 0, drainBuffer.length);
             while (drainRead != -1) {
-                drainage++;
-                drainRead = this.read();
+                drainage += drainRead;
+                drainRead = this.read(drainBuffer, 0, drainBuffer.length);
             }
         }
         catch (IOException exception) {
             Log.d(TAG, "Exception draining stream " + exception.toString() + this.logName() + ".");
         }
+        finally {
+            BufferPool.release(drainBuffer);
+        }
         return drainage;
     }
+
+    /**
+     * Skip up to limit bytes of the body.
+     *
+     * @return true if the end of the body was reached.
+     */
+    public boolean drain(long limit) {
+        long drainage = 0;
+        try {
+            while (drainage <= limit) {
+                final long skipped = this.skip(limit + 1 - drainage);
+                if (skipped <= 0) {
+                    return true;
+                }
+                drainage += skipped;
+            }
+        }
+        catch (IOException exception) {
+            Log.d(TAG, "Exception draining stream " + exception.toString() + this.logName() + ".");
+        }
+        return false;
+    }
+
+    /**
+     * Close without reading the rest of the body, even if the end has been reached. The
+     * connection is shut down instead of being returned to the pool.
+     */
+    public void abort() {
+        if (this.httpClient != null && !this.shutdownDone) {
+            HttpClientPool.getInstance().discard(this.httpClient);
+            this.shutdownDone = true;
+        }
+        this.close();
+    }
 }
@@ -62,7 +62,7 @@ public class WebView extends GDWebView {
         @JavascriptInterface
         public String merge(String toMergeJSON) {
             try {
-                return Settings.getInstance().mergeSettings(toMergeJSON, WebView.this);
+                return Settings.getInstance().mergeSettings(toMergeJSON);
             } catch (JSONException exception) {
                 exception.printStackTrace();
                 Map<String, String> map = new HashMap<>();
@@ -72,6 +72,19 @@ public class WebView extends GDWebView {
         }
     }
 
+    private final Settings.Observer settingsObserver = new Settings.Observer() {
+        @Override
+        public void onSettingsChanged(Settings.Snapshot previous, Settings.Snapshot current) {
+            Settings.getInstance().applySettings(previous, WebView.this);
+        }
+    };
+
+    @Override
+    public void destroy() {
+        Settings.getInstance().removeObserver(this.settingsObserver);
+        super.destroy();
+    }
+
     @SuppressLint("SetJavaScriptEnabled")
     private void  defaultSettings(Context context) {
         WebSettings settings = this.getSettings();
@@ -88,6 +101,7 @@ public class WebView extends GDWebView {
         settings.setJavaScriptEnabled(true);
 
         Settings.getInstance().applySettings(null, this);
+        Settings.getInstance().addObserver(this.settingsObserver);
         Lifecycle.getInstance().initialise(context);
 
         // The bridge to Settings is added here, as an inner class, so that it can get a reference
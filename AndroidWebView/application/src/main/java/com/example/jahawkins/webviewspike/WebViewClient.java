@@ -30,50 +30,40 @@ import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.widget.Toast;
 
-import com.good.gd.GDAndroid;
 import com.good.gd.GDServiceProvider;
-import com.good.gd.GDServiceType;
 import com.good.gd.apache.http.Header;
-import com.good.gd.apache.http.HttpEntity;
 import com.good.gd.apache.http.HttpRequest;
 import com.good.gd.apache.http.HttpResponse;
-import com.good.gd.apache.http.client.CookieStore;
+import com.good.gd.apache.http.HttpEntityEnclosingRequest;
+import com.good.gd.apache.http.client.methods.HttpDelete;
 import com.good.gd.apache.http.client.methods.HttpGet;
+import com.good.gd.apache.http.client.methods.HttpHead;
 import com.good.gd.apache.http.client.methods.HttpOptions;
 import com.good.gd.apache.http.client.methods.HttpPost;
+import com.good.gd.apache.http.client.methods.HttpPut;
+import com.good.gd.apache.http.client.methods.HttpRequestBase;
 import com.good.gd.apache.http.client.params.HttpClientParams;
-import com.good.gd.apache.http.cookie.Cookie;
-import com.good.gd.apache.http.entity.EntityTemplate;
-import com.good.gd.apache.http.entity.StringEntity;
+import com.good.gd.apache.http.entity.InputStreamEntity;
+import com.good.gd.apache.http.params.CoreProtocolPNames;
 import com.good.gd.apache.http.params.HttpConnectionParams;
 import com.good.gd.apache.http.params.HttpParams;
-import com.good.gd.icc.GDICCForegroundOptions;
-import com.good.gd.icc.GDServiceClient;
-import com.good.gd.icc.GDServiceException;
+import com.good.gd.apache.http.params.HttpProtocolParams;
 import com.good.gd.net.GDHttpClient;
-import com.good.gd.net.GDNetUtility;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.Reader;
-import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
-
-import com.good.gd.apache.http.entity.ContentProducer;
+import java.util.concurrent.Callable;
 
 public class WebViewClient extends android.webkit.WebViewClient {
     private static final String TAG = WebViewClient.class.getSimpleName();
@@ -94,45 +84,15 @@ public class WebViewClient extends android.webkit.WebViewClient {
         return logStr(Thread.currentThread().getName());
     }
 
-    private boolean getSetting(String setting) {
-        return Settings.getInstance().getSetting(setting);
+    private static Settings.Snapshot getSettings() {
+        return Settings.getInstance().getSnapshot();
     }
 
-    private Map<String, Map<String, Object>> requestCache = null;
-
     public void addRequestCache(String uuid, HashMap<String, Object> map) {
-        if (this.requestCache == null) {
-            this.requestCache = new HashMap<String, Map<String, Object>>();
-        }
-        this.requestCache.put(uuid, map);
-    }
-
-    class ReaderContentProducer implements ContentProducer {
-        Reader reader = null;
-
-        ReaderContentProducer(Reader reader) {
-            super();
-            this.reader = reader;
-        }
-
-        ReaderContentProducer(String string) {
-            super();
-            this.reader = new StringReader(string);
-        }
-
-        @Override
-        public void writeTo(OutputStream outputStream) throws IOException {
-            OutputStream outputBuffer = new BufferedOutputStream(outputStream);
-            for (;;) {
-                int data = this.reader.read();
-                if (data == -1) {
-                    break;
-                }
-                outputBuffer.write(data);
-            }
-            this.reader.close();
-            outputBuffer.close();
-        }
+        final Object action = map.get(ORIGINAL_ACTION);
+        final Object body = map.get(REQUEST_BODY);
+        RequestBodyCache.getInstance().put(
+            uuid, action == null ? null : action.toString(), body == null ? null : body.toString());
     }
 
     private JavaScriptBridge bridge = null;
@@ -165,11 +125,63 @@ public class WebViewClient extends android.webkit.WebViewClient {
             }
         }
 
+        @JavascriptInterface
+        public String clearResponseCache() {
+            if (!Lifecycle.getInstance().getAuthorisationState()) {
+                return "Cannot clear response cache until authorised.";
+            }
+            ResponseCache.getInstance().clear();
+            // Remembered permanent redirects go too, in case they were the problem.
+            RedirectEngine.getInstance().clear();
+            return ResponseCache.getInstance().toString();
+        }
+
+        @JavascriptInterface
+        public String requestBodyCacheStatistics() {
+            return RequestBodyCache.getInstance().toString();
+        }
+
+        @JavascriptInterface
+        public String connectionStatistics() {
+            return HostResolver.getInstance().toString() + "\n" +
+                HttpClientPool.getInstance().toString() + "\n" +
+                FetchScheduler.getInstance().toString() + "\n" +
+                ServiceProviders.getInstance().toString();
+        }
+
+        @JavascriptInterface
+        public String performanceSummary() {
+            return PerformanceMetrics.getInstance().summary();
+        }
+
+        @JavascriptInterface
+        public String exportPerformance() {
+            if (!Lifecycle.getInstance().getAuthorisationState()) {
+                return "Cannot export until authorised.";
+            }
+            try {
+                return "Exported " + PerformanceMetrics.getInstance().exportHAR() + ".";
+            } catch (IOException exception) {
+                return "Couldn't export " + exception.toString() + ".";
+            }
+        }
+
+        @JavascriptInterface
+        public String benchmarkStreams() {
+            return StreamBenchmark.run(WebViewClient.this.context, 16);
+        }
+
         @JavascriptInterface
         public String getButtons() {
             return "{" +
                 "\"deleteDocumentCookieDatabase\": \"Delete document cookie database\", " +
-                "\"deleteSessionDocumentCookies\": \"Delete session document cookies\"" +
+                "\"deleteSessionDocumentCookies\": \"Delete session document cookies\", " +
+                "\"clearResponseCache\": \"Clear response cache\", " +
+                "\"requestBodyCacheStatistics\": \"Request body cache statistics\", " +
+                "\"connectionStatistics\": \"Connection and provider statistics\", " +
+                "\"performanceSummary\": \"Request timing summary\", " +
+                "\"exportPerformance\": \"Export request timings as HAR\", " +
+                "\"benchmarkStreams\": \"Benchmark response streams\"" +
                 "}";
         }
 
@@ -219,78 +231,37 @@ public class WebViewClient extends android.webkit.WebViewClient {
         }
     }
 
+    private static final String INJECT_ASSET = "inject.js";
     private DocumentCookieStore documentCookieStore = null;
+    private Context context = null;
+
+    // Static, because what it acts on is shared by every WebViewClient.
+    private static final Settings.Observer settingsObserver = new Settings.Observer() {
+        @Override
+        public void onSettingsChanged(Settings.Snapshot previous, Settings.Snapshot current) {
+            if (previous.keepAlive && !current.keepAlive) {
+                // Idle connections would otherwise stay open until they time out.
+                HttpClientPool.getInstance().shutdown();
+            }
+        }
+    };
 
     public void register(WebView webView) {
+        Settings.getInstance().addObserver(settingsObserver);
+        this.context = webView.getContext();
         webView.setWebViewClient(this);
         this.bridge = new JavaScriptBridge();
         webView.addJavascriptInterface(this.bridge, "bridge");
 
-        this.documentCookieStore = new DocumentCookieStore("DocumentCookieStore.db");
+        this.documentCookieStore = new DocumentCookieStore(CookieJar.getInstance());
+        InjectionAssets.preload(
+            this.context, INJECT_ASSET, this.documentCookieStore.getBridgeAsset());
         // ToDo add a setting for this:
-        this.documentCookieStore.dumpExpiringCookies = true;
+        CookieJar.getInstance().dumpExpiringCookies = true;
         webView.addJavascriptInterface(
             this.documentCookieStore.getBridge(), this.documentCookieStore.getBridgeName());
     }
 
-    private void lookup(String host) {
-        if (Character.isDigit(host.charAt(0))) {
-            Log.d(TAG, "Not sending nslookup for digits" + logStr(host) + ".");
-            return;
-        }
-        Log.d(TAG, "Sending nslookup for" + logStr(host) + " ...");
-        GDNetUtility.getInstance().nslookup(
-            host,
-            GDNetUtility.GDNslookupType.GDNslookupARECORD,
-            new GDNetUtility.GDNslookupCallback() {
-                @Override
-                public void onNslookupResponseSuccess(JSONObject jsonObject) {
-                    Log.d(TAG,
-                        "... nslookup success " + Thread.currentThread().getName() + " " +
-                            jsonObject.toString());
-                }
-
-                @Override
-                public void onNslookupResponseFailure(
-                    GDNetUtility.GDNetUtilityErr gdNetUtilityErr
-                ) {
-                    Log.d(TAG,
-                        "... nslookup failure " + Thread.currentThread().getName() + " " +
-                            gdNetUtilityErr.toString());
-                }
-            }
-        );
-    }
-
-    private Uri uriForRedirect(Uri uri, ResponseBuilder responseBuilder) {
-        final Uri location = Uri.parse(responseBuilder.headers.get("Location"));
-        Uri.Builder builder = location.buildUpon();
-
-        // Next statements support the Location being a value like "index302.html" that doesn't have
-        // a scheme nor server address.
-        if (location.getScheme() == null) {
-            builder.scheme(uri.getScheme());
-        }
-        if (location.getEncodedAuthority() == null) {
-            builder.encodedAuthority(uri.getEncodedAuthority());
-        }
-        if (location.isRelative()) {
-            builder.path(uri.getPath());
-            for (String segment : location.getPathSegments()) {
-                builder.appendPath(segment);
-            }
-        }
-        Uri redirect = builder.build();
-        Log.d(TAG,
-            "uriForRedirect" + logURI(redirect) +
-            " uri:" + uri.getPathSegments().size() +
-            " loc:" + location.getPathSegments().size() +
-            " abs:" + location.isAbsolute() + " rel:" + location.isRelative()
-        );
-
-        return redirect;
-    }
-
     private String logHeaders(final HttpRequest httpRequest) {
         return logHeaders(httpRequest.getAllHeaders());
     }
@@ -314,6 +285,9 @@ public class WebViewClient extends android.webkit.WebViewClient {
     private String logHeaders(final WebResourceResponse response) {
         return logHeaders(response.getResponseHeaders());
     }
+    private String logHeaders(final HeaderMap headers) {
+        return headers == null ? " None" : headers.toString();
+    }
     private String logHeaders(final Map<String, String> headers) {
         if (headers == null || headers.size() <= 0) {
             return " None";
@@ -325,11 +299,11 @@ public class WebViewClient extends android.webkit.WebViewClient {
         return builder.toString();
     }
 
-    private String logProviders(final Vector<GDServiceProvider> providers) {
+    private String logProviders(final List<GDServiceProvider> providers) {
         if (providers == null) {return " None";}
         final StringBuilder builder = new StringBuilder(" Providers:" + providers.size());
         for (int index=0; index < providers.size(); index++) {
-            final GDServiceProvider provider = providers.elementAt(index);
+            final GDServiceProvider provider = providers.get(index);
             builder.append("\n[").append(index).append("]").append(logStr(provider.getAddress()))
             .append(logStr(provider.getName()));
         }
@@ -352,48 +326,31 @@ public class WebViewClient extends android.webkit.WebViewClient {
         return uuid;
     }
 
-    class StreamCookieStore implements CookieStore {
-        private List<Cookie> list = new ArrayList<Cookie>();
-
-        @Override
-        public void addCookie(Cookie cookie) {
-            list.add(cookie);
-            Log.d(TAG, "Adding cookie" + logStr(cookie.toString()) + ".");
-            return;
-        }
-
-        @Override
-        public List<Cookie> getCookies() {
-            return this.list;
-        }
-
-        @Override
-        public boolean clearExpired(Date date) {
-            return false;
-        }
-
-        @Override
-        public void clear() {
-            return;
-        }
-    }
-    StreamCookieStore cookieStore = new StreamCookieStore();
-
     // ToDo: This value should be sent by the JS injection, not hard-coded here.
     static final String UUID_HEADER = "X-GD-UUID";
     static final String REQUEST_BODY = "requestBody";
     static final String ORIGINAL_ACTION = "origAction";
     private ResponseBuilder executeHTTP(final WebResourceRequest resourceRequest,
+                                        final String method,
                                         Uri uri,
                                         final GDHttpClient httpClient,
-                                        final Context context)
+                                        final ResponseCache.Entry cached,
+                                        final Context context,
+                                        final Settings.Snapshot settings)
     {
-        final String method = resourceRequest.getMethod().toLowerCase();
-        HttpRequest httpRequest = null;
 
         String uuid = getUuidParameter(uri);
+        final RequestBodyCache requestBodyCache = RequestBodyCache.getInstance();
+        RequestBodyCache.Entry requestBody = null;
         if (uuid != null) {
-            uri = Uri.parse((String) this.requestCache.get(uuid).get(ORIGINAL_ACTION));
+            requestBody = requestBodyCache.get(uuid);
+            if (requestBody == null) {
+                return new ResponseBuilder(404, "No request body for" + logStr(uuid) +
+                    ", it may have expired.");
+            }
+            if (requestBody.originalAction != null) {
+                uri = Uri.parse(requestBody.originalAction);
+            }
         }
 
         Map<String, String> headers = resourceRequest.getRequestHeaders();
@@ -402,51 +359,52 @@ public class WebViewClient extends android.webkit.WebViewClient {
                 logStr(headers.get(UUID_HEADER)));
             if (uuid == null) {
                 uuid = getUuidParameter(Uri.parse(headers.get(UUID_HEADER)));
+                requestBody = requestBodyCache.get(uuid);
             }
         }
-        HttpEntity bodyEntity = null;
-        if (uuid != null) {
-            final String bodyData = (String) this.requestCache.get(uuid).get(REQUEST_BODY);
-            if (getSetting("chunked")) {
-                ContentProducer contentProducer = new ReaderContentProducer(bodyData);
-                bodyEntity = new EntityTemplate(contentProducer);
-            } else {
+        final HttpRequestBase httpRequest = createRequest(method, uri);
+        if (httpRequest == null) {
+            return new ResponseBuilder(404,  "Unsupported method" + logStr(method));
+        }
+
+        final long bodyLength =
+            requestBody != null && requestBody.hasBody() ? requestBody.length : -1;
+        if (bodyLength >= 0) {
+            if (httpRequest instanceof HttpEntityEnclosingRequest) {
+                // The body is streamed from the cache, already encoded as UTF-8. With chunked
+                // off, the length is known and sent as Content-Length.
                 try {
-                    bodyEntity = new StringEntity(bodyData, "UTF-8");
-                } catch (UnsupportedEncodingException exception) {
-                    Log.d(TAG,
-                            "UnsupportedEncodingException" + logURI(uri) + " " + exception.toString() + ".");
+                    final InputStreamEntity bodyEntity = new InputStreamEntity(
+                        requestBody.openStream(), settings.chunked ? -1 : bodyLength);
+                    bodyEntity.setContentType("text/plain; charset=UTF-8");
+                    ((HttpEntityEnclosingRequest) httpRequest).setEntity(bodyEntity);
+                } catch (IOException exception) {
+                    Log.d(TAG, "Couldn't open request body" + logURI(uri) + " " +
+                        exception.toString() + ".");
                     return new ResponseBuilder(404,
-                            "UnsupportedEncodingException" + " " + exception.toString() + ".");
+                        "Couldn't open request body " + exception.toString() + ".");
                 }
             }
-        }
-
-        if (method.equals("get")) {
-            httpRequest = new HttpGet(uri.toString());
-        }
-        else if (method.equals("post")) {
-            HttpPost post = new HttpPost(uri.toString());
-            if (bodyEntity != null) {
-                post.setEntity(bodyEntity);
+            else if (method.equals(resourceRequest.getMethod().toLowerCase(Locale.US))) {
+                Log.e(TAG, "Sorry, HTTP" + logStr(method) + " with body isn't supported.");
             }
-            httpRequest = post;
-        }
-        else if (method.equals("options")) {
-            httpRequest = new HttpOptions(uri.toString());
-            if (bodyEntity != null) {
-                Log.e(TAG, "Sorry, HTTP OPTIONS with body isn't supported.");
-            }
-        }
-
-        if (httpRequest == null) {
-            return new ResponseBuilder(404,  "Unsupported method" + logStr(method));
+            // Otherwise a redirect changed the method and the body is dropped, as it should be.
         }
 
         final HttpParams params = httpRequest.getParams();
-        final int timeOutSeconds = 20;
-        HttpConnectionParams.setConnectionTimeout(params, 1000 * timeOutSeconds);
-        HttpClientParams.setRedirecting(params, getSetting("apacheRedirect"));
+        HttpConnectionParams.setConnectionTimeout(params, 1000 * settings.connectTimeoutSeconds);
+        HttpConnectionParams.setSoTimeout(params, 1000 * settings.readTimeoutSeconds);
+        // Large uploads ask the server first, so that one that's going to be refused, for example
+        // because authentication is needed, isn't sent in full over a slow link. Small bodies
+        // aren't worth the extra wait.
+        final boolean expectContinue =
+            bodyLength >= 1024L * settings.expectContinueKilobytes;
+        HttpProtocolParams.setUseExpectContinue(params, expectContinue);
+        if (expectContinue) {
+            params.setIntParameter(CoreProtocolPNames.WAIT_FOR_CONTINUE,
+                1000 * settings.continueTimeoutSeconds);
+        }
+        HttpClientParams.setRedirecting(params, settings.apacheRedirect);
 
 
 //        HttpClientParams.setCookiePolicy(params, CookiePolicy.BROWSER_COMPATIBILITY);
@@ -454,8 +412,7 @@ public class WebViewClient extends android.webkit.WebViewClient {
 //        HttpClientParams.setCookiePolicy(params, CookiePolicy.RFC_2109);
 //        HttpClientParams.setCookiePolicy(params, CookiePolicy.NETSCAPE);
 
-//        httpClient.setCookieStore(this.cookieStore);
-
+        // Cookies come from the shared CookieJar, which HttpClientPool sets on every client.
 
         Log.d(TAG, "Cookie policy" + logStr(HttpClientParams.getCookiePolicy(params)) +
             " Default headers for" + logURI(uri) + " " + logHeaders(httpRequest));
@@ -464,6 +421,21 @@ public class WebViewClient extends android.webkit.WebViewClient {
                 httpRequest.setHeader(header, headers.get(header));
             }
         }
+        // Byte ranges refer to the body as it's sent, so a range of a compressed body would be
+        // of no use to the WebView. The stored part of a partial entry is never compressed.
+        final ByteRange range =
+            settings.rangeRequests ? ByteRange.fromRequest(resourceRequest) : null;
+        final boolean isRanged = httpRequest.containsHeader("Range") ||
+            (cached != null && cached.isPartial());
+        if (settings.compression && !isRanged &&
+            !httpRequest.containsHeader("Accept-Encoding"))
+        {
+            // Decoded by ResponseBuilder, which is also where the WebView's copy is made.
+            httpRequest.setHeader("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
+        }
+        if (cached != null) {
+            ResponseCache.getInstance().addValidators(httpRequest, cached, range);
+        }
         Log.d(TAG,
             "Web resource request headers for" + logURI(uri) + " " + logHeaders(httpRequest));
 
@@ -472,18 +444,7 @@ public class WebViewClient extends android.webkit.WebViewClient {
         HttpResponse httpResponse = null;
         final long start = SystemClock.elapsedRealtime();
         try {
-            if (method.equals("get")) {
-                httpResponse = httpClient.execute((HttpGet) httpRequest);
-            }
-            else if (method.equals("post")) {
-                httpResponse = httpClient.execute((HttpPost) httpRequest);
-            }
-            else if (method.equals("options")) {
-                httpResponse = httpClient.execute((HttpOptions) httpRequest);
-            }
-            else {
-                throw new AssertionError("No case to execute method" + logStr(method) + ".");
-            }
+            httpResponse = httpClient.execute(httpRequest);
         }
         catch (IOException exception) {
             // An IOException could be raised if the SSL/TLS connection fails.
@@ -512,14 +473,22 @@ public class WebViewClient extends android.webkit.WebViewClient {
                 String.format(" %.02f", seconds) + logThread());
 
         if (responseBuilder == null) {
-            responseBuilder = new ResponseBuilder();
-            if (getSetting("injectHTML")) {
-                responseBuilder.setInjectAssets(
-                    "inject.js",
-                    this.documentCookieStore.getBridgeAsset());
+            if (cached != null && httpResponse.getStatusLine().getStatusCode() == 304) {
+                // Stale entry is still good, serve it from the cache.
+                final ResponseBuilder cachedBuilder = this.newResponseBuilder(settings);
+                if (cachedBuilder.buildFromCache(resourceRequest,
+                    ResponseCache.getInstance().revalidated(cached, httpResponse), context))
+                {
+                    return cachedBuilder;
+                }
             }
-            else {
-                responseBuilder.setInjectAssets(null);
+            responseBuilder = this.newResponseBuilder(settings);
+            if (isCacheable(resourceRequest, settings)) {
+                responseBuilder.cacheUri = uri;
+            }
+            if (cached != null && cached.isPartial()) {
+                responseBuilder.resumeFrom = cached;
+                responseBuilder.range = range;
             }
             responseBuilder.build(resourceRequest, httpResponse, httpClient, context);
         }
@@ -527,71 +496,241 @@ public class WebViewClient extends android.webkit.WebViewClient {
         return responseBuilder;
     }
 
-    private ResponseBuilder getByHTTP(final WebResourceRequest request, final Context context) {
+    private static HttpRequestBase createRequest(String method, Uri uri) {
+        final String uriString = uri.toString();
+        if (method.equals("get")) {
+            return new HttpGet(uriString);
+        }
+        if (method.equals("head")) {
+            return new HttpHead(uriString);
+        }
+        if (method.equals("post")) {
+            return new HttpPost(uriString);
+        }
+        if (method.equals("put")) {
+            return new HttpPut(uriString);
+        }
+        if (method.equals("patch")) {
+            return new HttpPatch(uriString);
+        }
+        if (method.equals("delete")) {
+            return new HttpDelete(uriString);
+        }
+        if (method.equals("options")) {
+            return new HttpOptions(uriString);
+        }
+        return null;
+    }
+
+    private ResponseBuilder newResponseBuilder(final Settings.Snapshot settings) {
+        final ResponseBuilder responseBuilder = new ResponseBuilder(settings);
+        if (settings.injectHTML) {
+            responseBuilder.setInjectAssets(
+                INJECT_ASSET,
+                this.documentCookieStore.getBridgeAsset());
+        }
+        else {
+            responseBuilder.setInjectAssets(null);
+        }
+        return responseBuilder;
+    }
+
+    // Requests that already have their own conditional headers are passed straight through,
+    // because the cache can't tell what the WebView is expecting in response. So are requests
+    // for more than one range, and all range requests if the rangeRequests setting is off.
+    private static final String[] UNCACHEABLE_REQUEST_HEADERS = {
+        "If-None-Match", "If-Modified-Since", "If-Match", "If-Unmodified-Since", "If-Range"
+    };
+    private static boolean isCacheable(final WebResourceRequest request,
+                                       final Settings.Snapshot settings)
+    {
+        if (!request.getMethod().equalsIgnoreCase("get")) {
+            return false;
+        }
+        if (ByteRange.hasRangeHeader(request) && (
+            !settings.rangeRequests ||
+            ByteRange.fromRequest(request) == null))
+        {
+            return false;
+        }
+        for (String header : request.getRequestHeaders().keySet()) {
+            for (String uncacheable : UNCACHEABLE_REQUEST_HEADERS) {
+                if (header.equalsIgnoreCase(uncacheable)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private ResponseBuilder getByHTTP(final WebResourceRequest request,
+                                      final Context context,
+                                      final Settings.Snapshot settings)
+    {
         Uri uri = request.getUrl();
+        String method = request.getMethod().toLowerCase(Locale.US);
+        final RedirectEngine redirectEngine = RedirectEngine.getInstance();
+        final List<RedirectEngine.Hop> hops = new ArrayList<RedirectEngine.Hop>();
+
+        final ByteRange range =
+            settings.rangeRequests ? ByteRange.fromRequest(request) : null;
 
         ResponseBuilder responseBuilder = null;
         // Code will go around the loop once for each redirection.
-        final int max3xx = 10;
-        for (int tries=0; responseBuilder == null && tries < max3xx; tries++) {
-            if (getSetting("nslookup")) {
-                // Informational only. The code only logs the result.
-                this.lookup(uri.getHost());
+        while (responseBuilder == null) {
+            if (hops.size() >= RedirectEngine.MAX_REDIRECTS) {
+                // If the code gets here, then there were too many redirects.
+                responseBuilder = new ResponseBuilder(
+                    404, "Maximum redirects exceeded:" + RedirectEngine.MAX_REDIRECTS + ".");
+                break;
             }
 
-            GDHttpClient httpClient = new GDHttpClient();
-            responseBuilder = executeHTTP(request, uri, httpClient, context);
+            final Uri remembered = redirectEngine.lookup(method, uri);
+            if (remembered != null) {
+                hops.add(new RedirectEngine.Hop(method, uri, 301, remembered, 0, "remembered"));
+                uri = remembered;
+                continue;
+            }
 
-            Log.d(TAG, "Executed HTTP for" + logURI(uri) + logThread());
+            final RequestTimeline timeline = RequestTimeline.current();
+            if (timeline != null && hops.isEmpty()) {
+                timeline.resolverState = HostResolver.getInstance().describe(uri.getHost());
+            }
 
-            int statusCode = responseBuilder.statusCode;
+            if (settings.nslookup) {
+                // Doesn't wait for the result. It's cached for the next request, and for the
+                // prefetching of hosts found in pages.
+                HostResolver.getInstance().resolve(uri.getHost(), null);
+            }
 
-            if (statusCode >= 300 && statusCode < 400) {
-                final Uri redirect = uriForRedirect(uri, responseBuilder);
-                if (redirect.equals(uri)) {
-                    throw new AssertionError("Redirect to same location" + logURI(uri) +
-                        " " + responseBuilder.headers.toString());
+            ResponseCache.Entry cached = null;
+            if (hops.isEmpty() && isCacheable(request, settings)) {
+                cached = ResponseCache.getInstance().lookup(uri);
+                if (cached != null && cached.canServe(range)) {
+                    final ResponseBuilder cachedBuilder = this.newResponseBuilder(settings);
+                    if (cachedBuilder.buildFromCache(request, cached, range, context)) {
+                        Log.d(TAG, "Served from cache" + logURI(uri) + logThread());
+                        if (timeline != null) {
+                            timeline.fromCache = true;
+                        }
+                        responseBuilder = cachedBuilder;
+                        break;
+                    }
                 }
-                // If there was any content with the redirect, a WebInputStream will have been
-                // created and passed the httpClient. It is then correct to drain the content and
-                // close the stream.
-                if (responseBuilder.getGDHttpClient() != null) {
-                    Log.d(TAG, "Connection will be drained for " + statusCode +
-                        logURI(uri) + logURI(redirect) + " " + responseBuilder.headers.toString());
-                    int drainage = responseBuilder.stream.drain();
-                    responseBuilder.stream.close();
-                    Log.d(TAG, "Drain " + drainage + logURI(uri) + logThread());
-
-                    httpClient = null;
+                if (cached != null && !cached.canRevalidate(range) && !cached.canResume(range)) {
+                    cached = null;
                 }
-                // Set the uri for the next go-around the loop.
-                uri = redirect;
+            }
+
+            final HttpClientPool pool = HttpClientPool.getInstance();
+            final GDHttpClient httpClient = pool.acquire(uri);
+            final long start = SystemClock.elapsedRealtime();
+            RequestTimeline.markCurrent(RequestTimeline.Mark.SENDING);
+            responseBuilder =
+                executeHTTP(request, method, uri, httpClient, cached, context, settings);
+            RequestTimeline.markCurrent(RequestTimeline.Mark.HEADERS);
+
+            Log.d(TAG, "Executed HTTP for" + logURI(uri) + logThread());
+
+            if (responseBuilder.resumeFailed) {
+                // The server didn't send the rest of the partial entry, so it's of no further
+                // use. Go around again without it.
+                Log.d(TAG, "Discarding partial cache entry" + logURI(uri) + " " +
+                    RedirectEngine.discardBody(responseBuilder));
+                ResponseCache.getInstance().remove(cached);
                 responseBuilder = null;
+                continue;
+            }
+
+            // If there was any content, a WebInputStream will have been created and passed the
+            // httpClient. The stream returns the client to the pool when it's closed. Otherwise,
+            // the client goes back to the pool here, unless the request failed, in which case its
+            // connection can't be trusted.
+            if (responseBuilder.getGDHttpClient() == null) {
+                if (responseBuilder.headers == null) {
+                    pool.discard(httpClient);
+                }
+                else {
+                    pool.release(httpClient);
+                }
+            }
+
+            final int statusCode = responseBuilder.statusCode;
+            if (statusCode < 300 || statusCode >= 400 || responseBuilder.headers == null) {
+                continue;
+            }
+            final Uri redirect = RedirectEngine.isRedirect(statusCode) ?
+                RedirectEngine.resolve(uri, responseBuilder.headers.get("Location")) : null;
+            if (redirect == null) {
+                // A WebResourceResponse can't have a 3xx status, so a 3xx that can't be followed
+                // goes back as a gateway error.
+                final String disposal = RedirectEngine.discardBody(responseBuilder);
+                responseBuilder = new ResponseBuilder(502, "Can't follow " + statusCode +
+                    (RedirectEngine.isRedirect(statusCode) ? " without a usable Location" : "") +
+                    " from" + logURI(uri) + " body:" + disposal + ".");
+                break;
+            }
+            final String nextMethod = RedirectEngine.methodAfter(statusCode, method);
+            if (redirect.equals(uri) && nextMethod.equals(method)) {
+                RedirectEngine.discardBody(responseBuilder);
+                responseBuilder = new ResponseBuilder(404, "Redirect to same location" +
+                    logURI(uri) + ".");
+                break;
             }
 
-            if (httpClient != null &&
-                responseBuilder != null &&
-                responseBuilder.getGDHttpClient() == null)
-            {
-                Log.d(TAG, "Shutting down connection in get loop for" + logURI(uri));
-                httpClient.getConnectionManager().shutdown();
-                // Could set httpClient to null here but it goes out of scope in every iteration.
+            // Getting rid of the body returns the connection to the pool, ready for the next
+            // go-around, unless the body was too big to be worth reading.
+            final String disposal = RedirectEngine.discardBody(responseBuilder);
+            hops.add(new RedirectEngine.Hop(method, uri, statusCode, redirect,
+                SystemClock.elapsedRealtime() - start, disposal));
+            if (RedirectEngine.isPermanent(statusCode)) {
+                redirectEngine.remember(method, uri, redirect);
             }
+
+            // Set the uri and method for the next go-around the loop.
+            uri = redirect;
+            method = nextMethod;
+            responseBuilder = null;
         }
-        if (responseBuilder == null) {
-            // If the code gets here, then there were too many redirects.
-            responseBuilder = new ResponseBuilder(
-                404, "Maximum redirects exceeded:" + max3xx + ".");
+
+        if (!hops.isEmpty()) {
+            responseBuilder.redirects = hops;
+            Log.d(TAG, "Redirect chain for" + logURI(request.getUrl()) + " hops:" + hops.size() +
+                RedirectEngine.describe(hops));
         }
         return responseBuilder;
     }
 
-    private static final String serviceID = "com.good.gdservice.open-url.http";
-    private static final String serviceVersion = "1.0.0.0";
+    private ResponseBuilder timedGetByHTTP(final WebResourceRequest request,
+                                           final Context context,
+                                           final RequestTimeline timeline,
+                                           final Settings.Snapshot settings)
+    {
+        if (timeline == null) {
+            return this.getByHTTP(request, context, settings);
+        }
+        timeline.begin();
+        try {
+            final ResponseBuilder responseBuilder = this.getByHTTP(request, context, settings);
+            timeline.setResponse(responseBuilder);
+            // The timeline is completed when the WebView has read the body.
+            if (responseBuilder.stream == null) {
+                timeline.complete(0);
+            }
+            else {
+                responseBuilder.stream.timeline = timeline;
+            }
+            return responseBuilder;
+        }
+        finally {
+            timeline.end();
+        }
+    }
+
     private static final String serviceMethod = "open";
     private static final String serviceAttachments[] = new String[0];
     private Boolean openByAppKinetics(Uri uri) {
-        if (!Settings.getInstance().getSetting("appKinetics")) {
+        if (!getSettings().appKinetics) {
             return false;
         }
 
@@ -599,30 +738,26 @@ public class WebViewClient extends android.webkit.WebViewClient {
             return false;
         }
 
-        final Vector<GDServiceProvider> providers = GDAndroid.getInstance().getServiceProvidersFor(
-            serviceID, serviceVersion, GDServiceType.GD_SERVICE_TYPE_APPLICATION);
-        Log.d(TAG,
-            "openByAppKinetics service discovery" + logStr(serviceID) + logStr(serviceVersion) +
-            logProviders(providers));
+        // Discovery is cached by ServiceProviders, and refreshed in the background when the
+        // configuration changes, so this doesn't wait for it except the first time.
+        final ServiceProviders serviceProviders = ServiceProviders.getInstance();
+        final List<GDServiceProvider> providers = serviceProviders.ranked();
+        Log.d(TAG, "openByAppKinetics" + logStr(ServiceProviders.SERVICE_ID) +
+            logStr(ServiceProviders.SERVICE_VERSION) + logProviders(providers));
         if (providers.size() < 1) {
-            Log.e(TAG,
-                "No providers for service" + logStr(serviceID) + logStr(serviceVersion) + ".");
+            Log.e(TAG, "No providers for service" + logStr(ServiceProviders.SERVICE_ID) +
+                logStr(ServiceProviders.SERVICE_VERSION) + ".");
             // Possibly should raise an exception here although it'd be nicer to create a web page
             // on the fly and show it in the WebView.
         }
         else {
             final Map<String, String> params = new HashMap<>();
             params.put("url", uri.toString());
-            // Select the first provider. It'd be better to give the user an option to select one
-            // but this is only a PoC.
-            final String address = providers.elementAt(0).getAddress();
-            try {
-                final String requestID = GDServiceClient.sendTo(address, serviceID, serviceVersion,
-                    serviceMethod, params, serviceAttachments,
-                    GDICCForegroundOptions.PreferPeerInForeground);
-                Log.d(TAG, "Sent service request" + logStr(address) + logStr(requestID));
-            } catch (GDServiceException exception) {
-                Log.e(TAG, "Service exception " + exception.toString());
+            // Tries the providers in ranked order until one takes the request. It'd be better to
+            // give the user an option to select one but this is only a PoC.
+            final String address = serviceProviders.send(serviceMethod, params, serviceAttachments);
+            if (address == null) {
+                Log.e(TAG, "No provider took the request " + serviceProviders);
             }
         }
 
@@ -630,14 +765,18 @@ public class WebViewClient extends android.webkit.WebViewClient {
     }
 
     @Override
-    public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+    public WebResourceResponse shouldInterceptRequest(WebView view,
+                                                      final WebResourceRequest request)
+    {
         final Uri uri = request.getUrl();
         final String method = request.getMethod();
         final CookieManager cookieManager = CookieManager.getInstance();
+        // One snapshot for the whole request, so that a change part way through isn't seen.
+        final Settings.Snapshot settings = getSettings();
 
         Log.d(TAG,
             "shouldInterceptRequest" +
-            " main:" + request.isForMainFrame() + " intercept:" + getSetting("intercept") +
+            " main:" + request.isForMainFrame() + " intercept:" + settings.intercept +
             logStr(method) + logURI(uri)  + logStr(cookieManager.getCookie(uri.toString())) +
             logThread() + logHeaders(request));
 
@@ -650,9 +789,24 @@ public class WebViewClient extends android.webkit.WebViewClient {
 //        if (response == null) {
         else {
             ResponseBuilder responseBuilder = null;
-            if (getSetting("intercept") || getSetting("retrieve")) {
-                responseBuilder = getByHTTP(request, view.getContext());
-                if (getSetting("retrieve")) {
+            if (settings.intercept || settings.retrieve) {
+                final Context context = view.getContext();
+                final RequestTimeline timeline =
+                    settings.timeline ? new RequestTimeline(request) : null;
+                if (settings.fetchScheduler) {
+                    responseBuilder = FetchScheduler.getInstance().fetch(request,
+                        new Callable<ResponseBuilder>() {
+                            @Override
+                            public ResponseBuilder call() {
+                                return WebViewClient.this.timedGetByHTTP(
+                                    request, context, timeline, settings);
+                            }
+                        });
+                }
+                else {
+                    responseBuilder = timedGetByHTTP(request, context, timeline, settings);
+                }
+                if (settings.retrieve) {
                     Log.d(TAG, "Retrieve mode, connection will be drained " +
                         logURI(uri) + " " + responseBuilder.statusCode +
                         logStr(responseBuilder.reasonPhrase) +
@@ -708,6 +862,9 @@ public class WebViewClient extends android.webkit.WebViewClient {
         this.datePageFinish = SystemClock.elapsedRealtime();
         double seconds = ((float)(this.datePageFinish - this.datePageStart)) / 1000.0;
         Log.d(TAG, "onPageFinished(," + url + ") " + String.format("%.02f", seconds) + logThread());
+        PerformanceMetrics.getInstance().recordPage(url,
+            System.currentTimeMillis() - (this.datePageFinish - this.datePageStart),
+            this.datePageFinish - this.datePageStart);
         super.onPageFinished(webView, url);
     }
 }
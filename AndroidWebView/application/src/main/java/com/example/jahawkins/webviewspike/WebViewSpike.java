@@ -59,6 +59,7 @@ public class WebViewSpike extends Application {
                 Log.d(TAG,
                     "serviceClientListener onMessageSent '" + application + "' '" + requestID +
                     "'.");
+                ServiceProviders.getInstance().messageSent(application, requestID);
             }
         };
 